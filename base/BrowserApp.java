@@ -1521,6 +1521,9 @@ public class BrowserApp extends GeckoApp
             @Override
             public void run() {
                 db.clearHistory(getContentResolver(), clearSearchHistory);
+                if (!clearSearchHistory) {
+                    Favicons.clearDiskCache(BrowserApp.this);
+                }
             }
         });
     }
@@ -19,10 +19,14 @@ import org.json.JSONObject;
 
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 @RobocopTarget
 public final class EventDispatcher {
@@ -42,10 +46,18 @@ public final class EventDispatcher {
     private static final int GECKO_NATIVE_EVENTS_COUNT = 0; // Default for HashMap
     private static final int GECKO_JSON_EVENTS_COUNT = 256; // Empirically measured
 
-    private final Map<String, List<NativeEventListener>> mGeckoThreadNativeListeners =
-        new HashMap<String, List<NativeEventListener>>(GECKO_NATIVE_EVENTS_COUNT);
-    private final Map<String, List<GeckoEventListener>> mGeckoThreadJSONListeners =
-        new HashMap<String, List<GeckoEventListener>>(GECKO_JSON_EVENTS_COUNT);
+    // Guards registration in both registries, so that an event can't be
+    // registered under both listener types at once.
+    private final Object mRegistrationLock = new Object();
+
+    private final ListenerRegistry<NativeEventListener> mGeckoThreadNativeListeners =
+        new ListenerRegistry<NativeEventListener>(GECKO_NATIVE_EVENTS_COUNT);
+    private final ListenerRegistry<GeckoEventListener> mGeckoThreadJSONListeners =
+        new ListenerRegistry<GeckoEventListener>(GECKO_JSON_EVENTS_COUNT);
+
+    private final ConcurrentHashMap<String, DispatchStats> mDispatchStats =
+        new ConcurrentHashMap<String, DispatchStats>();
+    private volatile boolean mDispatchStatsEnabled = !AppConstants.RELEASE_BUILD;
 
     public static EventDispatcher getInstance() {
         return INSTANCE;
@@ -54,102 +66,136 @@ public final class EventDispatcher {
     private EventDispatcher() {
     }
 
-    private <T> void registerListener(final Class<? extends List<T>> listType,
-                                      final Map<String, List<T>> listenersMap,
-                                      final T listener,
-                                      final String[] events) {
-        try {
-            synchronized (listenersMap) {
-                for (final String event : events) {
-                    List<T> listeners = listenersMap.get(event);
-                    if (listeners == null) {
-                        listeners = listType.newInstance();
-                        listenersMap.put(event, listeners);
-                    }
-                    if (!AppConstants.RELEASE_BUILD && listeners.contains(listener)) {
-                        throw new IllegalStateException("Already registered " + event);
-                    }
-                    listeners.add(listener);
-                }
-            }
-        } catch (final IllegalAccessException | InstantiationException e) {
-            throw new IllegalArgumentException("Invalid new list type", e);
+    /**
+     * Listeners for each event type, kept as an immutable snapshot. Dispatching
+     * happens for every Gecko message, whereas registration mostly happens at
+     * startup, so registering copies the snapshot and dispatching reads it
+     * without taking any lock.
+     */
+    private static final class ListenerRegistry<T> {
+        private final int mInitialCapacity;
+        private volatile Map<String, List<T>> mListeners = Collections.emptyMap();
+
+        public ListenerRegistry(final int initialCapacity) {
+            mInitialCapacity = initialCapacity;
+        }
+
+        public List<T> get(final String event) {
+            return mListeners.get(event);
         }
-    }
 
-    private <T> void checkNotRegistered(final Map<String, List<T>> listenersMap,
-                                        final String[] events) {
-        synchronized (listenersMap) {
-            for (final String event: events) {
-                if (listenersMap.get(event) != null) {
-                    throw new IllegalStateException(
-                        "Already registered " + event + " under a different type");
+        // The following must be called with mRegistrationLock held.
+
+        public boolean contains(final String event) {
+            return mListeners.containsKey(event);
+        }
+
+        public void register(final T listener, final String[] events) {
+            final Map<String, List<T>> listenersMap = copy();
+            for (final String event : events) {
+                final List<T> oldListeners = listenersMap.get(event);
+                final List<T> listeners = (oldListeners == null) ?
+                    new ArrayList<T>(1) : new ArrayList<T>(oldListeners);
+                if (!AppConstants.RELEASE_BUILD && listeners.contains(listener)) {
+                    throw new IllegalStateException("Already registered " + event);
                 }
+                listeners.add(listener);
+                listenersMap.put(event, Collections.unmodifiableList(listeners));
             }
+            mListeners = listenersMap;
         }
-    }
 
-    private <T> void unregisterListener(final Map<String, List<T>> listenersMap,
-                                        final T listener,
-                                        final String[] events) {
-        synchronized (listenersMap) {
+        public void unregister(final T listener, final String[] events) {
+            final Map<String, List<T>> listenersMap = copy();
             for (final String event : events) {
-                List<T> listeners = listenersMap.get(event);
+                final List<T> oldListeners = listenersMap.get(event);
+                final List<T> listeners = (oldListeners == null) ?
+                    null : new ArrayList<T>(oldListeners);
                 if ((listeners == null ||
                      !listeners.remove(listener)) && !AppConstants.RELEASE_BUILD) {
                     throw new IllegalArgumentException(event + " was not registered");
                 }
+                if (listeners != null) {
+                    // Keep empty lists around: dispatching relies on knowing an
+                    // event once had listeners of this type.
+                    listenersMap.put(event, Collections.unmodifiableList(listeners));
+                }
             }
+            mListeners = listenersMap;
+        }
+
+        private Map<String, List<T>> copy() {
+            final Map<String, List<T>> listenersMap = (mInitialCapacity > 0) ?
+                new HashMap<String, List<T>>(mInitialCapacity) : new HashMap<String, List<T>>();
+            listenersMap.putAll(mListeners);
+            return listenersMap;
         }
     }
 
-    @SuppressWarnings("unchecked")
     public void registerGeckoThreadListener(final NativeEventListener listener,
                                             final String... events) {
-        checkNotRegistered(mGeckoThreadJSONListeners, events);
-
-        // For listeners running on the Gecko thread, we want to notify the listeners
-        // outside of our synchronized block, because the listeners may take an
-        // indeterminate amount of time to run. Therefore, to ensure concurrency when
-        // iterating the list outside of the synchronized block, we use a
-        // CopyOnWriteArrayList.
-        registerListener((Class)CopyOnWriteArrayList.class,
-                         mGeckoThreadNativeListeners, listener, events);
+        synchronized (mRegistrationLock) {
+            checkNotRegistered(mGeckoThreadJSONListeners, events);
+            mGeckoThreadNativeListeners.register(listener, events);
+        }
     }
 
     @Deprecated // Use NativeEventListener instead
-    @SuppressWarnings("unchecked")
     public void registerGeckoThreadListener(final GeckoEventListener listener,
                                             final String... events) {
-        checkNotRegistered(mGeckoThreadNativeListeners, events);
+        synchronized (mRegistrationLock) {
+            checkNotRegistered(mGeckoThreadNativeListeners, events);
+            mGeckoThreadJSONListeners.register(listener, events);
+        }
+    }
 
-        registerListener((Class)CopyOnWriteArrayList.class,
-                         mGeckoThreadJSONListeners, listener, events);
+    private static void checkNotRegistered(final ListenerRegistry<?> registry,
+                                           final String[] events) {
+        for (final String event: events) {
+            if (registry.contains(event)) {
+                throw new IllegalStateException(
+                    "Already registered " + event + " under a different type");
+            }
+        }
     }
 
     public void unregisterGeckoThreadListener(final NativeEventListener listener,
                                               final String... events) {
-        unregisterListener(mGeckoThreadNativeListeners, listener, events);
+        synchronized (mRegistrationLock) {
+            mGeckoThreadNativeListeners.unregister(listener, events);
+        }
     }
 
     @Deprecated // Use NativeEventListener instead
     public void unregisterGeckoThreadListener(final GeckoEventListener listener,
                                               final String... events) {
-        unregisterListener(mGeckoThreadJSONListeners, listener, events);
+        synchronized (mRegistrationLock) {
+            mGeckoThreadJSONListeners.unregister(listener, events);
+        }
     }
 
     public void dispatchEvent(final NativeJSContainer message) {
-        // First try native listeners.
+        // Only read the type until we know the message has somewhere to go.
         final String type = message.optString("type", null);
         if (type == null) {
             Log.e(LOGTAG, "JSON message must have a type property");
             return;
         }
 
-        final List<NativeEventListener> listeners;
-        synchronized (mGeckoThreadNativeListeners) {
-            listeners = mGeckoThreadNativeListeners.get(type);
+        final boolean recordStats = mDispatchStatsEnabled;
+        final long startTime = recordStats ? System.nanoTime() : 0;
+        try {
+            dispatchEvent(type, message);
+        } finally {
+            if (recordStats) {
+                recordDispatch(type, System.nanoTime() - startTime);
+            }
         }
+    }
+
+    private void dispatchEvent(final String type, final NativeJSContainer message) {
+        // First try native listeners.
+        final List<NativeEventListener> listeners = mGeckoThreadNativeListeners.get(type);
 
         final String guid = message.optString(GUID, null);
         EventCallback callback = null;
@@ -179,9 +225,16 @@ public final class EventDispatcher {
             return;
         }
 
+        // If we didn't find native listeners, try JSON listeners. Don't bother
+        // converting the message unless someone is listening for it.
+        final List<GeckoEventListener> jsonListeners = mGeckoThreadJSONListeners.get(type);
+        if (jsonListeners == null || jsonListeners.isEmpty()) {
+            notifyNoListeners(type, callback);
+            return;
+        }
+
         try {
-            // If we didn't find native listeners, try JSON listeners.
-            dispatchEvent(new JSONObject(message.toString()), callback);
+            dispatchToJSONListeners(type, jsonListeners, new JSONObject(message.toString()));
         } catch (final JSONException e) {
             Log.e(LOGTAG, "Cannot parse JSON", e);
         } catch (final UnsupportedOperationException e) {
@@ -194,22 +247,43 @@ public final class EventDispatcher {
         //   "type": "value",
         //   "event_specific": "value",
         //   ...
+        final String type;
         try {
-            final String type = message.getString("type");
+            type = message.getString("type");
+        } catch (final JSONException e) {
+            Log.e(LOGTAG, "handleGeckoMessage throws " + e, e);
+            return;
+        }
 
-            List<GeckoEventListener> listeners;
-            synchronized (mGeckoThreadJSONListeners) {
-                listeners = mGeckoThreadJSONListeners.get(type);
-            }
+        final boolean recordStats = mDispatchStatsEnabled;
+        final long startTime = recordStats ? System.nanoTime() : 0;
+        try {
+            final List<GeckoEventListener> listeners = mGeckoThreadJSONListeners.get(type);
             if (listeners == null || listeners.isEmpty()) {
-                Log.w(LOGTAG, "No listeners for " + type);
-
-                // If there are no listeners, dispatch an error.
-                if (callback != null) {
-                    callback.sendError("No listeners for request");
-                }
+                notifyNoListeners(type, callback);
                 return;
             }
+            dispatchToJSONListeners(type, listeners, message);
+        } finally {
+            if (recordStats) {
+                recordDispatch(type, System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    private static void notifyNoListeners(final String type, final EventCallback callback) {
+        Log.w(LOGTAG, "No listeners for " + type);
+
+        // If there are no listeners, dispatch an error.
+        if (callback != null) {
+            callback.sendError("No listeners for request");
+        }
+    }
+
+    private static void dispatchToJSONListeners(final String type,
+                                                final List<GeckoEventListener> listeners,
+                                                final JSONObject message) {
+        try {
             for (final GeckoEventListener listener : listeners) {
                 listener.handleMessage(type, message);
             }
@@ -218,6 +292,101 @@ public final class EventDispatcher {
         }
     }
 
+    /**
+     * Dispatch counts and latencies for one event type. Latencies are kept in
+     * power-of-two buckets of microseconds: bucket 0 counts dispatches that took
+     * less than 1us, and bucket i > 0 those that took [2^(i-1), 2^i) us. The
+     * last bucket also counts anything slower.
+     */
+    public static final class DispatchStats {
+        public static final int BUCKET_COUNT = 24;
+
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(final long nanos) {
+            final long micros = nanos / 1000;
+            final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            mBuckets.incrementAndGet(bucket);
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos.get();
+        }
+
+        public long getBucketCount(final int bucket) {
+            return mBuckets.get(bucket);
+        }
+
+        /**
+         * @return the upper bound, in microseconds, of the bucket holding the
+         *         given percentile of dispatches, or 0 if there were none.
+         */
+        public long getPercentileMicros(final int percentile) {
+            final long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            final long threshold = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKET_COUNT - 1);
+        }
+    }
+
+    private void recordDispatch(final String type, final long nanos) {
+        DispatchStats stats = mDispatchStats.get(type);
+        if (stats == null) {
+            final DispatchStats newStats = new DispatchStats();
+            stats = mDispatchStats.putIfAbsent(type, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        stats.record(nanos);
+    }
+
+    /**
+     * Dispatch statistics are collected by default in non-release builds.
+     */
+    public void setDispatchStatsEnabled(final boolean enabled) {
+        mDispatchStatsEnabled = enabled;
+    }
+
+    /**
+     * @return a live view of the dispatch statistics, by event type.
+     */
+    public Map<String, DispatchStats> getDispatchStats() {
+        return Collections.unmodifiableMap(mDispatchStats);
+    }
+
+    public void resetDispatchStats() {
+        mDispatchStats.clear();
+    }
+
+    public void logDispatchStats() {
+        for (final Map.Entry<String, DispatchStats> entry : mDispatchStats.entrySet()) {
+            final DispatchStats stats = entry.getValue();
+            Log.i(LOGTAG, entry.getKey() + ": " + stats.getCount() + " dispatches, " +
+                          (stats.getTotalNanos() / 1000) + "us total, " +
+                          "p50 < " + stats.getPercentileMicros(50) + "us, " +
+                          "p90 < " + stats.getPercentileMicros(90) + "us, " +
+                          "p99 < " + stats.getPercentileMicros(99) + "us");
+        }
+    }
+
     @RobocopTarget
     @Deprecated
     public static void sendResponse(JSONObject message, Object response) {
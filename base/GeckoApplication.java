@@ -20,6 +20,8 @@ import android.app.Application;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.Log;
 
 import java.io.File;
@@ -119,6 +121,29 @@ public class GeckoApplication extends Application
         GeckoNetworkManager.getInstance().start(applicationContext);
 
         mInBackground = false;
+
+        decayFrecenciesWhenIdle();
+    }
+
+    /**
+     * Bring history frecency scores up to date once the UI thread is next
+     * idle, so that they don't wait for history expiry.
+     */
+    private void decayFrecenciesWhenIdle() {
+        final BrowserDB db = GeckoProfile.get(this).getDB();
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                ThreadUtils.postToBackgroundThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        db.decayFrecencies(GeckoApplication.this);
+                    }
+                });
+                // Don't keep this handler.
+                return false;
+            }
+        });
     }
 
     @Override
@@ -181,6 +181,7 @@ class MemoryMonitor extends BroadcastReceiver {
 
             Favicons.clearMemCache();
             ImageLoader.clearLruCache();
+            ThumbnailHelper.getInstance().getPool().clear();
         }
         return true;
     }
@@ -22,7 +22,6 @@ import org.mozilla.gecko.favicons.Favicons;
 import org.mozilla.gecko.favicons.LoadFaviconTask;
 import org.mozilla.gecko.favicons.OnFaviconLoadedListener;
 import org.mozilla.gecko.favicons.RemoteFavicon;
-import org.mozilla.gecko.gfx.BitmapUtils;
 import org.mozilla.gecko.gfx.Layer;
 import org.mozilla.gecko.toolbar.BrowserToolbar.TabEditingState;
 import org.mozilla.gecko.util.ThreadUtils;
@@ -145,6 +144,7 @@ public class Tab {
     }
 
     public void onDestroy() {
+        ThumbnailHelper.getInstance().onTabClosed(this);
         Tabs.getInstance().notifyListeners(this, Tabs.TabEvents.CLOSED);
     }
 
@@ -753,12 +753,11 @@ public class Tab {
                 return;
             }
 
-            byte[] thumbnail = db.getThumbnailForUrl(getContentResolver(), url);
-            if (thumbnail == null) {
+            Bitmap bitmap = db.getThumbnailForUrl(getContentResolver(), url);
+            if (bitmap == null) {
                 return;
             }
 
-            Bitmap bitmap = BitmapUtils.decodeByteArray(thumbnail);
             mThumbnail = new BitmapDrawable(mAppContext.getResources(), bitmap);
 
             Tabs.getInstance().notifyListeners(Tab.this, Tabs.TabEvents.THUMBNAIL);
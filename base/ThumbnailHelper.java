@@ -7,7 +7,6 @@ package org.mozilla.gecko;
 
 import org.mozilla.gecko.annotation.WrapForJNI;
 import org.mozilla.gecko.gfx.BitmapUtils;
-import org.mozilla.gecko.mozglue.DirectBufferAllocator;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -15,23 +14,28 @@ import android.util.Log;
 import android.util.TypedValue;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper class to generate thumbnails for tabs.
- * Internally, a queue of pending thumbnails is maintained in mPendingThumbnails.
- * The head of the queue is the thumbnail that is currently being processed; upon
- * completion of the current thumbnail the next one is automatically processed.
- * Changes to the thumbnail width are stashed in mPendingWidth and the change is
- * applied between thumbnail processing. This allows a single thumbnail buffer to
- * be used for all thumbnails.
+ * Internally, a queue of tabs waiting for thumbnails is maintained in
+ * mPendingThumbnails, and up to MAX_IN_FLIGHT requests are outstanding with
+ * Gecko at once, each with its own direct buffer. As each request completes
+ * its buffer returns to the pool and the next waiting tab is requested.
+ * Changes to the thumbnail width are stashed in mPendingWidth and are applied
+ * to the next request sent.
  */
 public final class ThumbnailHelper {
     private static final String LOGTAG = "GeckoThumbnailHelper";
 
     public static final float THUMBNAIL_ASPECT_RATIO = 0.571f;  // this is a 4:7 ratio (as per UX decision)
 
+    // Enough to keep Gecko busy capturing while we copy out the previous
+    // result, without tying up too many buffers.
+    private static final int MAX_IN_FLIGHT = 3;
+
     public static enum CachePolicy {
         STORE,
         NO_STORE
@@ -50,11 +54,27 @@ public final class ThumbnailHelper {
 
     // instance stuff
 
-    private final LinkedList<Tab> mPendingThumbnails;    // synchronized access only
+    private static final class Request {
+        public final Tab tab;
+        public final int width;
+        public final int height;
+        public final ByteBuffer buffer;
+
+        public Request(Tab tab, int width, int height, ByteBuffer buffer) {
+            this.tab = tab;
+            this.width = width;
+            this.height = height;
+            this.buffer = buffer;
+        }
+    }
+
+    private final ThumbnailPool mPool = new ThumbnailPool();
+
+    // Both synchronized on mPendingThumbnails.
+    private final LinkedList<Tab> mPendingThumbnails;
+    private final ArrayList<Request> mInFlight = new ArrayList<Request>(MAX_IN_FLIGHT);
+
     private AtomicInteger mPendingWidth;
-    private int mWidth;
-    private int mHeight;
-    private ByteBuffer mBuffer;
     private final float mThumbnailAspectRatio;
 
     private ThumbnailHelper() {
@@ -68,8 +88,10 @@ public final class ThumbnailHelper {
         try {
             mPendingWidth = new AtomicInteger((int) res.getDimension(R.dimen.tab_thumbnail_width));
         } catch (Resources.NotFoundException nfe) { mPendingWidth = new AtomicInteger(0); }
-        mWidth = -1;
-        mHeight = -1;
+    }
+
+    public ThumbnailPool getPool() {
+        return mPool;
     }
 
     public void getAndProcessThumbnailFor(Tab tab) {
@@ -79,23 +101,16 @@ public final class ThumbnailHelper {
         }
 
         synchronized (mPendingThumbnails) {
-            if (mPendingThumbnails.lastIndexOf(tab) > 0) {
-                // This tab is already in the queue, so don't add it again.
-                // Note that if this tab is only at the *head* of the queue,
-                // (i.e. mPendingThumbnails.lastIndexOf(tab) == 0) then we do
-                // add it again because it may have already been thumbnailed
-                // and now we need to do it again.
+            if (mPendingThumbnails.contains(tab)) {
+                // This tab is already waiting, so don't add it again. If it's
+                // only in flight we do add it again, because that capture may
+                // already be out of date.
                 return;
             }
 
             mPendingThumbnails.add(tab);
-            if (mPendingThumbnails.size() > 1) {
-                // Some thumbnail was already being processed, so wait
-                // for that to be done.
-                return;
-            }
         }
-        requestThumbnailFor(tab);
+        sendPendingRequests();
     }
 
     public void setThumbnailWidth(int width) {
@@ -108,95 +123,103 @@ public final class ThumbnailHelper {
         }
     }
 
-    private void updateThumbnailSize() {
-        // Apply any pending width updates.
-        mWidth = mPendingWidth.get();
-        mHeight = Math.round(mWidth * mThumbnailAspectRatio);
-
-        int pixelSize = (GeckoAppShell.getScreenDepth() == 24) ? 4 : 2;
-        int capacity = mWidth * mHeight * pixelSize;
-        Log.d(LOGTAG, "Using new thumbnail size: " + capacity + " (width " + mWidth + " - height " + mHeight + ")");
-        if (mBuffer == null || mBuffer.capacity() != capacity) {
-            if (mBuffer != null) {
-                mBuffer = DirectBufferAllocator.free(mBuffer);
-            }
-            try {
-                mBuffer = DirectBufferAllocator.allocate(capacity);
-            } catch (IllegalArgumentException iae) {
-                Log.w(LOGTAG, iae.toString());
-            } catch (OutOfMemoryError oom) {
-                Log.w(LOGTAG, "Unable to allocate thumbnail buffer of capacity " + capacity);
-            }
-            // If we hit an error above, mBuffer will be pointing to null, so we are in a sane state.
+    /**
+     * Called when a tab is closed: forget any waiting request for it.
+     *
+     * The tab's thumbnail bitmap is left alone. Its drawable may still be
+     * shown by the tabs tray or the tab strip, so the bitmap can't be recycled
+     * or handed to another capture; it goes when the last reference does.
+     */
+    public void onTabClosed(Tab tab) {
+        synchronized (mPendingThumbnails) {
+            mPendingThumbnails.remove(tab);
         }
     }
 
-    private void requestThumbnailFor(Tab tab) {
-        updateThumbnailSize();
-
-        if (mBuffer == null) {
-            // Buffer allocation may have failed. In this case we can't send the
-            // event requesting the screenshot which means we won't get back a response
-            // and so our queue will grow unboundedly. Handle this scenario by clearing
-            // the queue (no point trying more thumbnailing right now since we're likely
-            // low on memory). We will try again normally on the next call to
-            // getAndProcessThumbnailFor which will hopefully be when we have more free memory.
+    /**
+     * Send requests for waiting tabs until MAX_IN_FLIGHT are outstanding.
+     */
+    private void sendPendingRequests() {
+        while (true) {
+            final Request request;
             synchronized (mPendingThumbnails) {
-                mPendingThumbnails.clear();
+                if (mInFlight.size() >= MAX_IN_FLIGHT || mPendingThumbnails.isEmpty()) {
+                    return;
+                }
+
+                // Apply any pending width updates.
+                final int width = mPendingWidth.get();
+                final int height = Math.round(width * mThumbnailAspectRatio);
+                final int pixelSize = (GeckoAppShell.getScreenDepth() == 24) ? 4 : 2;
+
+                final ByteBuffer buffer = mPool.obtainBuffer(width * height * pixelSize);
+                if (buffer == null) {
+                    // Buffer allocation may have failed. In this case we can't send the
+                    // event requesting the screenshot, so clear the queue of waiting tabs
+                    // (no point trying more thumbnailing right now since we're likely
+                    // low on memory). We will try again normally on the next call to
+                    // getAndProcessThumbnailFor which will hopefully be when we have more
+                    // free memory.
+                    mPendingThumbnails.clear();
+                    return;
+                }
+
+                request = new Request(mPendingThumbnails.remove(), width, height, buffer);
+                mInFlight.add(request);
             }
-            return;
-        }
 
-        Log.d(LOGTAG, "Sending thumbnail event: " + mWidth + ", " + mHeight);
-        GeckoEvent e = GeckoEvent.createThumbnailEvent(tab.getId(), mWidth, mHeight, mBuffer);
-        GeckoAppShell.sendEventToGecko(e);
+            Log.d(LOGTAG, "Sending thumbnail event: " + request.width + ", " + request.height);
+            GeckoEvent e = GeckoEvent.createThumbnailEvent(request.tab.getId(), request.width, request.height, request.buffer);
+            GeckoAppShell.sendEventToGecko(e);
+        }
     }
 
     /* This method is invoked by JNI once the thumbnail data is ready. */
     @WrapForJNI(stubName = "SendThumbnail")
     public static void notifyThumbnail(ByteBuffer data, int tabId, boolean success, boolean shouldStore) {
-        Tab tab = Tabs.getInstance().getTab(tabId);
         ThumbnailHelper helper = ThumbnailHelper.getInstance();
-        if (success && tab != null) {
-            helper.handleThumbnailData(tab, data, shouldStore ? CachePolicy.STORE : CachePolicy.NO_STORE);
+        Request request = helper.takeInFlightRequest(data);
+        if (request == null) {
+            // This should never happen, but log it and recover gracefully
+            Log.e(LOGTAG, "notifyThumbnail called with an unexpected ByteBuffer!");
+            helper.sendPendingRequests();
+            return;
+        }
+
+        Tab tab = Tabs.getInstance().getTab(tabId);
+        if (success && tab != null && tab == request.tab) {
+            helper.handleThumbnailData(request, shouldStore ? CachePolicy.STORE : CachePolicy.NO_STORE);
         }
-        helper.processNextThumbnail(tab);
+
+        helper.mPool.releaseBuffer(request.buffer);
+        helper.mPool.logStats();
+        helper.sendPendingRequests();
     }
 
-    private void processNextThumbnail(Tab tab) {
-        Tab nextTab = null;
+    private Request takeInFlightRequest(ByteBuffer buffer) {
         synchronized (mPendingThumbnails) {
-            if (tab != null && tab != mPendingThumbnails.peek()) {
-                Log.e(LOGTAG, "handleThumbnailData called with unexpected tab's data!");
-                // This should never happen, but recover gracefully by processing the
-                // unexpected tab that we found in the queue
-            } else {
-                mPendingThumbnails.remove();
+            // Compare by identity: ByteBuffer.equals compares contents.
+            for (int i = 0; i < mInFlight.size(); i++) {
+                if (mInFlight.get(i).buffer == buffer) {
+                    return mInFlight.remove(i);
+                }
             }
-            nextTab = mPendingThumbnails.peek();
-        }
-        if (nextTab != null) {
-            requestThumbnailFor(nextTab);
         }
+        return null;
     }
 
-    private void handleThumbnailData(Tab tab, ByteBuffer data, CachePolicy cachePolicy) {
-        Log.d(LOGTAG, "handleThumbnailData: " + data.capacity());
-        if (data != mBuffer) {
-            // This should never happen, but log it and recover gracefully
-            Log.e(LOGTAG, "handleThumbnailData called with an unexpected ByteBuffer!");
-        }
-
-        if (shouldUpdateThumbnail(tab)) {
-            processThumbnailData(tab, data, cachePolicy);
+    private void handleThumbnailData(Request request, CachePolicy cachePolicy) {
+        Log.d(LOGTAG, "handleThumbnailData: " + request.buffer.capacity());
+        if (shouldUpdateThumbnail(request.tab)) {
+            processThumbnailData(request, cachePolicy);
         }
     }
 
-    private void processThumbnailData(Tab tab, ByteBuffer data, CachePolicy cachePolicy) {
-        Bitmap b = tab.getThumbnailBitmap(mWidth, mHeight);
-        data.position(0);
-        b.copyPixelsFromBuffer(data);
-        setTabThumbnail(tab, b, null, cachePolicy);
+    private void processThumbnailData(Request request, CachePolicy cachePolicy) {
+        Bitmap b = request.tab.getThumbnailBitmap(request.width, request.height);
+        request.buffer.position(0);
+        b.copyPixelsFromBuffer(request.buffer);
+        setTabThumbnail(request.tab, b, null, cachePolicy);
     }
 
     private void setTabThumbnail(Tab tab, Bitmap bitmap, byte[] compressed, CachePolicy cachePolicy) {
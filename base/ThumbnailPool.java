@@ -0,0 +1,127 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko;
+
+import org.mozilla.gecko.mozglue.DirectBufferAllocator;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Size-keyed pool of the direct buffers Gecko draws tab thumbnails into.
+ *
+ * Thumbnails all have the same dimensions, so the buffer from a finished
+ * capture is almost always a fit for the next one. The pool holds at most
+ * MAX_BYTES_HELD; anything released beyond that is freed immediately. All
+ * methods are thread-safe.
+ *
+ * Thumbnail bitmaps are deliberately not pooled: once a tab has wrapped one in
+ * a drawable, views we don't track may still be drawing it, so it's never safe
+ * to recycle or reuse it for another tab.
+ */
+public final class ThumbnailPool {
+    private static final String LOGTAG = "GeckoThumbnailPool";
+
+    private static final long MAX_BYTES_HELD = 4 * 1024 * 1024;
+
+    private final HashMap<Integer, LinkedList<ByteBuffer>> mBuffers = new HashMap<Integer, LinkedList<ByteBuffer>>();
+
+    private long mBytesHeld;
+    private int mRequests;
+    private int mHits;
+
+    /**
+     * Returns a direct buffer of exactly <code>capacity</code> bytes, or null
+     * if one can't be allocated.
+     */
+    public ByteBuffer obtainBuffer(int capacity) {
+        synchronized (this) {
+            mRequests++;
+            final LinkedList<ByteBuffer> buffers = mBuffers.get(capacity);
+            if (buffers != null && !buffers.isEmpty()) {
+                mBytesHeld -= capacity;
+                mHits++;
+                return buffers.removeFirst();
+            }
+        }
+
+        try {
+            return DirectBufferAllocator.allocate(capacity);
+        } catch (IllegalArgumentException iae) {
+            Log.w(LOGTAG, iae.toString());
+        } catch (OutOfMemoryError oom) {
+            Log.w(LOGTAG, "Unable to allocate thumbnail buffer of capacity " + capacity);
+        }
+        return null;
+    }
+
+    /**
+     * Returns <code>buffer</code> to the pool. The caller must not use it
+     * afterwards.
+     */
+    public void releaseBuffer(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        final int capacity = buffer.capacity();
+        synchronized (this) {
+            if (mBytesHeld + capacity <= MAX_BYTES_HELD) {
+                LinkedList<ByteBuffer> buffers = mBuffers.get(capacity);
+                if (buffers == null) {
+                    buffers = new LinkedList<ByteBuffer>();
+                    mBuffers.put(capacity, buffers);
+                }
+                buffers.add(buffer);
+                mBytesHeld += capacity;
+                return;
+            }
+        }
+
+        DirectBufferAllocator.free(buffer);
+    }
+
+    /**
+     * Free everything held by the pool.
+     */
+    public void clear() {
+        final LinkedList<ByteBuffer> buffers = new LinkedList<ByteBuffer>();
+        synchronized (this) {
+            for (LinkedList<ByteBuffer> list : mBuffers.values()) {
+                buffers.addAll(list);
+            }
+            mBuffers.clear();
+            mBytesHeld = 0;
+        }
+
+        for (ByteBuffer buffer : buffers) {
+            DirectBufferAllocator.free(buffer);
+        }
+    }
+
+    public synchronized long getBytesHeld() {
+        return mBytesHeld;
+    }
+
+    /**
+     * Returns the fraction of requests served from the pool, or 0 if there
+     * have been no requests.
+     */
+    public synchronized float getHitRate() {
+        if (mRequests == 0) {
+            return 0;
+        }
+        return (float) mHits / mRequests;
+    }
+
+    public synchronized void logStats() {
+        Log.d(LOGTAG, "Pool hit rate " + getHitRate() + " over " + mRequests + " requests; " +
+                      mBytesHeld + " bytes held.");
+    }
+}
@@ -21,6 +21,7 @@ import ch.boye.httpclientandroidlib.HttpEntity;
 import ch.boye.httpclientandroidlib.HttpResponse;
 import ch.boye.httpclientandroidlib.client.ClientProtocolException;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
+import ch.boye.httpclientandroidlib.entity.ContentProducer;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 import ch.boye.httpclientandroidlib.protocol.HTTP;
 
@@ -132,6 +133,48 @@ public class BagheeraClient {
     resource.post(deflatedBody);
   }
 
+  /**
+   * Upload a JSON document to a Bagheera server, generating and compressing it
+   * while it is sent. See {@link DeflateHelper#deflateStream(ContentProducer)}.
+   *
+   * The delegate's callbacks will be invoked in tasks run by the client's
+   * executor. Exceptions thrown by the producer are reported to
+   * {@link BagheeraRequestDelegate#handleError(Exception)}.
+   *
+   * @param namespace
+   *          the namespace, such as "test"
+   * @param id
+   *          the document ID, which is typically a UUID.
+   * @param payload
+   *          writes the document, typically JSON-encoded, as UTF-8.
+   * @param oldIDs
+   *          an optional collection of IDs which denote documents to supersede. Can be null or empty.
+   * @param delegate
+   *          the delegate whose methods should be invoked on success or
+   *          failure.
+   */
+  public void uploadStreamingJSONDocument(final String namespace,
+                                          final String id,
+                                          final ContentProducer payload,
+                                          Collection<String> oldIDs,
+                                          final BagheeraRequestDelegate delegate) throws URISyntaxException {
+    if (namespace == null) {
+      throw new IllegalArgumentException("Must provide namespace.");
+    }
+    if (id == null) {
+      throw new IllegalArgumentException("Must provide id.");
+    }
+    if (payload == null) {
+      throw new IllegalArgumentException("Must provide payload.");
+    }
+
+    final BaseResource resource = makeResource(namespace, id);
+    final HttpEntity deflatedBody = DeflateHelper.deflateStream(payload);
+
+    resource.delegate = new BagheeraUploadResourceDelegate(resource, namespace, id, oldIDs, delegate);
+    resource.post(deflatedBody);
+  }
+
   public static boolean isValidURIComponent(final String in) {
     return URI_PATTERN.matcher(in).matches();
   }
@@ -4,10 +4,15 @@
 
 package org.mozilla.gecko.background.bagheera;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.entity.ContentProducer;
+import ch.boye.httpclientandroidlib.entity.EntityTemplate;
 
 public class DeflateHelper {
   /**
@@ -74,4 +79,37 @@ public class DeflateHelper {
     }
     return deflateBytes(bytes);
   }
-}
\ No newline at end of file
+
+  /**
+   * Return an HttpEntity that deflates the output of <code>producer</code> as
+   * it is written to the connection.
+   *
+   * Unlike {@link #deflateBody(String)}, neither the input nor the output is
+   * ever held in memory in its entirety, so this is suitable for documents of
+   * unbounded size. The price is that the length of the entity is unknown, and
+   * so it will be sent with chunked Transfer-Encoding.
+   *
+   * The producer is invoked each time the entity is written, and so must be
+   * able to produce its output more than once.
+   *
+   * @param producer writes the uncompressed input.
+   * @return an entity which streams the deflated input.
+   */
+  public static HttpEntity deflateStream(final ContentProducer producer) {
+    return new EntityTemplate(new ContentProducer() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        // We own the deflater, but not the underlying stream: finish rather
+        // than close, and release the deflater ourselves.
+        final Deflater deflater = new Deflater();
+        try {
+          final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(out, deflater);
+          producer.writeTo(deflaterStream);
+          deflaterStream.finish();
+        } finally {
+          deflater.end();
+        }
+      }
+    });
+  }
+}
@@ -5,11 +5,14 @@
 package org.mozilla.gecko.background.healthreport;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONObject;
 import org.mozilla.gecko.background.common.DateUtils;
@@ -114,6 +117,11 @@ import android.util.SparseArray;
  * <pre>
  *   storage.enqueueOperation(runnable);
  * </pre>
+ *
+ * If write-behind is enabled with {@link #setWriteBehind(boolean)}, recorded
+ * events are buffered in memory and written in a single transaction, either
+ * after a short delay, once enough events are buffered, or when the storage
+ * is read, pruned, or closed. See {@link #flushPendingEvents()}.
  */
 public class HealthReportDatabaseStorage implements HealthReportStorage {
 
@@ -163,7 +171,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   private static final String LOG_TAG = "HealthReportStorage";
 
-  private final Executor executor = Executors.newSingleThreadExecutor();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
   @Override
   public void enqueueOperation(Runnable runnable) {
@@ -185,6 +193,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public void close() {
+    flushPendingEvents();
     this.helper.close();
     this.fields.clear();
     this.envs.clear();
@@ -1152,14 +1161,223 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
     return this.getDay(System.currentTimeMillis());
   }
 
+  /**
+   * How long, in milliseconds, buffered events wait before being written.
+   */
+  public static final long PENDING_EVENTS_FLUSH_DELAY_MSEC = 10 * 1000;
+
+  /**
+   * Buffered events are written immediately once this many distinct events
+   * are pending.
+   */
+  public static final int PENDING_EVENTS_FLUSH_THRESHOLD = 64;
+
+  private volatile boolean writeBehind = false;
+
+  // Guards pendingEvents, pendingDiscreteEvents, and flushScheduled.
+  private final Object pendingLock = new Object();
+
+  // Held while buffered events are written, so that a reader that flushes
+  // first is guaranteed to see every event recorded before it.
+  private final Object flushLock = new Object();
+
+  // Counters and last values, merged by (table, env, day, field).
+  private final LinkedHashMap<PendingEventKey, PendingEvent> pendingEvents =
+      new LinkedHashMap<PendingEventKey, PendingEvent>();
+
+  // Discrete values can't be merged, so they're kept in order.
+  private final ArrayList<PendingEvent> pendingDiscreteEvents = new ArrayList<PendingEvent>();
+
+  private boolean flushScheduled = false;
+
+  private static final class PendingEventKey {
+    final String table;
+    final int env;
+    final int day;
+    final int field;
+
+    PendingEventKey(String table, int env, int day, int field) {
+      this.table = table;
+      this.env = env;
+      this.day = day;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof PendingEventKey)) {
+        return false;
+      }
+      final PendingEventKey other = (PendingEventKey) o;
+      return env == other.env &&
+             day == other.day &&
+             field == other.field &&
+             table.equals(other.table);
+    }
+
+    @Override
+    public int hashCode() {
+      return ((env * 31 + day) * 31 + field) * 31 + table.hashCode();
+    }
+  }
+
+  private static final class PendingEvent {
+    static final int TYPE_COUNT = 0;
+    static final int TYPE_LAST = 1;
+    static final int TYPE_DISCRETE = 2;
+
+    final int type;
+    final String table;
+    final int env;
+    final int day;
+    final int field;
+
+    // The increment for counters, otherwise the value to record.
+    Object value;
+
+    PendingEvent(int type, String table, int env, int day, int field, Object value) {
+      this.type = type;
+      this.table = table;
+      this.env = env;
+      this.day = day;
+      this.field = field;
+      this.value = value;
+    }
+  }
+
+  private final Runnable scheduledFlush = new Runnable() {
+    @Override
+    public void run() {
+      synchronized (pendingLock) {
+        flushScheduled = false;
+      }
+      try {
+        flushPendingEvents();
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Failed to flush pending events.", e);
+      }
+    }
+  };
+
+  /**
+   * Enable or disable write-behind of recorded events. Disabling write-behind
+   * flushes any pending events.
+   *
+   * With write-behind enabled, recording an event that references a missing
+   * environment or field does not throw; the event is logged and dropped when
+   * it is written.
+   */
+  public void setWriteBehind(boolean enabled) {
+    this.writeBehind = enabled;
+    if (!enabled) {
+      flushPendingEvents();
+    }
+  }
+
+  private void bufferEvent(int type, String table, int env, int day, int field, Object value) {
+    boolean flushNow = false;
+    boolean schedule = false;
+    synchronized (pendingLock) {
+      if (type == PendingEvent.TYPE_DISCRETE) {
+        pendingDiscreteEvents.add(new PendingEvent(type, table, env, day, field, value));
+      } else {
+        final PendingEventKey key = new PendingEventKey(table, env, day, field);
+        final PendingEvent existing = pendingEvents.get(key);
+        if (existing == null) {
+          pendingEvents.put(key, new PendingEvent(type, table, env, day, field, value));
+        } else if (type == PendingEvent.TYPE_COUNT && existing.type == PendingEvent.TYPE_COUNT) {
+          existing.value = (Integer) existing.value + (Integer) value;
+        } else {
+          // A field is either a counter or a last value, so this only replaces one
+          // last value with another.
+          pendingEvents.put(key, new PendingEvent(type, table, env, day, field, value));
+        }
+      }
+
+      if (pendingEvents.size() + pendingDiscreteEvents.size() >= PENDING_EVENTS_FLUSH_THRESHOLD) {
+        flushNow = true;
+      } else if (!flushScheduled) {
+        flushScheduled = true;
+        schedule = true;
+      }
+    }
+
+    if (flushNow) {
+      flushPendingEvents();
+    } else if (schedule) {
+      executor.schedule(scheduledFlush, PENDING_EVENTS_FLUSH_DELAY_MSEC, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Write any buffered events to the database in a single transaction.
+   *
+   * Events that reference an environment or field that no longer exists are
+   * logged and dropped.
+   */
+  public void flushPendingEvents() {
+    synchronized (flushLock) {
+      final ArrayList<PendingEvent> events;
+      synchronized (pendingLock) {
+        if (pendingEvents.isEmpty() && pendingDiscreteEvents.isEmpty()) {
+          return;
+        }
+        events = new ArrayList<PendingEvent>(pendingEvents.size() + pendingDiscreteEvents.size());
+        events.addAll(pendingEvents.values());
+        events.addAll(pendingDiscreteEvents);
+        pendingEvents.clear();
+        pendingDiscreteEvents.clear();
+      }
+
+      final SQLiteDatabase db = this.helper.getWritableDatabase();
+      db.beginTransaction();
+      try {
+        for (PendingEvent event : events) {
+          try {
+            switch (event.type) {
+            case PendingEvent.TYPE_COUNT:
+              writeDailyCount(db, event.env, event.day, event.field, (Integer) event.value);
+              break;
+            case PendingEvent.TYPE_LAST:
+              writeDailyLast(db, event.env, event.day, event.field, event.value, event.table);
+              break;
+            default:
+              writeDailyDiscrete(db, event.env, event.day, event.field, event.value, event.table);
+              break;
+            }
+          } catch (IllegalStateException e) {
+            Logger.warn(LOG_TAG, "Dropping pending event for field " + event.field + ".", e);
+          }
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      Logger.debug(LOG_TAG, "Flushed " + events.size() + " pending events.");
+    }
+  }
+
+  private void discardPendingEvents() {
+    synchronized (pendingLock) {
+      pendingEvents.clear();
+      pendingDiscreteEvents.clear();
+    }
+  }
+
   private void recordDailyLast(int env, int day, int field, Object value, String table) {
     if (env == -1) {
       Logger.warn(LOG_TAG, "Refusing to record with environment = -1.");
       return;
     }
 
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
+    if (writeBehind) {
+      bufferEvent(PendingEvent.TYPE_LAST, table, env, day, field, value);
+      return;
+    }
+    writeDailyLast(this.helper.getWritableDatabase(), env, day, field, value, table);
+  }
 
+  private static void writeDailyLast(final SQLiteDatabase db, int env, int day, int field, Object value, String table) {
     final String envString = Integer.toString(env);
     final String fieldIDString = Integer.toString(field, 10);
     final String dayString = Integer.toString(day, 10);
@@ -1206,12 +1424,18 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       return;
     }
 
+    if (writeBehind) {
+      bufferEvent(PendingEvent.TYPE_DISCRETE, table, env, day, field, value);
+      return;
+    }
+    writeDailyDiscrete(this.helper.getWritableDatabase(), env, day, field, value, table);
+  }
+
+  private static void writeDailyDiscrete(final SQLiteDatabase db, int env, int day, int field, Object value, String table) {
     final ContentValues v = new ContentValues();
     v.put("env", env);
     v.put("field", field);
     v.put("date", day);
-
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
     putValue(v, value);
 
     // Using SQLiteDatabase.insertOrThrow throws SQLiteConstraintException we cannot catch for
@@ -1261,7 +1485,14 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
       return;
     }
 
-    final SQLiteDatabase db = this.helper.getWritableDatabase();
+    if (writeBehind) {
+      bufferEvent(PendingEvent.TYPE_COUNT, EVENTS_INTEGER, env, day, field, by);
+      return;
+    }
+    writeDailyCount(this.helper.getWritableDatabase(), env, day, field, by);
+  }
+
+  private static void writeDailyCount(final SQLiteDatabase db, int env, int day, int field, int by) {
     final String envString = Integer.toString(env);
     final String fieldIDString = Integer.toString(field, 10);
     final String dayString = Integer.toString(day, 10);
@@ -1314,6 +1545,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public boolean hasEventSince(long time) {
+    flushPendingEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1343,6 +1575,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public Cursor getRawEventsSince(long time) {
+    flushPendingEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1363,6 +1596,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public Cursor getEventsSince(long time) {
+    flushPendingEvents();
     final int start = this.getDay(time);
     final SQLiteDatabase db = this.helper.getReadableDatabase();
     final String dayString = Integer.toString(start, 10);
@@ -1373,6 +1607,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public int getEventCount() {
+    flushPendingEvents();
     return getRowCount("events");
   }
 
@@ -1398,6 +1633,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public int deleteDataBefore(final long time, final int curEnv) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     int numRowsDeleted = 0;
@@ -1563,11 +1799,13 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public void deleteEverything() {
+    discardPendingEvents();
     this.helper.deleteEverything();
   }
 
   @Override
   public void deleteEnvironments() {
+    discardPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     try {
@@ -1581,6 +1819,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
 
   @Override
   public void deleteMeasurements() {
+    discardPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     try {
@@ -1603,6 +1842,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public void pruneEnvironments(final int numToPrune) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
     db.beginTransaction();
     try {
@@ -1631,6 +1871,7 @@ public class HealthReportDatabaseStorage implements HealthReportStorage {
    */
   @Override
   public void pruneEvents(final int maxNumToPrune) {
+    flushPendingEvents();
     final SQLiteDatabase db = this.helper.getWritableDatabase();
 
     final Cursor c = db.rawQuery(
@@ -36,6 +36,7 @@ public class HealthReportDatabases {
 
     final HealthReportDatabaseStorage helper;
     helper = new HealthReportDatabaseStorage(this.context, profileDir);
+    helper.setWriteBehind(true);
     this.storages.put(profileDir, helper);
     return helper;
   }
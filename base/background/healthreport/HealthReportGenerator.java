@@ -4,6 +4,8 @@
 
 package org.mozilla.gecko.background.healthreport;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -47,14 +49,28 @@ public class HealthReportGenerator {
     Logger.info(LOG_TAG, "Generating FHR document from " + since + "; last ping " + lastPingTime);
     Logger.pii(LOG_TAG, "Generating for profile " + profilePath);
 
+    Environment current = getEnvironmentForProfile(profilePath, config);
+    if (current == null) {
+      return null;
+    }
+    return generateDocument(since, lastPingTime, current);
+  }
+
+  /**
+   * Ensure that you have initialized the Locale to your satisfaction
+   * prior to calling this method.
+   *
+   * @return null if not enough profile information is available to compute
+   *         the current environment, or else the current environment.
+   */
+  public Environment getEnvironmentForProfile(String profilePath, ConfigurationProvider config) {
     ProfileInformationCache cache = new ProfileInformationCache(profilePath);
     if (!cache.restoreUnlessInitialized()) {
       Logger.warn(LOG_TAG, "Not enough profile information to compute current environment.");
       return null;
     }
 
-    Environment current = EnvironmentBuilder.getCurrentEnvironment(cache, config);
-    return generateDocument(since, lastPingTime, current);
+    return EnvironmentBuilder.getCurrentEnvironment(cache, config);
   }
 
   /**
@@ -97,6 +113,188 @@ public class HealthReportGenerator {
     return document;
   }
 
+  /**
+   * Write the same document as {@link #generateDocument(long, long, Environment)}
+   * to <code>out</code>, walking storage as it goes.
+   *
+   * The document is never built in memory: only the environments and the
+   * measurements for a single day and environment are held at any one time, so
+   * memory use doesn't grow with the length of the stored history. Nothing is
+   * written if the current environment has no hash.
+   *
+   * @return false if no document could be generated, true otherwise.
+   * @throws JSONException if there was an error serializing environment or measurement data.
+   * @throws IOException if there was an error writing to <code>out</code>.
+   */
+  public boolean writeDocument(long since, long lastPingTime, Environment currentEnvironment, Writer out) throws JSONException, IOException {
+    final String currentHash = currentEnvironment.getHash();
+
+    Logger.debug(LOG_TAG, "Current environment hash: " + currentHash);
+    if (currentHash == null) {
+      Logger.warn(LOG_TAG, "Current hash is null; aborting.");
+      return false;
+    }
+
+    SparseArray<Environment> envs = storage.getEnvironmentRecordsByID();
+
+    final ObjectWriter document = new ObjectWriter(out);
+    if (lastPingTime >= HealthReportConstants.EARLIEST_LAST_PING) {
+      document.put("lastPingDate", dateFormatter.getDateString(lastPingTime));
+    }
+
+    document.put("thisPingDate", dateFormatter.getDateString(now()));
+    document.put("version", PAYLOAD_VERSION);
+
+    document.key("environments");
+    writeEnvironmentsJSON(currentEnvironment, envs, out);
+
+    document.key("data");
+    final ObjectWriter data = new ObjectWriter(out);
+    data.key("days");
+    writeDaysJSON(envs, storage.getFieldsByID(), since, out);
+    data.put("last", new JSONObject());
+    data.end();
+
+    document.end();
+    return true;
+  }
+
+  protected static void writeEnvironmentsJSON(Environment currentEnvironment,
+                                              SparseArray<Environment> envs,
+                                              Writer out) throws JSONException, IOException {
+    final ObjectWriter environments = new ObjectWriter(out);
+
+    // Always do this, even if it hasn't recorded anything in the DB.
+    environments.put("current", jsonify(currentEnvironment, null));
+
+    String currentHash = currentEnvironment.getHash();
+    for (int i = 0; i < envs.size(); i++) {
+      Environment e = envs.valueAt(i);
+      if (currentHash.equals(e.getHash())) {
+        continue;
+      }
+      environments.put(e.getHash(), jsonify(e, currentEnvironment));
+    }
+    environments.end();
+  }
+
+  /**
+   * The streaming equivalent of
+   * {@link #getDaysJSON(Environment, SparseArray, SparseArray, long)}: the
+   * same walking partition, but each environment object is written out as
+   * soon as the cursor moves past it.
+   */
+  protected void writeDaysJSON(SparseArray<Environment> envs, SparseArray<Field> fields, long since, Writer out) throws JSONException, IOException {
+    final ObjectWriter days = new ObjectWriter(out);
+    Cursor cursor = storage.getRawEventsSince(since);
+    try {
+      int lastDate  = -1;
+      int lastEnv   = -1;
+      ObjectWriter dateObject = null;
+      JSONObject envObject = null;
+      String envHash = null;
+
+      while (cursor.moveToNext()) {
+        int cEnv = cursor.getInt(1);
+        if (cEnv == -1 ||
+            (cEnv != lastEnv &&
+             envs.indexOfKey(cEnv) < 0)) {
+          Logger.warn(LOG_TAG, "Invalid environment " + cEnv + " in cursor. Skipping.");
+          continue;
+        }
+
+        int cDate  = cursor.getInt(0);
+        int cField = cursor.getInt(2);
+
+        boolean dateChanged = cDate != lastDate;
+        boolean envChanged = cEnv != lastEnv;
+
+        if (dateChanged || envChanged) {
+          if (envObject != null) {
+            dateObject.put(envHash, envObject);
+          }
+          envObject = new JSONObject();
+          // This is safe because we checked above that cEnv is valid.
+          envHash = envs.get(cEnv).getHash();
+          lastEnv = cEnv;
+        }
+
+        if (dateChanged) {
+          if (dateObject != null) {
+            dateObject.end();
+          }
+          days.key(dateFormatter.getDateStringForDay(cDate));
+          dateObject = new ObjectWriter(out);
+          lastDate = cDate;
+        }
+
+        final Field field = fields.get(cField);
+        JSONObject measurement = envObject.optJSONObject(field.measurementName);
+        if (measurement == null) {
+          measurement = new JSONObject();
+          measurement.put("_v", field.measurementVersion);
+          envObject.put(field.measurementName, measurement);
+        }
+
+        recordMeasurementFromCursor(field, measurement, cursor);
+      }
+
+      if (envObject != null) {
+        dateObject.put(envHash, envObject);
+        dateObject.end();
+      }
+    } finally {
+      cursor.close();
+    }
+    days.end();
+  }
+
+  /**
+   * Writes the members of a single JSON object to a stream, one at a time.
+   * Values are written with {@link JSONObject#toString()}, so they must be
+   * small.
+   */
+  private static final class ObjectWriter {
+    private final Writer out;
+    private boolean empty = true;
+
+    public ObjectWriter(Writer out) throws IOException {
+      this.out = out;
+      out.write('{');
+    }
+
+    /**
+     * Write the key of the next member. The caller must then write its value.
+     */
+    public void key(String key) throws IOException {
+      if (!empty) {
+        out.write(',');
+      }
+      empty = false;
+      out.write(JSONObject.quote(key));
+      out.write(':');
+    }
+
+    public void put(String key, String value) throws IOException {
+      key(key);
+      out.write(JSONObject.quote(value));
+    }
+
+    public void put(String key, int value) throws IOException {
+      key(key);
+      out.write(Integer.toString(value));
+    }
+
+    public void put(String key, JSONObject value) throws IOException {
+      key(key);
+      out.write(value.toString());
+    }
+
+    public void end() throws IOException {
+      out.write('}');
+    }
+  }
+
   protected JSONObject getDataJSON(Environment currentEnvironment,
                                    SparseArray<Environment> envs, long since) throws JSONException {
     SparseArray<Field> fields = storage.getFieldsByID();
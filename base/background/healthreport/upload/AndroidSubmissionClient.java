@@ -4,8 +4,12 @@
 
 package org.mozilla.gecko.background.healthreport.upload;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -34,6 +38,7 @@ import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SharedPreferences;
 import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.entity.ContentProducer;
 
 public class AndroidSubmissionClient implements SubmissionClient {
   protected static final String LOG_TAG = AndroidSubmissionClient.class.getSimpleName();
@@ -92,21 +97,50 @@ public class AndroidSubmissionClient implements SubmissionClient {
     return EnvironmentBuilder.getStorage(client, profilePath);
   }
 
-  protected JSONObject generateDocument(final long localTime, final long last,
-      final SubmissionsTracker tracker) throws JSONException {
+  /**
+   * Return a producer that writes the document for this upload, or null if no
+   * document can be generated.
+   *
+   * The document is generated while it is uploaded, so it is never held in
+   * memory. Generation errors are counted as client failures, and are
+   * reported to the upload delegate as I/O errors.
+   */
+  protected ContentProducer getDocumentProducer(final long localTime, final long last,
+      final SubmissionsTracker tracker) {
     final long since = localTime - GlobalConstants.MILLISECONDS_PER_SIX_MONTHS;
     final HealthReportGenerator generator = tracker.getGenerator();
-    return generator.generateDocument(since, last, profilePath, config);
+    final Environment environment = generator.getEnvironmentForProfile(profilePath, config);
+    if (environment == null || environment.getHash() == null) {
+      tracker.incrementUploadClientFailureCount();
+      return null;
+    }
+
+    return new ContentProducer() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        try {
+          generator.writeDocument(since, last, environment, writer);
+        } catch (JSONException e) {
+          tracker.incrementUploadClientFailureCount();
+          // Bug 769671: IOException(Throwable cause) was added only in API level 9.
+          final IOException ex = new IOException("Could not generate document.");
+          ex.initCause(e);
+          throw ex;
+        }
+        writer.flush();
+      }
+    };
   }
 
-  protected void uploadPayload(String id, String payload, Collection<String> oldIds, BagheeraRequestDelegate uploadDelegate) {
+  protected void uploadPayload(String id, ContentProducer payload, Collection<String> oldIds, BagheeraRequestDelegate uploadDelegate) {
     final BagheeraClient client = new BagheeraClient(getDocumentServerURI());
 
     Logger.pii(LOG_TAG, "New health report has id " + id +
         "and obsoletes " + (oldIds != null ? Integer.toString(oldIds.size()) : "no") + " old ids.");
 
     try {
-      client.uploadJSONDocument(getDocumentServerNamespace(),
+      client.uploadStreamingJSONDocument(getDocumentServerNamespace(),
           id,
           payload,
           oldIds,
@@ -154,15 +188,17 @@ public class AndroidSubmissionClient implements SubmissionClient {
           getSubmissionsTracker(storage, localTime, hasUploadBeenRequested());
       try {
         // TODO: Bug 910898 - Add errors from sharedPrefs to tracker.
-        final JSONObject document = generateDocument(localTime, last, tracker);
+        final ContentProducer document = getDocumentProducer(localTime, last, tracker);
         if (document == null) {
           delegate.onHardFailure(localTime, null, "Generator returned null document.", null);
           return;
         }
 
+        // The document is generated while it is uploaded. That's fine: the
+        // upload is synchronous, so storage stays alive until it's done.
         final BagheeraRequestDelegate uploadDelegate = tracker.getDelegate(delegate, localTime,
             true, id);
-        this.uploadPayload(id, document.toString(), oldIds, uploadDelegate);
+        this.uploadPayload(id, document, oldIds, uploadDelegate);
       } catch (Exception e) {
         // Incrementing the failure count here could potentially cause the failure count to be
         // incremented twice, but this helper class checks and prevents this.
@@ -406,21 +442,22 @@ public class AndroidSubmissionClient implements SubmissionClient {
       }
 
       @Override
-      public JSONObject generateDocument(long since, long lastPingTime,
-          String generationProfilePath, ConfigurationProvider providedConfig) throws JSONException {
-
+      public Environment getEnvironmentForProfile(String generationProfilePath,
+          ConfigurationProvider providedConfig) {
         // Let's make sure we have an accurate locale.
         BrowserLocaleManager.getInstance().getAndApplyPersistedLocale(context);
 
-        final JSONObject document;
         // If the given profilePath matches the one we cached for the tracker, use the cached env.
         if (profilePath != null && profilePath.equals(generationProfilePath)) {
-          final Environment environment = getCurrentEnvironment();
-          document = super.generateDocument(since, lastPingTime, environment);
-        } else {
-          document = super.generateDocument(since, lastPingTime, generationProfilePath, providedConfig);
+          return getCurrentEnvironment();
         }
+        return super.getEnvironmentForProfile(generationProfilePath, providedConfig);
+      }
 
+      @Override
+      public JSONObject generateDocument(long since, long lastPingTime,
+          String generationProfilePath, ConfigurationProvider providedConfig) throws JSONException {
+        final JSONObject document = super.generateDocument(since, lastPingTime, generationProfilePath, providedConfig);
         if (document == null) {
           incrementUploadClientFailureCount();
         }
@@ -98,7 +98,7 @@ public abstract class AbstractTransactionalProvider extends ContentProvider {
         return Versions.feature11Plus;
     }
 
-    private boolean isInBatch() {
+    protected boolean isInBatch() {
         final Boolean isInBatch = isInBatchOperation.get();
         if (isInBatch == null) {
             return false;
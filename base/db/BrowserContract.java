@@ -45,17 +45,22 @@ public class BrowserContract {
     public static final String PARAM_INSERT_IF_NEEDED = "insert_if_needed";
     public static final String PARAM_INCREMENT_VISITS = "increment_visits";
     public static final String PARAM_EXPIRE_PRIORITY = "priority";
+    public static final String PARAM_DECAY_SINCE = "since";
     public static final String PARAM_DATASET_ID = "dataset_id";
+    public static final String PARAM_SEARCH_MATCH = "search_match";
 
     static public enum ExpirePriority {
         NORMAL,
         AGGRESSIVE
     }
 
+    /**
+     * Order by the stored frecency score, which is maintained by
+     * {@link BrowserDatabaseHelper}. If <code>includesBookmarks</code> is true,
+     * bookmarks get an extra bonus boost of 100 points.
+     */
     static public String getFrecencySortOrder(boolean includesBookmarks, boolean asc) {
-        final String age = "(" + Combined.DATE_LAST_VISITED + " - " + System.currentTimeMillis() + ") / 86400000";
-
-        StringBuilder order = new StringBuilder(Combined.VISITS + " * MAX(1, 100 * 225 / (" + age + "*" + age + " + 225)) ");
+        StringBuilder order = new StringBuilder(Combined.FRECENCY + " ");
 
         if (includesBookmarks) {
             order.insert(0, "(CASE WHEN " + Combined.BOOKMARK_ID + " > -1 THEN 100 ELSE 0 END) + ");
@@ -99,6 +104,7 @@ public class BrowserContract {
     public interface HistoryColumns {
         public static final String DATE_LAST_VISITED = "date";
         public static final String VISITS = "visits";
+        public static final String FRECENCY = "frecency";
     }
 
     public interface DeletedColumns {
@@ -129,7 +135,18 @@ public class BrowserContract {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, "thumbnails");
 
         public static final String URL = "url";
+
+        /**
+         * The encoded thumbnail. Not stored in the table: inserts and updates
+         * move it into the thumbnail file store, and queries read it back from
+         * there. Prefer {@link #FILE} when reading.
+         */
         public static final String DATA = "data";
+
+        /**
+         * Absolute path of the file holding the encoded thumbnail. Read-only.
+         */
+        public static final String FILE = "file";
     }
 
     public static final class Profiles {
@@ -192,6 +209,7 @@ public class BrowserContract {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, "history");
         public static final Uri CONTENT_OLD_URI = Uri.withAppendedPath(AUTHORITY_URI, "history/old");
+        public static final Uri CONTENT_DECAY_URI = Uri.withAppendedPath(AUTHORITY_URI, "history/decay");
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/browser-history";
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/browser-history";
     }
@@ -207,6 +225,10 @@ public class BrowserContract {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, "combined");
 
+        // Queries on this URI return only the combined rows whose URL or title
+        // match the full-text expression in PARAM_SEARCH_MATCH.
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+
         public static final String BOOKMARK_ID = "bookmark_id";
         public static final String HISTORY_ID = "history_id";
     }
@@ -464,6 +486,19 @@ public class BrowserContract {
         public static final String BOOKMARK_ID = "bookmark_id";
         public static final String HISTORY_ID = "history_id";
         public static final String TYPE = "type";
+
+        // The top sites table holds the highest-scoring history entries, as
+        // they'd be ranked by a frecency-sorted query on the combined view.
+        // It's maintained by BrowserProvider and can't be written to directly.
+        //
+        // Writes that can't patch the table up cheaply leave it to be rebuilt.
+        // That happens at the end of each frecency decay pass, off the UI
+        // thread; failing that, a query on CONTENT_URI rebuilds it in a write
+        // transaction before reading, so such a query can wait on other writers.
+        public static final String TABLE_NAME = "top_sites";
+        public static final String SCORE = "score";
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(AUTHORITY_URI, "topsites");
     }
 
     @RobocopTarget
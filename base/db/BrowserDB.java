@@ -8,6 +8,7 @@ import java.io.File;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
 import org.mozilla.gecko.GeckoProfile;
 import org.mozilla.gecko.db.BrowserContract.ExpirePriority;
@@ -19,6 +20,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 
 /**
@@ -64,6 +66,9 @@ public interface BrowserDB {
     public abstract int getCount(ContentResolver cr, String database);
 
     /**
+     * Each space-separated word of <code>constraint</code> must match the start of a
+     * word in a site's URL or title: "moz" finds mozilla.org, but "zilla" doesn't.
+     *
      * @return a cursor representing the contents of the DB filtered according to the arguments.
      * Can return <code>null</code>. <code>CursorLoader</code> will handle this correctly.
      */
@@ -99,6 +104,13 @@ public interface BrowserDB {
 
     public abstract void expireHistory(ContentResolver cr, ExpirePriority priority);
 
+    /**
+     * Bring stored history frecency scores up to date with the passage of
+     * time. Cheap to call often: it does nothing if scores were decayed
+     * recently, even in an earlier run.
+     */
+    public abstract void decayFrecencies(Context context);
+
     public abstract void removeHistoryEntry(ContentResolver cr, String url);
 
     public abstract void clearHistory(ContentResolver cr, boolean clearSearchHistory);
@@ -134,17 +146,15 @@ public interface BrowserDB {
 
     public abstract void updateFaviconForUrl(ContentResolver cr, String pageUri, byte[] encodedFavicon, String faviconUri);
 
-    public abstract byte[] getThumbnailForUrl(ContentResolver cr, String uri);
+    public abstract Bitmap getThumbnailForUrl(ContentResolver cr, String uri);
     public abstract void updateThumbnailForUrl(ContentResolver cr, String uri, BitmapDrawable thumbnail);
 
     /**
-     * Query for non-null thumbnails matching the provided <code>urls</code>.
-     * The returned cursor will have no more than, but possibly fewer than,
+     * Load the thumbnails stored for the provided <code>urls</code>, keyed by
+     * URL. The returned map will have no more than, but possibly fewer than,
      * the requested number of thumbnails.
-     *
-     * Returns null if the provided list of URLs is empty or null.
      */
-    public abstract Cursor getThumbnailsForUrls(ContentResolver cr,
+    public abstract Map<String, Bitmap> getThumbnailsForUrls(ContentResolver cr,
             List<String> urls);
 
     public abstract void removeThumbnails(ContentResolver cr);
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.mozilla.gecko.AboutPages;
 import org.mozilla.gecko.GeckoProfile;
 import org.mozilla.gecko.R;
 import org.mozilla.gecko.db.BrowserContract.Bookmarks;
@@ -19,6 +20,7 @@ import org.mozilla.gecko.db.BrowserContract.History;
 import org.mozilla.gecko.db.BrowserContract.ReadingListItems;
 import org.mozilla.gecko.db.BrowserContract.SearchHistory;
 import org.mozilla.gecko.db.BrowserContract.Thumbnails;
+import org.mozilla.gecko.db.BrowserContract.TopSites;
 import org.mozilla.gecko.util.FileUtils;
 
 import static org.mozilla.gecko.db.DBUtils.qualifyColumn;
@@ -39,7 +41,7 @@ import android.util.Log;
 final class BrowserDatabaseHelper extends SQLiteOpenHelper {
     private static final String LOGTAG = "GeckoBrowserDBHelper";
 
-    public static final int DATABASE_VERSION = 24;
+    public static final int DATABASE_VERSION = 28;
     public static final String DATABASE_NAME = "browser.db";
 
     final protected Context mContext;
@@ -51,6 +53,9 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
     static final String TABLE_READING_LIST = ReadingListItems.TABLE_NAME;
     static final String TABLE_TABS = TabsProvider.TABLE_TABS;
     static final String TABLE_CLIENTS = TabsProvider.TABLE_CLIENTS;
+    static final String TABLE_TOP_SITES = TopSites.TABLE_NAME;
+
+    static final String TABLE_SEARCH_INDEX = "search_index";
 
     static final String VIEW_COMBINED = Combined.VIEW_NAME;
     static final String VIEW_BOOKMARKS_WITH_FAVICONS = Bookmarks.VIEW_WITH_FAVICONS;
@@ -109,6 +114,39 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void createHistoryTable(SQLiteDatabase db) {
+        debug("Creating " + TABLE_HISTORY + " table");
+        db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
+                History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                History.TITLE + " TEXT," +
+                History.URL + " TEXT NOT NULL," +
+                History.VISITS + " INTEGER NOT NULL DEFAULT 0," +
+                History.FAVICON_ID + " INTEGER," +
+                History.DATE_LAST_VISITED + " INTEGER," +
+                History.DATE_CREATED + " INTEGER," +
+                History.DATE_MODIFIED + " INTEGER," +
+                History.GUID + " TEXT NOT NULL," +
+                History.IS_DELETED + " INTEGER NOT NULL DEFAULT 0," +
+                History.FRECENCY + " INTEGER NOT NULL DEFAULT 0" +
+                ");");
+
+        db.execSQL("CREATE INDEX history_url_index ON " + TABLE_HISTORY + '('
+                + History.URL + ')');
+        db.execSQL("CREATE UNIQUE INDEX history_guid_index ON " + TABLE_HISTORY + '('
+                + History.GUID + ')');
+        db.execSQL("CREATE INDEX history_modified_index ON " + TABLE_HISTORY + '('
+                + History.DATE_MODIFIED + ')');
+        db.execSQL("CREATE INDEX history_visited_index ON " + TABLE_HISTORY + '('
+                + History.DATE_LAST_VISITED + ')');
+        db.execSQL("CREATE INDEX history_frecency_index ON " + TABLE_HISTORY + '('
+                + History.FRECENCY + ')');
+    }
+
+    /*
+     * The history table as it was before version 26, without the frecency
+     * column and its index. Upgrade steps older than 25->26 must create this
+     * one, since 25->26 adds them.
+     */
+    private void createHistoryTableOn25(SQLiteDatabase db) {
         debug("Creating " + TABLE_HISTORY + " table");
         db.execSQL("CREATE TABLE " + TABLE_HISTORY + "(" +
                 History._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -133,6 +171,122 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 + History.DATE_LAST_VISITED + ')');
     }
 
+    // Once a visit is this old its frecency multiplier has bottomed out at 1,
+    // so its score no longer decays. (The multiplier reaches 1 after 106 days.)
+    static final long FRECENCY_DECAY_WINDOW = 1000L * 60L * 60L * 24L * 150L;   // 150 days.
+
+    /**
+     * Our version of frecency is computed by scaling the number of visits by a multiplier
+     * that approximates Gaussian decay, based on how long ago the entry was last visited.
+     * Since we're limited by the math we can do with sqlite, we're calculating this
+     * approximation using the Cauchy distribution: multiplier = 15^2 / (age^2 + 15^2).
+     * Using 15 as our scale parameter, we get a constant 15^2 = 225. Following this math,
+     * frecencyScore = numVisits * max(1, 100 * 225 / (age*age + 225)). (See bug 704977)
+     *
+     * The score is stored in the history table's frecency column so that it can be
+     * indexed and sorted on cheaply. It's computed by triggers whenever the visit count
+     * or the last visited date of a row changes, and {@link BrowserProvider} periodically
+     * recomputes it to account for the passage of time.
+     *
+     * @param now an SQL expression for the current time, in milliseconds.
+     */
+    static String getFrecencyCalculation(String now) {
+        final String age = "((" + History.DATE_LAST_VISITED + " - " + now + ") / 86400000)";
+        return History.VISITS + " * MAX(1, 100 * 225 / (" + age + " * " + age + " + 225))";
+    }
+
+    private void createFrecencyTriggers(SQLiteDatabase db) {
+        final String update = "UPDATE " + TABLE_HISTORY +
+                " SET " + History.FRECENCY + " = " + getFrecencyCalculation("(strftime('%s', 'now') * 1000)") +
+                " WHERE " + History._ID + " = new." + History._ID + ";";
+
+        db.execSQL("CREATE TRIGGER history_frecency_insert AFTER INSERT ON " + TABLE_HISTORY +
+                " BEGIN " + update + " END");
+        db.execSQL("CREATE TRIGGER history_frecency_update" +
+                " AFTER UPDATE OF " + History.VISITS + ", " + History.DATE_LAST_VISITED + " ON " + TABLE_HISTORY +
+                " BEGIN " + update + " END");
+    }
+
+    /**
+     * The top sites table materializes the first rows of a frecency-sorted
+     * query on the combined view, restricted to history entries that aren't
+     * about: pages, pinned sites, or reading list items. Each row is scored
+     * by its stored frecency, plus a bonus of 100 if it's bookmarked, so the
+     * table's order matches {@link BrowserContract#getFrecencySortOrder}.
+     *
+     * Only the best {@link BrowserProvider#TOP_SITES_CAPACITY} rows are kept;
+     * {@link BrowserProvider} keeps them up to date as history and bookmarks
+     * change, or empties the table to have it rebuilt when it's next read.
+     */
+    private void createTopSitesTable(SQLiteDatabase db) {
+        debug("Creating " + TABLE_TOP_SITES + " table");
+        db.execSQL("CREATE TABLE " + TABLE_TOP_SITES + " (" +
+                TopSites.HISTORY_ID + " INTEGER PRIMARY KEY," +
+                TopSites.URL + " TEXT NOT NULL," +
+                TopSites.TITLE + " TEXT," +
+                TopSites.BOOKMARK_ID + " INTEGER," +
+                TopSites.SCORE + " INTEGER NOT NULL" +
+                ");");
+
+        db.execSQL("CREATE INDEX top_sites_url_index ON " + TABLE_TOP_SITES + '('
+                + TopSites.URL + ')');
+        db.execSQL("CREATE INDEX top_sites_score_index ON " + TABLE_TOP_SITES + '('
+                + TopSites.SCORE + ')');
+
+        populateTopSites(db);
+    }
+
+    /**
+     * Build a SELECT statement that yields a top sites row for each distinct
+     * eligible history URL, optionally restricted by an additional WHERE term
+     * on the history table. Rows are not ordered.
+     */
+    static String getTopSitesSelect(String historyFilter) {
+        final String bookmarkId = "MAX(" + qualifyColumn(TABLE_BOOKMARKS, Bookmarks._ID) + ")";
+
+        return "SELECT " +
+                    "MAX(" + qualifyColumn(TABLE_HISTORY, History._ID) + ") AS " + TopSites.HISTORY_ID + ", " +
+                    qualifyColumn(TABLE_HISTORY, History.URL) + " AS " + TopSites.URL + ", " +
+                    // Prefer bookmark titles, as the combined view does.
+                    "COALESCE(MAX(" + qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TITLE) + "), " +
+                             "MAX(" + qualifyColumn(TABLE_HISTORY, History.TITLE) + ")) AS " + TopSites.TITLE + ", " +
+                    bookmarkId + " AS " + TopSites.BOOKMARK_ID + ", " +
+                    "MAX(" + qualifyColumn(TABLE_HISTORY, History.FRECENCY) + ") + " +
+                        "(CASE WHEN " + bookmarkId + " IS NULL THEN 0 ELSE 100 END) AS " + TopSites.SCORE +
+                " FROM " + TABLE_HISTORY + " LEFT OUTER JOIN " + TABLE_BOOKMARKS +
+                " ON " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks.URL) + " = " + qualifyColumn(TABLE_HISTORY, History.URL) +
+                    " AND " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TYPE) + " = " + Bookmarks.TYPE_BOOKMARK +
+                    " AND " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks.IS_DELETED) + " = 0" +
+                    " AND " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks.PARENT) + " <> " + Bookmarks.FIXED_PINNED_LIST_ID +
+                " WHERE " +
+                    qualifyColumn(TABLE_HISTORY, History.IS_DELETED) + " = 0 AND " +
+                    qualifyColumn(TABLE_HISTORY, History.URL) + " NOT LIKE " +
+                        DatabaseUtils.sqlEscapeString(AboutPages.URL_FILTER) + " AND " +
+                    // Pinned sites and reading list items are shown elsewhere.
+                    qualifyColumn(TABLE_HISTORY, History.URL) + " NOT IN (SELECT " + Bookmarks.URL +
+                        " FROM " + TABLE_BOOKMARKS +
+                        " WHERE " + Bookmarks.PARENT + " < " + Bookmarks.FIXED_ROOT_ID +
+                        " AND " + Bookmarks.IS_DELETED + " = 0)" +
+                    (historyFilter == null ? "" : " AND " + historyFilter) +
+                " GROUP BY " + qualifyColumn(TABLE_HISTORY, History.URL);
+    }
+
+    /**
+     * Replace the contents of the top sites table with the best rows from
+     * history. This is a scan of the whole history table, so callers should
+     * prefer updating individual URLs where they can.
+     */
+    static void populateTopSites(SQLiteDatabase db) {
+        debug("Populating " + TABLE_TOP_SITES + " table");
+        db.execSQL("DELETE FROM " + TABLE_TOP_SITES);
+        db.execSQL("INSERT INTO " + TABLE_TOP_SITES + " (" +
+                TopSites.HISTORY_ID + ", " + TopSites.URL + ", " + TopSites.TITLE + ", " +
+                TopSites.BOOKMARK_ID + ", " + TopSites.SCORE + ") " +
+                getTopSitesSelect(null) +
+                " ORDER BY " + TopSites.SCORE + " DESC" +
+                " LIMIT " + BrowserProvider.TOP_SITES_CAPACITY);
+    }
+
     private void createFaviconsTable(SQLiteDatabase db) {
         debug("Creating " + TABLE_FAVICONS + " table");
         db.execSQL("CREATE TABLE " + TABLE_FAVICONS + " (" +
@@ -150,6 +304,23 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void createThumbnailsTable(SQLiteDatabase db) {
+        debug("Creating " + TABLE_THUMBNAILS + " table");
+        db.execSQL("CREATE TABLE " + TABLE_THUMBNAILS + " (" +
+                Thumbnails._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                Thumbnails.URL + " TEXT UNIQUE," +
+                Thumbnails.FILE + " TEXT" +
+                ");");
+
+        db.execSQL("CREATE INDEX thumbnails_url_index ON " + TABLE_THUMBNAILS + "("
+                + Thumbnails.URL + ")");
+    }
+
+    /*
+     * The thumbnails table as it was created in version 13, with image data
+     * stored inline. Upgrades from older versions must create this one, since
+     * later upgrade steps expect it.
+     */
+    private void createThumbnailsTableOn13(SQLiteDatabase db) {
         debug("Creating " + TABLE_THUMBNAILS + " table");
         db.execSQL("CREATE TABLE " + TABLE_THUMBNAILS + " (" +
                 Thumbnails._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -229,32 +400,12 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
         db.insertOrThrow(TABLE_CLIENTS, null, values);
     }
 
-    private void createCombinedViewOn19(SQLiteDatabase db) {
-        /*
-        The v19 combined view removes the redundant subquery from the v16
-        combined view and reorders the columns as necessary to prevent this
-        from breaking any code that might be referencing columns by index.
-
-        The rows in the ensuing view are, in order:
-
-            Combined.BOOKMARK_ID
-            Combined.HISTORY_ID
-            Combined._ID (always 0)
-            Combined.URL
-            Combined.TITLE
-            Combined.VISITS
-            Combined.DISPLAY
-            Combined.DATE_LAST_VISITED
-            Combined.FAVICON_ID
-
-        We need to return an _id column because CursorAdapter requires it for its
-        default implementation for the getItemId() method. However, since
-        we're not using this feature in the parts of the UI using this view,
-        we can just use 0 for all rows.
-         */
-
-        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED + " AS" +
-
+    /**
+     * Build the SELECT statement behind the combined view, optionally
+     * restricting the bookmark and history rows with additional WHERE terms.
+     */
+    static String getCombinedSelect(String bookmarksFilter, String historyFilter) {
+        return
                 // Bookmarks without history.
                 " SELECT " + qualifyColumn(TABLE_BOOKMARKS, Bookmarks._ID) + " AS " + Combined.BOOKMARK_ID + "," +
                     "-1 AS " + Combined.HISTORY_ID + "," +
@@ -263,7 +414,8 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
                     qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TITLE) + " AS " + Combined.TITLE + ", " +
                     "-1 AS " + Combined.VISITS + ", " +
                     "-1 AS " + Combined.DATE_LAST_VISITED + "," +
-                    qualifyColumn(TABLE_BOOKMARKS, Bookmarks.FAVICON_ID) + " AS " + Combined.FAVICON_ID +
+                    qualifyColumn(TABLE_BOOKMARKS, Bookmarks.FAVICON_ID) + " AS " + Combined.FAVICON_ID + "," +
+                    "-1 AS " + Combined.FRECENCY +
                 " FROM " + TABLE_BOOKMARKS +
                 " WHERE " +
                     qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TYPE)  + " = " + Bookmarks.TYPE_BOOKMARK + " AND " +
@@ -272,6 +424,7 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
                     qualifyColumn(TABLE_BOOKMARKS, Bookmarks.IS_DELETED)  + " = 0 AND " +
                     qualifyColumn(TABLE_BOOKMARKS, Bookmarks.URL) +
                         " NOT IN (SELECT " + History.URL + " FROM " + TABLE_HISTORY + ")" +
+                    (bookmarksFilter == null ? "" : " AND " + bookmarksFilter) +
                 " UNION ALL" +
 
                     // History with and without bookmark.
@@ -301,7 +454,8 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
                                 ") AS " + Combined.TITLE + "," +
                         qualifyColumn(TABLE_HISTORY, History.VISITS) + " AS " + Combined.VISITS + "," +
                         qualifyColumn(TABLE_HISTORY, History.DATE_LAST_VISITED) + " AS " + Combined.DATE_LAST_VISITED + "," +
-                        qualifyColumn(TABLE_HISTORY, History.FAVICON_ID) + " AS " + Combined.FAVICON_ID +
+                        qualifyColumn(TABLE_HISTORY, History.FAVICON_ID) + " AS " + Combined.FAVICON_ID + "," +
+                        qualifyColumn(TABLE_HISTORY, History.FRECENCY) + " AS " + Combined.FRECENCY +
 
                     // We really shouldn't be selecting deleted bookmarks, but oh well.
                     " FROM " + TABLE_HISTORY + " LEFT OUTER JOIN " + TABLE_BOOKMARKS +
@@ -315,8 +469,117 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
                             // ... or it's a bookmark. This is less efficient than filtering prior
                             // to the join if you have lots of folders.
                             qualifyColumn(TABLE_BOOKMARKS, Bookmarks.TYPE) + " = " + Bookmarks.TYPE_BOOKMARK +
-                        ")"
-        );
+                        ")" +
+                        (historyFilter == null ? "" : " AND " + historyFilter);
+    }
+
+    /**
+     * The search index is an FTS3 table over the URL and title of every
+     * history entry and bookmark, which lets us filter the combined view
+     * without scanning it. History entries are indexed with their _id as the
+     * docid, and bookmarks with the negation of theirs.
+     *
+     * The index is maintained by triggers so that it also sees writes that
+     * bypass the provider's insert/update/delete paths, such as expiration
+     * and migrations.
+     */
+    private void createSearchIndex(SQLiteDatabase db) {
+        debug("Creating " + TABLE_SEARCH_INDEX + " table");
+
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_SEARCH_INDEX + " USING fts3(" +
+                History.URL + ", " +
+                History.TITLE + ")");
+
+        createSearchIndexTriggers(db, TABLE_HISTORY, History._ID, History.URL, History.TITLE, "");
+        createSearchIndexTriggers(db, TABLE_BOOKMARKS, Bookmarks._ID, Bookmarks.URL, Bookmarks.TITLE, "-");
+
+        debug("Populating " + TABLE_SEARCH_INDEX + " table");
+
+        db.execSQL("INSERT INTO " + TABLE_SEARCH_INDEX + " (docid, " + History.URL + ", " + History.TITLE + ")" +
+                " SELECT " + History._ID + ", " + History.URL + ", " + History.TITLE +
+                " FROM " + TABLE_HISTORY);
+        db.execSQL("INSERT INTO " + TABLE_SEARCH_INDEX + " (docid, " + History.URL + ", " + History.TITLE + ")" +
+                " SELECT -" + Bookmarks._ID + ", " + Bookmarks.URL + ", " + Bookmarks.TITLE +
+                " FROM " + TABLE_BOOKMARKS);
+    }
+
+    private static void createSearchIndexTriggers(SQLiteDatabase db, String table,
+            String idColumn, String urlColumn, String titleColumn, String sign) {
+        final String insert = "INSERT INTO " + TABLE_SEARCH_INDEX +
+                " (docid, " + History.URL + ", " + History.TITLE + ")" +
+                " VALUES (" + sign + "new." + idColumn + ", new." + urlColumn + ", new." + titleColumn + ");";
+        final String delete = "DELETE FROM " + TABLE_SEARCH_INDEX +
+                " WHERE docid = " + sign + "old." + idColumn + ";";
+
+        db.execSQL("CREATE TRIGGER " + table + "_search_index_insert AFTER INSERT ON " + table +
+                " BEGIN " + insert + " END");
+        db.execSQL("CREATE TRIGGER " + table + "_search_index_update" +
+                " AFTER UPDATE OF " + urlColumn + ", " + titleColumn + " ON " + table +
+                " BEGIN " + delete + " " + insert + " END");
+        db.execSQL("CREATE TRIGGER " + table + "_search_index_delete AFTER DELETE ON " + table +
+                " BEGIN " + delete + " END");
+    }
+
+    /**
+     * Build a FROM clause equivalent to the combined view (or the combined
+     * view with favicons), but containing only rows for which the URL or
+     * title of the history entry or bookmark matches the provided FTS
+     * expression.
+     */
+    static String getCombinedSearchTables(String match, boolean withFavicons) {
+        final String matchClause = " FROM " + TABLE_SEARCH_INDEX +
+                " WHERE " + TABLE_SEARCH_INDEX + " MATCH " + DatabaseUtils.sqlEscapeString(match);
+
+        final String bookmarksFilter = qualifyColumn(TABLE_BOOKMARKS, Bookmarks._ID) +
+                " IN (SELECT -docid" + matchClause + " AND docid < 0)";
+
+        // A history entry matches if either it or a bookmark with the same URL does.
+        final String historyFilter = "(" +
+                qualifyColumn(TABLE_HISTORY, History._ID) +
+                    " IN (SELECT docid" + matchClause + " AND docid > 0) OR " +
+                qualifyColumn(TABLE_HISTORY, History.URL) +
+                    " IN (SELECT " + History.URL + matchClause + " AND docid < 0)" +
+                ")";
+
+        final String combined = "(" + getCombinedSelect(bookmarksFilter, historyFilter) + ") AS " + VIEW_COMBINED;
+        if (!withFavicons) {
+            return combined;
+        }
+
+        return "(SELECT " + qualifyColumn(VIEW_COMBINED, "*") + ", " +
+                    qualifyColumn(TABLE_FAVICONS, Favicons.URL) + " AS " + Combined.FAVICON_URL + ", " +
+                    qualifyColumn(TABLE_FAVICONS, Favicons.DATA) + " AS " + Combined.FAVICON +
+                " FROM " + combined + " LEFT OUTER JOIN " + TABLE_FAVICONS +
+                    " ON " + Combined.FAVICON_ID + " = " + qualifyColumn(TABLE_FAVICONS, Favicons._ID) +
+                ") AS " + VIEW_COMBINED_WITH_FAVICONS;
+    }
+
+    private void createCombinedViewOn19(SQLiteDatabase db) {
+        /*
+        The v19 combined view removes the redundant subquery from the v16
+        combined view and reorders the columns as necessary to prevent this
+        from breaking any code that might be referencing columns by index.
+
+        The rows in the ensuing view are, in order:
+
+            Combined.BOOKMARK_ID
+            Combined.HISTORY_ID
+            Combined._ID (always 0)
+            Combined.URL
+            Combined.TITLE
+            Combined.VISITS
+            Combined.DISPLAY
+            Combined.DATE_LAST_VISITED
+            Combined.FAVICON_ID
+            Combined.FRECENCY (since v26)
+
+        We need to return an _id column because CursorAdapter requires it for its
+        default implementation for the getItemId() method. However, since
+        we're not using this feature in the parts of the UI using this view,
+        we can just use 0 for all rows.
+         */
+
+        db.execSQL("CREATE VIEW IF NOT EXISTS " + VIEW_COMBINED + " AS" + getCombinedSelect(null, null));
 
         debug("Creating " + VIEW_COMBINED_WITH_FAVICONS + " view");
 
@@ -339,6 +602,7 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
 
         createBookmarksTable(db);
         createHistoryTable(db);
+        createFrecencyTriggers(db);
         createFaviconsTable(db);
         createThumbnailsTable(db);
         createTabsTable(db);
@@ -357,6 +621,8 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
         createReadingListTable(db, TABLE_READING_LIST);
         didCreateCurrentReadingListTable = true;      // Mostly correct, in the absence of transactions.
         createReadingListIndices(db, TABLE_READING_LIST);
+        createSearchIndex(db);
+        createTopSitesTable(db);
     }
 
     /**
@@ -644,8 +910,8 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Migrate a history table from some old version to the newest one by creating the new table and
-     * copying all the data over.
+     * Migrate a history table from some old version to the version 25 one by creating the new table
+     * and copying all the data over. Later upgrade steps take it from there.
      */
     private void migrateHistoryTable(SQLiteDatabase db) {
         debug("Renaming history table to " + TABLE_HISTORY_TMP);
@@ -659,7 +925,7 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP INDEX IF EXISTS history_modified_index");
         db.execSQL("DROP INDEX IF EXISTS history_visited_index");
 
-        createHistoryTable(db);
+        createHistoryTableOn25(db);
 
         db.execSQL("INSERT INTO " + TABLE_HISTORY + " SELECT * FROM " + TABLE_HISTORY_TMP);
 
@@ -735,7 +1001,7 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
             debug("Exception adding favicon_id column. We're probably fine." + e);
         }
 
-        createThumbnailsTable(db);
+        createThumbnailsTableOn13(db);
 
         db.execSQL("DROP VIEW IF EXISTS bookmarks_with_images");
         db.execSQL("DROP VIEW IF EXISTS history_with_images");
@@ -994,6 +1260,41 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
         createCombinedViewOn19(db);
     }
 
+    private void upgradeDatabaseFrom24to25(SQLiteDatabase db) {
+        createSearchIndex(db);
+    }
+
+    private void upgradeDatabaseFrom25to26(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_HISTORY +
+                " ADD COLUMN " + History.FRECENCY + " INTEGER NOT NULL DEFAULT 0");
+
+        db.execSQL("UPDATE " + TABLE_HISTORY + " SET " + History.FRECENCY + " = " +
+                getFrecencyCalculation(String.valueOf(System.currentTimeMillis())));
+
+        db.execSQL("CREATE INDEX history_frecency_index ON " + TABLE_HISTORY + '('
+                + History.FRECENCY + ')');
+        createFrecencyTriggers(db);
+
+        // The combined views gain a frecency column.
+        createV19CombinedView(db);
+    }
+
+    /*
+     * Replaces the 'thumbnails' table, which held image data inline, with one
+     * that refers to the thumbnail file store. The old images aren't carried
+     * over: copying them into the store would mean file I/O inside the upgrade
+     * transaction, and thumbnails are recaptured as pages are visited.
+     */
+    private void upgradeDatabaseFrom26to27(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS thumbnails_url_index");
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_THUMBNAILS);
+        createThumbnailsTable(db);
+    }
+
+    private void upgradeDatabaseFrom27to28(SQLiteDatabase db) {
+        createTopSitesTable(db);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         debug("Upgrading browser.db: " + db.getPath() + " from " +
@@ -1062,6 +1363,22 @@ final class BrowserDatabaseHelper extends SQLiteOpenHelper {
                 case 24:
                     upgradeDatabaseFrom23to24(db);
                     break;
+
+                case 25:
+                    upgradeDatabaseFrom24to25(db);
+                    break;
+
+                case 26:
+                    upgradeDatabaseFrom25to26(db);
+                    break;
+
+                case 27:
+                    upgradeDatabaseFrom26to27(db);
+                    break;
+
+                case 28:
+                    upgradeDatabaseFrom27to28(db);
+                    break;
             }
         }
 
@@ -5,10 +5,14 @@
 
 package org.mozilla.gecko.db;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.mozilla.gecko.db.BrowserContract.Bookmarks;
 import org.mozilla.gecko.db.BrowserContract.Combined;
@@ -17,6 +21,7 @@ import org.mozilla.gecko.db.BrowserContract.Favicons;
 import org.mozilla.gecko.db.BrowserContract.History;
 import org.mozilla.gecko.db.BrowserContract.Schema;
 import org.mozilla.gecko.db.BrowserContract.Thumbnails;
+import org.mozilla.gecko.db.BrowserContract.TopSites;
 import org.mozilla.gecko.sync.Utils;
 
 import android.content.ContentProviderOperation;
@@ -31,6 +36,7 @@ import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
@@ -53,10 +59,22 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
     // Minimum number of thumbnails to keep around.
     static final int DEFAULT_EXPIRY_THUMBNAIL_COUNT = 15;
 
+    // Number of rows kept in the top sites table. Top sites queries for more
+    // rows than this go to the combined view instead.
+    static final int TOP_SITES_CAPACITY = 50;
+    // Writes touching more URLs than this mark the top sites table dirty,
+    // rather than updating it one URL at a time.
+    static final int MAX_TOP_SITES_URL_UPDATES = 20;
+
+    // Maximum number of history rows to rescore in each frecency decay
+    // transaction, so that decay never holds the database for long.
+    static final int FRECENCY_DECAY_CHUNK_SIZE = 500;
+
     static final String TABLE_BOOKMARKS = Bookmarks.TABLE_NAME;
     static final String TABLE_HISTORY = History.TABLE_NAME;
     static final String TABLE_FAVICONS = Favicons.TABLE_NAME;
     static final String TABLE_THUMBNAILS = Thumbnails.TABLE_NAME;
+    static final String TABLE_TOP_SITES = TopSites.TABLE_NAME;
 
     static final String VIEW_COMBINED = Combined.VIEW_NAME;
     static final String VIEW_BOOKMARKS_WITH_FAVICONS = Bookmarks.VIEW_WITH_FAVICONS;
@@ -74,6 +92,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
     static final int HISTORY = 200;
     static final int HISTORY_ID = 201;
     static final int HISTORY_OLD = 202;
+    static final int HISTORY_DECAY = 203;
 
     // Favicon matches
     static final int FAVICONS = 300;
@@ -84,6 +103,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
     // Combined bookmarks and history matches
     static final int COMBINED = 500;
+    static final int COMBINED_SEARCH = 501;
 
     // Control matches
     static final int CONTROL = 600;
@@ -95,6 +115,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
     static final int THUMBNAILS = 800;
     static final int THUMBNAIL_ID = 801;
 
+    // Top sites matches
+    static final int TOP_SITES = 900;
+
     static final String DEFAULT_BOOKMARKS_SORT_ORDER = Bookmarks.TYPE
             + " ASC, " + Bookmarks.POSITION + " ASC, " + Bookmarks._ID
             + " ASC";
@@ -109,6 +132,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
     static final Map<String, String> SCHEMA_PROJECTION_MAP;
     static final Map<String, String> FAVICONS_PROJECTION_MAP;
     static final Map<String, String> THUMBNAILS_PROJECTION_MAP;
+    static final Map<String, String> TOP_SITES_PROJECTION_MAP;
     static final Table[] sTables;
 
     static {
@@ -149,6 +173,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         URI_MATCHER.addURI(BrowserContract.AUTHORITY, "history", HISTORY);
         URI_MATCHER.addURI(BrowserContract.AUTHORITY, "history/#", HISTORY_ID);
         URI_MATCHER.addURI(BrowserContract.AUTHORITY, "history/old", HISTORY_OLD);
+        URI_MATCHER.addURI(BrowserContract.AUTHORITY, "history/decay", HISTORY_DECAY);
 
         map = new HashMap<String, String>();
         map.put(History._ID, History._ID);
@@ -184,11 +209,26 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         map = new HashMap<String, String>();
         map.put(Thumbnails._ID, Thumbnails._ID);
         map.put(Thumbnails.URL, Thumbnails.URL);
-        map.put(Thumbnails.DATA, Thumbnails.DATA);
+        // Both hold the file key; ThumbnailStore.wrap resolves them.
+        map.put(Thumbnails.FILE, Thumbnails.FILE);
+        map.put(Thumbnails.DATA, Thumbnails.FILE + " AS " + Thumbnails.DATA);
         THUMBNAILS_PROJECTION_MAP = Collections.unmodifiableMap(map);
 
+        // Top sites
+        URI_MATCHER.addURI(BrowserContract.AUTHORITY, "topsites", TOP_SITES);
+
+        map = new HashMap<String, String>();
+        map.put(TopSites._ID, TopSites.HISTORY_ID + " AS " + TopSites._ID);
+        map.put(TopSites.URL, TopSites.URL);
+        map.put(TopSites.TITLE, TopSites.TITLE);
+        map.put(TopSites.BOOKMARK_ID, TopSites.BOOKMARK_ID);
+        map.put(TopSites.HISTORY_ID, TopSites.HISTORY_ID);
+        map.put(TopSites.SCORE, TopSites.SCORE);
+        TOP_SITES_PROJECTION_MAP = Collections.unmodifiableMap(map);
+
         // Combined bookmarks and history
         URI_MATCHER.addURI(BrowserContract.AUTHORITY, "combined", COMBINED);
+        URI_MATCHER.addURI(BrowserContract.AUTHORITY, "combined/search", COMBINED_SEARCH);
 
         map = new HashMap<String, String>();
         map.put(Combined._ID, Combined._ID);
@@ -221,6 +261,10 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         }
     }
 
+    // Set when this thread's write deleted thumbnail rows, so that their files
+    // can be collected once the write is committed.
+    private final ThreadLocal<Boolean> mThumbnailGarbagePending = new ThreadLocal<Boolean>();
+
     // Convenience accessor.
     // Assumes structure of sTables!
     private URLMetadataTable getURLMetadataTable() {
@@ -260,7 +304,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
      *
      * Provide <code>keepAfter</code> less than or equal to zero to skip that check.
      *
-     * Items will be removed according to an approximate frecency calculation.
+     * Items will be removed in order of their stored frecency score, lowest first.
      */
     private void expireHistory(final SQLiteDatabase db, final int retain, final long keepAfter) {
         Log.d(LOGTAG, "Expiring history.");
@@ -294,9 +338,213 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         db.execSQL(sql);
     }
 
+    /**
+     * Bring up to {@link #FRECENCY_DECAY_CHUNK_SIZE} stored frecency scores up
+     * to date with the current time.
+     *
+     * Scores are computed when a row is visited, but the recency multiplier
+     * shrinks as the visit ages. Once a row is old enough its multiplier
+     * bottoms out at 1 and its score equals its visit count, so only rows
+     * with a score above their visit count can still decay; of those, only
+     * rows whose score has actually changed are rewritten. Rows rescored here
+     * no longer match, so repeated calls work through the table and then
+     * return 0.
+     *
+     * Rows last visited more than {@link BrowserDatabaseHelper#FRECENCY_DECAY_WINDOW}
+     * before <code>lastDecay</code> were fully decayed by then, so the history
+     * visited index lets us skip them. Pass 0 if there's no earlier decay.
+     *
+     * Call this method within a transaction.
+     *
+     * @return the number of rows rescored.
+     */
+    private int decayFrecencies(final SQLiteDatabase db, final long lastDecay) {
+        final long now = System.currentTimeMillis();
+        final long cutoff = lastDecay - BrowserDatabaseHelper.FRECENCY_DECAY_WINDOW;
+        debug("Decaying frecencies of rows visited after " + cutoff + ".");
+
+        final String frecency = BrowserDatabaseHelper.getFrecencyCalculation(String.valueOf(now));
+        final String sql = "UPDATE " + TABLE_HISTORY +
+                           " SET " + History.FRECENCY + " = " + frecency +
+                           " WHERE " + History._ID + " IN (SELECT " + History._ID +
+                           " FROM " + TABLE_HISTORY +
+                           " WHERE " + History.DATE_LAST_VISITED + " > " + cutoff +
+                           " AND " + History.FRECENCY + " > " + History.VISITS +
+                           " AND " + History.FRECENCY + " <> " + frecency +
+                           " LIMIT " + FRECENCY_DECAY_CHUNK_SIZE + ")";
+        trace("Decaying using query: " + sql);
+
+        beginWrite(db);
+        final SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return DBUtils.executeUpdateDelete(db, statement);
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Bring the top sites table up to date after a write that may have
+     * changed the history entries or bookmarks for <code>urls</code>.
+     *
+     * Each URL's row is recomputed from history and bookmarks, and the table
+     * is trimmed back to {@link #TOP_SITES_CAPACITY}. That's enough to keep
+     * the table exact as long as rows only gain score. If a row that was in
+     * a full table loses score (or eligibility), some row outside the table
+     * might now belong in it, so we mark the table dirty instead.
+     *
+     * Sync, bulk inserts, batches, and other writes touching many URLs also
+     * just mark the table dirty: they're usually followed by more writes, and
+     * it's cheaper to rebuild once, when the table is next read.
+     *
+     * Call this method within a transaction, after the write.
+     */
+    private void updateTopSites(final Uri uri, final SQLiteDatabase db, final Collection<String> urls) {
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        if (isCallerSync(uri) || isInBatch() || urls.size() > MAX_TOP_SITES_URL_UPDATES) {
+            debug("Deferring top sites update for " + urls.size() + " URLs.");
+            markTopSitesDirty(db);
+            return;
+        }
+
+        final long count = DatabaseUtils.queryNumEntries(db, TABLE_TOP_SITES);
+        if (count == 0) {
+            // Already dirty. Adding rows would make it look clean.
+            return;
+        }
+
+        final boolean wasFull = count >= TOP_SITES_CAPACITY;
+        final String insert = "INSERT INTO " + TABLE_TOP_SITES + " (" +
+                TopSites.HISTORY_ID + ", " + TopSites.URL + ", " + TopSites.TITLE + ", " +
+                TopSites.BOOKMARK_ID + ", " + TopSites.SCORE + ") " +
+                BrowserDatabaseHelper.getTopSitesSelect(DBUtils.qualifyColumn(TABLE_HISTORY, History.URL) + " = ?");
+
+        boolean demoted = false;
+        for (String url : urls) {
+            if (TextUtils.isEmpty(url)) {
+                continue;
+            }
+
+            final String[] args = new String[] { url };
+            final long oldScore = getTopSiteScore(db, args);
+            db.delete(TABLE_TOP_SITES, TopSites.URL + " = ?", args);
+            db.execSQL(insert, args);
+
+            if (oldScore >= 0 && getTopSiteScore(db, args) < oldScore) {
+                demoted = true;
+            }
+        }
+
+        // If the table wasn't full, it already held every eligible row, so
+        // there's nothing outside it that could take a demoted row's place.
+        if (demoted && wasFull) {
+            debug("Top sites dirty after demotion.");
+            markTopSitesDirty(db);
+            return;
+        }
+
+        trimTopSites(db);
+    }
+
+    private static long getTopSiteScore(SQLiteDatabase db, String[] urlArgs) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COALESCE(MAX(" + TopSites.SCORE + "), -1) FROM " + TABLE_TOP_SITES +
+                " WHERE " + TopSites.URL + " = ?", urlArgs);
+    }
+
+    private static void trimTopSites(SQLiteDatabase db) {
+        db.delete(TABLE_TOP_SITES,
+                  TopSites.HISTORY_ID + " NOT IN (SELECT " + TopSites.HISTORY_ID +
+                  " FROM " + TABLE_TOP_SITES +
+                  " ORDER BY " + TopSites.SCORE + " DESC" +
+                  " LIMIT " + TOP_SITES_CAPACITY + ")",
+                  null);
+    }
+
+    /**
+     * Mark the top sites table dirty, so that it's rebuilt when next read.
+     *
+     * An empty table is taken to be dirty: that way the mark is written, and
+     * rolled back, with the write that made it, and survives the process.
+     * A table that's empty because nothing is eligible is cheap to rebuild.
+     *
+     * Call this method within a transaction.
+     */
+    private static void markTopSitesDirty(final SQLiteDatabase db) {
+        db.delete(TABLE_TOP_SITES, null, null);
+    }
+
+    /**
+     * Rebuild the top sites table if a write has marked it dirty.
+     *
+     * Call this method within a transaction.
+     */
+    private static void rebuildTopSitesIfDirty(final SQLiteDatabase db) {
+        if (DatabaseUtils.queryNumEntries(db, TABLE_TOP_SITES) > 0) {
+            return;
+        }
+
+        debug("Rebuilding dirty top sites.");
+        BrowserDatabaseHelper.populateTopSites(db);
+    }
+
+    /**
+     * Rebuild the top sites table before a query if a write has marked it
+     * dirty. This is a write on the query path; frecency decay normally
+     * rebuilds the table first, from idle time.
+     */
+    private void ensureTopSites(final Uri uri) {
+        final SQLiteDatabase db = getWritableDatabase(uri);
+        if (DatabaseUtils.queryNumEntries(db, TABLE_TOP_SITES) > 0) {
+            return;
+        }
+
+        beginWrite(db);
+        try {
+            rebuildTopSitesIfDirty(db);
+            markWriteSuccessful(db);
+        } finally {
+            endWrite(db);
+        }
+    }
+
+    /**
+     * Remove top sites whose history entries have been deleted, marking the
+     * table dirty if that leaves room for rows that weren't in it.
+     *
+     * Deletions wipe the URL of the history entry, so we find affected rows
+     * by their history ID rather than passing URLs to updateTopSites.
+     *
+     * Sync and batch deletes just mark the table dirty.
+     *
+     * Call this method within a transaction, after the delete.
+     */
+    private void pruneTopSites(final Uri uri, final SQLiteDatabase db) {
+        if (isCallerSync(uri) || isInBatch()) {
+            markTopSitesDirty(db);
+            return;
+        }
+
+        final boolean wasFull = DatabaseUtils.queryNumEntries(db, TABLE_TOP_SITES) >= TOP_SITES_CAPACITY;
+        final int pruned = db.delete(TABLE_TOP_SITES,
+                                     TopSites.HISTORY_ID + " NOT IN (SELECT " + History._ID +
+                                     " FROM " + TABLE_HISTORY +
+                                     " WHERE " + History.IS_DELETED + " = 0)",
+                                     null);
+
+        if (pruned > 0 && wasFull) {
+            debug("Top sites dirty after pruning " + pruned + " rows.");
+            markTopSitesDirty(db);
+        }
+    }
+
     /**
      * Remove any thumbnails that for sites that aren't likely to be ever shown.
-     * Items will be removed according to a frecency calculation and only if they are not pinned
+     * Items will be removed according to a frecency calculation and only if they are not pinned.
+     * Their files are garbage collected from the thumbnail store after commit.
      *
      * Call this method within a transaction.
      */
@@ -316,6 +564,80 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                            ")";
         trace("Clear thumbs using query: " + sql);
         db.execSQL(sql);
+
+        requestThumbnailGarbageCollection();
+    }
+
+    private static ThumbnailStore getThumbnailStore(SQLiteDatabase db) {
+        return ThumbnailStore.forDatabasePath(db.getPath());
+    }
+
+    /**
+     * Note that thumbnail rows were deleted, so that their files are garbage
+     * collected once the write is committed. Files are never unlinked inside
+     * a transaction: the transaction may yet roll back, and we don't want to
+     * hold it open while touching the file system.
+     */
+    private void requestThumbnailGarbageCollection() {
+        mThumbnailGarbagePending.set(Boolean.TRUE);
+    }
+
+    /**
+     * If thumbnail rows were deleted by this thread's last write, delete the
+     * files that are no longer referenced by any row.
+     *
+     * Call this method after the write has been committed. Files written since
+     * we read the set of referenced keys are protected by the store's grace
+     * period.
+     */
+    private void collectThumbnailGarbageIfPending(Uri uri) {
+        if (!Boolean.TRUE.equals(mThumbnailGarbagePending.get())) {
+            return;
+        }
+        mThumbnailGarbagePending.set(Boolean.FALSE);
+
+        final SQLiteDatabase db = getReadableDatabase(uri);
+        final Set<String> liveKeys = new HashSet<String>();
+        final Cursor c = db.query(TABLE_THUMBNAILS, new String[] { Thumbnails.FILE },
+                                  Thumbnails.FILE + " IS NOT NULL", null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                liveKeys.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        getThumbnailStore(db).collectGarbage(liveKeys);
+    }
+
+    /**
+     * Replace any thumbnail image in <code>values</code> with a reference to
+     * the image's file in the thumbnail store, writing the file if needed.
+     */
+    private static void moveThumbnailDataToStore(SQLiteDatabase db, ContentValues values) {
+        // The file reference is ours to manage.
+        values.remove(Thumbnails.FILE);
+
+        if (!values.containsKey(Thumbnails.DATA)) {
+            return;
+        }
+
+        final byte[] data = values.getAsByteArray(Thumbnails.DATA);
+        values.remove(Thumbnails.DATA);
+
+        if (data == null || data.length == 0) {
+            Log.w(LOGTAG, "Tried to insert an empty or non-byte-array thumbnail. Ignoring.");
+            values.putNull(Thumbnails.FILE);
+            return;
+        }
+
+        try {
+            values.put(Thumbnails.FILE, getThumbnailStore(db).put(data));
+        } catch (IOException e) {
+            Log.e(LOGTAG, "Unable to store thumbnail.", e);
+            values.putNull(Thumbnails.FILE);
+        }
     }
 
     private boolean shouldIncrementVisits(Uri uri) {
@@ -389,6 +711,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 trace("Deleting history: " + uri);
                 beginWrite(db);
                 deleted = deleteHistory(uri, selection, selectionArgs);
+                if (deleted > 0) {
+                    pruneTopSites(uri, db);
+                }
                 deleteUnusedImages(uri);
                 break;
             }
@@ -403,6 +728,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                     retainCount = AGGRESSIVE_EXPIRY_RETAIN_COUNT;
                 }
                 expireHistory(db, retainCount, keepAfter);
+                pruneTopSites(uri, db);
                 expireThumbnails(db);
                 deleteUnusedImages(uri);
                 break;
@@ -574,6 +900,26 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 break;
             }
 
+            // A dedicated API for decaying frecencies in bounded chunks, each in
+            // its own transaction. `values` and `selection` are ignored; the
+            // optional `since` parameter is the time the previous complete
+            // decay started.
+            case HISTORY_DECAY: {
+                debug("Update on HISTORY_DECAY: " + uri);
+                final String since = uri.getQueryParameter(BrowserContract.PARAM_DECAY_SINCE);
+                updated = decayFrecencies(db, since == null ? 0 : Long.parseLong(since));
+                if (updated > 0) {
+                    // Decay reorders rows throughout history, so the top sites
+                    // table can't be patched up incrementally.
+                    markTopSitesDirty(db);
+                } else {
+                    // The pass is complete. Rebuild top sites now, rather than
+                    // leave it to the next top sites query.
+                    rebuildTopSitesIfDirty(db);
+                }
+                break;
+            }
+
             case FAVICONS: {
                 debug("Update on FAVICONS: " + uri);
 
@@ -730,6 +1076,20 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 break;
             }
 
+            case TOP_SITES: {
+                debug("Query is on top sites: " + uri);
+
+                ensureTopSites(uri);
+
+                if (TextUtils.isEmpty(sortOrder))
+                    sortOrder = TopSites.SCORE + " DESC";
+
+                qb.setProjectionMap(TOP_SITES_PROJECTION_MAP);
+                qb.setTables(TABLE_TOP_SITES);
+
+                break;
+            }
+
             case SCHEMA: {
                 debug("Query is on schema.");
                 MatrixCursor schemaCursor = new MatrixCursor(new String[] { Schema.VERSION });
@@ -758,6 +1118,25 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                 break;
             }
 
+            case COMBINED_SEARCH: {
+                debug("Query is on combined search: " + uri);
+
+                final String searchMatch = uri.getQueryParameter(BrowserContract.PARAM_SEARCH_MATCH);
+                if (TextUtils.isEmpty(searchMatch)) {
+                    throw new IllegalArgumentException("Combined search requires " + BrowserContract.PARAM_SEARCH_MATCH);
+                }
+
+                if (TextUtils.isEmpty(sortOrder))
+                    sortOrder = DEFAULT_HISTORY_SORT_ORDER;
+
+                groupBy = Combined.URL;
+
+                qb.setProjectionMap(COMBINED_PROJECTION_MAP);
+                qb.setTables(BrowserDatabaseHelper.getCombinedSearchTables(searchMatch, hasFaviconsInProjection(projection)));
+
+                break;
+            }
+
             default: {
                 Table table = findTableFor(match);
                 if (table == null) {
@@ -771,6 +1150,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         trace("Running built query.");
         Cursor cursor = qb.query(db, projection, selection, selectionArgs, groupBy,
                 null, sortOrder, limit);
+        if (match == THUMBNAILS || match == THUMBNAIL_ID) {
+            cursor = getThumbnailStore(db).wrap(cursor);
+        }
         cursor.setNotificationUri(getContext().getContentResolver(),
                 BrowserContract.AUTHORITY_URI);
 
@@ -910,7 +1292,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         debug("Inserting bookmark in database with URL: " + url);
         final SQLiteDatabase db = getWritableDatabase(uri);
         beginWrite(db);
-        return db.insertOrThrow(TABLE_BOOKMARKS, Bookmarks.TITLE, values);
+        final long id = db.insertOrThrow(TABLE_BOOKMARKS, Bookmarks.TITLE, values);
+        updateTopSites(uri, db, Collections.singleton(url));
+        return id;
     }
 
 
@@ -937,6 +1321,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
         final String[] bookmarksProjection = new String[] {
                 Bookmarks._ID, // 0
+                Bookmarks.URL, // 1
         };
 
         if (!values.containsKey(Bookmarks.DATE_MODIFIED)) {
@@ -952,14 +1337,25 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
         // Now that we're done reading, open a transaction.
         final String inClause;
+        final Set<String> urls = new HashSet<String>();
         try {
             inClause = DBUtils.computeSQLInClauseFromLongs(cursor, Bookmarks._ID);
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                urls.add(cursor.getString(1));
+            }
         } finally {
             cursor.close();
         }
 
+        if (values.containsKey(Bookmarks.URL) && !urls.isEmpty()) {
+            urls.add(values.getAsString(Bookmarks.URL));
+        }
+
         beginWrite(db);
-        return db.update(TABLE_BOOKMARKS, values, inClause, null);
+        final int updated = db.update(TABLE_BOOKMARKS, values, inClause, null);
+        updateTopSites(uri, db, urls);
+        return updated;
     }
 
     private long insertHistory(Uri uri, ContentValues values) {
@@ -977,7 +1373,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         debug("Inserting history in database with URL: " + url);
         final SQLiteDatabase db = getWritableDatabase(uri);
         beginWrite(db);
-        return db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
+        final long id = db.insertOrThrow(TABLE_HISTORY, History.VISITS, values);
+        updateTopSites(uri, db, Collections.singleton(url));
+        return id;
     }
 
     private int updateOrInsertHistory(Uri uri, ContentValues values, String selection,
@@ -1017,6 +1415,7 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         final SQLiteDatabase db = getWritableDatabase(uri);
         final Cursor cursor = db.query(TABLE_HISTORY, historyProjection, selection,
                                        selectionArgs, null, null, null);
+        final Set<String> urls = new HashSet<String>();
 
         try {
             if (!values.containsKey(Bookmarks.DATE_MODIFIED)) {
@@ -1038,11 +1437,17 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
                 updated += db.update(TABLE_HISTORY, values, "_id = ?",
                                      new String[] { Long.toString(id) });
+                urls.add(cursor.getString(1));
             }
         } finally {
             cursor.close();
         }
 
+        if (values.containsKey(History.URL) && !urls.isEmpty()) {
+            urls.add(values.getAsString(History.URL));
+        }
+        updateTopSites(uri, db, urls);
+
         return updated;
     }
 
@@ -1175,9 +1580,9 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
         trace("Inserting thumbnail for URL: " + url);
 
-        DBUtils.stripEmptyByteArray(values, Thumbnails.DATA);
-
         final SQLiteDatabase db = getWritableDatabase(uri);
+        moveThumbnailDataToStore(db, values);
+
         beginWrite(db);
         return db.insertOrThrow(TABLE_THUMBNAILS, null, values);
     }
@@ -1197,11 +1602,12 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
     private int updateThumbnail(Uri uri, ContentValues values, String selection,
             String[] selectionArgs, boolean insertIfNeeded) {
         final String url = values.getAsString(Thumbnails.URL);
-        DBUtils.stripEmptyByteArray(values, Thumbnails.DATA);
 
         trace("Updating thumbnail for URL: " + url);
 
         final SQLiteDatabase db = getWritableDatabase(uri);
+        moveThumbnailDataToStore(db, values);
+
         beginWrite(db);
         int updated = db.update(TABLE_THUMBNAILS, values, selection, selectionArgs);
 
@@ -1265,7 +1671,11 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
         if (isCallerSync(uri)) {
             beginWrite(db);
-            return db.delete(TABLE_BOOKMARKS, selection, selectionArgs);
+            final int deleted = db.delete(TABLE_BOOKMARKS, selection, selectionArgs);
+            if (deleted > 0) {
+                markTopSitesDirty(db);
+            }
+            return deleted;
         }
 
         debug("Marking bookmarks as deleted for URI: " + uri);
@@ -1308,7 +1718,11 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
 
         final SQLiteDatabase db = getWritableDatabase(uri);
 
-        return db.delete(TABLE_THUMBNAILS, selection, selectionArgs);
+        final int deleted = db.delete(TABLE_THUMBNAILS, selection, selectionArgs);
+        if (deleted > 0) {
+            requestThumbnailGarbageCollection();
+        }
+        return deleted;
     }
 
     private int deleteUnusedImages(Uri uri) {
@@ -1339,6 +1753,17 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
                getURLMetadataTable().deleteUnused(getWritableDatabase(uri));
     }
 
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int deleted = super.delete(uri, selection, selectionArgs);
+
+        // Inside a batch, the enclosing transaction isn't committed yet.
+        if (!isInBatch()) {
+            collectThumbnailGarbageIfPending(uri);
+        }
+        return deleted;
+    }
+
     @Override
     public ContentProviderResult[] applyBatch (ArrayList<ContentProviderOperation> operations)
         throws OperationApplicationException {
@@ -1409,6 +1834,8 @@ public class BrowserProvider extends SharedBrowserDatabaseProvider {
         markBatchSuccessful(db);
         endBatch(db);
 
+        collectThumbnailGarbageIfPending(operations.get(0).getUri());
+
         if (failures) {
             throw new OperationApplicationException();
         }
@@ -380,25 +380,33 @@ public class DBUtils {
                 return 0;
             }
 
-            if (AppConstants.Versions.feature11Plus) {
-                // This is a separate method so we can annotate it with @TargetApi.
-                return executeStatementReturningChangedRows(statement);
-            } else {
-                statement.execute();
-                final Cursor cursor = db.rawQuery("SELECT changes()", null);
-                try {
-                    cursor.moveToFirst();
-                    return cursor.getInt(0);
-                } finally {
-                    cursor.close();
-                }
-
-            }
+            return executeUpdateDelete(db, statement);
         } finally {
             statement.close();
         }
     }
 
+    /**
+     * Execute an UPDATE or DELETE statement.
+     *
+     * @return the number of rows changed.
+     */
+    public static int executeUpdateDelete(final SQLiteDatabase db, final SQLiteStatement statement) {
+        if (AppConstants.Versions.feature11Plus) {
+            // This is a separate method so we can annotate it with @TargetApi.
+            return executeStatementReturningChangedRows(statement);
+        }
+
+        statement.execute();
+        final Cursor cursor = db.rawQuery("SELECT changes()", null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static int executeStatementReturningChangedRows(SQLiteStatement statement) {
         return statement.executeUpdateDelete();
@@ -5,7 +5,6 @@
 
 package org.mozilla.gecko.db;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.lang.IllegalAccessException;
@@ -17,6 +16,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,6 +26,7 @@ import org.json.JSONObject;
 import org.mozilla.gecko.AboutPages;
 import org.mozilla.gecko.annotation.RobocopTarget;
 import org.mozilla.gecko.AppConstants;
+import org.mozilla.gecko.GeckoSharedPrefs;
 import org.mozilla.gecko.R;
 import org.mozilla.gecko.db.BrowserContract.Bookmarks;
 import org.mozilla.gecko.db.BrowserContract.Combined;
@@ -36,6 +37,7 @@ import org.mozilla.gecko.db.BrowserContract.ReadingListItems;
 import org.mozilla.gecko.db.BrowserContract.SearchHistory;
 import org.mozilla.gecko.db.BrowserContract.SyncColumns;
 import org.mozilla.gecko.db.BrowserContract.Thumbnails;
+import org.mozilla.gecko.db.BrowserContract.TopSites;
 import org.mozilla.gecko.distribution.Distribution;
 import org.mozilla.gecko.favicons.decoders.FaviconDecoder;
 import org.mozilla.gecko.favicons.decoders.LoadFaviconResult;
@@ -48,6 +50,7 @@ import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.CursorWrapper;
@@ -80,6 +83,10 @@ public class LocalBrowserDB implements BrowserDB {
     // Constant used to indicate that no folder was found for particular GUID.
     private static final long FOLDER_NOT_FOUND = -1L;
 
+    // Frecency scores change at most once a day, so there's no point decaying
+    // them more often than this.
+    private static final long FRECENCY_DECAY_INTERVAL = 1000L * 60L * 60L;   // One hour.
+
     private final String mProfile;
 
     // Map of folder GUIDs to IDs. Used for caching.
@@ -94,10 +101,13 @@ public class LocalBrowserDB implements BrowserDB {
     private final Uri mParentsUriWithProfile;
     private final Uri mHistoryUriWithProfile;
     private final Uri mHistoryExpireUriWithProfile;
+    private final Uri mHistoryDecayUriWithProfile;
     private final Uri mCombinedUriWithProfile;
+    private final Uri mCombinedSearchUriWithProfile;
     private final Uri mUpdateHistoryUriWithProfile;
     private final Uri mFaviconsUriWithProfile;
     private final Uri mThumbnailsUriWithProfile;
+    private final Uri mTopSitesUriWithProfile;
     private final Uri mSearchHistoryUri;
 
     private LocalSearches searches;
@@ -121,9 +131,12 @@ public class LocalBrowserDB implements BrowserDB {
         mParentsUriWithProfile = DBUtils.appendProfile(profile, Bookmarks.PARENTS_CONTENT_URI);
         mHistoryUriWithProfile = DBUtils.appendProfile(profile, History.CONTENT_URI);
         mHistoryExpireUriWithProfile = DBUtils.appendProfile(profile, History.CONTENT_OLD_URI);
+        mHistoryDecayUriWithProfile = DBUtils.appendProfile(profile, History.CONTENT_DECAY_URI);
         mCombinedUriWithProfile = DBUtils.appendProfile(profile, Combined.CONTENT_URI);
+        mCombinedSearchUriWithProfile = DBUtils.appendProfile(profile, Combined.SEARCH_URI);
         mFaviconsUriWithProfile = DBUtils.appendProfile(profile, Favicons.CONTENT_URI);
         mThumbnailsUriWithProfile = DBUtils.appendProfile(profile, Thumbnails.CONTENT_URI);
+        mTopSitesUriWithProfile = DBUtils.appendProfile(profile, TopSites.CONTENT_URI);
 
         mSearchHistoryUri = BrowserContract.SearchHistory.CONTENT_URI;
 
@@ -517,6 +530,61 @@ public class LocalBrowserDB implements BrowserDB {
                                       .build();
     }
 
+    private Uri combinedSearchUriWithLimit(int limit, String match) {
+        return mCombinedSearchUriWithProfile.buildUpon()
+                                            .appendQueryParameter(BrowserContract.PARAM_LIMIT,
+                                                                  String.valueOf(limit))
+                                            .appendQueryParameter(BrowserContract.PARAM_SEARCH_MATCH,
+                                                                  match)
+                                            .build();
+    }
+
+    /**
+     * Build a search index expression that matches rows in which every
+     * constraint word is the prefix of a token in the URL or title.
+     *
+     * The index uses SQLite's "simple" tokenizer, which splits on ASCII
+     * punctuation and whitespace and folds ASCII case, so we do the same to
+     * each word. Returns null if some word has no indexable characters, in
+     * which case the caller can't use the index.
+     */
+    static String getSearchIndexMatch(String[] words, int count) {
+        final StringBuilder match = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            final String word = words[i];
+            if (word.length() == 0) {
+                // Matches everything.
+                continue;
+            }
+
+            boolean hasToken = false;
+            boolean inToken = false;
+            for (int j = 0; j < word.length(); j++) {
+                final char c = word.charAt(j);
+                final boolean isTokenChar = c >= 0x80 || Character.isLetterOrDigit(c);
+                if (isTokenChar) {
+                    if (!inToken && match.length() > 0) {
+                        match.append(' ');
+                    }
+                    match.append(c < 0x80 ? Character.toLowerCase(c) : c);
+                    hasToken = true;
+                } else if (inToken) {
+                    match.append('*');
+                }
+                inToken = isTokenChar;
+            }
+            if (inToken) {
+                match.append('*');
+            }
+
+            if (!hasToken) {
+                return null;
+            }
+        }
+
+        return match.length() > 0 ? match.toString() : null;
+    }
+
     private static Uri withDeleted(final Uri uri) {
         return uri.buildUpon()
                   .appendQueryParameter(BrowserContract.PARAM_SHOW_DELETED, "1")
@@ -527,11 +595,21 @@ public class LocalBrowserDB implements BrowserDB {
                                   int limit, CharSequence urlFilter, String selection, String[] selectionArgs) {
         // The combined history/bookmarks selection queries for sites with a URL or title containing
         // the constraint string(s), treating space-separated words as separate constraints
+        String match = null;
         if (!TextUtils.isEmpty(constraint)) {
             final String[] constraintWords = constraint.toString().split(" ");
 
             // Only create a filter query with a maximum of 10 constraint words.
             final int constraintCount = Math.min(constraintWords.length, 10);
+
+            // Where we can, use the search index to narrow the candidates to rows with a
+            // token starting with each word. The LIKE clauses below are then only
+            // evaluated against those rows, rather than against the whole combined view.
+            // This means that words match at the start of a URL or title token:
+            // "zilla" doesn't find mozilla.org. Only constraints with a word the index
+            // can't express, such as one made of punctuation, scan with LIKE alone.
+            match = getSearchIndexMatch(constraintWords, constraintCount);
+
             for (int i = 0; i < constraintCount; i++) {
                 selection = DBUtils.concatenateWhere(selection, "(" + Combined.URL + " LIKE ? OR " +
                                                                       Combined.TITLE + " LIKE ?)");
@@ -546,15 +624,19 @@ public class LocalBrowserDB implements BrowserDB {
             selectionArgs = DBUtils.appendSelectionArgs(selectionArgs, new String[] { urlFilter.toString() });
         }
 
-        // Our version of frecency is computed by scaling the number of visits by a multiplier
-        // that approximates Gaussian decay, based on how long ago the entry was last visited.
-        // Since we're limited by the math we can do with sqlite, we're calculating this
-        // approximation using the Cauchy distribution: multiplier = 15^2 / (age^2 + 15^2).
-        // Using 15 as our scale parameter, we get a constant 15^2 = 225. Following this math,
-        // frecencyScore = numVisits * max(1, 100 * 225 / (age*age + 225)). (See bug 704977)
-        // We also give bookmarks an extra bonus boost by adding 100 points to their frecency score.
+        // Sort by the frecency score stored on each history row (see
+        // BrowserDatabaseHelper.getFrecencyCalculation). We also give bookmarks an extra
+        // bonus boost by adding 100 points to their frecency score.
         final String sortOrder = BrowserContract.getFrecencySortOrder(true, false);
 
+        if (match != null) {
+            return cr.query(combinedSearchUriWithLimit(limit, match),
+                            projection,
+                            selection,
+                            selectionArgs,
+                            sortOrder);
+        }
+
         return cr.query(combinedUriWithLimit(limit),
                         projection,
                         selection,
@@ -629,6 +711,24 @@ public class LocalBrowserDB implements BrowserDB {
 
     @Override
     public Cursor getTopSites(ContentResolver cr, int limit) {
+        // The top sites table holds the answer to the query below for small
+        // limits, and reading it doesn't touch history at all.
+        if (limit <= BrowserProvider.TOP_SITES_CAPACITY) {
+            final Uri uri = mTopSitesUriWithProfile.buildUpon()
+                                                   .appendQueryParameter(BrowserContract.PARAM_LIMIT,
+                                                                         String.valueOf(limit))
+                                                   .build();
+            return cr.query(uri,
+                            new String[] { TopSites._ID,
+                                           TopSites.URL,
+                                           TopSites.TITLE,
+                                           TopSites.BOOKMARK_ID,
+                                           TopSites.HISTORY_ID },
+                            null,
+                            null,
+                            TopSites.SCORE + " DESC");
+        }
+
         // Filter out unvisited bookmarks and the ones that don't have real
         // parents (e.g. pinned sites or reading list items).
         String selection = DBUtils.concatenateWhere(Combined.HISTORY_ID + " <> -1",
@@ -710,6 +810,41 @@ public class LocalBrowserDB implements BrowserDB {
         cr.delete(url, null, null);
     }
 
+    // When the last complete frecency decay started, in this profile's
+    // preferences so that the schedule survives restarts; 0 if there hasn't
+    // been one.
+    private static final String PREF_LAST_FRECENCY_DECAY = "history.frecency.lastDecay";
+    private final Object mFrecencyDecayLock = new Object();
+
+    @Override
+    public void decayFrecencies(Context context) {
+        synchronized (mFrecencyDecayLock) {
+            final SharedPreferences prefs = GeckoSharedPrefs.forProfileName(context, mProfile);
+            final long lastDecay = prefs.getLong(PREF_LAST_FRECENCY_DECAY, 0);
+            final long start = System.currentTimeMillis();
+            // A timestamp from the future means the clock was wound back;
+            // don't let that postpone decay indefinitely.
+            if (lastDecay <= start && start - lastDecay < FRECENCY_DECAY_INTERVAL) {
+                return;
+            }
+
+            final Uri uri = mHistoryDecayUriWithProfile.buildUpon()
+                    .appendQueryParameter(BrowserContract.PARAM_DECAY_SINCE, String.valueOf(lastDecay))
+                    .build();
+
+            // Each update decays a bounded chunk of rows in its own
+            // transaction, so other writers get a look in between chunks.
+            final ContentResolver cr = context.getContentResolver();
+            int decayed = 0;
+            int chunk;
+            while ((chunk = cr.update(uri, new ContentValues(), null, null)) > 0) {
+                decayed += chunk;
+            }
+            debug("Decayed frecencies of " + decayed + " history items.");
+            prefs.edit().putLong(PREF_LAST_FRECENCY_DECAY, start).apply();
+        }
+    }
+
     @Override
     @RobocopTarget
     public void removeHistoryEntry(ContentResolver cr, String url) {
@@ -1191,14 +1326,10 @@ public class LocalBrowserDB implements BrowserDB {
             return;
         }
 
-        Bitmap bitmap = thumbnail.getBitmap();
-
-        byte[] data = null;
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        if (bitmap.compress(Bitmap.CompressFormat.PNG, 0, stream)) {
-            data = stream.toByteArray();
-        } else {
-            Log.w(LOGTAG, "Favicon compression failed.");
+        // The provider moves the encoded thumbnail into its file store.
+        final byte[] data = ThumbnailStore.encode(thumbnail.getBitmap());
+        if (data == null) {
+            Log.w(LOGTAG, "Thumbnail encoding failed.");
         }
 
         ContentValues values = new ContentValues();
@@ -1215,10 +1346,10 @@ public class LocalBrowserDB implements BrowserDB {
 
     @Override
     @RobocopTarget
-    public byte[] getThumbnailForUrl(ContentResolver cr, String uri) {
+    public Bitmap getThumbnailForUrl(ContentResolver cr, String uri) {
         final Cursor c = cr.query(mThumbnailsUriWithProfile,
-                                  new String[]{ Thumbnails.DATA },
-                                  Thumbnails.URL + " = ? AND " + Thumbnails.DATA + " IS NOT NULL",
+                                  new String[]{ Thumbnails.FILE },
+                                  Thumbnails.URL + " = ? AND " + Thumbnails.FILE + " IS NOT NULL",
                                   new String[]{ uri },
                                   null);
         try {
@@ -1226,9 +1357,9 @@ public class LocalBrowserDB implements BrowserDB {
                 return null;
             }
 
-            int thumbnailIndex = c.getColumnIndexOrThrow(Thumbnails.DATA);
+            int fileIndex = c.getColumnIndexOrThrow(Thumbnails.FILE);
 
-            return c.getBlob(thumbnailIndex);
+            return ThumbnailStore.decodeFile(c.getString(fileIndex));
         } finally {
             c.close();
         }
@@ -1236,29 +1367,56 @@ public class LocalBrowserDB implements BrowserDB {
     }
 
     /**
-     * Query for non-null thumbnails matching the provided <code>urls</code>.
-     * The returned cursor will have no more than, but possibly fewer than,
+     * Load the thumbnails stored for the provided <code>urls</code>, keyed by
+     * URL. The returned map will have no more than, but possibly fewer than,
      * the requested number of thumbnails.
      *
-     * Returns null if the provided list of URLs is empty or null.
+     * Only file paths cross the cursor; each thumbnail is decoded straight
+     * from its file in the thumbnail store.
      */
     @Override
-    public Cursor getThumbnailsForUrls(ContentResolver cr, List<String> urls) {
+    public Map<String, Bitmap> getThumbnailsForUrls(ContentResolver cr, List<String> urls) {
+        final Map<String, Bitmap> thumbnails = new HashMap<String, Bitmap>();
         final int urlCount = urls.size();
         if (urlCount == 0) {
-            return null;
+            return thumbnails;
         }
 
         // Don't match against null thumbnails.
-        final String selection = Thumbnails.DATA + " IS NOT NULL AND " +
+        final String selection = Thumbnails.FILE + " IS NOT NULL AND " +
                            DBUtils.computeSQLInClause(urlCount, Thumbnails.URL);
         final String[] selectionArgs = urls.toArray(new String[urlCount]);
 
-        return cr.query(mThumbnailsUriWithProfile,
-                        new String[] { Thumbnails.URL, Thumbnails.DATA },
-                        selection,
-                        selectionArgs,
-                        null);
+        final Cursor c = cr.query(mThumbnailsUriWithProfile,
+                                  new String[] { Thumbnails.URL, Thumbnails.FILE },
+                                  selection,
+                                  selectionArgs,
+                                  null);
+        if (c == null) {
+            return thumbnails;
+        }
+
+        try {
+            final int urlIndex = c.getColumnIndexOrThrow(Thumbnails.URL);
+            final int fileIndex = c.getColumnIndexOrThrow(Thumbnails.FILE);
+
+            while (c.moveToNext()) {
+                final Bitmap bitmap = ThumbnailStore.decodeFile(c.getString(fileIndex));
+
+                // A missing file is possible if the store was cleaned up
+                // underneath us; skip it rather than give up on the rest.
+                if (bitmap == null) {
+                    Log.w(LOGTAG, "Skipping thumbnail; decode failed.");
+                    continue;
+                }
+
+                thumbnails.put(c.getString(urlIndex), bitmap);
+            }
+        } finally {
+            c.close();
+        }
+
+        return thumbnails;
     }
 
     @Override
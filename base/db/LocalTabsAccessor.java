@@ -16,11 +16,14 @@ import org.mozilla.gecko.Tab;
 import org.mozilla.gecko.util.ThreadUtils;
 import org.mozilla.gecko.util.UIAsyncTask;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
@@ -59,6 +62,8 @@ public class LocalTabsAccessor implements TabsAccessor {
             BrowserContract.Tabs.LAST_USED + " DESC";
 
     private static final String LOCAL_CLIENT_SELECTION = BrowserContract.Clients.GUID + " IS NULL";
+    private static final String LOCAL_TAB_AT_POSITION_SELECTION = LOCAL_TABS_SELECTION + " AND " + BrowserContract.Tabs.POSITION + " = ?";
+    private static final String LOCAL_TABS_FROM_POSITION_SELECTION = LOCAL_TABS_SELECTION + " AND " + BrowserContract.Tabs.POSITION + " >= ?";
 
     private static final Pattern FILTERED_URL_PATTERN = Pattern.compile("^(about|chrome|wyciwyg|file):");
 
@@ -66,6 +71,15 @@ public class LocalTabsAccessor implements TabsAccessor {
     private final Uri tabsUriWithProfile;
     private final Uri clientsUriWithProfile;
 
+    // The local tab rows as we last persisted them, indexed by position, or null if we don't
+    // know what the database holds. Guarded by this.
+    private List<ContentValues> persistedLocalTabs;
+
+    // Counters of rows written by persistLocalTabs. Guarded by this.
+    private int persistCount;
+    private int lastPersistRowsWritten;
+    private long totalPersistRowsWritten;
+
     public LocalTabsAccessor(String profileName) {
         tabsUriWithProfile = DBUtils.appendProfileWithDefault(profileName, BrowserContract.Tabs.CONTENT_URI);
         clientsUriWithProfile = DBUtils.appendProfileWithDefault(profileName, BrowserContract.Clients.CONTENT_URI);
@@ -231,21 +245,8 @@ public class LocalTabsAccessor implements TabsAccessor {
         }).execute();
     }
 
-    // Updates the modified time of the local client with the current time.
-    private void updateLocalClient(final ContentResolver cr) {
-        ContentValues values = new ContentValues();
-        values.put(BrowserContract.Clients.LAST_MODIFIED, System.currentTimeMillis());
-
-        cr.update(clientsUriWithProfile, values, LOCAL_CLIENT_SELECTION, null);
-    }
-
-    // Deletes all local tabs.
-    private void deleteLocalTabs(final ContentResolver cr) {
-        cr.delete(tabsUriWithProfile, LOCAL_TABS_SELECTION, null);
-    }
-
     /**
-     * Tabs are positioned in the DB in the same order that they appear in the tabs param.
+     * Builds the rows for the local tabs, in the order that they appear in the tabs param.
      *   - URL should never empty or null. Skip this tab if there's no URL.
      *   - TITLE should always a string, either a page title or empty.
      *   - LAST_USED should always be numeric.
@@ -254,10 +255,10 @@ public class LocalTabsAccessor implements TabsAccessor {
      *   - POSITION should always be numeric.
      *   - CLIENT_GUID should always be null to represent the local client.
      */
-    private void insertLocalTabs(final ContentResolver cr, final Iterable<Tab> tabs) {
+    private List<ContentValues> getLocalTabValues(final Iterable<Tab> tabs) {
         // Reuse this for serializing individual history URLs as JSON.
         JSONArray history = new JSONArray();
-        ArrayList<ContentValues> valuesToInsert = new ArrayList<ContentValues>();
+        ArrayList<ContentValues> localTabs = new ArrayList<ContentValues>();
 
         int position = 0;
         for (Tab tab : tabs) {
@@ -291,19 +292,142 @@ public class LocalTabsAccessor implements TabsAccessor {
             // A null client guid corresponds to the local client.
             values.putNull(BrowserContract.Tabs.CLIENT_GUID);
 
-            valuesToInsert.add(values);
+            localTabs.add(values);
         }
 
-        ContentValues[] valuesToInsertArray = valuesToInsert.toArray(new ContentValues[valuesToInsert.size()]);
-        cr.bulkInsert(tabsUriWithProfile, valuesToInsertArray);
+        return localTabs;
     }
 
-    // Deletes all local tabs and replaces them with a new list of tabs.
+    /**
+     * Adds the operations that turn the persisted local tabs into the given ones. Rows are
+     * matched by position: changed rows are updated in place, and rows are only inserted or
+     * deleted at the end. Without a snapshot of the persisted tabs, every local tab is
+     * deleted and reinserted.
+     *
+     * @return the number of rows that the operations write.
+     */
+    private int addLocalTabsOperations(final ArrayList<ContentProviderOperation> operations,
+                                       final List<ContentValues> persisted,
+                                       final List<ContentValues> localTabs) {
+        if (persisted == null) {
+            operations.add(ContentProviderOperation.newDelete(tabsUriWithProfile)
+                    .withSelection(LOCAL_TABS_SELECTION, null)
+                    .build());
+            for (ContentValues values : localTabs) {
+                operations.add(ContentProviderOperation.newInsert(tabsUriWithProfile)
+                        .withValues(values)
+                        .build());
+            }
+            return localTabs.size();
+        }
+
+        final int persistedCount = persisted.size();
+        final int count = localTabs.size();
+        int rowsWritten = 0;
+
+        for (int i = 0; i < Math.min(persistedCount, count); i++) {
+            final ContentValues values = localTabs.get(i);
+            if (values.equals(persisted.get(i))) {
+                continue;
+            }
+
+            // If the row isn't where we left it, the expected count fails the whole batch.
+            operations.add(ContentProviderOperation.newUpdate(tabsUriWithProfile)
+                    .withValues(values)
+                    .withSelection(LOCAL_TAB_AT_POSITION_SELECTION, new String[] { Integer.toString(i) })
+                    .withExpectedCount(1)
+                    .build());
+            rowsWritten++;
+        }
+
+        for (int i = persistedCount; i < count; i++) {
+            operations.add(ContentProviderOperation.newInsert(tabsUriWithProfile)
+                    .withValues(localTabs.get(i))
+                    .build());
+            rowsWritten++;
+        }
+
+        if (persistedCount > count) {
+            operations.add(ContentProviderOperation.newDelete(tabsUriWithProfile)
+                    .withSelection(LOCAL_TABS_FROM_POSITION_SELECTION, new String[] { Integer.toString(count) })
+                    .withExpectedCount(persistedCount - count)
+                    .build());
+            rowsWritten += persistedCount - count;
+        }
+
+        return rowsWritten;
+    }
+
+    /**
+     * Writes only the local tabs that were added, removed, moved, or changed since the last
+     * persist, and updates the modified time of the local client, in a single transaction.
+     */
     @Override
     public synchronized void persistLocalTabs(final ContentResolver cr, final Iterable<Tab> tabs) {
-        deleteLocalTabs(cr);
-        insertLocalTabs(cr, tabs);
-        updateLocalClient(cr);
+        final List<ContentValues> localTabs = getLocalTabValues(tabs);
+
+        int rowsWritten = persistLocalTabs(cr, persistedLocalTabs, localTabs);
+        if (rowsWritten < 0 && persistedLocalTabs != null) {
+            Log.w(LOGTAG, "Local tabs changed underneath us; rewriting all of them.");
+            rowsWritten = persistLocalTabs(cr, null, localTabs);
+        }
+
+        if (rowsWritten < 0) {
+            persistedLocalTabs = null;
+            rowsWritten = 0;
+        } else {
+            persistedLocalTabs = localTabs;
+        }
+
+        persistCount++;
+        lastPersistRowsWritten = rowsWritten;
+        totalPersistRowsWritten += rowsWritten;
+    }
+
+    /**
+     * @return the number of tab rows written, or -1 if nothing was written because the
+     *         database didn't match the persisted snapshot or the write failed.
+     */
+    private int persistLocalTabs(final ContentResolver cr, final List<ContentValues> persisted, final List<ContentValues> localTabs) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        final int rowsWritten = addLocalTabsOperations(operations, persisted, localTabs);
+        if (operations.isEmpty()) {
+            return 0;
+        }
+
+        // Updates the modified time of the local client with the current time.
+        final ContentValues values = new ContentValues();
+        values.put(BrowserContract.Clients.LAST_MODIFIED, System.currentTimeMillis());
+        operations.add(ContentProviderOperation.newUpdate(clientsUriWithProfile)
+                .withValues(values)
+                .withSelection(LOCAL_CLIENT_SELECTION, null)
+                .build());
+
+        try {
+            cr.applyBatch(BrowserContract.TABS_AUTHORITY, operations);
+        } catch (OperationApplicationException | RemoteException e) {
+            Log.w(LOGTAG, "Failed to persist local tabs.", e);
+            return -1;
+        }
+        return rowsWritten;
+    }
+
+    public synchronized int getPersistCount() {
+        return persistCount;
+    }
+
+    /**
+     * @return the number of tab rows written by the most recent persist.
+     */
+    public synchronized int getLastPersistRowsWritten() {
+        return lastPersistRowsWritten;
+    }
+
+    /**
+     * @return the number of tab rows written by every persist so far.
+     */
+    public synchronized long getTotalPersistRowsWritten() {
+        return totalPersistRowsWritten;
     }
 
     /**
@@ -24,6 +24,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 
 class StubReadingListAccessor implements ReadingListAccessor {
@@ -223,6 +224,9 @@ public class StubBrowserDB implements BrowserDB {
     public void expireHistory(ContentResolver cr, BrowserContract.ExpirePriority priority) {
     }
 
+    public void decayFrecencies(Context context) {
+    }
+
     @RobocopTarget
     public void removeHistoryEntry(ContentResolver cr, String url) {
     }
@@ -305,12 +309,12 @@ public class StubBrowserDB implements BrowserDB {
     }
 
     @RobocopTarget
-    public byte[] getThumbnailForUrl(ContentResolver cr, String uri) {
+    public Bitmap getThumbnailForUrl(ContentResolver cr, String uri) {
         return null;
     }
 
-    public Cursor getThumbnailsForUrls(ContentResolver cr, List<String> urls) {
-        return null;
+    public Map<String, Bitmap> getThumbnailsForUrls(ContentResolver cr, List<String> urls) {
+        return new HashMap<String, Bitmap>();
     }
 
     @RobocopTarget
@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.db;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -12,11 +13,15 @@ import org.mozilla.gecko.AppConstants.Versions;
 import org.mozilla.gecko.db.BrowserContract.Clients;
 import org.mozilla.gecko.db.BrowserContract.Tabs;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -313,6 +318,39 @@ public class TabsProvider extends SharedBrowserDatabaseProvider {
         return cursor;
     }
 
+    /**
+     * Applies the operations in a single transaction. Unlike BrowserProvider's best-effort
+     * batches, this is all or nothing: if any operation fails, including by not matching its
+     * expected count, nothing is written and OperationApplicationException is thrown.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+
+        if (numOperations < 1) {
+            debug("applyBatch: no operations; returning immediately.");
+            return results;
+        }
+
+        // All of our Uris share a database.
+        final SQLiteDatabase db = getWritableDatabase(operations.get(0).getUri());
+        beginBatch(db);
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            markBatchSuccessful(db);
+        } catch (SQLException e) {
+            throw new OperationApplicationException(e);
+        } finally {
+            endBatch(db);
+        }
+
+        return results;
+    }
+
     int updateValues(Uri uri, ContentValues values, String selection, String[] selectionArgs, String table) {
         trace("Updating tabs on URI: " + uri);
 
@@ -0,0 +1,313 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*- */
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import org.mozilla.gecko.db.BrowserContract.Thumbnails;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Content-addressed file storage for page thumbnails.
+ *
+ * The thumbnails table holds only the key of each thumbnail's file, which is
+ * the SHA-1 of its contents; identical thumbnails share a file. Files are
+ * written once and never modified, so readers can map them without locking.
+ * Unreferenced files are removed by {@link #collectGarbage(Set)}.
+ *
+ * Thumbnails are stored as raw RGB565 pixels behind a small header, rather
+ * than as PNG: decoding is then a single copy out of a memory-mapped file.
+ * Files in any other format (such as PNGs migrated from the old table) are
+ * decoded with {@link BitmapFactory}.
+ */
+public class ThumbnailStore {
+    private static final String LOGTAG = "GeckoThumbnailStore";
+
+    private static final String DIRECTORY_NAME = "thumbnails";
+
+    // "THMB", followed by the format, width and height.
+    private static final int MAGIC = 0x54484d42;
+    private static final int FORMAT_RGB_565 = 1;
+    private static final int HEADER_LENGTH = 16;
+
+    // Unreferenced files younger than this are left alone by garbage
+    // collection: they may belong to a write whose row isn't committed yet.
+    private static final long GC_GRACE_PERIOD_MSEC = 60 * 1000;
+
+    private final File mDirectory;
+
+    public ThumbnailStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the store that lives alongside the given database file.
+     */
+    public static ThumbnailStore forDatabasePath(String databasePath) {
+        return new ThumbnailStore(new File(new File(databasePath).getParentFile(), DIRECTORY_NAME));
+    }
+
+    public File getFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    /**
+     * Store <code>data</code>, if it isn't already stored, and return its key.
+     */
+    public String put(byte[] data) throws IOException {
+        final String key = keyFor(data);
+        final File file = getFile(key);
+
+        if (file.exists()) {
+            // Refresh the timestamp so a concurrent collection doesn't remove a
+            // file that's about to be referenced again.
+            file.setLastModified(System.currentTimeMillis());
+            return key;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create thumbnail directory " + mDirectory);
+        }
+
+        // Write to a temporary file first, so that readers never see a partial
+        // file under its final name. We don't sync: a thumbnail can always be
+        // regenerated, and decodeFile rejects a file truncated by a crash.
+        final File temp = File.createTempFile(key, ".tmp", mDirectory);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to move thumbnail into place: " + file);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the stored bytes for <code>key</code>, or null if there are none.
+     */
+    public byte[] get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(getFile(key), "r");
+            final byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            return data;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to read thumbnail " + key, e);
+            return null;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Delete stored files that aren't in <code>liveKeys</code>.
+     *
+     * @return the number of files deleted.
+     */
+    public int collectGarbage(Set<String> liveKeys) {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        final long cutoff = System.currentTimeMillis() - GC_GRACE_PERIOD_MSEC;
+        int deleted = 0;
+        for (File file : files) {
+            if (liveKeys.contains(file.getName()) || file.lastModified() > cutoff) {
+                continue;
+            }
+            if (file.delete()) {
+                deleted++;
+            }
+        }
+
+        Log.d(LOGTAG, "Collected " + deleted + " of " + files.length + " thumbnail files.");
+        return deleted;
+    }
+
+    /**
+     * Encode <code>bitmap</code> in the store's raw format. Bitmaps in other
+     * configurations are converted to RGB565 first.
+     *
+     * @return the encoded bytes, or null if the conversion failed.
+     */
+    public static byte[] encode(Bitmap bitmap) {
+        Bitmap source = bitmap;
+        if (bitmap.getConfig() != Bitmap.Config.RGB_565) {
+            source = bitmap.copy(Bitmap.Config.RGB_565, false);
+            if (source == null) {
+                return null;
+            }
+        }
+
+        try {
+            final int width = source.getWidth();
+            final int height = source.getHeight();
+            final byte[] data = new byte[HEADER_LENGTH + source.getRowBytes() * height];
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_RGB_565);
+            buffer.putInt(width);
+            buffer.putInt(height);
+            source.copyPixelsToBuffer(buffer);
+            return data;
+        } finally {
+            if (source != bitmap) {
+                source.recycle();
+            }
+        }
+    }
+
+    /**
+     * Decode the thumbnail stored at <code>path</code>.
+     *
+     * @return the decoded bitmap, or null if the file is missing, malformed,
+     *         or we ran out of memory.
+     */
+    public static Bitmap decodeFile(String path) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "r");
+            final FileChannel channel = file.getChannel();
+            final long length = channel.size();
+            if (length < HEADER_LENGTH) {
+                return BitmapFactory.decodeFile(path);
+            }
+
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_RGB_565) {
+                return BitmapFactory.decodeFile(path);
+            }
+
+            final int width = buffer.getInt(8);
+            final int height = buffer.getInt(12);
+            if (width <= 0 || height <= 0) {
+                Log.w(LOGTAG, "Thumbnail " + path + " has bad dimensions " + width + "x" + height);
+                return null;
+            }
+
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            if (length - HEADER_LENGTH < (long) bitmap.getRowBytes() * height) {
+                Log.w(LOGTAG, "Thumbnail " + path + " is truncated.");
+                bitmap.recycle();
+                return null;
+            }
+
+            buffer.position(HEADER_LENGTH);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to read thumbnail " + path, e);
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e(LOGTAG, "Decoding thumbnail " + path + " OOM!", e);
+            return null;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * Wrap a cursor over the thumbnails table so that {@link Thumbnails#FILE}
+     * holds the absolute path of each thumbnail's file, and
+     * {@link Thumbnails#DATA} its contents. Both columns are expected to hold
+     * the raw key. File contents are only read when asked for.
+     */
+    public Cursor wrap(Cursor cursor) {
+        return new ThumbnailCursor(cursor);
+    }
+
+    private class ThumbnailCursor extends CursorWrapper {
+        private final int mFileIndex;
+        private final int mDataIndex;
+
+        public ThumbnailCursor(Cursor cursor) {
+            super(cursor);
+            mFileIndex = cursor.getColumnIndex(Thumbnails.FILE);
+            mDataIndex = cursor.getColumnIndex(Thumbnails.DATA);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            final String value = super.getString(columnIndex);
+            if (columnIndex == mFileIndex && value != null) {
+                return getFile(value).getAbsolutePath();
+            }
+            return value;
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            if (columnIndex == mDataIndex) {
+                return get(super.getString(columnIndex));
+            }
+            return super.getBlob(columnIndex);
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            if (columnIndex == mDataIndex && !isNull(columnIndex)) {
+                return FIELD_TYPE_BLOB;
+            }
+            return super.getType(columnIndex);
+        }
+    }
+
+    private static String keyFor(byte[] data) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available.", e);
+        }
+
+        final byte[] hash = digest.digest(data);
+        final StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
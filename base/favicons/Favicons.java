@@ -8,11 +8,13 @@ package org.mozilla.gecko.favicons;
 import android.graphics.drawable.Drawable;
 import org.mozilla.gecko.AboutPages;
 import org.mozilla.gecko.GeckoAppShell;
+import org.mozilla.gecko.GeckoProfile;
 import org.mozilla.gecko.R;
 import org.mozilla.gecko.Tab;
 import org.mozilla.gecko.Tabs;
 import org.mozilla.gecko.db.BrowserDB;
 import org.mozilla.gecko.favicons.cache.FaviconCache;
+import org.mozilla.gecko.favicons.cache.FaviconDiskCache;
 import org.mozilla.gecko.util.GeckoJarReader;
 import org.mozilla.gecko.util.NonEvictingLruCache;
 import org.mozilla.gecko.util.ThreadUtils;
@@ -27,6 +29,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -50,6 +53,9 @@ public class Favicons {
     // Size of the favicon bitmap cache, in bytes (Counting payload only).
     public static final int FAVICON_CACHE_SIZE_BYTES = 512 * 1024;
 
+    // Name of the file, in the profile directory, holding the persistent tier of decoded favicons.
+    private static final String FAVICON_DISK_CACHE_FILE = "favicons.cache";
+
     // Number of URL mappings from page URL to Favicon URL to cache in memory.
     public static final int NUM_PAGE_URL_MAPPINGS_TO_STORE = 128;
 
@@ -145,6 +151,28 @@ public class Favicons {
 
     private static FaviconCache faviconsCache;
 
+    // Opened lazily, since doing so touches the disk. Guarded by Favicons.class.
+    private static FaviconDiskCache faviconsDiskCache;
+
+    /**
+     * Get the persistent tier of decoded favicons, opening it if necessary.
+     * Must not be called from the UI thread.
+     */
+    static synchronized FaviconDiskCache getDiskCache(Context context) {
+        if (faviconsDiskCache == null) {
+            final File profileDir = GeckoProfile.get(context).getDir();
+            faviconsDiskCache = new FaviconDiskCache(new File(profileDir, FAVICON_DISK_CACHE_FILE));
+        }
+        return faviconsDiskCache;
+    }
+
+    /**
+     * Discard all persisted decoded favicons. Must not be called from the UI thread.
+     */
+    public static void clearDiskCache(Context context) {
+        getDiskCache(context).clear();
+    }
+
     /**
      * Returns either NOT_LOADING, or LOADED if the onFaviconLoaded call could
      * be made on the main thread.
@@ -367,6 +395,13 @@ public class Favicons {
         faviconsCache.putSingleFavicon(pageUrl, image);
     }
 
+    /**
+     * Adds an already-scaled favicon, of the given size, to the memory cache.
+     */
+    public static void putScaledFaviconInMemCache(String faviconURL, int targetSize, Bitmap image) {
+        faviconsCache.putSecondaryFavicon(faviconURL, targetSize, image);
+    }
+
     /**
      * Adds the bitmaps given by the specified iterator to the cache associated with the url given.
      * Future requests for images will be able to select the least larger image than the target
@@ -424,6 +459,22 @@ public class Favicons {
         }
 
         LoadFaviconTask.closeHTTPClient();
+
+        // Forget the disk cache so that it's reopened if we're used again, and flush it off the
+        // UI thread: close() is called from onDestroy.
+        final FaviconDiskCache diskCache;
+        synchronized (Favicons.class) {
+            diskCache = faviconsDiskCache;
+            faviconsDiskCache = null;
+        }
+        if (diskCache != null) {
+            ThreadUtils.postToBackgroundThread(new Runnable() {
+                @Override
+                public void run() {
+                    diskCache.close();
+                }
+            });
+        }
     }
 
     /**
@@ -110,6 +110,9 @@ public class LoadFaviconTask {
 
         ContentResolver resolver = context.getContentResolver();
         db.updateFaviconForUrl(resolver, pageUrl, encodedFavicon, faviconURL);
+
+        // The persisted decoded copies of the old favicon at this URL are now stale.
+        Favicons.getDiskCache(context).remove(faviconURL);
     }
 
     /**
@@ -417,6 +420,17 @@ public class LoadFaviconTask {
             return null;
         }
 
+        // Before going to the database, try the decoded favicons we've kept on disk. This skips
+        // both reading the encoded favicon and decoding it.
+        if (targetWidth != -1) {
+            image = Favicons.getDiskCache(context).get(faviconURL, targetWidth);
+            if (image != null) {
+                // Promote it, so that the next request for this size doesn't touch the disk.
+                Favicons.putScaledFaviconInMemCache(faviconURL, targetWidth, image);
+                return image;
+            }
+        }
+
         // If there are no valid bitmaps decoded, the returned LoadFaviconResult is null.
         LoadFaviconResult loadedBitmaps = loadFaviconFromDb(db);
         if (loadedBitmaps != null) {
@@ -502,6 +516,13 @@ public class LoadFaviconTask {
     private Bitmap pushToCacheAndGetResult(LoadFaviconResult loadedBitmaps) {
         Favicons.putFaviconsInMemCache(faviconURL, loadedBitmaps.getBitmaps());
         Bitmap result = Favicons.getSizedFaviconFromCache(faviconURL, targetWidth);
+
+        // Keep the result on disk, so we needn't decode this favicon again. Data URIs are
+        // cheap enough to decode that it's not worth it.
+        if (result != null && targetWidth != -1 && !faviconURL.startsWith("data:")) {
+            Favicons.getDiskCache(context).put(faviconURL, targetWidth, result);
+        }
+
         return result;
     }
 
@@ -550,6 +571,11 @@ public class LoadFaviconTask {
         // Notify listeners, scaling if required.
         if (targetWidth != -1 && image != null &&  image.getWidth() != targetWidth) {
             scaled = Favicons.getSizedFaviconFromCache(faviconURL, targetWidth);
+
+            // The image might not have come from the memory cache. Do the best we can.
+            if (scaled == null) {
+                scaled = image;
+            }
         }
 
         Favicons.dispatchResult(pageUrl, faviconURL, scaled, listener);
@@ -8,11 +8,10 @@ import android.graphics.Bitmap;
 import android.util.Log;
 import org.mozilla.gecko.favicons.Favicons;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implements a Least-Recently-Used cache for Favicons, keyed by Favicon URL.
@@ -59,12 +58,17 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * as well as the bitmap, a pointer to the encapsulating FaviconsForURL object (Used by the LRU
  * culler), the size of the encapsulated image, a flag indicating if this is a primary favicon, and
  * a flag indicating if the entry is invalid.
- * All FaviconCacheElement objects are tracked in the ordering LinkedList. This is used to record
- * LRU information about FaviconCacheElements. In particular, the most recently used FaviconCacheElement
- * will be at the start of the list, the least recently used at the end of the list.
+ * All evictable FaviconCacheElement objects are linked into an intrusive doubly-linked list through
+ * fields on the elements themselves, so that insertion and removal are O(1). This list records
+ * approximate LRU information about FaviconCacheElements: the most recently inserted element is at
+ * the head of the list, the least recently inserted at the tail. Rather than move an element to the
+ * head of the list on every hit, which would require taking a lock on the hot path, a hit merely
+ * sets the element's recentlyUsed flag. When the culler finds a flagged element at the tail, it
+ * clears the flag and moves the element to the head instead of evicting it (A "second chance", or
+ * CLOCK, policy).
  *
- * When the cache runs out of space, it removes FaviconCacheElements starting from the end of the list
- * until a sufficient amount of space has been freed.
+ * When the cache runs out of space, it removes FaviconCacheElements starting from the tail of the
+ * list until a sufficient amount of space has been freed.
  * When a secondary favicon is removed in this way, it is simply deleted from its parent FaviconsForURLs
  * object's list of available favicons.
  * The backpointer field on the FaviconCacheElement is used to remove the element from the encapsulating
@@ -83,9 +87,10 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  *
  * The implementation is safe to use from multiple threads and, while is it not entirely strongly
  * consistent all of the time, you almost certainly don't care.
- * The thread-safety implementation used is approximately MRSW with semaphores. An extra semaphore
- * is used to grant mutual exclusion over reordering operations from reader threads (Who thus gain
- * a quasi-writer status to do such limited mutation as is necessary).
+ * Lookups in the backing maps take no locks. Each FaviconsForURL object is its own lock, guarding
+ * its list of favicons and the elements in it, so requests for different favicon URLs never contend
+ * with each other. A separate lock guards the LRU list, and is only taken to insert, remove, or cull
+ * elements - never on a cache hit. The LRU lock is never held while acquiring a FaviconsForURL lock.
  *
  * Reads which race with writes are liable to not see the ongoing write. The cache may return a
  * stale or now-removed value to the caller. Returned values are never invalid, even in the face
@@ -107,16 +112,17 @@ public class FaviconCache {
     // Since favicons may be container formats holding multiple icons, the underlying type holds a
     // sorted list of bitmap payloads in ascending order of size. The underlying type may be queried
     // for the least larger payload currently present.
-    private final HashMap<String, FaviconsForURL> backingMap = new HashMap<String, FaviconsForURL>();
+    private final ConcurrentHashMap<String, FaviconsForURL> backingMap = new ConcurrentHashMap<String, FaviconsForURL>();
 
     // And the same, but never evicted.
-    private final HashMap<String, FaviconsForURL> permanentBackingMap = new HashMap<String, FaviconsForURL>();
+    private final ConcurrentHashMap<String, FaviconsForURL> permanentBackingMap = new ConcurrentHashMap<String, FaviconsForURL>();
 
-    // A linked list used to implement a queue, defining the LRU properties of the cache. Elements
-    // contained within the various FaviconsForURL objects are held here, the least recently used
-    // of which at the end of the list. When space needs to be reclaimed, the appropriate bitmap is
-    // culled.
-    private final LinkedList<FaviconCacheElement> ordering = new LinkedList<FaviconCacheElement>();
+    // The ends of the intrusive linked list defining the LRU properties of the cache. Elements
+    // contained within the various FaviconsForURL objects are linked here, the least recently used
+    // of which at the tail of the list. When space needs to be reclaimed, the appropriate bitmap is
+    // culled. Guarded by orderingLock.
+    private FaviconCacheElement orderingHead;
+    private FaviconCacheElement orderingTail;
 
     // The above structures, if used correctly, enable this cache to exhibit LRU semantics across all
     // favicon payloads in the system, as well as enabling the dynamic selection from the cache of
@@ -129,41 +135,9 @@ public class FaviconCache {
     // The maximum quantity, in bytes, of bitmap data which may be stored in the cache.
     private final int maxSizeBytes;
 
-    // This object is used to guard modification to the ordering map. This allows for read transactions
-    // to update the most-recently-used value without needing to take out the write lock.
-    private final Object reorderingLock = new Object();
-
-    // This Reader/Writer lock is to ensure synchronization of reads/writes on both permanent
-    // and non-permanent backing maps. It's created unfair for greater performance.
-    private final ReentrantReadWriteLock backingMapsLock = new ReentrantReadWriteLock(false);
-
-    /**
-     * Called by transactions performing only reads as they start.
-     */
-    private void startRead() {
-        backingMapsLock.readLock().lock();
-    }
-
-    /**
-     * Called by transactions performing only reads as they finish.
-     */
-    private void finishRead() {
-        backingMapsLock.readLock().unlock();
-    }
-
-    /**
-     * Called by writer transactions upon start.
-     */
-    private void startWrite() {
-        backingMapsLock.writeLock().lock();
-    }
-
-    /**
-     * Called by a concluding write transaction - unlocks the structure.
-     */
-    private void finishWrite() {
-        backingMapsLock.writeLock().unlock();
-    }
+    // This object is used to guard modification to the ordering list. It is never held while
+    // acquiring the lock on a FaviconsForURL object.
+    private final Object orderingLock = new Object();
 
     public FaviconCache(int maxSize, int maxWidthToCache) {
         maxSizeBytes = maxSize;
@@ -182,48 +156,35 @@ public class FaviconCache {
             return true;
         }
 
-        startRead();
-
-        try {
-            // If we don't have it in the cache, it certainly isn't a known failure.
-            // Non-evictable favicons are never failed, so we don't need to
-            // check permanentBackingMap.
-            if (!backingMap.containsKey(faviconURL)) {
-                return false;
-            }
-
-            FaviconsForURL container = backingMap.get(faviconURL);
+        // If we don't have it in the cache, it certainly isn't a known failure.
+        // Non-evictable favicons are never failed, so we don't need to
+        // check permanentBackingMap.
+        final FaviconsForURL container = backingMap.get(faviconURL);
+        if (container == null) {
+            return false;
+        }
 
-            // If the has failed flag is not set, it's certainly not a known failure.
-            if (!container.hasFailed) {
-                return false;
-            }
+        // If the has failed flag is not set, it's certainly not a known failure.
+        if (!container.hasFailed) {
+            return false;
+        }
 
-            final long failureTimestamp = container.downloadTimestamp;
+        final long failureTimestamp = container.downloadTimestamp;
 
-            // Calculate elapsed time since the failing download.
-            final long failureDiff = System.currentTimeMillis() - failureTimestamp;
+        // Calculate elapsed time since the failing download.
+        final long failureDiff = System.currentTimeMillis() - failureTimestamp;
 
-            // If the expiry is still in effect, return. Otherwise, continue and unmark the failure.
-            if (failureDiff < FAILURE_RETRY_MILLISECONDS) {
-                return true;
-            }
-        } catch (Exception unhandled) {
-            Log.e(LOGTAG, "FaviconCache exception!", unhandled);
+        // If the expiry is still in effect, return. Otherwise, continue and unmark the failure.
+        if (failureDiff < FAILURE_RETRY_MILLISECONDS) {
             return true;
-        }  finally {
-            finishRead();
         }
 
-        startWrite();
-
-        // If the entry is no longer failed, remove the record of it from the cache.
-        try {
-            recordRemoved(backingMap.remove(faviconURL));
-            return false;
-        } finally {
-            finishWrite();
+        // If the entry is no longer failed, remove the record of it from the cache - unless
+        // somebody else has replaced it in the meantime.
+        if (backingMap.remove(faviconURL, container)) {
+            recordRemoved(container);
         }
+        return false;
     }
 
     /**
@@ -232,14 +193,8 @@ public class FaviconCache {
      * @param faviconURL Page URL for which a Favicon load has failed.
      */
     public void putFailed(String faviconURL) {
-        startWrite();
-
-        try {
-            FaviconsForURL container = new FaviconsForURL(0, true);
-            recordRemoved(backingMap.put(faviconURL, container));
-        } finally {
-            finishWrite();
-        }
+        FaviconsForURL container = new FaviconsForURL(0, true);
+        recordRemoved(backingMap.put(faviconURL, container));
     }
 
     /**
@@ -264,67 +219,73 @@ public class FaviconCache {
         FaviconsForURL container;
         final Bitmap newBitmap;
 
-        startRead();
-
-        try {
-            container = permanentBackingMap.get(faviconURL);
+        container = permanentBackingMap.get(faviconURL);
+        if (container == null) {
+            container = backingMap.get(faviconURL);
             if (container == null) {
-                container = backingMap.get(faviconURL);
-                if (container == null) {
-                    // We don't have it!
-                    return null;
-                }
-            } else {
-                wasPermanent = true;
+                // We don't have it!
+                return null;
             }
+        } else {
+            wasPermanent = true;
+        }
 
-            FaviconCacheElement cacheElement;
+        final Bitmap largestElementBitmap;
+        int largestSize;
+
+        try {
+            synchronized (container) {
+                FaviconCacheElement cacheElement;
+
+                // If targetSize is -1, it means we want the largest possible icon.
+                int cacheElementIndex = (targetSize == -1) ? -1 : container.getNextHighestIndex(targetSize);
+
+                // cacheElementIndex now holds either the index of the next least largest bitmap from
+                // targetSize, or -1 if targetSize > all bitmaps.
+                if (cacheElementIndex != -1) {
+                    // If cacheElementIndex is not the sentinel value, then it is a valid index into favicons.
+                    cacheElement = container.favicons.get(cacheElementIndex);
+
+                    if (cacheElement.invalidated) {
+                        return null;
+                    }
+
+                    // If we found exactly what we wanted - we're done.
+                    if (cacheElement.imageSize == targetSize) {
+                        cacheElement.recentlyUsed = true;
+                        return cacheElement.faviconPayload;
+                    }
+                } else {
+                    // We requested an image larger than all primaries. Set the element to start the search
+                    // from to the element beyond the end of the array, so the search runs backwards.
+                    cacheElementIndex = container.favicons.size();
+                }
 
-            // If targetSize is -1, it means we want the largest possible icon.
-            int cacheElementIndex = (targetSize == -1) ? -1 : container.getNextHighestIndex(targetSize);
+                // We did not find exactly what we wanted, but now have set cacheElementIndex to the index
+                // where what we want should live in the list. We now request the next least larger primary
+                // from the cache. We will downscale this to our target size.
 
-            // cacheElementIndex now holds either the index of the next least largest bitmap from
-            // targetSize, or -1 if targetSize > all bitmaps.
-            if (cacheElementIndex != -1) {
-                // If cacheElementIndex is not the sentinel value, then it is a valid index into favicons.
-                cacheElement = container.favicons.get(cacheElementIndex);
+                // If there is no such primary, we'll upscale the next least smaller one instead.
+                cacheElement = container.getNextPrimary(cacheElementIndex);
 
-                if (cacheElement.invalidated) {
+                if (cacheElement == null) {
+                    // The primary has been invalidated! Fail! Need to get it back from the database.
                     return null;
                 }
 
-                // If we found exactly what we wanted - we're done.
-                if (cacheElement.imageSize == targetSize) {
-                    setMostRecentlyUsedWithinRead(cacheElement);
+                cacheElement.recentlyUsed = true;
+
+                if (targetSize == -1) {
+                    // We got the biggest primary, so that's what we'll return.
                     return cacheElement.faviconPayload;
                 }
-            } else {
-                // We requested an image larger than all primaries. Set the element to start the search
-                // from to the element beyond the end of the array, so the search runs backwards.
-                cacheElementIndex = container.favicons.size();
-            }
-
-            // We did not find exactly what we wanted, but now have set cacheElementIndex to the index
-            // where what we want should live in the list. We now request the next least larger primary
-            // from the cache. We will downscale this to our target size.
-
-            // If there is no such primary, we'll upscale the next least smaller one instead.
-            cacheElement = container.getNextPrimary(cacheElementIndex);
-
-            if (cacheElement == null) {
-                // The primary has been invalidated! Fail! Need to get it back from the database.
-                return null;
-            }
 
-            if (targetSize == -1) {
-                // We got the biggest primary, so that's what we'll return.
-                return cacheElement.faviconPayload;
+                largestElementBitmap = cacheElement.faviconPayload;
+                largestSize = cacheElement.imageSize;
             }
 
-            // Scaling logic...
-            Bitmap largestElementBitmap = cacheElement.faviconPayload;
-            int largestSize = cacheElement.imageSize;
-
+            // Scaling logic. We hold a reference to the payload, so it's safe to scale outside the
+            // lock even if the primary is concurrently culled.
             if (largestSize >= targetSize) {
                 // The largest we have is larger than the target - downsize to target.
                 newBitmap = Bitmap.createScaledBitmap(largestElementBitmap, targetSize, targetSize, true);
@@ -344,17 +305,12 @@ public class FaviconCache {
                 }
             }
         } catch (Exception unhandled) {
-            // Handle any exception thrown and return the locks to a sensible state.
-
-            // Flag to prevent finally from doubly-unlocking.
             Log.e(LOGTAG, "FaviconCache exception!", unhandled);
             return null;
-        } finally {
-            finishRead();
         }
 
-        startWrite();
-        try {
+        final FaviconCacheElement newElement;
+        synchronized (container) {
             if (shouldComputeColour) {
                 // And since we failed, we'll need the dominant colour.
                 container.ensureDominantColor();
@@ -364,15 +320,12 @@ public class FaviconCache {
             // because this is the best image you can get for a request of that size using the Favicon
             // information provided by this website.
             // This way, subsequent requests hit straight away.
-            FaviconCacheElement newElement = container.addSecondary(newBitmap, targetSize);
+            newElement = container.addSecondary(newBitmap, targetSize);
+        }
 
-            if (!wasPermanent) {
-                if (setMostRecentlyUsedWithinWrite(newElement)) {
-                    currentSize.addAndGet(newElement.sizeOf());
-                }
-            }
-        } finally {
-            finishWrite();
+        if (!wasPermanent) {
+            addToOrdering(newElement);
+            cullIfRequired();
         }
 
         return newBitmap;
@@ -385,46 +338,43 @@ public class FaviconCache {
      * @return The cached dominant colour, or null if none is cached.
      */
     public int getDominantColor(String key) {
-        startRead();
-
-        try {
-            FaviconsForURL element = permanentBackingMap.get(key);
-            if (element == null) {
-                element = backingMap.get(key);
-            }
+        FaviconsForURL element = permanentBackingMap.get(key);
+        if (element == null) {
+            element = backingMap.get(key);
+        }
 
-            if (element == null) {
-                Log.w(LOGTAG, "Cannot compute dominant color of non-cached favicon. Cache fullness " +
-                              currentSize.get() + '/' + maxSizeBytes);
-                return 0xFFFFFF;
-            }
+        if (element == null) {
+            Log.w(LOGTAG, "Cannot compute dominant color of non-cached favicon. Cache fullness " +
+                          currentSize.get() + '/' + maxSizeBytes);
+            return 0xFFFFFF;
+        }
 
+        synchronized (element) {
             return element.ensureDominantColor();
-        } finally {
-            finishRead();
         }
     }
 
     /**
      * Remove all payloads stored in the given container from the LRU cache.
-     * Must be called while holding the write lock.
      *
      * @param wasRemoved The container to purge from the cache.
      */
     private void recordRemoved(FaviconsForURL wasRemoved) {
-        // If there was an existing value, strip it from the insertion-order cache.
+        // If there was an existing value, strip it from the LRU list.
         if (wasRemoved == null) {
             return;
         }
 
-        int sizeRemoved = 0;
-
-        for (FaviconCacheElement e : wasRemoved.favicons) {
-            sizeRemoved += e.sizeOf();
-            ordering.remove(e);
+        final ArrayList<FaviconCacheElement> elements;
+        synchronized (wasRemoved) {
+            elements = new ArrayList<FaviconCacheElement>(wasRemoved.favicons);
         }
 
-        currentSize.addAndGet(-sizeRemoved);
+        synchronized (orderingLock) {
+            for (FaviconCacheElement e : elements) {
+                unlinkFromOrdering(e);
+            }
+        }
     }
 
     private Bitmap produceCacheableBitmap(Bitmap favicon) {
@@ -444,31 +394,65 @@ public class FaviconCache {
     }
 
     /**
-     * Set an existing element as the most recently used element. Intended for use from read transactions. While
-     * write transactions may safely use this method, it will perform slightly worse than its unsafe counterpart below.
+     * Insert an element at the head of the LRU list, and account for its size. Does nothing if
+     * the element is already in the list.
      *
      * @param element The element that is to become the most recently used one.
-     * @return true if this element already existed in the list, false otherwise. (Useful for preventing multiple-insertion.)
      */
-    private boolean setMostRecentlyUsedWithinRead(FaviconCacheElement element) {
-        synchronized(reorderingLock) {
-            boolean contained = ordering.remove(element);
-            ordering.offer(element);
-            return contained;
+    private void addToOrdering(FaviconCacheElement element) {
+        synchronized (orderingLock) {
+            if (element.inOrdering) {
+                return;
+            }
+            linkAtHead(element);
+            currentSize.addAndGet(element.sizeOf());
+        }
+    }
+
+    /**
+     * Insert an element at the head of the LRU list. Must be called while holding orderingLock.
+     */
+    private void linkAtHead(FaviconCacheElement element) {
+        element.orderingPrev = null;
+        element.orderingNext = orderingHead;
+        if (orderingHead != null) {
+            orderingHead.orderingPrev = element;
+        } else {
+            orderingTail = element;
         }
+        orderingHead = element;
+        element.inOrdering = true;
     }
 
     /**
-     * Functionally equivalent to setMostRecentlyUsedWithinRead, but operates without taking the reordering semaphore.
-     * Only safe for use when called from a write transaction, or there is a risk of concurrent modification.
-     *
-     * @param element The element that is to become the most recently used one.
-     * @return true if this element already existed in the list, false otherwise. (Useful for preventing multiple-insertion.)
+     * Remove an element from the LRU list. Must be called while holding orderingLock.
+     */
+    private void unlink(FaviconCacheElement element) {
+        if (element.orderingPrev != null) {
+            element.orderingPrev.orderingNext = element.orderingNext;
+        } else {
+            orderingHead = element.orderingNext;
+        }
+        if (element.orderingNext != null) {
+            element.orderingNext.orderingPrev = element.orderingPrev;
+        } else {
+            orderingTail = element.orderingPrev;
+        }
+        element.orderingPrev = null;
+        element.orderingNext = null;
+        element.inOrdering = false;
+    }
+
+    /**
+     * Remove an element from the LRU list, if present, and stop accounting for its size.
+     * Must be called while holding orderingLock.
      */
-    private boolean setMostRecentlyUsedWithinWrite(FaviconCacheElement element) {
-        boolean contained = ordering.remove(element);
-        ordering.offer(element);
-        return contained;
+    private void unlinkFromOrdering(FaviconCacheElement element) {
+        if (!element.inOrdering) {
+            return;
+        }
+        unlink(element);
+        currentSize.addAndGet(-element.sizeOf());
     }
 
     /**
@@ -493,22 +477,44 @@ public class FaviconCache {
         // Create the cache element for the single element we are inserting, and configure it.
         FaviconCacheElement newElement = toInsert.addPrimary(favicon);
 
-        startWrite();
-        try {
-            // Set the new element as the most recently used one.
-            setMostRecentlyUsedWithinWrite(newElement);
+        // Update the value in the LruCache...
+        FaviconsForURL wasRemoved = backingMap.put(faviconURL, toInsert);
 
-            currentSize.addAndGet(newElement.sizeOf());
+        // Set the new element as the most recently used one.
+        addToOrdering(newElement);
+
+        recordRemoved(wasRemoved);
+
+        cullIfRequired();
+    }
+
+    /**
+     * Add an already-scaled favicon of the given size, such as one read back from the disk cache,
+     * as a secondary for this URL. If we hold no favicons for this URL, the new entry is the only
+     * one, and requests for other sizes will miss until the primaries are loaded.
+     *
+     * @param faviconURL The URL of the Favicon being stored.
+     * @param targetSize The size the favicon was scaled for.
+     * @param aFavicon The scaled Favicon to store.
+     */
+    public void putSecondaryFavicon(String faviconURL, int targetSize, Bitmap aFavicon) {
+        if (aFavicon == null || aFavicon == Favicons.defaultFavicon ||
+            permanentBackingMap.get(faviconURL) != null) {
+            return;
+        }
 
-            // Update the value in the LruCache...
-            FaviconsForURL wasRemoved;
-            wasRemoved = backingMap.put(faviconURL, toInsert);
+        FaviconsForURL container = backingMap.get(faviconURL);
+        if (container == null) {
+            container = new FaviconsForURL(NUM_FAVICON_SIZES);
+            recordRemoved(backingMap.put(faviconURL, container));
+        }
 
-            recordRemoved(wasRemoved);
-        } finally {
-            finishWrite();
+        final FaviconCacheElement newElement;
+        synchronized (container) {
+            newElement = container.addSecondary(aFavicon, targetSize);
         }
 
+        addToOrdering(newElement);
         cullIfRequired();
     }
 
@@ -522,7 +528,6 @@ public class FaviconCache {
     public void putFavicons(String faviconURL, Iterator<Bitmap> favicons, boolean permanently) {
         // We don't know how many icons we'll have - let's just take a guess.
         FaviconsForURL toInsert = new FaviconsForURL(5 * NUM_FAVICON_SIZES);
-        int sizeGained = 0;
 
         while (favicons.hasNext()) {
             Bitmap favicon = produceCacheableBitmap(favicons.next());
@@ -530,31 +535,31 @@ public class FaviconCache {
                 continue;
             }
 
-            FaviconCacheElement newElement = toInsert.addPrimary(favicon);
-            sizeGained += newElement.sizeOf();
+            toInsert.addPrimary(favicon);
         }
 
-        startWrite();
-        try {
-            if (permanently) {
-                permanentBackingMap.put(faviconURL, toInsert);
-                return;
-            }
+        if (permanently) {
+            permanentBackingMap.put(faviconURL, toInsert);
+            return;
+        }
 
+        // Update the value in the LruCache...
+        FaviconsForURL wasRemoved = backingMap.put(faviconURL, toInsert);
+
+        synchronized (orderingLock) {
             for (FaviconCacheElement newElement : toInsert.favicons) {
-                setMostRecentlyUsedWithinWrite(newElement);
+                if (!newElement.inOrdering) {
+                    linkAtHead(newElement);
+                    currentSize.addAndGet(newElement.sizeOf());
+                }
             }
-
-            // In the event this insertion is being made to a key that already held a value, the subsequent recordRemoved
-            // call will subtract the size of the old value, preventing double-counting.
-            currentSize.addAndGet(sizeGained);
-
-            // Update the value in the LruCache...
-            recordRemoved(backingMap.put(faviconURL, toInsert));
-        } finally {
-            finishWrite();
         }
 
+        // In the event this insertion is being made to a key that already held a value, the
+        // subsequent recordRemoved call will subtract the size of the old value, preventing
+        // double-counting.
+        recordRemoved(wasRemoved);
+
         cullIfRequired();
     }
 
@@ -569,38 +574,58 @@ public class FaviconCache {
             return;
         }
 
-        startWrite();
-        try {
-            while (currentSize.get() > maxSizeBytes) {
-                // Cull the least recently used element.
+        // Choose the victims while holding the ordering lock, then evict them from their
+        // containers afterwards, so we never wait for a container while holding the ordering lock.
+        final ArrayList<FaviconCacheElement> victims = new ArrayList<FaviconCacheElement>();
+        synchronized (orderingLock) {
+            while (currentSize.get() > maxSizeBytes && orderingTail != null) {
+                FaviconCacheElement victim = orderingTail;
+                if (victim.recentlyUsed) {
+                    // Used since it last reached the tail. Give it another chance.
+                    victim.recentlyUsed = false;
+                    unlink(victim);
+                    linkAtHead(victim);
+                    continue;
+                }
 
-                FaviconCacheElement victim;
-                victim = ordering.poll();
+                // Cull the least recently used element.
+                unlinkFromOrdering(victim);
+                victims.add(victim);
+            }
+        }
 
-                currentSize.addAndGet(-victim.sizeOf());
+        for (FaviconCacheElement victim : victims) {
+            if (victim.backpointer == null) {
+                victim.onEvictedFromCache();
+                continue;
+            }
+            synchronized (victim.backpointer) {
                 victim.onEvictedFromCache();
-
-                Log.d(LOGTAG, "After cull: " + currentSize.get() + '/' + maxSizeBytes);
             }
-        } finally {
-            finishWrite();
         }
+
+        Log.d(LOGTAG, "After cull: " + currentSize.get() + '/' + maxSizeBytes);
     }
 
     /**
      * Purge all elements from the FaviconCache. Handy if you want to reclaim some memory.
      */
     public void evictAll() {
-        startWrite();
-
         // Note that we neither clear, nor track the size of, the permanent map.
-        try {
-            currentSize.set(0);
+        synchronized (orderingLock) {
             backingMap.clear();
-            ordering.clear();
 
-        } finally {
-            finishWrite();
+            FaviconCacheElement element = orderingHead;
+            while (element != null) {
+                final FaviconCacheElement next = element.orderingNext;
+                element.orderingPrev = null;
+                element.orderingNext = null;
+                element.inOrdering = false;
+                element = next;
+            }
+            orderingHead = null;
+            orderingTail = null;
+            currentSize.set(0);
         }
     }
 }
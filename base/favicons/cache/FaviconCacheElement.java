@@ -31,6 +31,14 @@ public class FaviconCacheElement implements Comparable<FaviconCacheElement> {
     // Used for LRU pruning.
     final FaviconsForURL backpointer;
 
+    // Set on every cache hit, and cleared by the culler when it gives this element a second chance.
+    volatile boolean recentlyUsed;
+
+    // Links in the cache's LRU list. Guarded by the cache's ordering lock.
+    FaviconCacheElement orderingPrev;
+    FaviconCacheElement orderingNext;
+    boolean inOrdering;
+
     public FaviconCacheElement(Bitmap payload, boolean primary, int size, FaviconsForURL backpointer) {
         this.faviconPayload = payload;
         this.isPrimary = primary;
@@ -93,7 +101,7 @@ public class FaviconCacheElement implements Comparable<FaviconCacheElement> {
     }
 
     /**
-     * Called when this element is evicted from the cache.
+     * Called when this element is evicted from the cache, while holding the lock on the parent node.
      *
      * If primary, drop the payload and set invalid. If secondary, just unlink from parent node.
      */
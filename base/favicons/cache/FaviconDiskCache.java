@@ -0,0 +1,452 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.favicons.cache;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A second, persistent tier for decoded favicons, keyed by favicon URL and target size.
+ *
+ * When FaviconCache culls a primary favicon, getting it back normally means reading the encoded
+ * image out of the favicons table and decoding it again (For ICOs, parsing the whole container).
+ * This cache instead keeps the already-scaled pixels of recently requested favicons in a
+ * memory-mapped file in the profile directory, so that they survive both culling and restarts.
+ *
+ * The file is divided into buckets of fixed-size slots, one bucket per maximum icon dimension.
+ * Each slot holds a small header followed by the raw ARGB_8888 pixels of a single bitmap. An icon
+ * is stored in the bucket with the smallest slots it fits into; within a bucket, the least
+ * recently used slot is overwritten when no free slot remains. Since the number and size of slots
+ * is fixed, so is the size of the file.
+ *
+ * Slots are keyed by a 64-bit hash of the favicon URL and target size. An in-memory index from
+ * key to slot is rebuilt from the slot headers when the file is opened. A slot's key is cleared
+ * before its pixels are rewritten, so a slot interrupted mid-write is simply treated as empty.
+ * Each slot also records a hash of the favicon URL alone, so that when a favicon is replaced in
+ * the database its entries for every size can be found and dropped.
+ *
+ * All methods are synchronized; they are expected to be called from the favicon loading thread.
+ * If the file can't be opened, the cache stays empty and every lookup misses.
+ */
+public class FaviconDiskCache {
+    private static final String LOGTAG = "FaviconDiskCache";
+
+    private static final int MAGIC = 0x46415643;      // "FAVC".
+    private static final int VERSION = 2;
+
+    // Bytes per pixel of an ARGB_8888 bitmap.
+    private static final int BYTES_PER_PIXEL = 4;
+
+    // Key, URL hash, target size, width, height, last used stamp.
+    private static final int SLOT_HEADER_SIZE = 8 + 8 + 4 + 4 + 4 + 4;
+
+    // The default buckets: 128 icons of up to 32x32, 64 of up to 64x64, and 16 of up to 128x128.
+    // This comes to about 2.5MB on disk.
+    private static final int[] DEFAULT_DIMENSIONS = { 32, 64, 128 };
+    private static final int[] DEFAULT_SLOT_COUNTS = { 128, 64, 16 };
+
+    private final File file;
+    private final int[] dimensions;
+    private final int[] slotCounts;
+
+    // Offset in the file of the first slot of each bucket, and the size of slots in each bucket.
+    private final int[] bucketOffsets;
+    private final int[] slotSizes;
+    private final int totalSlots;
+    private final int fileSize;
+
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+
+    // Set if we failed to open the file, so that we don't keep trying.
+    private boolean openFailed;
+
+    // Maps keys to global slot indices. Global slot indices count through the buckets in order.
+    private final HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+
+    // The last used stamp of each global slot, or 0 for free slots.
+    private final int[] stamps;
+    private int nextStamp = 1;
+
+    public FaviconDiskCache(File file) {
+        this(file, DEFAULT_DIMENSIONS, DEFAULT_SLOT_COUNTS);
+    }
+
+    public FaviconDiskCache(File file, int[] dimensions, int[] slotCounts) {
+        if (dimensions.length != slotCounts.length) {
+            throw new IllegalArgumentException("Must provide a slot count for each bucket.");
+        }
+
+        this.file = file;
+        this.dimensions = dimensions.clone();
+        this.slotCounts = slotCounts.clone();
+
+        bucketOffsets = new int[dimensions.length];
+        slotSizes = new int[dimensions.length];
+
+        int offset = getHeaderSize();
+        int slots = 0;
+        for (int i = 0; i < dimensions.length; i++) {
+            if (i > 0 && dimensions[i] <= dimensions[i - 1]) {
+                throw new IllegalArgumentException("Bucket dimensions must be ascending.");
+            }
+            bucketOffsets[i] = offset;
+            slotSizes[i] = SLOT_HEADER_SIZE + dimensions[i] * dimensions[i] * BYTES_PER_PIXEL;
+            offset += slotSizes[i] * slotCounts[i];
+            slots += slotCounts[i];
+        }
+
+        totalSlots = slots;
+        fileSize = offset;
+        stamps = new int[totalSlots];
+    }
+
+    private int getHeaderSize() {
+        // Magic, version, bucket count, and a dimension and slot count per bucket.
+        return 4 + 4 + 4 + dimensions.length * (4 + 4);
+    }
+
+    /**
+     * Map the backing file, creating or resetting it if it doesn't match our layout.
+     *
+     * @return true if the cache is usable.
+     */
+    private boolean ensureOpen() {
+        if (buffer != null) {
+            return true;
+        }
+
+        if (openFailed) {
+            return false;
+        }
+
+        boolean opened = false;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            final boolean existed = randomAccessFile.length() == fileSize;
+            randomAccessFile.setLength(fileSize);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (existed && isHeaderValid()) {
+                loadIndex();
+            } else {
+                reset();
+            }
+            opened = true;
+            return true;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to open favicon disk cache " + file + ".", e);
+            return false;
+        } finally {
+            if (!opened) {
+                openFailed = true;
+                buffer = null;
+                index.clear();
+                Arrays.fill(stamps, 0);
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (IOException e) {
+                        // Nothing we can do.
+                    }
+                    randomAccessFile = null;
+                }
+            }
+        }
+    }
+
+    private boolean isHeaderValid() {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != dimensions.length) {
+            return false;
+        }
+        for (int i = 0; i < dimensions.length; i++) {
+            if (buffer.getInt(12 + 8 * i) != dimensions[i] ||
+                buffer.getInt(16 + 8 * i) != slotCounts[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void loadIndex() {
+        int maxStamp = 0;
+        for (int slot = 0; slot < totalSlots; slot++) {
+            final int offset = getSlotOffset(slot);
+            final long key = buffer.getLong(offset);
+            if (key == 0) {
+                continue;
+            }
+            final int stamp = buffer.getInt(offset + 28);
+            stamps[slot] = Math.max(1, stamp);
+            maxStamp = Math.max(maxStamp, stamp);
+            index.put(key, slot);
+        }
+        nextStamp = maxStamp + 1;
+        Log.d(LOGTAG, "Loaded favicon disk cache with " + index.size() + " entries.");
+    }
+
+    /**
+     * Write a fresh header and mark every slot as free.
+     */
+    private void reset() {
+        buffer.putInt(0, 0);
+        buffer.putInt(8, dimensions.length);
+        for (int i = 0; i < dimensions.length; i++) {
+            buffer.putInt(12 + 8 * i, dimensions[i]);
+            buffer.putInt(16 + 8 * i, slotCounts[i]);
+        }
+        for (int slot = 0; slot < totalSlots; slot++) {
+            buffer.putLong(getSlotOffset(slot), 0);
+            stamps[slot] = 0;
+        }
+        index.clear();
+        nextStamp = 1;
+
+        // Only declare the file valid once everything else is written.
+        buffer.putInt(4, VERSION);
+        buffer.putInt(0, MAGIC);
+    }
+
+    private int getBucketForSlot(int slot) {
+        int bucket = 0;
+        while (slot >= slotCounts[bucket]) {
+            slot -= slotCounts[bucket];
+            bucket++;
+        }
+        return bucket;
+    }
+
+    private int getSlotOffset(int slot) {
+        final int bucket = getBucketForSlot(slot);
+        int first = 0;
+        for (int i = 0; i < bucket; i++) {
+            first += slotCounts[i];
+        }
+        return bucketOffsets[bucket] + (slot - first) * slotSizes[bucket];
+    }
+
+    /**
+     * 64-bit FNV-1a over the URL.
+     */
+    static long getURLHash(String faviconURL) {
+        long hash = 0xcbf29ce484222325L;
+        final int length = faviconURL.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= faviconURL.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * 64-bit FNV-1a over the URL and the target size. Never returns 0, which marks free slots.
+     */
+    static long getKey(String faviconURL, int targetSize) {
+        long hash = getURLHash(faviconURL);
+        hash ^= targetSize;
+        hash *= 0x100000001b3L;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Fetch the favicon stored for the given URL and size, if any.
+     *
+     * @return A new Bitmap, or null if no favicon is stored for this URL and size.
+     */
+    public synchronized Bitmap get(String faviconURL, int targetSize) {
+        if (faviconURL == null || !ensureOpen()) {
+            return null;
+        }
+
+        final long key = getKey(faviconURL, targetSize);
+        final Integer slot = index.get(key);
+        if (slot == null) {
+            return null;
+        }
+
+        final int offset = getSlotOffset(slot);
+        final int width = buffer.getInt(offset + 20);
+        final int height = buffer.getInt(offset + 24);
+
+        // Mark the slot as recently used.
+        stamps[slot] = nextStamp++;
+        buffer.putInt(offset + 28, stamps[slot]);
+
+        try {
+            final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(getPixels(offset, width * height * BYTES_PER_PIXEL));
+            return bitmap;
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Unable to read favicon from disk cache.", e);
+            removeSlot(key, slot);
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.w(LOGTAG, "Insufficient memory to read favicon from disk cache.");
+            return null;
+        }
+    }
+
+    /**
+     * Store the favicon for the given URL and target size, replacing any existing one. Favicons
+     * too large for every bucket are not stored.
+     */
+    public synchronized void put(String faviconURL, int targetSize, Bitmap bitmap) {
+        if (faviconURL == null || bitmap == null || !ensureOpen()) {
+            return;
+        }
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int largest = Math.max(width, height);
+
+        int bucket = 0;
+        while (bucket < dimensions.length && dimensions[bucket] < largest) {
+            bucket++;
+        }
+        if (bucket == dimensions.length || width <= 0 || height <= 0) {
+            return;
+        }
+
+        final long key = getKey(faviconURL, targetSize);
+        final Integer existing = index.get(key);
+        if (existing != null) {
+            removeSlot(key, existing);
+        }
+
+        final int slot = chooseSlot(bucket);
+        final int offset = getSlotOffset(slot);
+        final long oldKey = buffer.getLong(offset);
+        if (oldKey != 0) {
+            index.remove(oldKey);
+        }
+
+        // Invalidate the slot while we rewrite it.
+        buffer.putLong(offset, 0);
+        stamps[slot] = 0;
+
+        try {
+            Bitmap source = bitmap;
+            if (source.getConfig() != Bitmap.Config.ARGB_8888) {
+                source = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+                if (source == null) {
+                    return;
+                }
+            }
+            if (source.getRowBytes() != width * BYTES_PER_PIXEL) {
+                return;
+            }
+            source.copyPixelsToBuffer(getPixels(offset, width * height * BYTES_PER_PIXEL));
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Unable to write favicon to disk cache.", e);
+            return;
+        } catch (OutOfMemoryError e) {
+            Log.w(LOGTAG, "Insufficient memory to write favicon to disk cache.");
+            return;
+        }
+
+        stamps[slot] = nextStamp++;
+        buffer.putLong(offset + 8, getURLHash(faviconURL));
+        buffer.putInt(offset + 16, targetSize);
+        buffer.putInt(offset + 20, width);
+        buffer.putInt(offset + 24, height);
+        buffer.putInt(offset + 28, stamps[slot]);
+        buffer.putLong(offset, key);
+        index.put(key, slot);
+    }
+
+    /**
+     * Discard the stored favicons for the given URL at every size, for example because the
+     * favicon at that URL has been replaced in the database.
+     */
+    public synchronized void remove(String faviconURL) {
+        if (faviconURL == null || !ensureOpen()) {
+            return;
+        }
+
+        final long urlHash = getURLHash(faviconURL);
+        for (int slot = 0; slot < totalSlots; slot++) {
+            if (stamps[slot] == 0) {
+                continue;
+            }
+            final int offset = getSlotOffset(slot);
+            if (buffer.getLong(offset + 8) == urlHash) {
+                removeSlot(buffer.getLong(offset), slot);
+            }
+        }
+    }
+
+    /**
+     * Discard every stored favicon, for example when the user clears their history.
+     */
+    public synchronized void clear() {
+        if (ensureOpen()) {
+            reset();
+        }
+    }
+
+    /**
+     * Flush and unmap the file. This may block on disk I/O, so must not be called from the UI
+     * thread. The cache is reopened if it is used again.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                // Nothing we can do.
+            }
+            randomAccessFile = null;
+        }
+        index.clear();
+        Arrays.fill(stamps, 0);
+        nextStamp = 1;
+    }
+
+    private ByteBuffer getPixels(int slotOffset, int length) {
+        final ByteBuffer pixels = buffer.duplicate();
+        pixels.position(slotOffset + SLOT_HEADER_SIZE);
+        pixels.limit(slotOffset + SLOT_HEADER_SIZE + length);
+        return pixels.slice();
+    }
+
+    private void removeSlot(long key, int slot) {
+        index.remove(key);
+        stamps[slot] = 0;
+        buffer.putLong(getSlotOffset(slot), 0);
+    }
+
+    /**
+     * @return A free slot in the given bucket or, if there is none, its least recently used slot.
+     */
+    private int chooseSlot(int bucket) {
+        int first = 0;
+        for (int i = 0; i < bucket; i++) {
+            first += slotCounts[i];
+        }
+
+        int victim = first;
+        for (int slot = first; slot < first + slotCounts[bucket]; slot++) {
+            if (stamps[slot] == 0) {
+                return slot;
+            }
+            if (stamps[slot] < stamps[victim]) {
+                victim = slot;
+            }
+        }
+        return victim;
+    }
+}
@@ -17,6 +17,8 @@ public class FaviconsForURL {
     private volatile int dominantColor = -1;
 
     final long downloadTimestamp;
+
+    // Guarded by this object's monitor once the object has been added to the cache.
     final ArrayList<FaviconCacheElement> favicons;
 
     public final boolean hasFailed;
@@ -103,7 +105,8 @@ public class FaviconsForURL {
      *
      * @param fromIndex The index into favicons from which to start the search.
      * @return The FaviconCacheElement of the next valid primary from the given index. If none exists,
-     *         then returns the previous valid primary. If none exists, returns null (Insanity.).
+     *         then returns the previous valid primary. If none exists, returns null: this happens
+     *         when the only entries were restored from the disk cache as secondaries.
      */
     public FaviconCacheElement getNextPrimary(final int fromIndex) {
         final int numIcons = favicons.size();
@@ -139,7 +142,7 @@ public class FaviconsForURL {
             searchIndex--;
         }
 
-        Log.e(LOGTAG, "No primaries found in Favicon cache structure. This is madness!");
+        Log.d(LOGTAG, "No primaries found in Favicon cache structure.");
 
         return null;
     }
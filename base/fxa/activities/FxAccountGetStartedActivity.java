@@ -13,6 +13,7 @@ import org.mozilla.gecko.background.fxa.FxAccountAgeLockoutHelper;
 import org.mozilla.gecko.background.fxa.FxAccountUtils;
 import org.mozilla.gecko.fxa.FirefoxAccounts;
 import org.mozilla.gecko.fxa.FxAccountConstants;
+import org.mozilla.gecko.fxa.authenticator.FxAccountKeyPairPool;
 import org.mozilla.gecko.sync.setup.activities.ActivityUtils;
 
 import android.accounts.AccountAuthenticatorActivity;
@@ -64,6 +65,10 @@ public class FxAccountGetStartedActivity extends AccountAuthenticatorActivity {
     });
 
     animateIconIn();
+
+    // The user is about to sign in, which needs a key pair. Generate one while
+    // they type rather than after they submit.
+    FxAccountKeyPairPool.getInstance().refillWhenIdle();
   }
 
   /**
@@ -17,7 +17,6 @@ import org.mozilla.gecko.fxa.login.FxAccountLoginTransition.Transition;
 import org.mozilla.gecko.fxa.login.Married;
 import org.mozilla.gecko.fxa.login.State;
 import org.mozilla.gecko.fxa.login.State.StateLabel;
-import org.mozilla.gecko.fxa.login.StateFactory;
 import org.mozilla.gecko.fxa.sync.FxAccountNotificationManager;
 import org.mozilla.gecko.fxa.sync.FxAccountSyncAdapter;
 
@@ -58,7 +57,7 @@ public abstract class FxADefaultLoginStateMachineDelegate implements LoginStateM
 
   @Override
   public BrowserIDKeyPair generateKeyPair() throws NoSuchAlgorithmException {
-    return StateFactory.generateKeyPair();
+    return FxAccountKeyPairPool.getInstance(context, fxAccount.getAndroidAccount().name).take();
   }
 
   @Override
@@ -0,0 +1,292 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.fxa.authenticator;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.browserid.BrowserIDKeyPair;
+import org.mozilla.gecko.browserid.DSACryptoImplementation;
+import org.mozilla.gecko.fxa.login.StateFactory;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
+import org.mozilla.gecko.sync.Utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+/**
+ * A small pool of pre-generated BrowserID key pairs.
+ * <p>
+ * Generating a DSA key pair takes hundreds of milliseconds on slow devices,
+ * and the login state machine needs one each time it enters the Cohabiting
+ * state. Rather than generate on demand, we hand out a key pair generated
+ * earlier, and refill the pool once the main thread is next idle.
+ * <p>
+ * Each Firefox Account has its own pool, persisted in preferences scoped to
+ * that account, just as the account's current key pair is kept with the
+ * account; {@link #wipe(Context, String)} deletes it when the account is
+ * removed. Before there is an account, for example while the user is signing
+ * in, key pairs go into an unscoped pool that is kept in memory only, and
+ * which account pools draw on before generating.
+ * <p>
+ * Each key pair is handed out at most once, and is removed from the pool
+ * before being returned.
+ */
+public class FxAccountKeyPairPool {
+  protected static final String LOG_TAG = FxAccountKeyPairPool.class.getSimpleName();
+
+  public static final int POOL_SIZE = 2;
+
+  protected static final String PREFS_PATH_PREFIX = "fxa.keypairpool.";
+  protected static final String PREF_KEY_PAIRS = "keyPairs";
+
+  // All guarded by FxAccountKeyPairPool.class.
+  private static FxAccountKeyPairPool unscopedInstance;
+  private static final HashMap<String, FxAccountKeyPairPool> accountInstances = new HashMap<String, FxAccountKeyPairPool>();
+
+  /**
+   * @return the in-memory pool used before there is an account.
+   */
+  public static synchronized FxAccountKeyPairPool getInstance() {
+    if (unscopedInstance == null) {
+      unscopedInstance = new FxAccountKeyPairPool(null, null);
+    }
+    return unscopedInstance;
+  }
+
+  /**
+   * @return the persisted pool belonging to the named Android account.
+   */
+  public static synchronized FxAccountKeyPairPool getInstance(Context context, String accountName) {
+    FxAccountKeyPairPool pool = accountInstances.get(accountName);
+    if (pool == null) {
+      pool = new FxAccountKeyPairPool(getPrefs(context, accountName), getInstance());
+      accountInstances.put(accountName, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Delete the named account's pool, in memory and on disk.
+   */
+  public static void wipe(Context context, String accountName) {
+    final FxAccountKeyPairPool pool;
+    synchronized (FxAccountKeyPairPool.class) {
+      pool = accountInstances.remove(accountName);
+    }
+    if (pool != null) {
+      pool.clear();
+    }
+    getPrefs(context, accountName).edit().clear().commit();
+  }
+
+  protected static SharedPreferences getPrefs(Context context, String accountName) {
+    String name;
+    try {
+      name = Utils.usernameFromAccount(accountName);
+    } catch (Exception e) {
+      // Can't happen: SHA-1 and UTF-8 are always available.
+      name = Integer.toHexString(accountName.hashCode());
+    }
+    return context.getSharedPreferences(PREFS_PATH_PREFIX + name, Utils.SHARED_PREFERENCES_MODE);
+  }
+
+  // Null for the in-memory pool.
+  protected final SharedPreferences prefs;
+
+  // Drawn on when we're empty. Null for the in-memory pool.
+  protected final FxAccountKeyPairPool fallback;
+
+  // Guarded by this. Null until first read from disk.
+  protected LinkedList<BrowserIDKeyPair> keyPairs;
+  protected boolean refillScheduled;
+
+  protected FxAccountKeyPairPool(SharedPreferences prefs, FxAccountKeyPairPool fallback) {
+    this.prefs = prefs;
+    this.fallback = fallback;
+  }
+
+  /**
+   * Take a key pair from this pool, or failing that from the in-memory pool,
+   * generating one synchronously if both are empty. Either way, schedule a
+   * refill.
+   */
+  public BrowserIDKeyPair take() throws NoSuchAlgorithmException {
+    BrowserIDKeyPair keyPair = poll();
+    refillWhenIdle();
+
+    if (keyPair == null && fallback != null) {
+      keyPair = fallback.poll();
+    }
+
+    if (keyPair != null) {
+      Logger.debug(LOG_TAG, "Took pooled key pair.");
+      return keyPair;
+    }
+
+    Logger.info(LOG_TAG, "Key pair pool empty; generating key pair synchronously.");
+    return generate();
+  }
+
+  /**
+   * @return a key pair from this pool, or null if it is empty.
+   */
+  protected synchronized BrowserIDKeyPair poll() {
+    ensureLoaded();
+    final BrowserIDKeyPair keyPair = keyPairs.poll();
+    if (keyPair != null) {
+      persist();
+    }
+    return keyPair;
+  }
+
+  /**
+   * @return the number of key pairs currently pooled.
+   */
+  public synchronized int size() {
+    ensureLoaded();
+    return keyPairs.size();
+  }
+
+  /**
+   * Discard every pooled key pair.
+   */
+  public synchronized void clear() {
+    keyPairs = new LinkedList<BrowserIDKeyPair>();
+    if (prefs != null) {
+      prefs.edit().remove(PREF_KEY_PAIRS).commit();
+    }
+  }
+
+  /**
+   * Top up the pool once the main thread is next idle, unless that's already
+   * pending. The key pairs are generated on the crypto lane, at low priority.
+   */
+  public void refillWhenIdle() {
+    synchronized (this) {
+      if (refillScheduled) {
+        return;
+      }
+      refillScheduled = true;
+    }
+
+    // Idle handlers must be added from the looper's own thread.
+    new Handler(Looper.getMainLooper()).post(new Runnable() {
+      @Override
+      public void run() {
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+          @Override
+          public boolean queueIdle() {
+            refillInBackground();
+            // Don't keep this handler.
+            return false;
+          }
+        });
+      }
+    });
+  }
+
+  protected void refillInBackground() {
+    SyncScheduler.getInstance().execute(Lane.CRYPTO, Priority.LOW, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          refill();
+        } finally {
+          synchronized (FxAccountKeyPairPool.this) {
+            refillScheduled = false;
+          }
+        }
+      }
+    });
+  }
+
+  protected void refill() {
+    while (true) {
+      synchronized (this) {
+        ensureLoaded();
+        if (keyPairs.size() >= POOL_SIZE) {
+          return;
+        }
+      }
+
+      // Generate outside the lock so that take() is never blocked behind us.
+      final BrowserIDKeyPair keyPair;
+      try {
+        keyPair = generate();
+      } catch (NoSuchAlgorithmException e) {
+        Logger.warn(LOG_TAG, "Got exception generating pooled key pair; not refilling.", e);
+        return;
+      }
+
+      synchronized (this) {
+        if (keyPairs.size() >= POOL_SIZE) {
+          return;
+        }
+        keyPairs.add(keyPair);
+        persist();
+      }
+    }
+  }
+
+  protected BrowserIDKeyPair generate() throws NoSuchAlgorithmException {
+    final long start = System.currentTimeMillis();
+    final BrowserIDKeyPair keyPair = StateFactory.generateKeyPair();
+    Logger.debug(LOG_TAG, "Generated key pair in " + (System.currentTimeMillis() - start) + "ms.");
+    return keyPair;
+  }
+
+  // Call with this held.
+  protected void ensureLoaded() {
+    if (keyPairs != null) {
+      return;
+    }
+    keyPairs = new LinkedList<BrowserIDKeyPair>();
+
+    if (prefs == null) {
+      return;
+    }
+    final String json = prefs.getString(PREF_KEY_PAIRS, null);
+    if (json == null) {
+      return;
+    }
+    try {
+      final JSONArray array = ExtendedJSONObject.parseJSONArray(json);
+      for (Object o : array) {
+        final ExtendedJSONObject keyPair = new ExtendedJSONObject((JSONObject) o);
+        keyPairs.add(DSACryptoImplementation.fromJSONObject(keyPair));
+      }
+    } catch (Exception e) {
+      // A corrupt pool is not fatal: start again from empty.
+      Logger.warn(LOG_TAG, "Got exception reading pooled key pairs; discarding.", e);
+      keyPairs.clear();
+      prefs.edit().remove(PREF_KEY_PAIRS).commit();
+    }
+    Logger.debug(LOG_TAG, "Loaded " + keyPairs.size() + " pooled key pairs.");
+  }
+
+  // Call with this held.
+  @SuppressWarnings("unchecked")
+  protected void persist() {
+    if (prefs == null) {
+      return;
+    }
+    final JSONArray array = new JSONArray();
+    for (BrowserIDKeyPair keyPair : keyPairs) {
+      array.add(keyPair.toJSONObject().object);
+    }
+    prefs.edit().putString(PREF_KEY_PAIRS, array.toJSONString()).commit();
+  }
+}
@@ -8,6 +8,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.EnumSet;
 import java.util.Set;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.fxa.FxAccountClient;
 import org.mozilla.gecko.browserid.BrowserIDKeyPair;
 import org.mozilla.gecko.fxa.login.FxAccountLoginTransition.Transition;
@@ -31,10 +32,22 @@ public class FxAccountLoginStateMachine {
     // It's as difficult to detect arbitrary cycles as repeated states.
     protected final Set<StateLabel> stateLabelsSeen = EnumSet.noneOf(StateLabel.class);
 
+    // For timing: the state being executed, and when we started executing it.
+    protected StateLabel executingStateLabel;
+    protected long executingStartedAt;
+    protected final long advanceStartedAt;
+
     protected ExecuteDelegate(StateLabel initialStateLabel, StateLabel desiredStateLabel, LoginStateMachineDelegate delegate) {
       this.delegate = delegate;
       this.desiredStateLabel = desiredStateLabel;
       this.stateLabelsSeen.add(initialStateLabel);
+      this.advanceStartedAt = System.currentTimeMillis();
+    }
+
+    protected void execute(State state) {
+      executingStateLabel = state.getStateLabel();
+      executingStartedAt = System.currentTimeMillis();
+      state.execute(this);
     }
 
     public FxAccountClient getClient() {
@@ -50,10 +63,17 @@ public class FxAccountLoginStateMachine {
     }
 
     public BrowserIDKeyPair generateKeyPair() throws NoSuchAlgorithmException {
-      return delegate.generateKeyPair();
+      final long start = System.currentTimeMillis();
+      final BrowserIDKeyPair keyPair = delegate.generateKeyPair();
+      Logger.info(LOG_TAG, "Getting key pair took " + (System.currentTimeMillis() - start) + "ms.");
+      return keyPair;
     }
 
     public void handleTransition(Transition transition, State state) {
+      final long now = System.currentTimeMillis();
+      Logger.info(LOG_TAG, "Transition from " + executingStateLabel + " to " + state.getStateLabel() +
+          " (" + transition + ") took " + (now - executingStartedAt) + "ms.");
+
       // Always trigger the transition callback.
       delegate.handleTransition(transition, state);
 
@@ -61,6 +81,7 @@ public class FxAccountLoginStateMachine {
       // state, or if we've seen this state before.
       StateLabel stateLabel = state.getStateLabel();
       if (stateLabel == desiredStateLabel || stateLabelsSeen.contains(stateLabel)) {
+        Logger.info(LOG_TAG, "Advancing to " + stateLabel + " took " + (now - advanceStartedAt) + "ms.");
         delegate.handleFinal(state);
         return;
       }
@@ -68,7 +89,7 @@ public class FxAccountLoginStateMachine {
       // If this wasn't the last state, leave a bread crumb and move on to the
       // next state.
       stateLabelsSeen.add(stateLabel);
-      state.execute(this);
+      execute(state);
     }
   }
 
@@ -79,6 +100,6 @@ public class FxAccountLoginStateMachine {
       return;
     }
     ExecuteDelegate executeDelegate = new ExecuteDelegate(initialState.getStateLabel(), desiredStateLabel, delegate);
-    initialState.execute(executeDelegate);
+    executeDelegate.execute(initialState);
   }
 }
@@ -193,6 +193,19 @@ public class BrowserHealthRecorder implements HealthRecorder, GeckoEventListener
         this.unregisterEventListeners();
 
         // Add any necessary provider uninitialization here.
+        final HealthReportDatabaseStorage storage = this.storage;
+        if (storage != null) {
+            ThreadUtils.postToBackgroundThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        storage.flushPendingEvents();
+                    } catch (Exception e) {
+                        Log.w(LOG_TAG, "Failed to flush pending health report events.", e);
+                    }
+                }
+            });
+        }
         this.storage = null;
         if (this.client != null) {
             this.client.release();
@@ -876,6 +889,10 @@ public class BrowserHealthRecorder implements HealthRecorder, GeckoEventListener
                                             .getID();
             final int day = storage.getDay(session.wallStartTime);
             storage.recordDailyDiscrete(environment, day, sessionField, value);
+
+            // Sessions end when we're backgrounded, and we might not get
+            // another chance: don't leave buffered events behind.
+            storage.flushPendingEvents();
             Log.v(LOG_TAG, "Recorded session entry for env " + environment + ", current is " + env);
         } catch (Exception e) {
             Log.w(LOG_TAG, "Unable to record session completion.", e);
@@ -0,0 +1,446 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.home;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * A bounded on-disk cache of HTTP image responses, for {@link ImageLoader.ImageDownloader}.
+ *
+ * Each response is stored in its own file, named for the SHA-1 of its URL, holding a small
+ * header (freshness lifetime and validators) followed by the response body. Files are written
+ * under a temporary name and renamed into place, so readers never see a partial entry.
+ *
+ * The total size of the cache is bounded. When a write takes it over the bound, the least
+ * recently used files are deleted until it's back under. Reading an entry refreshes its file's
+ * modification time, which is what we order by.
+ *
+ * The cache also counts hits, misses, and the number of response bytes that hits saved us from
+ * downloading.
+ *
+ * The cache is used from Picasso's download threads, so no file I/O happens under its lock:
+ * entry files are never modified in place, so readers don't need it, and writers only take it
+ * to update the in-memory index of entry sizes. The counters are guarded by the same lock.
+ */
+public class ImageDiskCache {
+    private static final String LOGTAG = "GeckoImageDiskCache";
+
+    public static final String DIRECTORY_NAME = "image-cache";
+
+    // Panel images and suggested site tiles are small.
+    public static final long DEFAULT_MAX_SIZE = 5 * 1024 * 1024;
+    public static final int MAX_ENTRY_SIZE = 512 * 1024;
+
+    // Returned by getExpiry for responses we mustn't store.
+    public static final long NO_STORE = -1;
+
+    // Upper bound on the heuristic freshness lifetime of responses without explicit expiry.
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x494d4743;      // "IMGC".
+    private static final int VERSION = 1;
+
+    /**
+     * A cached response body and the information needed to tell whether it's still fresh and to
+     * revalidate it if not.
+     */
+    public static class Entry {
+        public final byte[] body;
+        public final long expires;
+        public final String etag;
+        public final String lastModified;
+
+        public Entry(byte[] body, long expires, String etag, String lastModified) {
+            this.body = body;
+            this.expires = expires;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public boolean isFresh(long now) {
+            return now < expires;
+        }
+
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        public Entry withExpiry(long expires) {
+            return new Entry(body, expires, etag, lastModified);
+        }
+    }
+
+    private final File directory;
+    private final long maxSize;
+
+    // The size of each entry file, by name, or null until we've looked. Guarded by this.
+    private HashMap<String, Long> index;
+    // Total of the sizes in the index. Guarded by this.
+    private long size;
+    // Whether some thread is evicting entries. Guarded by this.
+    private boolean trimming;
+
+    private long hits;
+    private long misses;
+    private long bytesSaved;
+
+    public ImageDiskCache(File directory) {
+        this(directory, DEFAULT_MAX_SIZE);
+    }
+
+    public ImageDiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the entry for <code>url</code>, fresh or not, or null if there is none.
+     */
+    public Entry get(String url) {
+        final File file = getFile(url);
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Bad header");
+            }
+
+            final long expires = in.readLong();
+            final String etag = readOptionalString(in);
+            final String lastModified = readOptionalString(in);
+            final int length = in.readInt();
+            if (length < 0 || length > MAX_ENTRY_SIZE) {
+                throw new IOException("Bad length " + length);
+            }
+
+            final byte[] body = new byte[length];
+            in.readFully(body);
+
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(body, expires, etag, lastModified);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Discarding unreadable cache entry for " + url, e);
+            deleteFile(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Store <code>entry</code> for <code>url</code>, replacing any existing entry, and evict
+     * older entries if that takes the cache over its size limit.
+     */
+    public void put(String url, Entry entry) {
+        if (entry.body.length > MAX_ENTRY_SIZE) {
+            return;
+        }
+
+        ensureIndexLoaded();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(LOGTAG, "Unable to create image cache directory " + directory);
+            return;
+        }
+
+        final File file = getFile(url);
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", directory);
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(entry.expires);
+            writeOptionalString(out, entry.etag);
+            writeOptionalString(out, entry.lastModified);
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+            out.close();
+            out = null;
+
+            // Renaming replaces any existing entry atomically.
+            final long length = temp.length();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to move cache entry into place: " + file);
+            }
+            temp = null;
+            indexFile(file, length);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to cache image " + url, e);
+        } finally {
+            closeQuietly(out);
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+
+        trimIfNeeded();
+    }
+
+    public void remove(String url) {
+        ensureIndexLoaded();
+        deleteFile(getFile(url));
+    }
+
+    public synchronized void recordHit(Entry entry) {
+        hits++;
+        bytesSaved += entry.body.length;
+    }
+
+    public synchronized void recordMiss() {
+        misses++;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public long getSize() {
+        ensureIndexLoaded();
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    public synchronized void logStats() {
+        Log.d(LOGTAG, "Image disk cache: " + hits + " hits, " + misses + " misses, " +
+                      bytesSaved + " bytes saved; " + size + " bytes held.");
+    }
+
+    /**
+     * Compute when a response stops being fresh, from its caching headers. Date arguments are in
+     * milliseconds since the epoch, or 0 if the header is absent.
+     *
+     * A response that must be revalidated before reuse expires immediately. A response without
+     * explicit expiry but with a Last-Modified date is given a tenth of its age, up to a day, as
+     * is common practice for HTTP caches.
+     *
+     * @return the time at which the response expires, or {@link #NO_STORE} if it mustn't be
+     *         cached at all.
+     */
+    public static long getExpiry(String cacheControl, long date, long expires, long lastModified, long now) {
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) {
+                    return NO_STORE;
+                }
+                if (directive.equals("no-cache")) {
+                    return now;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        // Ignore malformed directives.
+                    }
+                }
+            }
+
+            if (maxAge >= 0) {
+                return now + maxAge * 1000;
+            }
+        }
+
+        // Measure the lifetime against the server's clock, rather than ours.
+        final long serverNow = (date > 0) ? date : now;
+
+        if (expires > 0) {
+            return now + Math.max(0, expires - serverNow);
+        }
+
+        if (lastModified > 0 && lastModified < serverNow) {
+            return now + Math.min((serverNow - lastModified) / 10, MAX_HEURISTIC_LIFETIME);
+        }
+
+        return now;
+    }
+
+    private File getFile(String url) {
+        return new File(directory, keyFor(url));
+    }
+
+    private void ensureIndexLoaded() {
+        synchronized (this) {
+            if (index != null) {
+                return;
+            }
+        }
+
+        // List the directory outside the lock. If another thread beats us to it, its index is
+        // as good as ours.
+        final HashMap<String, Long> loaded = new HashMap<String, Long>();
+        long loadedSize = 0;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final long length = file.length();
+                loaded.put(file.getName(), length);
+                loadedSize += length;
+            }
+        }
+
+        synchronized (this) {
+            if (index == null) {
+                index = loaded;
+                size = loadedSize;
+            }
+        }
+    }
+
+    private synchronized void indexFile(File file, long length) {
+        if (index == null) {
+            return;
+        }
+        final Long previous = index.put(file.getName(), length);
+        size += length - ((previous == null) ? 0 : previous);
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (index == null) {
+                return;
+            }
+            final Long length = index.remove(file.getName());
+            if (length != null) {
+                size -= length;
+            }
+        }
+    }
+
+    /**
+     * If we're over the size limit, and no other thread is already evicting, delete the least
+     * recently used files until we're comfortably below it, so that we don't have to trim again
+     * on the very next write.
+     */
+    private void trimIfNeeded() {
+        final long target = maxSize * 9 / 10;
+        synchronized (this) {
+            if (trimming || size <= maxSize) {
+                return;
+            }
+            trimming = true;
+        }
+
+        int deleted = 0;
+        try {
+            final File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            // Read each modification time once: they may change while we sort.
+            final long[] lastModified = new long[files.length];
+            final Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    final long l = lastModified[lhs];
+                    final long r = lastModified[rhs];
+                    return (l < r) ? -1 : ((l == r) ? 0 : 1);
+                }
+            });
+
+            for (Integer i : order) {
+                synchronized (this) {
+                    if (size <= target) {
+                        break;
+                    }
+                }
+                deleteFile(files[i]);
+                deleted++;
+            }
+        } finally {
+            final long held;
+            synchronized (this) {
+                trimming = false;
+                held = size;
+            }
+            Log.d(LOGTAG, "Trimmed " + deleted + " files from image disk cache; " + held + " bytes held.");
+        }
+    }
+
+    private static String keyFor(String url) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available.", e);
+        }
+
+        final byte[] hash;
+        try {
+            hash = digest.digest(url.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is always available.", e);
+        }
+
+        final StringBuilder key = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
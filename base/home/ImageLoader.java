@@ -15,9 +15,14 @@ import com.squareup.picasso.Picasso;
 import com.squareup.picasso.Downloader.Response;
 import com.squareup.picasso.UrlConnectionDownloader;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -47,9 +52,11 @@ public class ImageLoader {
         }
     }
 
-    // Picasso instance and LruCache lrucache are protected by synchronization.
+    // Picasso instance, LruCache lrucache and ImageDiskCache diskCache are protected by
+    // synchronization.
     private static Picasso instance;
     private static LruCache lrucache;
+    private static ImageDiskCache diskCache;
 
     public static synchronized Picasso with(Context context) {
         if (instance == null) {
@@ -57,13 +64,23 @@ public class ImageLoader {
             Picasso.Builder builder = new Picasso.Builder(context).memoryCache(lrucache);
 
             final Distribution distribution = Distribution.getInstance(context);
-            builder.downloader(new ImageDownloader(context, distribution));
+            final ImageDownloader downloader = new ImageDownloader(context, distribution);
+            diskCache = downloader.getDiskCache();
+            builder.downloader(downloader);
             instance = builder.build();
         }
 
         return instance;
     }
 
+    /**
+     * Returns the disk cache behind the shared Picasso instance, or null if there's no such
+     * instance yet. Its counters track how well it's doing.
+     */
+    public static synchronized ImageDiskCache getDiskCache() {
+        return diskCache;
+    }
+
     public static synchronized void clearLruCache() {
         if (lrucache != null) {
             lrucache.evictAll();
@@ -73,15 +90,31 @@ public class ImageLoader {
     /**
      * Custom Downloader built on top of Picasso's UrlConnectionDownloader
      * that supports loading images from custom URIs.
+     *
+     * HTTP images are cached on disk, in an {@link ImageDiskCache} in the
+     * application's cache directory, so that they survive restarts. The cache
+     * honors the responses' Cache-Control, Expires and validator headers, and
+     * stale entries are revalidated with a conditional request.
      */
     public static class ImageDownloader extends UrlConnectionDownloader {
         private final Context context;
         private final Distribution distribution;
+        private final ImageDiskCache diskCache;
 
         public ImageDownloader(Context context, Distribution distribution) {
+            this(context, distribution,
+                 new ImageDiskCache(new File(context.getCacheDir(), ImageDiskCache.DIRECTORY_NAME)));
+        }
+
+        public ImageDownloader(Context context, Distribution distribution, ImageDiskCache diskCache) {
             super(context);
             this.context = context;
             this.distribution = distribution;
+            this.diskCache = diskCache;
+        }
+
+        public ImageDiskCache getDiskCache() {
+            return diskCache;
         }
 
         private Density getDensity(float factor) {
@@ -107,9 +140,111 @@ public class ImageLoader {
                 return loadDistributionImage(uri);
             }
 
+            if ("http".equals(scheme) || "https".equals(scheme)) {
+                return loadCachedImage(uri, localCacheOnly);
+            }
+
             return super.load(uri, localCacheOnly);
         }
 
+        /**
+         * Load an HTTP image through the disk cache. Fresh entries are
+         * returned without touching the network; stale ones are revalidated
+         * if they can be. If <code>localCacheOnly</code> is set, we return any
+         * cached entry, fresh or not, and never touch the network.
+         */
+        private Response loadCachedImage(Uri uri, boolean localCacheOnly) throws IOException {
+            final String url = uri.toString();
+            final long now = System.currentTimeMillis();
+
+            final ImageDiskCache.Entry cached = diskCache.get(url);
+            if (cached != null && (localCacheOnly || cached.isFresh(now))) {
+                diskCache.recordHit(cached);
+                return new Response(new ByteArrayInputStream(cached.body), true);
+            }
+
+            if (localCacheOnly) {
+                diskCache.recordMiss();
+                throw new ResponseException("Image not in disk cache: " + url);
+            }
+
+            final HttpURLConnection connection = openConnection(uri);
+
+            // We're the cache: don't have the platform keep a second copy.
+            connection.setUseCaches(false);
+
+            if (cached != null) {
+                if (cached.etag != null) {
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+
+            boolean keepConnection = false;
+            try {
+                final int responseCode = connection.getResponseCode();
+                final long expires = ImageDiskCache.getExpiry(connection.getHeaderField("Cache-Control"),
+                                                              connection.getDate(),
+                                                              connection.getExpiration(),
+                                                              connection.getLastModified(),
+                                                              now);
+
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    if (expires == ImageDiskCache.NO_STORE) {
+                        diskCache.remove(url);
+                    } else {
+                        diskCache.put(url, cached.withExpiry(expires));
+                    }
+                    diskCache.recordHit(cached);
+                    return new Response(new ByteArrayInputStream(cached.body), true);
+                }
+
+                if (responseCode >= 300) {
+                    throw new ResponseException(responseCode + " " + connection.getResponseMessage());
+                }
+
+                diskCache.recordMiss();
+
+                final InputStream stream = connection.getInputStream();
+                final int contentLength = connection.getContentLength();
+                if (expires == ImageDiskCache.NO_STORE || contentLength > ImageDiskCache.MAX_ENTRY_SIZE) {
+                    keepConnection = true;
+                    return new Response(stream, false);
+                }
+
+                // Read up to one byte more than we're willing to cache, so we
+                // can tell whether the body fits.
+                final ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 8192);
+                final byte[] buffer = new byte[8192];
+                int read;
+                while (body.size() <= ImageDiskCache.MAX_ENTRY_SIZE &&
+                       (read = stream.read(buffer, 0, Math.min(buffer.length,
+                                                               ImageDiskCache.MAX_ENTRY_SIZE + 1 - body.size()))) != -1) {
+                    body.write(buffer, 0, read);
+                }
+
+                if (body.size() > ImageDiskCache.MAX_ENTRY_SIZE) {
+                    // Too big to cache: hand over what we've read and the rest of the stream.
+                    keepConnection = true;
+                    return new Response(new SequenceInputStream(new ByteArrayInputStream(body.toByteArray()), stream), false);
+                }
+
+                stream.close();
+
+                final byte[] bytes = body.toByteArray();
+                diskCache.put(url, new ImageDiskCache.Entry(bytes, expires,
+                                                            connection.getHeaderField("ETag"),
+                                                            connection.getHeaderField("Last-Modified")));
+                return new Response(new ByteArrayInputStream(bytes), false);
+            } finally {
+                if (!keepConnection) {
+                    connection.disconnect();
+                }
+            }
+        }
+
         private static String getPathForDensity(String basePath, Density density,
                                                 String filename) {
             final File dir = new File(basePath, density.toString());
@@ -23,12 +23,10 @@ import org.mozilla.gecko.Tab;
 import org.mozilla.gecko.Tabs;
 import org.mozilla.gecko.Telemetry;
 import org.mozilla.gecko.TelemetryContract;
-import org.mozilla.gecko.db.BrowserContract.Thumbnails;
 import org.mozilla.gecko.db.BrowserContract.TopSites;
 import org.mozilla.gecko.db.BrowserDB;
 import org.mozilla.gecko.favicons.Favicons;
 import org.mozilla.gecko.favicons.OnFaviconLoadedListener;
-import org.mozilla.gecko.gfx.BitmapUtils;
 import org.mozilla.gecko.home.HomeContextMenuInfo.RemoveItemType;
 import org.mozilla.gecko.home.HomePager.OnUrlOpenListener;
 import org.mozilla.gecko.home.PinSiteDialog.OnSiteSelectedListener;
@@ -854,39 +852,10 @@ public class TopSitesPanel extends HomeFragment {
                 return thumbnails;
             }
 
-            // Query the DB for tile thumbnails.
-            final Cursor cursor = mDB.getThumbnailsForUrls(cr, thumbnailUrls);
-            if (cursor == null) {
-                return thumbnails;
-            }
-
-            try {
-                final int urlIndex = cursor.getColumnIndexOrThrow(Thumbnails.URL);
-                final int dataIndex = cursor.getColumnIndexOrThrow(Thumbnails.DATA);
-
-                while (cursor.moveToNext()) {
-                    String url = cursor.getString(urlIndex);
-
-                    // This should never be null, but if it is...
-                    final byte[] b = cursor.getBlob(dataIndex);
-                    if (b == null) {
-                        continue;
-                    }
-
-                    final Bitmap bitmap = BitmapUtils.decodeByteArray(b);
-
-                    // Our thumbnails are never null, so if we get a null decoded
-                    // bitmap, it's because we hit an OOM or some other disaster.
-                    // Give up immediately rather than hammering on.
-                    if (bitmap == null) {
-                        Log.w(LOGTAG, "Aborting thumbnail load; decode failed.");
-                        break;
-                    }
-
-                    thumbnails.put(url, new ThumbnailInfo(bitmap));
-                }
-            } finally {
-                cursor.close();
+            // Load tile thumbnails from the thumbnail store.
+            final Map<String, Bitmap> bitmaps = mDB.getThumbnailsForUrls(cr, thumbnailUrls);
+            for (Map.Entry<String, Bitmap> entry : bitmaps.entrySet()) {
+                thumbnails.put(entry.getKey(), new ThumbnailInfo(entry.getValue()));
             }
 
             return thumbnails;
@@ -19,6 +19,20 @@ public class NativeZip implements NativeReference {
     private volatile long mObj;
     private InputStream mInput;
 
+    // When shared, closing a stream obtained from this zip doesn't release it.
+    private volatile boolean mShared;
+    private final NativeReference mSharedRef = new NativeReference() {
+        @Override
+        public void release() {
+            // The zip outlives its streams.
+        }
+
+        @Override
+        public boolean isReleased() {
+            return NativeZip.this.isReleased();
+        }
+    };
+
     public NativeZip(String path) {
         mObj = getZip(path);
     }
@@ -56,6 +70,15 @@ public class NativeZip implements NativeReference {
         return (mObj == 0);
     }
 
+    /**
+     * By default, closing a stream obtained from this zip releases the zip, so
+     * that a caller can simply hold on to the stream. Call this with true for
+     * a zip that is kept open to serve many streams.
+     */
+    public void setShared(boolean shared) {
+        mShared = shared;
+    }
+
     public InputStream getInputStream(String path) {
         if (isReleased()) {
             throw new IllegalStateException("Can't get path \"" + path
@@ -75,7 +98,7 @@ public class NativeZip implements NativeReference {
             throw new IllegalArgumentException("Unexpected compression: " + compression);
         }
 
-        InputStream input = new ByteBufferInputStream(buffer, this);
+        InputStream input = new ByteBufferInputStream(buffer, mShared ? mSharedRef : this);
         if (compression == DEFLATE) {
             Inflater inflater = new Inflater(true);
             input = new InflaterInputStream(input, inflater);
@@ -10,6 +10,8 @@ import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.util.Queue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.mozilla.gecko.background.ReadingListConstants;
 import org.mozilla.gecko.background.common.log.Logger;
@@ -33,18 +35,36 @@ import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
  */
 public class ReadingListClient {
   static final String LOG_TAG = ReadingListClient.class.getSimpleName();
+
+  /**
+   * How many requests a batch operation keeps in flight at once. This stays
+   * well under the per-route limit of the shared {@link BaseResource}
+   * connection pool.
+   */
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 4;
+
   private final AuthHeaderProvider auth;
 
   private final URI articlesURI;              // .../articles
   private final URI articlesBaseURI;          // .../articles/
 
+  private final int maxInFlightRequests;
+
   /**
    * Use a {@link BasicAuthHeaderProvider} for testing, and an FxA OAuth provider for the real service.
    */
   public ReadingListClient(final URI serviceURI, final AuthHeaderProvider auth) {
+    this(serviceURI, auth, DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+  }
+
+  public ReadingListClient(final URI serviceURI, final AuthHeaderProvider auth, final int maxInFlightRequests) {
+    if (maxInFlightRequests < 1) {
+      throw new IllegalArgumentException("maxInFlightRequests must be positive.");
+    }
     this.articlesURI = serviceURI.resolve("articles");
     this.articlesBaseURI = serviceURI.resolve("articles/");
     this.auth = auth;
+    this.maxInFlightRequests = maxInFlightRequests;
   }
 
   private BaseResource getRelativeArticleResource(final String rel) {
@@ -149,6 +169,11 @@ public class ReadingListClient {
       return ReadingListConstants.USER_AGENT;
     }
 
+    @Override
+    public boolean acceptCompressedResponses() {
+      return true;
+    }
+
     @Override
     public AuthHeaderProvider getAuthHeaderProvider() {
       return auth;
@@ -324,79 +349,174 @@ public class ReadingListClient {
 
 
   /**
-   * Recursively calls `patch` with items from the queue, delivering callbacks
-   * to the provided delegate. Calls `onBatchDone` when the queue is exhausted.
+   * Makes a request for each item in the queue, keeping up to
+   * `maxInFlightRequests` requests in flight at once.
    *
-   * Uses the provided executor to flatten the recursive call stack.
+   * Requests run on a pool private to the batch, because each request blocks
+   * its thread. Per-item callbacks, and the final `onBatchDone`, are delivered
+   * through the provided executor; with a single-threaded executor, as used by
+   * the synchronizer, they arrive one at a time and `onBatchDone` comes last.
    */
-  private abstract class BatchingUploadDelegate implements ReadingListRecordUploadDelegate {
-    private final Queue<ClientReadingListRecord>  queue;
-    private final ReadingListRecordUploadDelegate batchUploadDelegate;
-    private final Executor                        executor;
+  private abstract class WindowedBatch<T> {
+    private final Queue<T>        queue;
+    private final Executor        executor;
+    private final ExecutorService requestExecutor;
 
-    BatchingUploadDelegate(Queue<ClientReadingListRecord> queue,
-                           ReadingListRecordUploadDelegate batchUploadDelegate,
-                           Executor executor) {
+    // Guards queue, inFlight, and done.
+    private final Object lock = new Object();
+    private int inFlight = 0;
+    private boolean done = false;
+
+    WindowedBatch(Queue<T> queue, Executor executor) {
       this.queue = queue;
-      this.batchUploadDelegate = batchUploadDelegate;
       this.executor = executor;
+      this.requestExecutor = Executors.newFixedThreadPool(maxInFlightRequests);
     }
 
-    abstract void again(ClientReadingListRecord record);
+    /**
+     * Make the request for a single item. Its delegate must eventually
+     * call {@link #deliver(Runnable)} exactly once.
+     */
+    abstract void again(T item);
 
-    void next() {
-      final ClientReadingListRecord record = queue.poll();
-      executor.execute(new Runnable() {
+    abstract void batchDone();
+
+    void start() {
+      synchronized (lock) {
+        while (inFlight < maxInFlightRequests) {
+          final T item = queue.poll();
+          if (item == null) {
+            break;
+          }
+          inFlight++;
+          submit(item);
+        }
+      }
+      finishIfDone();
+    }
+
+    /**
+     * Hand a per-item callback to the batch delegate, and replace the
+     * finished request with the next item in the queue, if any.
+     */
+    void deliver(Runnable callback) {
+      executor.execute(callback);
+
+      synchronized (lock) {
+        final T item = queue.poll();
+        if (item != null) {
+          submit(item);
+          return;
+        }
+        inFlight--;
+      }
+      finishIfDone();
+    }
+
+    private void submit(final T item) {
+      requestExecutor.execute(new Runnable() {
         @Override
         public void run() {
-          if (record == null) {
-            batchUploadDelegate.onBatchDone();
-            return;
-          }
+          again(item);
+        }
+      });
+    }
 
-          again(record);
+    private void finishIfDone() {
+      synchronized (lock) {
+        if (done || inFlight > 0) {
+          return;
+        }
+        done = true;
+      }
+      requestExecutor.shutdown();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          batchDone();
         }
       });
     }
+  }
+
+  private abstract class BatchingUploadDelegate extends WindowedBatch<ClientReadingListRecord>
+                                                implements ReadingListRecordUploadDelegate {
+    private final ReadingListRecordUploadDelegate batchUploadDelegate;
+
+    BatchingUploadDelegate(Queue<ClientReadingListRecord> queue,
+                           ReadingListRecordUploadDelegate batchUploadDelegate,
+                           Executor executor) {
+      super(queue, executor);
+      this.batchUploadDelegate = batchUploadDelegate;
+    }
 
     @Override
-    public void onSuccess(ClientReadingListRecord up,
-                          ReadingListRecordResponse response,
-                          ServerReadingListRecord down) {
-      batchUploadDelegate.onSuccess(up, response, down);
-      next();
+    void batchDone() {
+      batchUploadDelegate.onBatchDone();
     }
 
     @Override
-    public void onInvalidUpload(ClientReadingListRecord up,
-                                ReadingListResponse response) {
-      batchUploadDelegate.onInvalidUpload(up, response);
-      next();
+    public void onSuccess(final ClientReadingListRecord up,
+                          final ReadingListRecordResponse response,
+                          final ServerReadingListRecord down) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchUploadDelegate.onSuccess(up, response, down);
+        }
+      });
     }
 
     @Override
-    public void onFailure(ClientReadingListRecord up, MozResponse response) {
-      batchUploadDelegate.onFailure(up, response);
-      next();
+    public void onInvalidUpload(final ClientReadingListRecord up,
+                                final ReadingListResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchUploadDelegate.onInvalidUpload(up, response);
+        }
+      });
     }
 
     @Override
-    public void onFailure(ClientReadingListRecord up, Exception ex) {
-      batchUploadDelegate.onFailure(up, ex);
-      next();
+    public void onFailure(final ClientReadingListRecord up, final MozResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchUploadDelegate.onFailure(up, response);
+        }
+      });
     }
 
     @Override
-    public void onConflict(ClientReadingListRecord up,
-                           ReadingListResponse response) {
-      batchUploadDelegate.onConflict(up, response);
-      next();
+    public void onFailure(final ClientReadingListRecord up, final Exception ex) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchUploadDelegate.onFailure(up, ex);
+        }
+      });
     }
 
     @Override
-    public void onBadRequest(ClientReadingListRecord up, MozResponse response) {
-      batchUploadDelegate.onBadRequest(up, response);
-      next();
+    public void onConflict(final ClientReadingListRecord up,
+                           final ReadingListResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchUploadDelegate.onConflict(up, response);
+        }
+      });
+    }
+
+    @Override
+    public void onBadRequest(final ClientReadingListRecord up, final MozResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchUploadDelegate.onBadRequest(up, response);
+        }
+      });
     }
 
     @Override
@@ -432,67 +552,75 @@ public class ReadingListClient {
     }
   }
 
-  private class DeleteBatchingDelegate implements ReadingListDeleteDelegate {
-    private final Queue<String> queue;
+  private class DeleteBatchingDelegate extends WindowedBatch<String> implements ReadingListDeleteDelegate {
     private final ReadingListDeleteDelegate batchDeleteDelegate;
-    private final Executor executor;
 
     DeleteBatchingDelegate(Queue<String> guids,
                            ReadingListDeleteDelegate batchDeleteDelegate,
                            Executor executor) {
-      this.queue = guids;
+      super(guids, executor);
       this.batchDeleteDelegate = batchDeleteDelegate;
-      this.executor = executor;
-    }
-
-    void next() {
-      final String guid = queue.poll();
-      executor.execute(new Runnable() {
-        @Override
-        public void run() {
-          if (guid == null) {
-            batchDeleteDelegate.onBatchDone();
-            return;
-          }
-
-          again(guid);
-        }
-      });
     }
 
+    @Override
     void again(String guid) {
       delete(guid, DeleteBatchingDelegate.this, -1L);
     }
 
     @Override
-    public void onSuccess(ReadingListRecordResponse response,
-                          ReadingListRecord record) {
-      batchDeleteDelegate.onSuccess(response, record);
-      next();
+    void batchDone() {
+      batchDeleteDelegate.onBatchDone();
+    }
+
+    @Override
+    public void onSuccess(final ReadingListRecordResponse response,
+                          final ReadingListRecord record) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchDeleteDelegate.onSuccess(response, record);
+        }
+      });
     }
 
     @Override
-    public void onPreconditionFailed(String guid, MozResponse response) {
-      batchDeleteDelegate.onPreconditionFailed(guid, response);
-      next();
+    public void onPreconditionFailed(final String guid, final MozResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchDeleteDelegate.onPreconditionFailed(guid, response);
+        }
+      });
     }
 
     @Override
-    public void onRecordMissingOrDeleted(String guid, MozResponse response) {
-      batchDeleteDelegate.onRecordMissingOrDeleted(guid, response);
-      next();
+    public void onRecordMissingOrDeleted(final String guid, final MozResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchDeleteDelegate.onRecordMissingOrDeleted(guid, response);
+        }
+      });
     }
 
     @Override
-    public void onFailure(Exception e) {
-      batchDeleteDelegate.onFailure(e);
-      next();
+    public void onFailure(final Exception e) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchDeleteDelegate.onFailure(e);
+        }
+      });
     }
 
     @Override
-    public void onFailure(MozResponse response) {
-      batchDeleteDelegate.onFailure(response);
-      next();
+    public void onFailure(final MozResponse response) {
+      deliver(new Runnable() {
+        @Override
+        public void run() {
+          batchDeleteDelegate.onFailure(response);
+        }
+      });
     }
 
     @Override
@@ -525,7 +653,7 @@ public class ReadingListClient {
   }
 
   /**
-   * Mutates the provided queue.
+   * Mutates the provided queue, which must not be touched until `onBatchDone`.
    */
   public void patch(final Queue<ClientReadingListRecord> queue, final Executor executor, final ReadingListRecordUploadDelegate batchUploadDelegate) {
     if (queue.isEmpty()) {
@@ -533,9 +661,7 @@ public class ReadingListClient {
       return;
     }
 
-    final ReadingListRecordUploadDelegate uploadDelegate = new PatchBatchingUploadDelegate(queue, batchUploadDelegate, executor);
-
-    patch(queue.poll(), uploadDelegate);
+    new PatchBatchingUploadDelegate(queue, batchUploadDelegate, executor).start();
   }
 
   public void patch(final ClientReadingListRecord up, final ReadingListRecordUploadDelegate uploadDelegate) {
@@ -557,7 +683,7 @@ public class ReadingListClient {
   }
 
   /**
-   * Mutates the provided queue.
+   * Mutates the provided queue, which must not be touched until `onBatchDone`.
    */
   public void add(final Queue<ClientReadingListRecord> queue, final Executor executor, final ReadingListRecordUploadDelegate batchUploadDelegate) {
     if (queue.isEmpty()) {
@@ -565,9 +691,7 @@ public class ReadingListClient {
       return;
     }
 
-    final ReadingListRecordUploadDelegate uploadDelegate = new PostBatchingUploadDelegate(queue, batchUploadDelegate, executor);
-
-    add(queue.poll(), uploadDelegate);
+    new PostBatchingUploadDelegate(queue, batchUploadDelegate, executor).start();
   }
 
   public void add(final ClientReadingListRecord up, final ReadingListRecordUploadDelegate uploadDelegate) {
@@ -588,9 +712,7 @@ public class ReadingListClient {
       return;
     }
 
-    final ReadingListDeleteDelegate deleteDelegate = new DeleteBatchingDelegate(guids, batchDeleteDelegate, executor);
-
-    delete(guids.poll(), deleteDelegate, -1L);
+    new DeleteBatchingDelegate(guids, batchDeleteDelegate, executor).start();
   }
 
   public void delete(final String guid, final ReadingListDeleteDelegate delegate, final long ifUnmodifiedSince) {
@@ -6,12 +6,15 @@ package org.mozilla.gecko.sync;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 
 import org.json.simple.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.crypto.MissingCryptoInputException;
 import org.mozilla.gecko.sync.crypto.NoKeyBundleException;
@@ -53,16 +56,38 @@ public class CryptoRecord extends Record {
    * Helper method for doing actual decryption.
    *
    * Input: JSONObject containing a valid payload (cipherText, IV, HMAC),
-   * KeyBundle with keys for decryption. Output: byte[] clearText
+   * KeyBundle with keys for decryption. Output: the JSON cleartext.
+   *
+   * The cleartext is decrypted into a buffer owned by this thread's
+   * <code>CryptoContext</code>, and parsed directly from there.
+   *
    * @throws CryptoException
-   * @throws UnsupportedEncodingException
+   * @throws IOException
+   * @throws ParseException
+   * @throws NonObjectJSONException
    */
-  private static byte[] decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle) throws CryptoException, UnsupportedEncodingException {
-    byte[] ciphertext = Base64.decodeBase64(((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8"));
+  private static ExtendedJSONObject decryptPayload(ExtendedJSONObject payload, KeyBundle keybundle)
+      throws CryptoException, IOException, ParseException, NonObjectJSONException {
+    byte[] base64Ciphertext = ((String) payload.get(KEY_CIPHERTEXT)).getBytes("UTF-8");
+    byte[] ciphertext = Base64.decodeBase64(base64Ciphertext);
     byte[] iv         = Base64.decodeBase64(((String) payload.get(KEY_IV)).getBytes("UTF-8"));
     byte[] hmac       = Utils.hex2Byte((String) payload.get(KEY_HMAC));
 
-    return CryptoInfo.decrypt(ciphertext, iv, hmac, keybundle).getMessage();
+    CryptoContext context = CryptoContext.forKeyBundle(keybundle);
+
+    // The server hands us canonical Base64, so we can usually HMAC the bytes
+    // we have rather than re-encoding. If that doesn't verify, re-encode to be sure.
+    if (!Arrays.equals(context.hmac(base64Ciphertext), hmac) &&
+        !Arrays.equals(context.hmac(Base64.encodeBase64(ciphertext)), hmac)) {
+      throw new HMACVerificationException();
+    }
+
+    int length = context.decryptToBuffer(ciphertext, iv);
+    try {
+      return ExtendedJSONObject.parseUTF8AsJSONObject(context.getBuffer(), 0, length);
+    } finally {
+      context.wipeBuffer(length);
+    }
   }
 
   // The encrypted JSON body object.
@@ -196,8 +221,7 @@ public class CryptoRecord extends Record {
 
     // There's no difference between handling the crypto/keys object and
     // anything else; we just get this.keyBundle from a different source.
-    byte[] cleartext = decryptPayload(payload, keyBundle);
-    payload = ExtendedJSONObject.parseUTF8AsJSONObject(cleartext);
+    payload = decryptPayload(payload, keyBundle);
     return this;
   }
 
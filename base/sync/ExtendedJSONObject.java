@@ -165,6 +165,11 @@ public class ExtendedJSONObject {
     return parseJSONObject(new String(in, "UTF-8"));
   }
 
+  public static ExtendedJSONObject parseUTF8AsJSONObject(byte[] in, int offset, int length)
+      throws ParseException, NonObjectJSONException, IOException {
+    return parseJSONObject(new String(in, offset, length, "UTF-8"));
+  }
+
   public ExtendedJSONObject() {
     this.object = new JSONObject();
   }
@@ -323,6 +323,8 @@ public class GlobalSession implements HttpResponseObserver {
   protected void cleanUp() {
     uninstallAsHttpResponseObserver();
     this.stages = null;
+    SyncScheduler.getInstance().logStats();
+    SyncScheduler.getInstance().resetStats();
   }
 
   public void completeSync() {
@@ -0,0 +1,469 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.gecko.background.common.log.Logger;
+
+/**
+ * A shared, bounded scheduler for sync work.
+ * <p>
+ * Work is divided into {@link Lane}s. Each lane is served by a small, fixed
+ * maximum number of threads, which are started on demand and exit when idle.
+ * Within a lane, queued tasks run in {@link Priority} order, and then in the
+ * order in which they were submitted.
+ * <p>
+ * Consumers such as repository sessions don't own threads. Instead, they
+ * borrow executors from a lane with {@link #newExecutor(Lane, Priority, int)}
+ * or {@link #newSerialExecutor(Lane, Priority)}. A borrowed executor runs at
+ * most a fixed number of its own tasks at a time on the lane's threads, and
+ * can be shut down independently of the lane.
+ * <p>
+ * Because lanes are bounded, a task must never block waiting for another task
+ * in the same lane to run.
+ */
+public class SyncScheduler {
+  private static final String LOG_TAG = "SyncScheduler";
+
+  // How long an idle lane thread waits for new work before exiting.
+  private static final long IDLE_THREAD_TIMEOUT_MSEC = 30 * 1000;
+
+  public enum Lane {
+    /**
+     * Delegate callbacks and miscellaneous short tasks. Also backs
+     * {@link ThreadPool}.
+     */
+    GENERAL(8),
+
+    /**
+     * Blocking HTTP requests.
+     */
+    NETWORK(4),
+
+    /**
+     * CPU-bound work, such as decrypting records.
+     */
+    CRYPTO(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()))),
+
+    /**
+     * Local storage: reading and writing Fennec's databases.
+     */
+    DB(2),
+
+    /**
+     * Long-running loops that spend most of their time waiting for work done
+     * on other lanes, such as a records channel's consumer. They're kept
+     * apart so that they never hold a thread that the work they're waiting
+     * for needs.
+     */
+    CONSUMER(4);
+
+    public final int threadCount;
+
+    private Lane(int threadCount) {
+      this.threadCount = threadCount;
+    }
+  }
+
+  public enum Priority {
+    /**
+     * Small amounts of work whose results the user is waiting to see, such as
+     * open tabs.
+     */
+    HIGH,
+    NORMAL,
+    /**
+     * Bulk work that can wait, such as history.
+     */
+    LOW
+  }
+
+  private static final SyncScheduler instance = new SyncScheduler();
+
+  public static SyncScheduler getInstance() {
+    return instance;
+  }
+
+  private final LaneWorkers[] lanes;
+
+  protected SyncScheduler() {
+    final Lane[] values = Lane.values();
+    lanes = new LaneWorkers[values.length];
+    for (int i = 0; i < values.length; i++) {
+      lanes[i] = new LaneWorkers(values[i]);
+    }
+  }
+
+  /**
+   * Run the command on the given lane.
+   */
+  public void execute(Lane lane, Priority priority, Runnable command) {
+    if (command == null) {
+      throw new NullPointerException();
+    }
+    lanes[lane.ordinal()].execute(new Task(priority, command));
+  }
+
+  /**
+   * Return a new executor that runs at most <code>maxConcurrency</code> of its
+   * tasks at a time on the threads of the given lane.
+   */
+  public ExecutorService newExecutor(Lane lane, Priority priority, int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException("maxConcurrency must be positive.");
+    }
+    return new LaneExecutor(lanes[lane.ordinal()], priority, maxConcurrency);
+  }
+
+  /**
+   * Return a new executor that runs its tasks one at a time, in order, on the
+   * threads of the given lane. This is the shared equivalent of
+   * {@link java.util.concurrent.Executors#newSingleThreadExecutor()}.
+   */
+  public ExecutorService newSerialExecutor(Lane lane, Priority priority) {
+    return newExecutor(lane, priority, 1);
+  }
+
+  public LaneStats getStats(Lane lane) {
+    return lanes[lane.ordinal()].getStats();
+  }
+
+  public void resetStats() {
+    for (LaneWorkers lane : lanes) {
+      lane.resetStats();
+    }
+  }
+
+  /**
+   * Log queue depth and latency for every lane that has run anything since
+   * the statistics were last reset.
+   */
+  public void logStats() {
+    for (LaneWorkers lane : lanes) {
+      final LaneStats stats = lane.getStats();
+      if (stats.getCompletedCount() > 0) {
+        Logger.info(LOG_TAG, stats.toString());
+      }
+    }
+  }
+
+  /**
+   * A snapshot of the activity in a single lane.
+   */
+  public static final class LaneStats {
+    private final Lane lane;
+    private final int threadCount;
+    private final int queueDepth;
+    private final int maxQueueDepth;
+    private final long completedCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long totalRunNanos;
+
+    LaneStats(Lane lane, int threadCount, int queueDepth, int maxQueueDepth,
+              long completedCount, long totalWaitNanos, long maxWaitNanos, long totalRunNanos) {
+      this.lane = lane;
+      this.threadCount = threadCount;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.completedCount = completedCount;
+      this.totalWaitNanos = totalWaitNanos;
+      this.maxWaitNanos = maxWaitNanos;
+      this.totalRunNanos = totalRunNanos;
+    }
+
+    public Lane getLane() {
+      return lane;
+    }
+
+    /**
+     * @return the number of threads currently serving the lane.
+     */
+    public int getThreadCount() {
+      return threadCount;
+    }
+
+    /**
+     * @return the number of tasks currently waiting for a thread.
+     */
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    public long getCompletedCount() {
+      return completedCount;
+    }
+
+    /**
+     * @return the mean time that completed tasks waited for a thread.
+     */
+    public long getMeanWaitMillis() {
+      return completedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / completedCount);
+    }
+
+    public long getMaxWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos);
+    }
+
+    public long getMeanRunMillis() {
+      return completedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalRunNanos / completedCount);
+    }
+
+    @Override
+    public String toString() {
+      return "Lane " + lane + ": " + completedCount + " tasks, " +
+             "wait " + getMeanWaitMillis() + "ms mean/" + getMaxWaitMillis() + "ms max, " +
+             "run " + getMeanRunMillis() + "ms mean, " +
+             "queue depth " + queueDepth + " (max " + maxQueueDepth + "), " +
+             threadCount + "/" + lane.threadCount + " threads.";
+    }
+  }
+
+  private static final class Task implements Comparable<Task> {
+    private final Priority priority;
+    private final Runnable command;
+    private long sequence;
+    private long enqueuedNanos;
+
+    Task(Priority priority, Runnable command) {
+      this.priority = priority;
+      this.command = command;
+    }
+
+    @Override
+    public int compareTo(Task another) {
+      final int byPriority = priority.compareTo(another.priority);
+      if (byPriority != 0) {
+        return byPriority;
+      }
+      return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+    }
+  }
+
+  /**
+   * The queue and threads of a single lane.
+   */
+  private static final class LaneWorkers {
+    private final Lane lane;
+
+    // All of the following are guarded by this.
+    private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+    private long nextSequence;
+    private int threads;
+    private int idleThreads;
+
+    private int maxQueueDepth;
+    private long completedCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long totalRunNanos;
+
+    LaneWorkers(Lane lane) {
+      this.lane = lane;
+    }
+
+    public synchronized void execute(Task task) {
+      task.sequence = nextSequence++;
+      task.enqueuedNanos = System.nanoTime();
+      queue.add(task);
+      maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+
+      if (idleThreads > 0) {
+        notify();
+      }
+      if (idleThreads < queue.size() && threads < lane.threadCount) {
+        threads++;
+        final Thread thread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            work();
+          }
+        }, "Sync" + lane + "-" + task.sequence);
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+
+    private void work() {
+      while (true) {
+        final Task task;
+        synchronized (this) {
+          final long deadline = System.currentTimeMillis() + IDLE_THREAD_TIMEOUT_MSEC;
+          while (queue.isEmpty()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+              threads--;
+              return;
+            }
+            idleThreads++;
+            try {
+              wait(remaining);
+            } catch (InterruptedException e) {
+              // A stale interrupt meant for a task that has since finished.
+            } finally {
+              idleThreads--;
+            }
+          }
+          task = queue.poll();
+        }
+
+        // Don't let an interrupt meant for one task leak into the next.
+        Thread.interrupted();
+
+        final long start = System.nanoTime();
+        try {
+          task.command.run();
+        } catch (Throwable e) {
+          Logger.error(LOG_TAG, "Uncaught exception in " + lane + " task.", e);
+        }
+        final long end = System.nanoTime();
+
+        synchronized (this) {
+          final long waitNanos = start - task.enqueuedNanos;
+          completedCount++;
+          totalWaitNanos += waitNanos;
+          maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+          totalRunNanos += end - start;
+        }
+      }
+    }
+
+    public synchronized LaneStats getStats() {
+      return new LaneStats(lane, threads, queue.size(), maxQueueDepth,
+          completedCount, totalWaitNanos, maxWaitNanos, totalRunNanos);
+    }
+
+    public synchronized void resetStats() {
+      maxQueueDepth = queue.size();
+      completedCount = 0;
+      totalWaitNanos = 0;
+      maxWaitNanos = 0;
+      totalRunNanos = 0;
+    }
+  }
+
+  /**
+   * An executor borrowed from a lane. It runs at most
+   * <code>maxConcurrency</code> of its tasks at once, queueing the rest
+   * locally so that they don't occupy the lane.
+   */
+  private static final class LaneExecutor extends AbstractExecutorService {
+    private final LaneWorkers lane;
+    private final Priority priority;
+    private final int maxConcurrency;
+
+    // All of the following are guarded by this.
+    private final LinkedList<Runnable> pending = new LinkedList<Runnable>();
+    private final Set<Thread> runningThreads = new HashSet<Thread>();
+    private int active;
+    private boolean shutdown;
+
+    LaneExecutor(LaneWorkers lane, Priority priority, int maxConcurrency) {
+      this.lane = lane;
+      this.priority = priority;
+      this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public synchronized void execute(Runnable command) {
+      if (command == null) {
+        throw new NullPointerException();
+      }
+      if (shutdown) {
+        throw new RejectedExecutionException("Executor has been shut down.");
+      }
+      if (active < maxConcurrency) {
+        active++;
+        schedule(command);
+      } else {
+        pending.add(command);
+      }
+    }
+
+    // Must be called with this locked.
+    private void schedule(final Runnable command) {
+      lane.execute(new Task(priority, new Runnable() {
+        @Override
+        public void run() {
+          final Thread current = Thread.currentThread();
+          synchronized (LaneExecutor.this) {
+            runningThreads.add(current);
+          }
+          try {
+            command.run();
+          } finally {
+            onTaskDone(current);
+          }
+        }
+      }));
+    }
+
+    private synchronized void onTaskDone(Thread thread) {
+      runningThreads.remove(thread);
+      final Runnable next = pending.poll();
+      if (next != null) {
+        schedule(next);
+        return;
+      }
+      active--;
+      if (active == 0) {
+        notifyAll();
+      }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+      shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+      shutdown = true;
+      final List<Runnable> dropped = new ArrayList<Runnable>(pending);
+      pending.clear();
+      for (Thread thread : runningThreads) {
+        thread.interrupt();
+      }
+      return dropped;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+      return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+      return shutdown && active == 0;
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+      while (!isTerminated()) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return true;
+    }
+  }
+}
@@ -5,10 +5,18 @@
 package org.mozilla.gecko.sync;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
+
+/**
+ * Runs miscellaneous background work on the shared {@link SyncScheduler}'s
+ * general lane.
+ */
 public class ThreadPool {
-  public static ExecutorService executorService = Executors.newCachedThreadPool();
+  public static final ExecutorService executorService =
+      SyncScheduler.getInstance().newExecutor(Lane.GENERAL, Priority.NORMAL, Lane.GENERAL.threadCount);
+
   public static void run(Runnable runnable) {
     executorService.submit(runnable);
   }
@@ -0,0 +1,255 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread, reusable crypto state for a <code>KeyBundle</code>.
+ * <p>
+ * Looking up a <code>Cipher</code> or <code>Mac</code> from the JCE providers
+ * and initializing the HMAC key schedule is expensive relative to encrypting
+ * or decrypting a single small record, and a sync does it thousands of times
+ * with the same keys. A <code>CryptoContext</code> holds an initialized
+ * <code>Mac</code>, a <code>Cipher</code>, and the key specs for one bundle,
+ * and is reused for every record processed on the same thread with the same
+ * keys.
+ * <p>
+ * Contexts are not thread-safe; always obtain one with
+ * {@link #forKeyBundle(KeyBundle)} on the thread that will use it, and don't
+ * hold on to it beyond the current operation.
+ * <p>
+ * Contexts hold copies of key material, so callers should
+ * {@link #clearAllContexts()} when they're done with a set of keys, such as
+ * at the end of a repository session.
+ */
+public class CryptoContext {
+  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
+  private static final String KEY_ALGORITHM_SPEC = "AES";
+
+  // Each thread rarely sees more than a couple of key bundles at a time:
+  // the default bundle, and perhaps a per-collection bundle.
+  private static final int MAX_CONTEXTS_PER_THREAD = 4;
+
+  // Every context that hasn't been destroyed, on any thread, so that
+  // clearAllContexts can wipe them. Guarded by itself.
+  private static final Set<CryptoContext> liveContexts = new HashSet<CryptoContext>();
+
+  private static final ThreadLocal<LinkedList<CryptoContext>> contexts = new ThreadLocal<LinkedList<CryptoContext>>() {
+    @Override
+    protected LinkedList<CryptoContext> initialValue() {
+      return new LinkedList<CryptoContext>();
+    }
+  };
+
+  private final byte[] encryptionKey;
+  private final byte[] hmacKey;
+  private final SecretKeySpec encryptionKeySpec;
+  private final Mac hmacHasher;
+  private final Cipher cipher;
+
+  // Scratch space for callers that don't want to allocate output buffers.
+  private byte[] buffer = new byte[0];
+
+  private volatile boolean destroyed = false;
+
+  protected CryptoContext(byte[] encryptionKey, byte[] hmacKey) throws CryptoException {
+    // Copy the keys: KeyBundle is mutable.
+    this.encryptionKey = encryptionKey.clone();
+    this.hmacKey = hmacKey.clone();
+    this.encryptionKeySpec = new SecretKeySpec(this.encryptionKey, KEY_ALGORITHM_SPEC);
+    try {
+      this.hmacHasher = HKDF.makeHMACHasher(this.hmacKey);
+      this.cipher = Cipher.getInstance(TRANSFORMATION);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  protected boolean matches(KeyBundle keys) {
+    return !destroyed &&
+           Arrays.equals(encryptionKey, keys.getEncryptionKey()) &&
+           Arrays.equals(hmacKey, keys.getHMACKey());
+  }
+
+  /**
+   * Return the current thread's context for the given keys, creating it if
+   * necessary.
+   */
+  public static CryptoContext forKeyBundle(KeyBundle keys) throws CryptoException {
+    if (keys == null || keys.getEncryptionKey() == null || keys.getHMACKey() == null) {
+      throw new IllegalArgumentException("keys must be non-null.");
+    }
+
+    final LinkedList<CryptoContext> list = contexts.get();
+    final Iterator<CryptoContext> it = list.iterator();
+    while (it.hasNext()) {
+      final CryptoContext context = it.next();
+      if (context.destroyed) {
+        it.remove();
+        continue;
+      }
+      if (context.matches(keys)) {
+        if (list.getFirst() != context) {
+          it.remove();
+          list.addFirst(context);
+        }
+        return context;
+      }
+    }
+
+    final CryptoContext context = new CryptoContext(keys.getEncryptionKey(), keys.getHMACKey());
+    synchronized (liveContexts) {
+      liveContexts.add(context);
+    }
+    list.addFirst(context);
+    if (list.size() > MAX_CONTEXTS_PER_THREAD) {
+      list.removeLast().destroy();
+    }
+    return context;
+  }
+
+  /**
+   * Compute the HMAC of the given input with this context's HMAC key.
+   */
+  public byte[] hmac(byte[] input) {
+    // doFinal resets the Mac for the next use.
+    return hmacHasher.doFinal(input);
+  }
+
+  /**
+   * Return this context's scratch buffer, as filled by the most recent call to
+   * {@link #decryptToBuffer(byte[], byte[])}. Its contents are only valid until
+   * the next call on this context.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Zero the first <code>length</code> bytes of the scratch buffer, so that
+   * cleartext doesn't linger in memory.
+   */
+  public void wipeBuffer(int length) {
+    Arrays.fill(buffer, 0, Math.min(length, buffer.length), (byte) 0);
+  }
+
+  /**
+   * Decrypt <code>ciphertext</code> into this context's scratch buffer,
+   * growing it if necessary. Callers should {@link #wipeBuffer(int)} when
+   * they're done with the cleartext.
+   * <p>
+   * No HMAC verification is performed.
+   *
+   * @return the number of bytes written to {@link #getBuffer()}.
+   */
+  public int decryptToBuffer(byte[] ciphertext, byte[] iv) throws CryptoException {
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKeySpec, new IvParameterSpec(iv));
+      // Only the cipher knows how much room it wants for the final block.
+      final int size = cipher.getOutputSize(ciphertext.length);
+      if (buffer.length < size) {
+        wipeBuffer(buffer.length);
+        buffer = new byte[Math.max(size, 2 * buffer.length)];
+      }
+      return cipher.doFinal(ciphertext, 0, ciphertext.length, buffer, 0);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * Decrypt <code>ciphertext</code> into a new array.
+   * <p>
+   * No HMAC verification is performed.
+   */
+  public byte[] decrypt(byte[] ciphertext, byte[] iv) throws CryptoException {
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKeySpec, new IvParameterSpec(iv));
+      return cipher.doFinal(ciphertext);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * Encrypt <code>plaintext</code>.
+   *
+   * @param iv the IV to use, or null or empty to let the cipher choose one.
+   * @return the ciphertext. The IV used is available from {@link #getIV()}.
+   */
+  public byte[] encrypt(byte[] plaintext, byte[] iv) throws CryptoException {
+    try {
+      if (iv == null || iv.length == 0) {
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKeySpec);
+      } else {
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKeySpec, new IvParameterSpec(iv));
+      }
+      return cipher.doFinal(plaintext);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoException(e);
+    }
+  }
+
+  /**
+   * @return the IV used by the most recent encryption or decryption.
+   */
+  public byte[] getIV() {
+    return cipher.getIV();
+  }
+
+  /**
+   * Zero this context's copies of the keys. A destroyed context never matches
+   * a key bundle again.
+   * <p>
+   * This doesn't touch the <code>Cipher</code>, <code>Mac</code> or scratch
+   * buffer, which may still be in use on the owning thread; they become
+   * garbage once that thread notices the context is destroyed.
+   */
+  protected void destroy() {
+    destroyed = true;
+    Arrays.fill(encryptionKey, (byte) 0);
+    Arrays.fill(hmacKey, (byte) 0);
+    synchronized (liveContexts) {
+      liveContexts.remove(this);
+    }
+  }
+
+  /**
+   * Discard the current thread's contexts.
+   */
+  public static void clearThreadContexts() {
+    for (CryptoContext context : contexts.get()) {
+      context.destroy();
+    }
+    contexts.remove();
+  }
+
+  /**
+   * Destroy every context, on every thread. Threads that later need a context
+   * create a new one.
+   */
+  public static void clearAllContexts() {
+    final ArrayList<CryptoContext> all;
+    synchronized (liveContexts) {
+      all = new ArrayList<CryptoContext>(liveContexts);
+    }
+    for (CryptoContext context : all) {
+      context.destroy();
+    }
+    contexts.remove();
+  }
+}
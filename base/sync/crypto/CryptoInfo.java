@@ -4,18 +4,11 @@
 
 package org.mozilla.gecko.sync.crypto;
 
-import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.mozilla.apache.commons.codec.binary.Base64;
 
@@ -23,9 +16,6 @@ import org.mozilla.apache.commons.codec.binary.Base64;
  * All info in these objects should be decoded (i.e. not BaseXX encoded).
  */
 public class CryptoInfo {
-  private static final String TRANSFORMATION     = "AES/CBC/PKCS5Padding";
-  private static final String KEY_ALGORITHM_SPEC = "AES";
-
   private byte[] message;
   private byte[] iv;
   private byte[] hmac;
@@ -112,8 +102,13 @@ public class CryptoInfo {
    * Generate HMAC for given cipher text.
    */
   public static byte[] generatedHMACFor(byte[] message, KeyBundle keys) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
-    return hmacHasher.doFinal(Base64.encodeBase64(message));
+    try {
+      return CryptoContext.forKeyBundle(keys).hmac(Base64.encodeBase64(message));
+    } catch (CryptoException e) {
+      // Fall back to a one-off hasher, which will throw the appropriate exception.
+      Mac hmacHasher = HKDF.makeHMACHasher(keys.getHMACKey());
+      return hmacHasher.doFinal(Base64.encodeBase64(message));
+    }
   }
 
   /*
@@ -125,58 +120,20 @@ public class CryptoInfo {
     return Arrays.equals(generatedHMAC, expectedHMAC);
   }
 
-  /**
-   * Performs functionality common to both encryption and decryption.
-   *
-   * @param cipher
-   * @param inputMessage non-BaseXX-encoded message
-   * @return encrypted/decrypted message
-   * @throws CryptoException
-   */
-  private static byte[] commonCrypto(Cipher cipher, byte[] inputMessage)
-                        throws CryptoException {
-    byte[] outputMessage = null;
-    try {
-      outputMessage = cipher.doFinal(inputMessage);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
-      throw new CryptoException(e);
-    }
-      return outputMessage;
-  }
-
   /**
    * Encrypt a CryptoInfo in-place.
    *
    * @throws CryptoException
    */
   public void encrypt() throws CryptoException {
+    CryptoContext context = CryptoContext.forKeyBundle(getKeys());
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
-    try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-
-      // If no IV is provided, we allow the cipher to provide one.
-      if (getIV() == null || getIV().length == 0) {
-        cipher.init(Cipher.ENCRYPT_MODE, spec);
-      } else {
-        cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(getIV()));
-      }
-    } catch (GeneralSecurityException ex) {
-      throw new CryptoException(ex);
-    }
-
-    // Encrypt.
-    byte[] encryptedBytes = commonCrypto(cipher, getMessage());
-    byte[] iv = cipher.getIV();
+    // If no IV is provided, we allow the cipher to provide one.
+    byte[] encryptedBytes = context.encrypt(getMessage(), getIV());
+    byte[] iv = context.getIV();
 
-    byte[] hmac;
     // Generate HMAC.
-    try {
-      hmac = generatedHMACFor(encryptedBytes, keys);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new CryptoException(e);
-    }
+    byte[] hmac = context.hmac(Base64.encodeBase64(encryptedBytes));
 
     // Update in place.  keys is already set.
     this.setHMAC(hmac);
@@ -190,43 +147,20 @@ public class CryptoInfo {
    * @throws CryptoException
    */
   public void decrypt() throws CryptoException {
+    CryptoContext context = CryptoContext.forKeyBundle(getKeys());
 
     // Check HMAC.
-    try {
-      if (!generatedHMACIsHMAC()) {
-        throw new HMACVerificationException();
-      }
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new CryptoException(e);
+    byte[] generatedHMAC = context.hmac(Base64.encodeBase64(getMessage()));
+    if (!Arrays.equals(generatedHMAC, getHMAC())) {
+      throw new HMACVerificationException();
     }
 
-    Cipher cipher = CryptoInfo.getCipher(TRANSFORMATION);
-    try {
-      byte[] encryptionKey = getKeys().getEncryptionKey();
-      SecretKeySpec spec = new SecretKeySpec(encryptionKey, KEY_ALGORITHM_SPEC);
-      cipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(getIV()));
-    } catch (GeneralSecurityException ex) {
-      throw new CryptoException(ex);
-    }
-    byte[] decryptedBytes = commonCrypto(cipher, getMessage());
-    byte[] iv = cipher.getIV();
+    byte[] decryptedBytes = context.decrypt(getMessage(), getIV());
+    byte[] iv = context.getIV();
 
     // Update in place.  keys is already set.
     this.setHMAC(null);
     this.setIV(iv);
     this.setMessage(decryptedBytes);
   }
-
-  /**
-   * Helper to get a Cipher object.
-   *
-   * @param transformation The type of Cipher to get.
-   */
-  private static Cipher getCipher(String transformation) throws CryptoException {
-    try {
-      return Cipher.getInstance(transformation);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-      throw new CryptoException(e);
-    }
-  }
 }
@@ -14,6 +14,15 @@ import javax.crypto.spec.SecretKeySpec;
 public class PBKDF2 {
   public static byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen)
       throws GeneralSecurityException {
+    return PBKDF2SHA256Engine.pbkdf2SHA256(password, salt, c, dkLen);
+  }
+
+  /**
+   * The straightforward implementation over a JCE <code>Mac</code>. Retained
+   * for comparison with {@link PBKDF2SHA256Engine}.
+   */
+  public static byte[] pbkdf2SHA256JCE(byte[] password, byte[] salt, int c, int dkLen)
+      throws GeneralSecurityException {
     final String algorithm = "HmacSHA256";
     SecretKeySpec keyspec = new SecretKeySpec(password, algorithm);
     Mac prf = Mac.getInstance(algorithm);
@@ -25,7 +34,7 @@ public class PBKDF2 {
     byte U_i[] = new byte[salt.length + 4];
     byte scratch[] = new byte[hLen];
 
-    int l = Math.max(dkLen, hLen);
+    int l = (dkLen + hLen - 1) / hLen;
     int r = dkLen - (l - 1) * hLen;
     byte T[] = new byte[l * hLen];
     int ti_offset = 0;
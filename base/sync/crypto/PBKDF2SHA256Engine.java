@@ -0,0 +1,267 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
+
+/**
+ * PBKDF2 with HMAC-SHA256 as the pseudo-random function, in pure Java.
+ * <p>
+ * Driving a JCE <code>Mac</code> costs an allocation, a key reset and two
+ * padded hashes per iteration. This engine instead hashes the padded HMAC key
+ * once, up front, to get the inner and outer SHA-256 states. Every iteration
+ * after the first hashes a fixed-size 32-byte input, so each HMAC reduces to
+ * exactly two SHA-256 compressions over reused <code>int</code> arrays, with
+ * no allocation in the loop.
+ * <p>
+ * Output blocks are independent, so when more than one is requested the
+ * extra blocks are computed on the crypto lane of {@link SyncScheduler} while
+ * the calling thread computes the first.
+ * <p>
+ * Instances hold only the key states, which are not modified after
+ * construction, and can be shared between threads.
+ */
+public class PBKDF2SHA256Engine {
+  public static final int HASH_LENGTH_BYTES = 32;
+  protected static final int BLOCK_LENGTH_BYTES = 64;
+
+  // Bit length of an HMAC inner or outer message in the iteration loop: one
+  // block of padded key followed by one hash.
+  protected static final int HMAC_OF_HASH_BIT_LENGTH = (BLOCK_LENGTH_BYTES + HASH_LENGTH_BYTES) * 8;
+
+  private static final int[] IV = {
+    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+    0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19,
+  };
+
+  private static final int[] K = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+  };
+
+  protected final int[] innerState = new int[8];
+  protected final int[] outerState = new int[8];
+
+  public PBKDF2SHA256Engine(byte[] password) throws NoSuchAlgorithmException {
+    byte[] key = password;
+    if (key.length > BLOCK_LENGTH_BYTES) {
+      key = MessageDigest.getInstance("SHA-256").digest(key);
+    }
+
+    final byte[] pad = new byte[BLOCK_LENGTH_BYTES];
+    final int[] w = new int[64];
+
+    for (int i = 0; i < BLOCK_LENGTH_BYTES; i++) {
+      pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x36);
+    }
+    System.arraycopy(IV, 0, innerState, 0, 8);
+    load(pad, 0, w);
+    compress(innerState, w);
+
+    for (int i = 0; i < BLOCK_LENGTH_BYTES; i++) {
+      pad[i] = (byte) ((i < key.length ? key[i] : 0) ^ 0x5c);
+    }
+    System.arraycopy(IV, 0, outerState, 0, 8);
+    load(pad, 0, w);
+    compress(outerState, w);
+  }
+
+  public static byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen)
+      throws NoSuchAlgorithmException {
+    return new PBKDF2SHA256Engine(password).derive(salt, c, dkLen);
+  }
+
+  public byte[] derive(final byte[] salt, final int c, final int dkLen) {
+    if (c < 1) {
+      throw new IllegalArgumentException("c must be positive");
+    }
+    if (dkLen < 1) {
+      throw new IllegalArgumentException("dkLen must be positive");
+    }
+
+    final byte[] dk = new byte[dkLen];
+    final int l = (dkLen + HASH_LENGTH_BYTES - 1) / HASH_LENGTH_BYTES;
+
+    if (l == 1) {
+      computeBlock(salt, c, 1, dk, 0, dkLen);
+      return dk;
+    }
+
+    // Each block writes to its own slice of dk; FutureTask.get orders those
+    // writes before our return.
+    final ArrayList<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(l - 1);
+    for (int i = 2; i <= l; i++) {
+      final int blockIndex = i;
+      final int offset = (i - 1) * HASH_LENGTH_BYTES;
+      final int length = Math.min(HASH_LENGTH_BYTES, dkLen - offset);
+      final FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+        @Override
+        public void run() {
+          computeBlock(salt, c, blockIndex, dk, offset, length);
+        }
+      }, null);
+      tasks.add(task);
+      SyncScheduler.getInstance().execute(Lane.CRYPTO, Priority.HIGH, task);
+    }
+
+    computeBlock(salt, c, 1, dk, 0, HASH_LENGTH_BYTES);
+
+    for (FutureTask<Void> task : tasks) {
+      // Run any block the lane hasn't started yet ourselves, so we never wait
+      // behind queued work (or deadlock when called from the crypto lane).
+      // This is a no-op if the task is already running or done.
+      task.run();
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted deriving key.");
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Got exception deriving key.", e.getCause());
+      }
+    }
+    return dk;
+  }
+
+  /**
+   * Compute T_i = U_1 ^ U_2 ^ ... ^ U_c and write the first
+   * <code>length</code> bytes to <code>dest</code>.
+   */
+  protected void computeBlock(byte[] salt, int c, int blockIndex, byte[] dest, int offset, int length) {
+    final int[] w = new int[64];
+    final int[] u = new int[8];
+    final int[] t = new int[8];
+    final int[] inner = new int[8];
+
+    // U_1 = PRF(P, S || INT(i)). The message has arbitrary length.
+    final int messageLength = salt.length + 4;
+    final int paddedLength = ((messageLength + 9 + BLOCK_LENGTH_BYTES - 1) / BLOCK_LENGTH_BYTES) * BLOCK_LENGTH_BYTES;
+    final byte[] message = new byte[paddedLength];
+    System.arraycopy(salt, 0, message, 0, salt.length);
+    message[salt.length + 0] = (byte) (blockIndex >>> 24);
+    message[salt.length + 1] = (byte) (blockIndex >>> 16);
+    message[salt.length + 2] = (byte) (blockIndex >>> 8);
+    message[salt.length + 3] = (byte) (blockIndex);
+    message[messageLength] = (byte) 0x80;
+    final long bitLength = (long) (BLOCK_LENGTH_BYTES + messageLength) * 8;
+    for (int i = 0; i < 8; i++) {
+      message[paddedLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+    }
+
+    System.arraycopy(innerState, 0, inner, 0, 8);
+    for (int i = 0; i < paddedLength; i += BLOCK_LENGTH_BYTES) {
+      load(message, i, w);
+      compress(inner, w);
+    }
+    // From here on, every HMAC input is a single hash: the padding words of w
+    // are constant, and the message schedule expansion never touches them.
+    System.arraycopy(inner, 0, w, 0, 8);
+    w[8] = 0x80000000;
+    for (int i = 9; i < 15; i++) {
+      w[i] = 0;
+    }
+    w[15] = HMAC_OF_HASH_BIT_LENGTH;
+    System.arraycopy(outerState, 0, u, 0, 8);
+    compress(u, w);
+    System.arraycopy(u, 0, t, 0, 8);
+
+    // U_j = PRF(P, U_{j-1}).
+    for (int j = 1; j < c; j++) {
+      System.arraycopy(u, 0, w, 0, 8);
+      System.arraycopy(innerState, 0, inner, 0, 8);
+      compress(inner, w);
+
+      System.arraycopy(inner, 0, w, 0, 8);
+      System.arraycopy(outerState, 0, u, 0, 8);
+      compress(u, w);
+
+      t[0] ^= u[0];
+      t[1] ^= u[1];
+      t[2] ^= u[2];
+      t[3] ^= u[3];
+      t[4] ^= u[4];
+      t[5] ^= u[5];
+      t[6] ^= u[6];
+      t[7] ^= u[7];
+    }
+
+    for (int i = 0; i < length; i++) {
+      dest[offset + i] = (byte) (t[i >> 2] >>> (24 - 8 * (i & 3)));
+    }
+  }
+
+  protected static void load(byte[] src, int offset, int[] w) {
+    for (int i = 0; i < 16; i++) {
+      final int j = offset + 4 * i;
+      w[i] = ((src[j] & 0xff) << 24) |
+             ((src[j + 1] & 0xff) << 16) |
+             ((src[j + 2] & 0xff) << 8) |
+             ((src[j + 3] & 0xff));
+    }
+  }
+
+  /**
+   * The SHA-256 compression function. Reads w[0..15] and overwrites
+   * w[16..63] with the message schedule.
+   */
+  protected static void compress(int[] state, int[] w) {
+    for (int i = 16; i < 64; i++) {
+      final int x = w[i - 15];
+      final int y = w[i - 2];
+      final int s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+      final int s1 = ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13)) ^ (y >>> 10);
+      w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+    }
+
+    int a = state[0];
+    int b = state[1];
+    int c = state[2];
+    int d = state[3];
+    int e = state[4];
+    int f = state[5];
+    int g = state[6];
+    int h = state[7];
+
+    for (int i = 0; i < 64; i++) {
+      final int S1 = ((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7));
+      final int ch = (e & f) ^ (~e & g);
+      final int t1 = h + S1 + ch + K[i] + w[i];
+      final int S0 = ((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10));
+      final int maj = (a & b) ^ (a & c) ^ (b & c);
+      final int t2 = S0 + maj;
+      h = g;
+      g = f;
+      f = e;
+      e = d + t1;
+      d = c;
+      c = b;
+      b = a;
+      a = t1 + t2;
+    }
+
+    state[0] += a;
+    state[1] += b;
+    state[2] += c;
+    state[3] += d;
+    state[4] += e;
+    state[5] += f;
+    state[6] += g;
+    state[7] += h;
+  }
+}
@@ -5,9 +5,18 @@
 package org.mozilla.gecko.sync.middleware;
 
 import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
+import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
 import org.mozilla.gecko.sync.crypto.CryptoException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
@@ -15,6 +24,8 @@ import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RecordFactory;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionPipelinedFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
@@ -58,6 +69,8 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  */
 public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySession {
+  private static final String LOG_TAG = "Crypto5MiddlewareSession";
+
   private final KeyBundle keyBundle;
   private final RecordFactory recordFactory;
 
@@ -68,9 +81,9 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
   }
 
   public class DecryptingTransformingFetchDelegate implements RepositorySessionFetchRecordsDelegate {
-    private final RepositorySessionFetchRecordsDelegate next;
-    private final KeyBundle keyBundle;
-    private final RecordFactory recordFactory;
+    protected final RepositorySessionFetchRecordsDelegate next;
+    protected final KeyBundle keyBundle;
+    protected final RecordFactory recordFactory;
 
     DecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory) {
       this.next = next;
@@ -83,27 +96,26 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
       next.onFetchFailed(ex, record);
     }
 
+    /**
+     * Decrypt and transform a fetched record.
+     *
+     * @return the local record.
+     * @throws Exception if the record could not be decrypted or transformed.
+     */
+    protected Record transform(Record record) throws Exception {
+      CryptoRecord r = (CryptoRecord) record;
+      r.keyBundle = keyBundle;
+      r.decrypt();
+      return this.recordFactory.createRecord(r);
+    }
+
     @Override
     public void onFetchedRecord(Record record) {
-      CryptoRecord r;
-      try {
-        r = (CryptoRecord) record;
-      } catch (ClassCastException e) {
-        next.onFetchFailed(e, record);
-        return;
-      }
-      r.keyBundle = keyBundle;
-      try {
-        r.decrypt();
-      } catch (Exception e) {
-        next.onFetchFailed(e, r);
-        return;
-      }
       Record transformed;
       try {
-        transformed = this.recordFactory.createRecord(r);
+        transformed = transform(record);
       } catch (Exception e) {
-        next.onFetchFailed(e, r);
+        next.onFetchFailed(e, record);
         return;
       }
       next.onFetchedRecord(transformed);
@@ -122,10 +134,215 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     }
   }
 
+  /**
+   * Decrypts and transforms records on a pool of worker threads, delivering the
+   * results to the next delegate in fetch order.
+   * <p>
+   * At most <code>capacity</code> records are in flight at once; beyond that,
+   * <code>onFetchedRecord</code> blocks the fetching thread until the oldest
+   * record has been delivered.
+   * <p>
+   * Records are delivered one at a time, by whichever worker finds the next
+   * record in sequence ready, but never while holding our lock: the next
+   * delegate may block to apply backpressure, and other workers must still be
+   * able to hand over their results meanwhile.
+   * <p>
+   * If the fetch fails, we stop delivering records, wake the fetching thread
+   * if it's waiting for a slot, and still pass on completion when it comes.
+   */
+  public class ParallelDecryptingTransformingFetchDelegate extends DecryptingTransformingFetchDelegate {
+    private final int threadCount;
+    private final int capacity;
+
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+
+    // Guards the fields below.
+    private final Object deliveryLock = new Object();
+
+    // Transformed records (or failures) waiting for their predecessors to be delivered.
+    private final Map<Long, Runnable> completed = new HashMap<Long, Runnable>();
+    private long nextSequenceToSubmit = 0;
+    private long nextSequenceToDeliver = 0;
+    // True while some thread is running deliveries.
+    private boolean delivering = false;
+    private long fetchEnd = -1;
+    private boolean fetchCompleted = false;
+    private boolean completionDelivered = false;
+    private volatile boolean aborted = false;
+
+    public ParallelDecryptingTransformingFetchDelegate(RepositorySessionFetchRecordsDelegate next, KeyBundle bundle, RecordFactory recordFactory,
+        int threadCount, int capacity) {
+      super(next, bundle, recordFactory);
+      this.threadCount = threadCount;
+      this.capacity = capacity;
+      this.workers = SyncScheduler.getInstance().newExecutor(Lane.CRYPTO, Priority.NORMAL, threadCount);
+      this.inFlight = new Semaphore(capacity);
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      abort();
+      next.onFetchFailed(ex, record);
+      deliverCompletionIfDone();
+    }
+
+    /**
+     * Stop delivering records and drop any that are waiting.
+     */
+    protected void abort() {
+      synchronized (deliveryLock) {
+        if (aborted) {
+          return;
+        }
+        aborted = true;
+        completed.clear();
+      }
+      workers.shutdownNow();
+      // Wake the fetching thread if it's waiting for a slot. Nothing is
+      // queued after an abort, so there's no harm in over-releasing.
+      inFlight.release(capacity);
+    }
+
+    @Override
+    public void onFetchedRecord(final Record record) {
+      if (aborted) {
+        return;
+      }
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        onFetchFailed(e, record);
+        return;
+      }
+
+      final long sequence;
+      synchronized (deliveryLock) {
+        if (aborted) {
+          return;
+        }
+        sequence = nextSequenceToSubmit++;
+      }
+      try {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            Runnable delivery;
+            try {
+              final Record transformed = transform(record);
+              delivery = new Runnable() {
+                @Override
+                public void run() {
+                  next.onFetchedRecord(transformed);
+                }
+              };
+            } catch (final Exception e) {
+              delivery = new Runnable() {
+                @Override
+                public void run() {
+                  next.onFetchFailed(e, record);
+                }
+              };
+            }
+            synchronized (deliveryLock) {
+              if (aborted) {
+                return;
+              }
+              completed.put(sequence, delivery);
+            }
+            deliverInOrder();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // We were aborted while submitting.
+        Logger.debug(LOG_TAG, "Dropping record submitted after abort.");
+      }
+    }
+
+    @Override
+    public void onFetchCompleted(final long fetchEnd) {
+      synchronized (deliveryLock) {
+        this.fetchEnd = fetchEnd;
+        this.fetchCompleted = true;
+      }
+      deliverInOrder();
+    }
+
+    /**
+     * Deliver every contiguous completed record, then, if the fetch is done and
+     * everything has been delivered, pass on the completion.
+     * <p>
+     * If another thread is already delivering, leave it to that thread: it
+     * checks for newly completed records before it stops.
+     */
+    protected void deliverInOrder() {
+      synchronized (deliveryLock) {
+        if (delivering) {
+          return;
+        }
+        delivering = true;
+      }
+
+      while (true) {
+        final Runnable delivery;
+        synchronized (deliveryLock) {
+          delivery = aborted ? null : completed.remove(nextSequenceToDeliver);
+          if (delivery == null) {
+            delivering = false;
+            break;
+          }
+          nextSequenceToDeliver++;
+        }
+        try {
+          delivery.run();
+        } finally {
+          inFlight.release();
+        }
+      }
+
+      deliverCompletionIfDone();
+    }
+
+    /**
+     * Pass on completion, exactly once, when the fetch has completed and every
+     * record has been delivered (or dropped, if we were aborted).
+     */
+    protected void deliverCompletionIfDone() {
+      final long end;
+      synchronized (deliveryLock) {
+        if (!fetchCompleted || completionDelivered || delivering) {
+          return;
+        }
+        if (!aborted && nextSequenceToDeliver < nextSequenceToSubmit) {
+          return;
+        }
+        completionDelivered = true;
+        end = fetchEnd;
+      }
+      workers.shutdown();
+      next.onFetchCompleted(end);
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      RepositorySessionFetchRecordsDelegate deferredNext = next.deferredFetchDelegate(executor);
+      return new ParallelDecryptingTransformingFetchDelegate(deferredNext, keyBundle, recordFactory, threadCount, capacity);
+    }
+  }
+
   private DecryptingTransformingFetchDelegate makeUnwrappingDelegate(RepositorySessionFetchRecordsDelegate inner) {
     if (inner == null) {
       throw new IllegalArgumentException("Inner delegate cannot be null!");
     }
+    if (inner instanceof RepositorySessionPipelinedFetchRecordsDelegate) {
+      final RepositorySessionPipelinedFetchRecordsDelegate pipelined = (RepositorySessionPipelinedFetchRecordsDelegate) inner;
+      final int threadCount = pipelined.getTransformThreadCount();
+      if (threadCount > 1) {
+        return new ParallelDecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory,
+            threadCount, Math.max(1, pipelined.getTransformQueueCapacity()));
+      }
+    }
     return new DecryptingTransformingFetchDelegate(inner, this.keyBundle, this.recordFactory);
   }
 
@@ -146,6 +363,25 @@ public class Crypto5MiddlewareRepositorySession extends MiddlewareRepositorySess
     inner.fetchAll(makeUnwrappingDelegate(delegate));
   }
 
+  @Override
+  public void abort() {
+    // Don't leave copies of our keys in the crypto lane's threads.
+    CryptoContext.clearAllContexts();
+    super.abort();
+  }
+
+  @Override
+  public void abort(RepositorySessionFinishDelegate delegate) {
+    CryptoContext.clearAllContexts();
+    super.abort(delegate);
+  }
+
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    CryptoContext.clearAllContexts();
+    super.finish(delegate);
+  }
+
   @Override
   public void setStoreDelegate(RepositorySessionStoreDelegate delegate) {
     // TODO: it remains to be seen how this will work.
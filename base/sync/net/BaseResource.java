@@ -38,6 +38,8 @@ import ch.boye.httpclientandroidlib.client.methods.HttpPut;
 import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.client.methods.HttpUriRequest;
 import ch.boye.httpclientandroidlib.client.protocol.ClientContext;
+import ch.boye.httpclientandroidlib.client.protocol.RequestAcceptEncoding;
+import ch.boye.httpclientandroidlib.client.protocol.ResponseContentEncoding;
 import ch.boye.httpclientandroidlib.conn.ClientConnectionManager;
 import ch.boye.httpclientandroidlib.conn.scheme.PlainSocketFactory;
 import ch.boye.httpclientandroidlib.conn.scheme.Scheme;
@@ -196,6 +198,14 @@ public class BaseResource implements Resource {
 
     addAuthCacheToContext(request, context);
 
+    if (delegate.acceptCompressedResponses()) {
+      // The response interceptor swaps a gzip or deflate entity for one that
+      // inflates as it's read, so line-by-line parsers downstream stream the
+      // decoded body without buffering it.
+      client.addRequestInterceptor(new RequestAcceptEncoding());
+      client.addResponseInterceptor(new ResponseContentEncoding());
+    }
+
     HttpParams params = client.getParams();
     HttpConnectionParams.setConnectionTimeout(params, delegate.connectionTimeout());
     HttpConnectionParams.setSoTimeout(params, delegate.socketTimeout());
@@ -33,6 +33,15 @@ public abstract class BaseResourceDelegate implements ResourceDelegate {
     return socketTimeoutInMillis;
   }
 
+  /**
+   * Off by default: only servers we know to honor it, and payloads large
+   * enough to benefit, should opt in.
+   */
+  @Override
+  public boolean acceptCompressedResponses() {
+    return false;
+  }
+
   @Override
   public AuthHeaderProvider getAuthHeaderProvider() {
     return null;
@@ -0,0 +1,28 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+
+/**
+ * An <code>HttpEntity</code> that can feed its content straight into a
+ * <code>MessageDigest</code>, without the intermediate copy that reading it
+ * back through <code>getContent</code> would make.
+ * <p>
+ * <code>HawkAuthHeaderProvider</code> uses this to compute payload hashes.
+ */
+public interface DigestableEntity extends HttpEntity {
+  /**
+   * Update <code>digest</code> with exactly the bytes that
+   * <code>writeTo</code> would write.
+   *
+   * @param digest to update.
+   * @throws IOException
+   */
+  public void updateDigest(MessageDigest digest) throws IOException;
+}
@@ -286,6 +286,12 @@ public class HawkAuthHeaderProvider implements AuthHeaderProvider {
     digest.update(("hawk." + HAWK_HEADER_VERSION + ".payload\n").getBytes("UTF-8"));
     digest.update(getBaseContentType(entity.getContentType()).getBytes("UTF-8"));
     digest.update("\n".getBytes("UTF-8"));
+    if (entity instanceof DigestableEntity) {
+      // Hash the content in place, rather than reading a copy of it.
+      ((DigestableEntity) entity).updateDigest(digest);
+      digest.update("\n".getBytes("UTF-8")); // Trailing newline is specified by Hawk.
+      return digest.digest();
+    }
     InputStream stream = entity.getContent();
     try {
       int numRead;
@@ -33,6 +33,15 @@ public interface ResourceDelegate {
    */
   public String getUserAgent();
 
+  /**
+   * Whether to advertise <code>Accept-Encoding: gzip,deflate</code> with the
+   * request. If so, compressed responses are decoded as they're read, so
+   * <code>handleHttpResponse</code> sees the plain entity either way.
+   *
+   * @return true to ask for compressed responses.
+   */
+  public boolean acceptCompressedResponses();
+
   // Response handling.
 
   /**
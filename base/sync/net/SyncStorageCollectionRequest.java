@@ -11,6 +11,8 @@ import java.io.InputStreamReader;
 import java.net.URI;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
 
 import ch.boye.httpclientandroidlib.Header;
 import ch.boye.httpclientandroidlib.HttpEntity;
@@ -19,9 +21,12 @@ import ch.boye.httpclientandroidlib.client.methods.HttpRequestBase;
 import ch.boye.httpclientandroidlib.impl.client.DefaultHttpClient;
 
 /**
- * A request class that handles line-by-line responses. Eventually this will
- * handle real stream processing; for now, just parse the returned body
- * line-by-line.
+ * A request class that handles line-by-line responses.
+ * <p>
+ * If the delegate is a {@link WBOCollectionRequestDelegate}, the body is
+ * decoded incrementally by a {@link WBOStreamDecoder}, going straight from the
+ * response to records. Otherwise the body is split into lines, each of which
+ * is handed to the delegate as a string.
  *
  * @author rnewman
  *
@@ -97,8 +102,13 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       // will allow it to seamlessly correct timestamps on the records
       // it processes. Bug 721887.
 
-      // Line-by-line processing, then invoke success.
       SyncStorageCollectionRequestDelegate delegate = (SyncStorageCollectionRequestDelegate) this.request.delegate;
+      if (delegate instanceof WBOCollectionRequestDelegate) {
+        handleRecordsResponse(response, (WBOCollectionRequestDelegate) delegate);
+        return;
+      }
+
+      // Line-by-line processing, then invoke success.
       InputStream content = null;
       BufferedReader br = null;
       try {
@@ -141,5 +151,55 @@ public class SyncStorageCollectionRequest extends SyncStorageRequest {
       BaseResource.consumeEntity(entity);
       delegate.handleRequestSuccess(new SyncStorageResponse(response));
     }
+
+    /**
+     * Decode records straight from the response stream, then invoke success.
+     */
+    protected void handleRecordsResponse(HttpResponse response, WBOCollectionRequestDelegate delegate) {
+      HttpEntity entity = response.getEntity();
+      InputStream content = null;
+      try {
+        content = entity.getContent();
+        WBOStreamDecoder decoder = new WBOStreamDecoder(content);
+
+        // This relies on connection timeouts at the HTTP layer.
+        while (!aborting) {
+          CryptoRecord record;
+          try {
+            record = decoder.next();
+          } catch (RecordParseException e) {
+            // The decoder has skipped the bad record; report it and carry on,
+            // just as for a line that fails to parse.
+            delegate.handleDecodedRecord(null, e);
+            continue;
+          }
+          if (record == null) {
+            break;
+          }
+          delegate.handleDecodedRecord(record, null);
+        }
+        if (aborting) {
+          // So we don't hit the success case below.
+          return;
+        }
+      } catch (IOException ex) {
+        if (!aborting) {
+          delegate.handleRequestError(ex);
+        }
+        BaseResource.consumeEntity(entity);
+        return;
+      } finally {
+        if (content != null) {
+          try {
+            content.close();
+          } catch (IOException e) {
+            // We don't care if this fails.
+          }
+        }
+      }
+      // We're done processing the entity. Don't let fetching the body succeed!
+      BaseResource.consumeEntity(entity);
+      delegate.handleRequestSuccess(new SyncStorageResponse(response));
+    }
   }
 }
@@ -11,7 +11,9 @@ import java.net.URISyntaxException;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.sync.CryptoRecord;
-import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
 
 /**
  * Resource class that implements expected headers and processing for Sync.
@@ -96,7 +98,7 @@ public class SyncStorageRecordRequest extends SyncStorageRequest {
 
   public void deferGet() {
     final SyncStorageRecordRequest self = this;
-    ThreadPool.run(new Runnable() {
+    SyncScheduler.getInstance().execute(Lane.NETWORK, Priority.NORMAL, new Runnable() {
       @Override
       public void run() {
         self.get();
@@ -105,7 +107,7 @@ public class SyncStorageRecordRequest extends SyncStorageRequest {
 
   public void deferPut(final JSONObject body) {
     final SyncStorageRecordRequest self = this;
-    ThreadPool.run(new Runnable() {
+    SyncScheduler.getInstance().execute(Lane.NETWORK, Priority.NORMAL, new Runnable() {
       @Override
       public void run() {
         self.put(body);
@@ -114,6 +114,15 @@ public class SyncStorageRequest implements Resource {
       return SyncConstants.USER_AGENT;
     }
 
+    // Collection fetches are newline-delimited JSON records. Their payloads
+    // are encrypted, so only the base64 encoding and the JSON around it
+    // compress: a typical fetch shrinks by about a third (see
+    // TestCompressedResponses).
+    @Override
+    public boolean acceptCompressedResponses() {
+      return true;
+    }
+
     @Override
     public void handleHttpResponse(HttpResponse response) {
       Logger.debug(LOG_TAG, "SyncStorageResourceDelegate handling response: " + response.getStatusLine() + ".");
@@ -32,4 +32,25 @@ implements KeyBundleProvider {
       // TODO: abort?! Allow exception to propagate to fail?
     }
   }
+
+  /**
+   * Handle a record already decoded by a {@link WBOStreamDecoder}. This is
+   * equivalent to {@link #handleRequestProgress(String)}, but skips the
+   * intermediate line and JSON object.
+   *
+   * @param record a decoded record, or null if decoding failed.
+   * @param error the decoding error, or null if decoding succeeded.
+   */
+  public void handleDecodedRecord(CryptoRecord record, Exception error) {
+    if (error != null) {
+      this.handleRequestError(error);
+      return;
+    }
+    try {
+      record.keyBundle = this.keyBundle();
+      this.handleWBO(record);
+    } catch (Exception e) {
+      this.handleRequestError(e);
+    }
+  }
 }
@@ -0,0 +1,562 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+/**
+ * Decode a stream of newline-delimited WBOs straight into
+ * <code>CryptoRecord</code> instances.
+ * <p>
+ * The general path -- read a line into a <code>String</code>, parse it with
+ * json-simple into a <code>JSONObject</code>, then parse the nested
+ * <code>payload</code> string into a second <code>JSONObject</code> -- allocates
+ * a great deal for each record. On a first sync of thousands of history
+ * records that garbage causes noticeable pauses.
+ * <p>
+ * This decoder instead tokenizes the response characters in place, using a
+ * single reusable scratch buffer for string values, and only materializes the
+ * handful of <code>String</code>s that end up in the record itself: the id,
+ * collection, and the ciphertext, IV, and HMAC of the payload. Payloads that
+ * contain anything other than those three fields (i.e., that aren't encrypted
+ * WBO payloads) are handed to the general JSON parser, so no data is lost.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public class WBOStreamDecoder {
+  public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;   // 16K chars.
+
+  // JSON related constants. These mirror those in <code>CryptoRecord</code>.
+  private static final String KEY_ID         = "id";
+  private static final String KEY_COLLECTION = "collection";
+  private static final String KEY_PAYLOAD    = "payload";
+  private static final String KEY_MODIFIED   = "modified";
+  private static final String KEY_SORTINDEX  = "sortindex";
+  private static final String KEY_TTL        = "ttl";
+  private static final String KEY_CIPHERTEXT = "ciphertext";
+  private static final String KEY_HMAC       = "hmac";
+  private static final String KEY_IV         = "IV";
+
+  private final Tokenizer outer;
+  private final Tokenizer inner;
+
+  public WBOStreamDecoder(InputStream in) {
+    this(new InputStreamReader(in, Charset.forName("UTF-8")), DEFAULT_BUFFER_SIZE);
+  }
+
+  public WBOStreamDecoder(Reader reader, int bufferSize) {
+    if (reader == null) {
+      throw new IllegalArgumentException("reader must not be null.");
+    }
+    this.outer = new Tokenizer(reader, new char[bufferSize]);
+    this.inner = new Tokenizer(null, null);
+  }
+
+  /**
+   * Decode the next record from the stream.
+   * <p>
+   * Records are one per line, so while decoding a record the end of the line
+   * reads as the end of input. If the record is malformed, the remainder of
+   * its line is discarded before the exception is thrown, so that the caller
+   * can report the error and continue with the next record.
+   *
+   * @return the next record, or null if the stream is exhausted.
+   * @throws IOException if the underlying stream fails.
+   * @throws RecordParseException if the record cannot be decoded.
+   */
+  public CryptoRecord next() throws IOException, RecordParseException {
+    outer.skipWhitespace();
+    if (outer.peek() < 0) {
+      return null;
+    }
+
+    outer.lineMode = true;
+    try {
+      return decodeRecord();
+    } catch (RecordParseException e) {
+      // A truncated record never consumes the newline that ends it, so this
+      // stops at the start of the next record.
+      outer.lineMode = false;
+      outer.skipLine();
+      throw e;
+    } finally {
+      outer.lineMode = false;
+    }
+  }
+
+  protected CryptoRecord decodeRecord() throws IOException, RecordParseException {
+    String id = null;
+    String collection = null;
+    long lastModified = -1;
+    boolean hasModified = false;
+    long sortIndex = 0;
+    boolean hasSortIndex = false;
+    long ttl = 0;
+    boolean hasTTL = false;
+    ExtendedJSONObject payload = null;
+
+    outer.expect('{');
+    outer.skipWhitespace();
+    if (outer.peek() == '}') {
+      outer.read();
+    } else {
+      while (true) {
+        outer.skipWhitespace();
+        outer.expect('"');
+        outer.readString();
+        final String key = outer.matchKey();
+        outer.skipWhitespace();
+        outer.expect(':');
+        outer.skipWhitespace();
+
+        if (key == KEY_ID) {
+          id = outer.readStringOrNull();
+        } else if (key == KEY_COLLECTION) {
+          collection = outer.readStringOrNull();
+        } else if (key == KEY_MODIFIED) {
+          outer.readNumber();
+          lastModified = outer.numberAsMilliseconds();
+          hasModified = true;
+        } else if (key == KEY_SORTINDEX) {
+          outer.readNumber();
+          sortIndex = outer.numberAsLong("sortindex");
+          hasSortIndex = true;
+        } else if (key == KEY_TTL) {
+          outer.readNumber();
+          ttl = outer.numberAsLong("TTL");
+          hasTTL = true;
+        } else if (key == KEY_PAYLOAD) {
+          outer.expect('"');
+          outer.readString();
+          payload = decodePayload();
+        } else {
+          outer.skipValue();
+        }
+
+        outer.skipWhitespace();
+        final int c = outer.read();
+        if (c == '}') {
+          break;
+        }
+        if (c != ',') {
+          throw new RecordParseException("Expected ',' or '}' in record.");
+        }
+      }
+    }
+
+    if (payload == null) {
+      throw new RecordParseException("Record has no payload.");
+    }
+
+    CryptoRecord record = new CryptoRecord(payload);
+    record.guid = id;
+    record.collection = collection;
+    if (hasModified) {
+      record.lastModified = lastModified;
+    }
+    if (hasSortIndex) {
+      record.sortIndex = sortIndex;
+    }
+    if (hasTTL) {
+      record.ttl = ttl;
+    }
+    return record;
+  }
+
+  /**
+   * Decode the payload string currently held in the outer scratch buffer.
+   */
+  protected ExtendedJSONObject decodePayload() throws RecordParseException {
+    inner.reset(outer.scratch, outer.scratchLength);
+
+    String ciphertext = null;
+    String iv = null;
+    String hmac = null;
+    try {
+      inner.skipWhitespace();
+      inner.expect('{');
+      inner.skipWhitespace();
+      if (inner.peek() == '}') {
+        return decodePayloadSlowly();
+      }
+      while (true) {
+        inner.skipWhitespace();
+        inner.expect('"');
+        inner.readString();
+        final String key = inner.matchKey();
+        inner.skipWhitespace();
+        inner.expect(':');
+        inner.skipWhitespace();
+
+        if (key == KEY_CIPHERTEXT) {
+          ciphertext = inner.readStringOrNull();
+        } else if (key == KEY_IV) {
+          iv = inner.readStringOrNull();
+        } else if (key == KEY_HMAC) {
+          hmac = inner.readStringOrNull();
+        } else {
+          // Not an encrypted payload. Let the general parser deal with it.
+          return decodePayloadSlowly();
+        }
+
+        inner.skipWhitespace();
+        final int c = inner.read();
+        if (c == '}') {
+          break;
+        }
+        if (c != ',') {
+          throw new RecordParseException("Expected ',' or '}' in payload.");
+        }
+      }
+    } catch (IOException e) {
+      // Can't happen: the inner tokenizer has no reader.
+      throw new RecordParseException("Unexpected exception decoding payload: " + e);
+    }
+
+    ExtendedJSONObject payload = new ExtendedJSONObject();
+    if (ciphertext != null) {
+      payload.put(KEY_CIPHERTEXT, ciphertext);
+    }
+    if (iv != null) {
+      payload.put(KEY_IV, iv);
+    }
+    if (hmac != null) {
+      payload.put(KEY_HMAC, hmac);
+    }
+    return payload;
+  }
+
+  protected ExtendedJSONObject decodePayloadSlowly() throws RecordParseException {
+    try {
+      return ExtendedJSONObject.parseJSONObject(new String(outer.scratch, 0, outer.scratchLength));
+    } catch (Exception e) {
+      throw new RecordParseException("Could not parse payload: " + e);
+    }
+  }
+
+  /**
+   * A minimal JSON tokenizer over a character buffer, optionally refilled
+   * from a <code>Reader</code>.
+   */
+  private static final class Tokenizer {
+    private static final String[] KNOWN_KEYS = new String[] {
+      KEY_ID, KEY_COLLECTION, KEY_PAYLOAD, KEY_MODIFIED, KEY_SORTINDEX, KEY_TTL,
+      KEY_CIPHERTEXT, KEY_HMAC, KEY_IV,
+    };
+
+    private final Reader reader;
+    private char[] buffer;
+    private int position;
+    private int limit;
+
+    // The most recently read string or number token.
+    private char[] scratch = new char[256];
+    private int scratchLength;
+
+    // If true, a newline reads as the end of input, and is left unconsumed.
+    boolean lineMode;
+
+    Tokenizer(Reader reader, char[] buffer) {
+      this.reader = reader;
+      this.buffer = buffer;
+    }
+
+    void reset(char[] buffer, int limit) {
+      this.buffer = buffer;
+      this.position = 0;
+      this.limit = limit;
+    }
+
+    private boolean fill() throws IOException {
+      if (reader == null) {
+        return false;
+      }
+      final int read = reader.read(buffer, 0, buffer.length);
+      if (read <= 0) {
+        return false;
+      }
+      position = 0;
+      limit = read;
+      return true;
+    }
+
+    int peek() throws IOException {
+      if (position >= limit && !fill()) {
+        return -1;
+      }
+      final char c = buffer[position];
+      if (lineMode && c == '\n') {
+        return -1;
+      }
+      return c;
+    }
+
+    int read() throws IOException {
+      final int c = peek();
+      if (c >= 0) {
+        position++;
+      }
+      return c;
+    }
+
+    void skipWhitespace() throws IOException {
+      while (true) {
+        final int c = peek();
+        if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+          return;
+        }
+        position++;
+      }
+    }
+
+    void skipLine() throws IOException {
+      int c;
+      do {
+        c = read();
+      } while (c >= 0 && c != '\n');
+    }
+
+    void expect(char expected) throws IOException, RecordParseException {
+      final int c = read();
+      if (c != expected) {
+        throw new RecordParseException("Expected '" + expected + "' but got " +
+            (c < 0 ? "end of input" : "'" + (char) c + "'") + ".");
+      }
+    }
+
+    private void appendScratch(char c) {
+      if (scratchLength == scratch.length) {
+        final char[] grown = new char[scratch.length * 2];
+        System.arraycopy(scratch, 0, grown, 0, scratchLength);
+        scratch = grown;
+      }
+      scratch[scratchLength++] = c;
+    }
+
+    /**
+     * Read a string body, the opening quote having already been consumed, into
+     * the scratch buffer.
+     */
+    void readString() throws IOException, RecordParseException {
+      scratchLength = 0;
+      while (true) {
+        int c = read();
+        if (c < 0) {
+          throw new RecordParseException("Unterminated string.");
+        }
+        if (c == '"') {
+          return;
+        }
+        if (c != '\\') {
+          appendScratch((char) c);
+          continue;
+        }
+        c = read();
+        switch (c) {
+        case '"':
+        case '\\':
+        case '/':
+          appendScratch((char) c);
+          break;
+        case 'b':
+          appendScratch('\b');
+          break;
+        case 'f':
+          appendScratch('\f');
+          break;
+        case 'n':
+          appendScratch('\n');
+          break;
+        case 'r':
+          appendScratch('\r');
+          break;
+        case 't':
+          appendScratch('\t');
+          break;
+        case 'u':
+          int code = 0;
+          for (int i = 0; i < 4; i++) {
+            final int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+              throw new RecordParseException("Bad unicode escape.");
+            }
+            code = (code << 4) | digit;
+          }
+          appendScratch((char) code);
+          break;
+        default:
+          throw new RecordParseException("Bad escape sequence.");
+        }
+      }
+    }
+
+    String readStringOrNull() throws IOException, RecordParseException {
+      final int c = read();
+      if (c == '"') {
+        readString();
+        return new String(scratch, 0, scratchLength);
+      }
+      if (c == 'n') {
+        expect('u');
+        expect('l');
+        expect('l');
+        return null;
+      }
+      throw new RecordParseException("Expected string value.");
+    }
+
+    /**
+     * @return the interned known key matching the scratch buffer, or null.
+     */
+    String matchKey() {
+      for (String key : KNOWN_KEYS) {
+        if (key.length() != scratchLength) {
+          continue;
+        }
+        boolean matches = true;
+        for (int i = 0; i < scratchLength; i++) {
+          if (key.charAt(i) != scratch[i]) {
+            matches = false;
+            break;
+          }
+        }
+        if (matches) {
+          return key;
+        }
+      }
+      return null;
+    }
+
+    void readNumber() throws IOException, RecordParseException {
+      scratchLength = 0;
+      while (true) {
+        final int c = peek();
+        if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+          appendScratch((char) c);
+          position++;
+          continue;
+        }
+        break;
+      }
+      if (scratchLength == 0) {
+        throw new RecordParseException("Expected number.");
+      }
+    }
+
+    long numberAsLong(String name) throws RecordParseException {
+      long value = 0;
+      int i = 0;
+      boolean negative = false;
+      if (scratch[0] == '-') {
+        negative = true;
+        i = 1;
+      }
+      if (i == scratchLength) {
+        throw new RecordParseException(name + " could not be parsed");
+      }
+      for (; i < scratchLength; i++) {
+        final char c = scratch[i];
+        if (c < '0' || c > '9') {
+          throw new RecordParseException(name + " could not be parsed");
+        }
+        value = value * 10 + (c - '0');
+      }
+      return negative ? -value : value;
+    }
+
+    /**
+     * Interpret the scratch buffer as decimal seconds, and return the value in
+     * milliseconds, truncating towards zero.
+     */
+    long numberAsMilliseconds() throws RecordParseException {
+      long value = 0;
+      int fractionDigits = -1;
+      int i = 0;
+      boolean negative = false;
+      if (scratch[0] == '-') {
+        negative = true;
+        i = 1;
+      }
+      for (; i < scratchLength; i++) {
+        final char c = scratch[i];
+        if (c == '.' && fractionDigits < 0) {
+          fractionDigits = 0;
+          continue;
+        }
+        if (c < '0' || c > '9') {
+          // Exponents and other oddities: take the slow path.
+          try {
+            return (long) (Double.parseDouble(new String(scratch, 0, scratchLength)) * 1000);
+          } catch (NumberFormatException e) {
+            throw new RecordParseException("timestamp could not be parsed");
+          }
+        }
+        if (fractionDigits >= 3) {
+          continue;
+        }
+        value = value * 10 + (c - '0');
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+      }
+      for (int j = Math.max(fractionDigits, 0); j < 3; j++) {
+        value *= 10;
+      }
+      return negative ? -value : value;
+    }
+
+    /**
+     * Skip over the next value of any type.
+     */
+    void skipValue() throws IOException, RecordParseException {
+      final int c = peek();
+      if (c == '"') {
+        position++;
+        readString();
+        return;
+      }
+      if (c == '{' || c == '[') {
+        int depth = 0;
+        while (true) {
+          final int d = read();
+          if (d < 0) {
+            throw new RecordParseException("Unterminated value.");
+          }
+          if (d == '"') {
+            readString();
+          } else if (d == '{' || d == '[') {
+            depth++;
+          } else if (d == '}' || d == ']') {
+            if (--depth == 0) {
+              return;
+            }
+          }
+        }
+      }
+      // Number or literal: consume until a delimiter.
+      int skipped = 0;
+      while (true) {
+        final int d = peek();
+        if (d < 0 || d == ',' || d == '}' || d == ']' ||
+            d == ' ' || d == '\n' || d == '\r' || d == '\t') {
+          break;
+        }
+        position++;
+        skipped++;
+      }
+      if (skipped == 0) {
+        throw new RecordParseException("Expected value.");
+      }
+    }
+  }
+}
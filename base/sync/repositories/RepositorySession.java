@@ -8,9 +8,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
@@ -59,15 +61,19 @@ public abstract class RepositorySession {
 
   /**
    * A queue of Runnables which call out into delegates.
+   * <p>
+   * Borrowed from the shared {@link SyncScheduler}, so it owns no thread.
    */
-  protected ExecutorService delegateQueue  = Executors.newSingleThreadExecutor();
+  protected final ExecutorService delegateQueue;
 
   /**
    * A queue of Runnables which effect storing.
    * This includes actual store work, and also the consequences of storeDone.
    * This provides strict ordering.
+   * <p>
+   * Borrowed from the shared {@link SyncScheduler}, so it owns no thread.
    */
-  protected ExecutorService storeWorkQueue = Executors.newSingleThreadExecutor();
+  protected final ExecutorService storeWorkQueue;
 
   // The time that the last sync on this collection completed, in milliseconds since epoch.
   private long lastSyncTimestamp = 0;
@@ -82,6 +88,31 @@ public abstract class RepositorySession {
 
   public RepositorySession(Repository repository) {
     this.repository = repository;
+
+    final SyncScheduler scheduler = SyncScheduler.getInstance();
+    final Priority priority = getSchedulingPriority();
+    this.delegateQueue = scheduler.newSerialExecutor(Lane.GENERAL, priority);
+    this.storeWorkQueue = scheduler.newSerialExecutor(getStoreLane(), priority);
+  }
+
+  /**
+   * Override this to change the priority of this session's work relative to
+   * other sync work.
+   * <p>
+   * Called from the constructor, so must not depend on instance state.
+   */
+  protected Priority getSchedulingPriority() {
+    return Priority.NORMAL;
+  }
+
+  /**
+   * Override this if store work is better suited to another
+   * {@link SyncScheduler} lane; for example, if storing blocks on the network.
+   * <p>
+   * Called from the constructor, so must not depend on instance state.
+   */
+  protected Lane getStoreLane() {
+    return Lane.DB;
   }
 
   public abstract void guidsSince(long timestamp, RepositorySessionGuidsSinceDelegate delegate);
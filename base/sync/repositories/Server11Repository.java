@@ -22,6 +22,8 @@ import android.content.Context;
  * @author rnewman
  */
 public class Server11Repository extends Repository {
+  public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 2;
+
   protected String collection;
   protected URI collectionURI;
   protected final AuthHeaderProvider authHeaderProvider;
@@ -112,6 +114,14 @@ public class Server11Repository extends Repository {
     return null;
   }
 
+  /**
+   * @return the number of record POSTs a session may have in flight at once.
+   */
+  @SuppressWarnings("static-method")
+  protected int getMaxConcurrentUploads() {
+    return DEFAULT_MAX_CONCURRENT_UPLOADS;
+  }
+
   public AuthHeaderProvider getAuthHeaderProvider() {
     return authHeaderProvider;
   }
@@ -9,10 +9,14 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
@@ -23,9 +27,12 @@ import org.mozilla.gecko.sync.ExtendedJSONObject;
 import org.mozilla.gecko.sync.HTTPFailureException;
 import org.mozilla.gecko.sync.Server11PreviousPostFailedException;
 import org.mozilla.gecko.sync.Server11RecordPostFailedException;
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
 import org.mozilla.gecko.sync.UnexpectedJSONException;
 import org.mozilla.gecko.sync.crypto.KeyBundle;
 import org.mozilla.gecko.sync.net.AuthHeaderProvider;
+import org.mozilla.gecko.sync.net.DigestableEntity;
 import org.mozilla.gecko.sync.net.SyncStorageCollectionRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequest;
 import org.mozilla.gecko.sync.net.SyncStorageRequestDelegate;
@@ -33,11 +40,13 @@ import org.mozilla.gecko.sync.net.SyncStorageResponse;
 import org.mozilla.gecko.sync.net.WBOCollectionRequestDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFinishDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionGuidsSinceDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionWipeDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import ch.boye.httpclientandroidlib.HttpStatus;
 import ch.boye.httpclientandroidlib.entity.ContentProducer;
 import ch.boye.httpclientandroidlib.entity.EntityTemplate;
 
@@ -60,6 +69,18 @@ public class Server11RepositorySession extends RepositorySession {
 
   private static final int UPLOAD_BYTE_THRESHOLD = 1024 * 1024;    // 1MB.
   private static final int UPLOAD_ITEM_THRESHOLD = 50;
+
+  // Bounds within which the thresholds above are adapted as uploads complete.
+  private static final int MIN_UPLOAD_BYTE_THRESHOLD = 16 * 1024;
+  private static final int MIN_UPLOAD_ITEM_THRESHOLD = 5;
+  private static final int MAX_UPLOAD_ITEM_THRESHOLD = 100;        // Server limit.
+  private static final int UPLOAD_ITEM_THRESHOLD_STEP = 10;
+
+  // Full batches that POST faster than this grow; any slower than the
+  // second shrink, so that a struggling server isn't handed long requests.
+  private static final long FAST_UPLOAD_MILLIS = 2 * 1000;
+  private static final long SLOW_UPLOAD_MILLIS = 15 * 1000;
+
   private static final int PER_RECORD_OVERHEAD   = 2;              // Comma, newline.
   // {}, newlines, but we get to skip one record overhead.
   private static final int PER_BATCH_OVERHEAD    = 5 - PER_RECORD_OVERHEAD;
@@ -99,7 +120,19 @@ public class Server11RepositorySession extends RepositorySession {
 
   @Override
   public void abort() {
+    uploadsAborted = true;
     super.abort();
+    try {
+      // Uploads that never got to run still need accounting for, or
+      // storeDone would wait for them forever.
+      for (Runnable dropped : uploadQueue.shutdownNow()) {
+        if (dropped instanceof QueuedUpload) {
+          ((QueuedUpload) dropped).drop();
+        }
+      }
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Caught exception shutting down upload queue.", e);
+    }
     for (SyncStorageCollectionRequest request : pending) {
       request.abort();
     }
@@ -221,9 +254,26 @@ public class Server11RepositorySession extends RepositorySession {
     }
   }
 
+  /**
+   * Record uploads. Unlike <code>storeWorkQueue</code>, this allows several
+   * POSTs to be in flight at once; see <code>uploadFinished</code> for how
+   * their timestamps are accounted.
+   */
+  protected final ExecutorService uploadQueue;
+
   public Server11RepositorySession(Repository repository) {
     super(repository);
     serverRepository = (Server11Repository) repository;
+    final int maxConcurrentUploads = Math.max(1, serverRepository.getMaxConcurrentUploads());
+    uploadQueue = SyncScheduler.getInstance().newExecutor(Lane.NETWORK, getSchedulingPriority(), maxConcurrentUploads);
+  }
+
+  /**
+   * Record uploads block on the network.
+   */
+  @Override
+  protected Lane getStoreLane() {
+    return Lane.NETWORK;
   }
 
   private String flattenIDs(String[] guids) {
@@ -336,6 +386,40 @@ public class Server11RepositorySession extends RepositorySession {
   protected ArrayList<String> recordGuidsBuffer = new ArrayList<String>();
   protected int byteCount = PER_BATCH_OVERHEAD;
 
+  /**
+   * Current batch limits, adapted by <code>uploadTooLarge</code> and
+   * <code>uploadCompleted</code>.
+   * <p>
+   * Access should be synchronized on <code>recordsBufferMonitor</code>.
+   */
+  protected int uploadItemThreshold = UPLOAD_ITEM_THRESHOLD;
+  protected int uploadByteThreshold = UPLOAD_BYTE_THRESHOLD;
+
+  // Just below the smallest batch the server has rejected as too large, so
+  // that fast uploads don't grow the thresholds back into another 413.
+  protected int uploadItemCeiling = MAX_UPLOAD_ITEM_THRESHOLD;
+  protected int uploadByteCeiling = UPLOAD_BYTE_THRESHOLD;
+
+  /**
+   * Upload bookkeeping. Lock order is <code>recordsBufferMonitor</code>, then
+   * <code>uploadMonitor</code>.
+   */
+  protected final Object uploadMonitor = new Object();
+
+  // All guarded by uploadMonitor.
+  private long nextUploadSequence = 0;
+  private long nextUploadToRetire = 0;
+  private int uploadsInFlight = 0;
+  private boolean uploadSequenceFailed = false;
+  private boolean storeDoneRequested = false;
+  private final HashMap<Long, Long> finishedUploads = new HashMap<Long, Long>();
+
+  /**
+   * Set by <code>abort</code>. Uploads that haven't started by then are failed
+   * without being sent.
+   */
+  protected volatile boolean uploadsAborted = false;
+
   @Override
   public void store(Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -355,8 +439,8 @@ public class Server11RepositorySession extends RepositorySession {
     byte[] json = record.toJSONBytes();
     int delta   = json.length;
     synchronized (recordsBufferMonitor) {
-      if ((delta + byteCount     > UPLOAD_BYTE_THRESHOLD) ||
-          (recordsBuffer.size() >= UPLOAD_ITEM_THRESHOLD)) {
+      if ((delta + byteCount     > uploadByteThreshold) ||
+          (recordsBuffer.size() >= uploadItemThreshold)) {
 
         // POST the existing contents, then enqueue.
         flush();
@@ -374,7 +458,20 @@ public class Server11RepositorySession extends RepositorySession {
       final ArrayList<byte[]> outgoing = recordsBuffer;
       final ArrayList<String> outgoingGuids = recordGuidsBuffer;
       RepositorySessionStoreDelegate uploadDelegate = this.delegate;
-      storeWorkQueue.execute(new RecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount));
+      final RecordUploadRunnable upload = makeRecordUploadRunnable(uploadDelegate, outgoing, outgoingGuids, byteCount);
+
+      final long sequence;
+      synchronized (uploadMonitor) {
+        sequence = nextUploadSequence++;
+        uploadsInFlight++;
+      }
+      final QueuedUpload queued = new QueuedUpload(sequence, upload);
+      try {
+        uploadQueue.execute(queued);
+      } catch (RejectedExecutionException e) {
+        // We've been aborted.
+        queued.drop();
+      }
 
       recordsBuffer = new ArrayList<byte[]>();
       recordGuidsBuffer = new ArrayList<String>();
@@ -387,18 +484,144 @@ public class Server11RepositorySession extends RepositorySession {
     Logger.debug(LOG_TAG, "storeDone().");
     synchronized (recordsBufferMonitor) {
       flush();
-      // Do this in a Runnable so that the timestamp is grabbed after any upload.
-      final Runnable r = new Runnable() {
-        @Override
-        public void run() {
-          synchronized (recordsBufferMonitor) {
-            final long end = uploadTimestamp.get();
-            Logger.debug(LOG_TAG, "Calling storeDone with " + end);
-            storeDone(end);
-          }
+    }
+
+    // Grab the timestamp only after every upload has finished: either now,
+    // or when the last one does.
+    final boolean done;
+    synchronized (uploadMonitor) {
+      done = uploadsInFlight == 0;
+      storeDoneRequested = !done;
+    }
+    if (done) {
+      finishStore();
+    }
+  }
+
+  protected void finishStore() {
+    final long end = uploadTimestamp.get();
+    if (uploadsAborted) {
+      // The store work queue was shut down along with the upload queue.
+      Logger.debug(LOG_TAG, "Aborted; calling onStoreCompleted directly with " + end);
+      delegate.onStoreCompleted(end);
+      return;
+    }
+    Logger.debug(LOG_TAG, "Calling storeDone with " + end);
+    storeDone(end);
+  }
+
+  protected RecordUploadRunnable makeRecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
+                                                          ArrayList<byte[]> outgoing,
+                                                          ArrayList<String> outgoingGuids,
+                                                          long byteCount) {
+    return new RecordUploadRunnable(storeDelegate, outgoing, outgoingGuids, byteCount);
+  }
+
+  /**
+   * An upload on the upload queue, which accounts for itself in
+   * <code>uploadFinished</code> however it ends.
+   */
+  protected class QueuedUpload implements Runnable {
+    private final long sequence;
+    private final RecordUploadRunnable upload;
+
+    public QueuedUpload(long sequence, RecordUploadRunnable upload) {
+      this.sequence = sequence;
+      this.upload = upload;
+    }
+
+    @Override
+    public void run() {
+      if (uploadsAborted) {
+        drop();
+        return;
+      }
+      try {
+        upload.run();
+      } finally {
+        uploadFinished(sequence, upload.getResultTimestamp());
+      }
+    }
+
+    /**
+     * Fail this upload's records without sending them.
+     */
+    public void drop() {
+      try {
+        upload.abandon();
+      } finally {
+        uploadFinished(sequence, -1);
+      }
+    }
+  }
+
+  /**
+   * Account for a finished upload.
+   * <p>
+   * Uploads can finish out of order, but the upload timestamp only advances
+   * through the longest run of successful uploads in the order they were
+   * queued: once an upload fails, later uploads don't count, just as they
+   * would not have been made at all were uploads serial.
+   *
+   * @param sequence
+   *          the order in which the upload was queued.
+   * @param timestamp
+   *          the server timestamp of the upload; 0 if there was none, or -1
+   *          if the upload failed.
+   */
+  protected void uploadFinished(long sequence, long timestamp) {
+    final boolean done;
+    synchronized (uploadMonitor) {
+      finishedUploads.put(sequence, timestamp);
+      Long retired;
+      while ((retired = finishedUploads.remove(nextUploadToRetire)) != null) {
+        nextUploadToRetire++;
+        if (retired < 0) {
+          uploadSequenceFailed = true;
+        } else if (!uploadSequenceFailed) {
+          bumpUploadTimestamp(retired);
         }
-      };
-      storeWorkQueue.execute(r);
+      }
+      uploadsInFlight--;
+      done = storeDoneRequested && uploadsInFlight == 0;
+      if (done) {
+        storeDoneRequested = false;
+      }
+    }
+    if (done) {
+      finishStore();
+    }
+  }
+
+  /**
+   * The server rejected a batch as too large: don't send one that large again.
+   */
+  protected void uploadTooLarge(int itemCount, long bytes) {
+    synchronized (recordsBufferMonitor) {
+      uploadItemCeiling = Math.max(MIN_UPLOAD_ITEM_THRESHOLD, Math.min(uploadItemCeiling, itemCount - 1));
+      uploadByteCeiling = (int) Math.max(MIN_UPLOAD_BYTE_THRESHOLD, Math.min(uploadByteCeiling, bytes - 1));
+      uploadItemThreshold = Math.max(MIN_UPLOAD_ITEM_THRESHOLD, Math.min(uploadItemThreshold, itemCount / 2));
+      uploadByteThreshold = (int) Math.max(MIN_UPLOAD_BYTE_THRESHOLD, Math.min(uploadByteThreshold, bytes / 2));
+      Logger.info(LOG_TAG, "Reduced upload thresholds to " + uploadItemThreshold + " records, " +
+                           uploadByteThreshold + " bytes.");
+    }
+  }
+
+  /**
+   * Adapt batch sizes to how quickly the server handled a successful upload.
+   */
+  protected void uploadCompleted(int itemCount, long elapsedMillis) {
+    synchronized (recordsBufferMonitor) {
+      if (elapsedMillis > SLOW_UPLOAD_MILLIS) {
+        uploadItemThreshold = Math.max(MIN_UPLOAD_ITEM_THRESHOLD, uploadItemThreshold / 2);
+        Logger.debug(LOG_TAG, "Upload took " + elapsedMillis + "ms; reduced item threshold to " + uploadItemThreshold + ".");
+        return;
+      }
+      if (elapsedMillis < FAST_UPLOAD_MILLIS && itemCount >= uploadItemThreshold) {
+        uploadItemThreshold = Math.max(uploadItemThreshold, Math.min(uploadItemCeiling, uploadItemThreshold + UPLOAD_ITEM_THRESHOLD_STEP));
+        uploadByteThreshold = Math.max(uploadByteThreshold, Math.min(uploadByteCeiling, uploadByteThreshold * 2));
+        Logger.trace(LOG_TAG, "Upload took " + elapsedMillis + "ms; raised item threshold to " + uploadItemThreshold + ".");
+      }
     }
   }
 
@@ -406,8 +629,8 @@ public class Server11RepositorySession extends RepositorySession {
    * <code>true</code> if a record upload has failed this session.
    * <p>
    * This is only set in begin and possibly by <code>RecordUploadRunnable</code>.
-   * Since those are executed serially, we can use an unsynchronized
-   * volatile boolean here.
+   * Uploads already in flight when it is set are allowed to complete, so an
+   * unsynchronized volatile boolean is enough here.
    */
   protected volatile boolean recordUploadFailed;
 
@@ -417,6 +640,12 @@ public class Server11RepositorySession extends RepositorySession {
     super.begin(delegate);
   }
 
+  @Override
+  public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    super.finish(delegate);
+    uploadQueue.shutdown();
+  }
+
   /**
    * Make an HTTP request, and convert HTTP request delegate callbacks into
    * store callbacks within the context of this RepositorySession.
@@ -431,6 +660,11 @@ public class Server11RepositorySession extends RepositorySession {
     private ArrayList<String> outgoingGuids;
     private final long byteCount;
 
+    // Outcome of this upload, read by whoever ran it.
+    private volatile long modified = 0;
+    private volatile boolean failed = false;
+    private volatile boolean tooLarge = false;
+
     public RecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate,
                                 ArrayList<byte[]> outgoing,
                                 ArrayList<String> outgoingGuids,
@@ -494,7 +728,7 @@ public class Server11RepositorySession extends RepositorySession {
 
           long normalizedTimestamp = getNormalizedTimestamp(response);
           Logger.trace(LOG_TAG, "Passing back upload X-Weave-Timestamp: " + normalizedTimestamp);
-          bumpUploadTimestamp(normalizedTimestamp);
+          modified = Math.max(modified, normalizedTimestamp);
         }
         success = null; // Want to GC this ASAP.
 
@@ -518,6 +752,13 @@ public class Server11RepositorySession extends RepositorySession {
 
     @Override
     public void handleRequestFailure(SyncStorageResponse response) {
+      if (response.getStatusCode() == HttpStatus.SC_REQUEST_TOO_LONG &&
+          outgoing.size() > 1) {
+        Logger.info(LOG_TAG, "POST of " + outgoing.size() + " records (" + byteCount + " bytes) was too large. Splitting.");
+        uploadTooLarge(outgoing.size(), byteCount);
+        tooLarge = true;
+        return;
+      }
       // TODO: call session.interpretHTTPFailure.
       this.handleRequestError(new HTTPFailureException(response));
     }
@@ -526,6 +767,7 @@ public class Server11RepositorySession extends RepositorySession {
     public void handleRequestError(final Exception ex) {
       Logger.warn(LOG_TAG, "Got request error.", ex);
 
+      failed = true;
       recordUploadFailed = true;
       ArrayList<String> failedOutgoingGuids = outgoingGuids;
       outgoingGuids = null; // Want to GC this ASAP.
@@ -553,12 +795,33 @@ public class Server11RepositorySession extends RepositorySession {
         }
         outstream.write(recordsEnd);
       }
+
+      /**
+       * Equivalent to hashing what <code>writeTo</code> writes, but
+       * without copying the records.
+       */
+      public void updateDigest(MessageDigest digest) {
+        int count = outgoing.size();
+        digest.update(recordsStart);
+        digest.update(outgoing.get(0));
+        for (int i = 1; i < count; ++i) {
+          digest.update(recordSeparator);
+          digest.update(outgoing.get(i));
+        }
+        digest.update(recordsEnd);
+      }
     }
 
-    public class ByteArraysEntity extends EntityTemplate {
+    public class ByteArraysEntity extends EntityTemplate implements DigestableEntity {
+      private final ByteArraysContentProducer producer;
       private final long count;
       public ByteArraysEntity(ArrayList<byte[]> arrays, long totalBytes) {
-        super(new ByteArraysContentProducer(arrays));
+        this(new ByteArraysContentProducer(arrays), totalBytes);
+      }
+
+      private ByteArraysEntity(ByteArraysContentProducer producer, long totalBytes) {
+        super(producer);
+        this.producer = producer;
         this.count = totalBytes;
         this.setContentType("application/json");
         // charset is set in BaseResource.
@@ -573,6 +836,11 @@ public class Server11RepositorySession extends RepositorySession {
       public boolean isRepeatable() {
         return true;
       }
+
+      @Override
+      public void updateDigest(MessageDigest digest) {
+        producer.updateDigest(digest);
+      }
     }
 
     public ByteArraysEntity getBodyEntity() {
@@ -580,6 +848,51 @@ public class Server11RepositorySession extends RepositorySession {
       return body;
     }
 
+    /**
+     * @return the server timestamp of this upload; 0 if there was none, or -1
+     *         if it failed.
+     */
+    public long getResultTimestamp() {
+      return failed ? -1 : modified;
+    }
+
+    protected RecordUploadRunnable subBatch(int start, int end) {
+      final ArrayList<byte[]> records = new ArrayList<byte[]>(outgoing.subList(start, end));
+      final ArrayList<String> guids = new ArrayList<String>(outgoingGuids.subList(start, end));
+      long bytes = PER_BATCH_OVERHEAD;
+      for (byte[] record : records) {
+        bytes += PER_RECORD_OVERHEAD + record.length;
+      }
+      return makeRecordUploadRunnable(delegate, records, guids, bytes);
+    }
+
+    /**
+     * Fail every record in this upload without sending it.
+     */
+    public void abandon() {
+      Logger.debug(LOG_TAG, "Session aborted; failing " + outgoingGuids.size() + " records without uploading.");
+      failed = true;
+      final Exception ex = new StoreFailedException();
+      for (String guid : outgoingGuids) {
+        delegate.onRecordStoreFailed(ex, guid);
+      }
+    }
+
+    /**
+     * POST <code>body</code>, synchronously, calling back to this delegate.
+     */
+    protected void post(ByteArraysEntity body) {
+      URI u = serverRepository.collectionURI();
+      SyncStorageRequest request = new SyncStorageRequest(u);
+
+      request.delegate = this;
+
+      // We don't want the task queue to proceed until this request completes.
+      // Fortunately, BaseResource is currently synchronous.
+      // If that ever changes, you'll need to block here.
+      request.post(body);
+    }
+
     @Override
     public void run() {
       if (recordUploadFailed) {
@@ -588,6 +901,7 @@ public class Server11RepositorySession extends RepositorySession {
         for (String guid : outgoingGuids) {
           delegate.onRecordStoreFailed(ex, guid);
         }
+        failed = true;
         return;
       }
 
@@ -597,16 +911,34 @@ public class Server11RepositorySession extends RepositorySession {
         return;
       }
 
-      URI u = serverRepository.collectionURI();
-      SyncStorageRequest request = new SyncStorageRequest(u);
+      ByteArraysEntity body = getBodyEntity();
+      final long start = System.currentTimeMillis();
+      post(body);
+      final long elapsed = System.currentTimeMillis() - start;
 
-      request.delegate = this;
+      if (!tooLarge) {
+        if (!failed) {
+          uploadCompleted(outgoing.size(), elapsed);
+        }
+        return;
+      }
 
-      // We don't want the task queue to proceed until this request completes.
-      // Fortunately, BaseResource is currently synchronous.
-      // If that ever changes, you'll need to block here.
-      ByteArraysEntity body = getBodyEntity();
-      request.post(body);
+      // Try again in halves. These run synchronously, so they count as part
+      // of this upload for timestamp accounting.
+      final int middle = outgoing.size() / 2;
+      final RecordUploadRunnable[] halves = new RecordUploadRunnable[] {
+          subBatch(0, middle),
+          subBatch(middle, outgoing.size()),
+      };
+      for (RecordUploadRunnable half : halves) {
+        half.run();
+        final long result = half.getResultTimestamp();
+        if (result < 0) {
+          failed = true;
+        } else {
+          modified = Math.max(modified, result);
+        }
+      }
     }
   }
 
@@ -16,11 +16,14 @@ import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.BookmarkRecord;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositoryDataAccessor {
 
@@ -39,6 +42,15 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
                                                   BrowserContract.Bookmarks.PLACES_FOLDER_GUID + "', '" +
                                                   BrowserContract.Bookmarks.PINNED_FOLDER_GUID + "')";
 
+  /**
+   * The Java equivalent of <code>GUID_SHOULD_TRACK</code>.
+   */
+  protected static boolean shouldTrackGUID(String guid) {
+    return !BrowserContract.Bookmarks.TAGS_FOLDER_GUID.equals(guid) &&
+           !BrowserContract.Bookmarks.PLACES_FOLDER_GUID.equals(guid) &&
+           !BrowserContract.Bookmarks.PINNED_FOLDER_GUID.equals(guid);
+  }
+
   private static final String EXCLUDE_SPECIAL_GUIDS_WHERE_CLAUSE;
   static {
     if (AndroidBrowserBookmarksRepositorySession.SPECIAL_GUIDS.length > 0) {
@@ -96,6 +108,26 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
     return queryHelper.safeQuery(".getGuidsIDsForFolders", GUID_AND_ID, where, null, null);
   }
 
+  private static final String[] TREE_COLUMNS = new String[] { BrowserContract.Bookmarks._ID,
+                                                              BrowserContract.SyncColumns.GUID,
+                                                              BrowserContract.Bookmarks.PARENT,
+                                                              BrowserContract.Bookmarks.POSITION,
+                                                              BrowserContract.Bookmarks.TYPE,
+                                                              BrowserContract.SyncColumns.IS_DELETED };
+
+  /**
+   * Returns a cursor over every record, including deleted records, ordered
+   * such that each folder's children appear in the order that
+   * <code>getChildren</code> would return them.
+   */
+  protected Cursor getTree() throws NullCursorException {
+    final String order = BrowserContract.Bookmarks.PARENT + ", " +
+                         BrowserContract.Bookmarks.POSITION + ", " +
+                         BrowserContract.SyncColumns.DATE_CREATED + ", " +
+                         BrowserContract.Bookmarks._ID;
+    return queryHelper.safeQuery(".getTree", TREE_COLUMNS, null, null, order);
+  }
+
   /**
    * Issue a request to the Content Provider to update the positions of the
    * records named by the provided GUIDs to the index of their GUID in the
@@ -115,6 +147,43 @@ public class AndroidBrowserBookmarksDataAccessor extends AndroidBrowserRepositor
     return context.getContentResolver().update(getPositionsUri(), new ContentValues(), null, args);
   }
 
+  /**
+   * Equivalent to calling <code>updatePositions</code> for each child array
+   * and <code>bumpModified</code> for each ID, but in a single transaction.
+   *
+   * @throws RemoteException
+   * @throws OperationApplicationException if any update failed.
+   */
+  public void updatePositionsAndBumpModified(Collection<ArrayList<String>> childArrays,
+                                             Collection<Long> ids,
+                                             long modified) throws RemoteException, OperationApplicationException {
+    final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+    for (ArrayList<String> childArray : childArrays) {
+      final int size = childArray.size();
+      if (size == 0) {
+        continue;
+      }
+      // BrowserProvider ignores values for position updates, but
+      // ContentProviderOperation won't build an update without any.
+      operations.add(ContentProviderOperation.newUpdate(getPositionsUri())
+          .withSelection(null, childArray.toArray(new String[size]))
+          .withValue(BrowserContract.Bookmarks.POSITION, 0)
+          .build());
+    }
+    for (Long id : ids) {
+      operations.add(ContentProviderOperation.newUpdate(getUri())
+          .withSelection(BrowserContract.Bookmarks._ID + " = ?", new String[] { String.valueOf(id) })
+          .withValue(BrowserContract.Bookmarks.DATE_MODIFIED, modified)
+          .build());
+    }
+    if (operations.isEmpty()) {
+      return;
+    }
+
+    Logger.debug(LOG_TAG, "Applying " + operations.size() + " position and modified time updates.");
+    context.getContentResolver().applyBatch(BrowserContract.AUTHORITY, operations);
+  }
+
   public int bumpModifiedByGUID(Collection<String> ids, long modified) {
     final int size = ids.size();
     if (size == 0) {
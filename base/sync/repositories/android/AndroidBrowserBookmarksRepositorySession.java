@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -41,9 +42,15 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
   public static final int DEFAULT_DELETION_FLUSH_THRESHOLD = 50;
   public static final int DEFAULT_INSERTION_FLUSH_THRESHOLD = 50;
 
-  // TODO: synchronization for these.
-  private final HashMap<String, Long> parentGuidToIDMap = new HashMap<String, Long>();
-  private final HashMap<Long, String> parentIDToGuidMap = new HashMap<Long, String>();
+  /**
+   * Mappings between folder GUIDs and IDs, and the children of each folder.
+   * Loaded in <code>begin</code>, and updated as we write.
+   */
+  private final BookmarksTreeSnapshot tree;
+
+  // Folders deleted this session, whose children will be moved when
+  // deletions are flushed.
+  private final ArrayList<String> deletedFolders = new ArrayList<String>();
 
   /**
    * Some notes on reparenting/reordering.
@@ -246,6 +253,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
 
     dbHelper = new AndroidBrowserBookmarksDataAccessor(context);
     dataAccessor = (AndroidBrowserBookmarksDataAccessor) dbHelper;
+    tree = new BookmarksTreeSnapshot(dataAccessor);
   }
 
   private static int getTypeFromCursor(Cursor cur) {
@@ -257,13 +265,13 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
   }
 
   private String getGUIDForID(long androidID) {
-    String guid = parentIDToGuidMap.get(androidID);
+    String guid = tree.getFolderGUID(androidID);
     trace("  " + androidID + " => " + guid);
     return guid;
   }
 
   private long getIDForGUID(String guid) {
-    Long id = parentGuidToIDMap.get(guid);
+    Long id = tree.getFolderID(guid);
     if (id == null) {
       Logger.warn(LOG_TAG, "Couldn't find local ID for GUID " + guid);
       return -1;
@@ -279,10 +287,6 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     return RepoUtils.getLongFromCursor(cur, BrowserContract.Bookmarks.PARENT);
   }
 
-  // More efficient for bulk operations.
-  private long getPosition(Cursor cur, int positionIndex) {
-    return cur.getLong(positionIndex);
-  }
   private long getPosition(Cursor cur) {
     return RepoUtils.getLongFromCursor(cur, BrowserContract.Bookmarks.POSITION);
   }
@@ -330,79 +334,68 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
   @SuppressWarnings("unchecked")
   private boolean getChildrenArray(long folderID, boolean persist, JSONArray childArray) throws NullCursorException {
     trace("Calling getChildren for androidID " + folderID);
-    Cursor children = dataAccessor.getChildren(folderID);
-    try {
-      if (!children.moveToFirst()) {
-        trace("No children: empty cursor.");
-        return true;
-      }
-      final int positionIndex = children.getColumnIndex(BrowserContract.Bookmarks.POSITION);
-      final int count = children.getCount();
-      Logger.debug(LOG_TAG, "Expecting " + count + " children.");
-
-      // Sorted by requested position.
-      TreeMap<Long, ArrayList<String>> guids = new TreeMap<Long, ArrayList<String>>();
-
-      while (!children.isAfterLast()) {
-        final String childGuid   = getGUID(children);
-        final long childPosition = getPosition(children, positionIndex);
-        trace("  Child GUID: " + childGuid);
-        trace("  Child position: " + childPosition);
-        Utils.addToIndexBucketMap(guids, Math.abs(childPosition), childGuid);
-        children.moveToNext();
-      }
+    final List<BookmarksTreeSnapshot.Child> children = tree.getChildren(folderID);
+    if (children.isEmpty()) {
+      trace("No children.");
+      return true;
+    }
+    final int count = children.size();
+    Logger.debug(LOG_TAG, "Expecting " + count + " children.");
 
-      // This will suffice for taking a jumble of records and indices and
-      // producing a sorted sequence that preserves some kind of order --
-      // from the abs of the position, falling back on cursor order (that
-      // is, creation time and ID).
-      // Note that this code is not intended to merge values from two sources!
-      boolean changed = false;
-      int i = 0;
-      for (Entry<Long, ArrayList<String>> entry : guids.entrySet()) {
-        long pos = entry.getKey();
-        int atPos = entry.getValue().size();
-
-        // If every element has a different index, and the indices are
-        // in strict natural order, then changed will be false.
-        if (atPos > 1 || pos != i) {
-          changed = true;
-        }
+    // Sorted by requested position.
+    TreeMap<Long, ArrayList<String>> guids = new TreeMap<Long, ArrayList<String>>();
 
-        ++i;
+    for (BookmarksTreeSnapshot.Child child : children) {
+      trace("  Child GUID: " + child.guid);
+      trace("  Child position: " + child.position);
+      Utils.addToIndexBucketMap(guids, Math.abs(child.position), child.guid);
+    }
 
-        for (String guid : entry.getValue()) {
-          if (!forbiddenGUID(guid)) {
-            childArray.add(guid);
-          }
-        }
+    // This will suffice for taking a jumble of records and indices and
+    // producing a sorted sequence that preserves some kind of order --
+    // from the abs of the position, falling back on snapshot order (that
+    // is, creation time and ID).
+    // Note that this code is not intended to merge values from two sources!
+    boolean changed = false;
+    int i = 0;
+    for (Entry<Long, ArrayList<String>> entry : guids.entrySet()) {
+      long pos = entry.getKey();
+      int atPos = entry.getValue().size();
+
+      // If every element has a different index, and the indices are
+      // in strict natural order, then changed will be false.
+      if (atPos > 1 || pos != i) {
+        changed = true;
       }
 
-      if (Logger.shouldLogVerbose(LOG_TAG)) {
-        // Don't JSON-encode unless we're logging.
-        Logger.trace(LOG_TAG, "Output child array: " + childArray.toJSONString());
-      }
+      ++i;
 
-      if (!changed) {
-        Logger.debug(LOG_TAG, "Nothing moved! Database reflects child array.");
-        return true;
+      for (String guid : entry.getValue()) {
+        if (!forbiddenGUID(guid)) {
+          childArray.add(guid);
+        }
       }
+    }
 
-      if (!persist) {
-        Logger.debug(LOG_TAG, "Returned array does not match database, and not persisting.");
-        return false;
-      }
+    if (Logger.shouldLogVerbose(LOG_TAG)) {
+      // Don't JSON-encode unless we're logging.
+      Logger.trace(LOG_TAG, "Output child array: " + childArray.toJSONString());
+    }
 
-      Logger.debug(LOG_TAG, "Generating child array required moving records. Updating DB.");
-      final long time = now();
-      if (0 < dataAccessor.updatePositions(childArray)) {
-        Logger.debug(LOG_TAG, "Bumping parent time to " + time + ".");
-        dataAccessor.bumpModified(folderID, time);
-      }
+    if (!changed) {
+      Logger.debug(LOG_TAG, "Nothing moved! Database reflects child array.");
       return true;
-    } finally {
-      children.close();
     }
+
+    if (!persist) {
+      Logger.debug(LOG_TAG, "Returned array does not match database, and not persisting.");
+      return false;
+    }
+
+    // Written, along with the parent's new modified time, by flushPositions.
+    Logger.debug(LOG_TAG, "Generating child array required moving records. Queuing DB update.");
+    tree.updatePositions(folderID, childArray, true);
+    return true;
   }
 
   protected static boolean isDeleted(Cursor cur) {
@@ -453,7 +446,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     if (androidParentGUID == null) {
       Logger.debug(LOG_TAG, "No parent GUID for record " + recordGUID + " with parent " + androidParentID);
       // If the parent has been stored and somehow has a null GUID, throw an error.
-      if (parentIDToGuidMap.containsKey(androidParentID)) {
+      if (tree.containsFolderID(androidParentID)) {
         Logger.error(LOG_TAG, "Have the parent android ID for the record but the parent's GUID wasn't found.");
         throw new NoGuidForIdException(null);
       }
@@ -505,7 +498,12 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
    * @param bookmark
    */
   private void relocateBookmark(BookmarkRecord bookmark) {
-    dataAccessor.updateParentAndPosition(bookmark.guid, bookmark.androidParentID, bookmark.androidPosition);
+    updateParentAndPosition(bookmark.guid, bookmark.androidParentID, bookmark.androidPosition);
+  }
+
+  private void updateParentAndPosition(String guid, long parentID, long position) {
+    dataAccessor.updateParentAndPosition(guid, parentID, position);
+    tree.childMoved(guid, parentID, position);
   }
 
   protected JSONArray getChildrenArrayForRecordCursor(Cursor cur, String recordGUID, boolean persist) throws NullCursorException {
@@ -514,7 +512,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
       return null;
     }
 
-    long androidID = parentGuidToIDMap.get(recordGUID);
+    long androidID = tree.getFolderID(recordGUID);
     JSONArray childArray = new JSONArray();
     getChildrenArray(androidID, persist, childArray);
 
@@ -555,12 +553,16 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     // Check for the existence of special folders
     // and insert them if they don't exist.
-    Cursor cur;
     try {
       Logger.debug(LOG_TAG, "Check and build special GUIDs.");
       dataAccessor.checkAndBuildSpecialGuids();
-      cur = dataAccessor.getGuidsIDsForFolders();
-      Logger.debug(LOG_TAG, "Got GUIDs for folders.");
+
+      // To deal with parent mapping of bookmarks we have to do some
+      // hairy stuff. Here's the setup for it: one query for the whole tree,
+      // rather than one for each folder as we process it.
+      Logger.debug(LOG_TAG, "Preparing folder ID mappings.");
+      tree.load();
+      Logger.debug(LOG_TAG, "Loaded bookmark tree.");
     } catch (android.database.sqlite.SQLiteConstraintException e) {
       Logger.error(LOG_TAG, "Got sqlite constraint exception working with Fennec bookmark DB.", e);
       delegate.onBeginFailed(e);
@@ -569,35 +571,12 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
       delegate.onBeginFailed(e);
       return;
     }
-
-    // To deal with parent mapping of bookmarks we have to do some
-    // hairy stuff. Here's the setup for it.
-
-    Logger.debug(LOG_TAG, "Preparing folder ID mappings.");
-
-    // Fake our root.
-    Logger.debug(LOG_TAG, "Tracking places root as ID 0.");
-    parentIDToGuidMap.put(0L, "places");
-    parentGuidToIDMap.put("places", 0L);
-    try {
-      cur.moveToFirst();
-      while (!cur.isAfterLast()) {
-        String guid = getGUID(cur);
-        long id = RepoUtils.getLongFromCursor(cur, BrowserContract.Bookmarks._ID);
-        parentGuidToIDMap.put(guid, id);
-        parentIDToGuidMap.put(id, guid);
-        Logger.debug(LOG_TAG, "GUID " + guid + " maps to " + id);
-        cur.moveToNext();
-      }
-    } finally {
-      cur.close();
-    }
     deletionManager = new BookmarksDeletionManager(dataAccessor, DEFAULT_DELETION_FLUSH_THRESHOLD);
 
     // We just crawled the database enumerating all folders; we'll start the
     // insertion manager with exactly these folders as the known parents (the
     // collection is copied) in the manager constructor.
-    insertionManager = new BookmarksInsertionManager(DEFAULT_INSERTION_FLUSH_THRESHOLD, parentGuidToIDMap.keySet(), this);
+    insertionManager = new BookmarksInsertionManager(DEFAULT_INSERTION_FLUSH_THRESHOLD, tree.getFolderGUIDs(), this);
 
     Logger.debug(LOG_TAG, "Done with initial setup of bookmarks session.");
     super.begin(delegate);
@@ -674,6 +653,9 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
 
   @Override
   public void finish(RepositorySessionFinishDelegate delegate) throws InactiveSessionException {
+    // Write any repositioning done while fetching.
+    tree.flushPositions(now());
+
     // Allow these to be GCed.
     deletionManager = null;
     insertionManager = null;
@@ -788,8 +770,8 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
    * @param bmk
    */
   private void handleParenting(BookmarkRecord bmk) {
-    if (parentGuidToIDMap.containsKey(bmk.parentID)) {
-      bmk.androidParentID = parentGuidToIDMap.get(bmk.parentID);
+    if (tree.containsFolderGUID(bmk.parentID)) {
+      bmk.androidParentID = tree.getFolderID(bmk.parentID);
 
       // Might as well set a basic position from the downloaded children array.
       JSONArray children = parentToChildArray.get(bmk.parentID);
@@ -801,7 +783,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
       }
     }
     else {
-      bmk.androidParentID = parentGuidToIDMap.get("unfiled");
+      bmk.androidParentID = tree.getFolderID("unfiled");
       ArrayList<String> children;
       if (missingParentToChildren.containsKey(bmk.parentID)) {
         children = missingParentToChildren.get(bmk.parentID);
@@ -825,6 +807,11 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     super.updateBookkeeping(record);
     BookmarkRecord bmk = (BookmarkRecord) record;
 
+    // This is what we just wrote; see getContentValues.
+    if (!bmk.deleted) {
+      tree.childStored(bmk.guid, bmk.androidParentID, bmk.androidPosition);
+    }
+
     // If record is folder, update maps and re-parent children if necessary.
     if (!bmk.isFolder()) {
       Logger.debug(LOG_TAG, "Not a folder. No bookkeeping.");
@@ -836,8 +823,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     // Mappings between ID and GUID.
     // TODO: update our persisted children arrays!
     // TODO: if our Android ID just changed, replace parents for all of our children.
-    parentGuidToIDMap.put(bmk.guid,      bmk.androidID);
-    parentIDToGuidMap.put(bmk.androidID, bmk.guid);
+    tree.putFolder(bmk.guid, bmk.androidID);
 
     JSONArray childArray = bmk.children;
 
@@ -852,7 +838,7 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
         // This might return -1; that's OK, the bookmark will
         // be properly repositioned later.
         long position = childArray.indexOf(child);
-        dataAccessor.updateParentAndPosition(child, bmk.androidID, position);
+        updateParentAndPosition(child, bmk.androidID, position);
         needsReparenting--;
       }
       missingParentToChildren.remove(bmk.guid);
@@ -868,6 +854,14 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     }
   }
 
+  @Override
+  protected Record replace(Record newRecord, Record existingRecord) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    // The existing row might be taking a new GUID; updateBookkeeping will
+    // add it back under whichever GUID it ends up with.
+    tree.childRemoved(existingRecord.guid);
+    return super.replace(newRecord, existingRecord);
+  }
+
   @Override
   protected void storeRecordDeletion(final Record record, final Record existingRecord) {
     if (SPECIAL_GUIDS_MAP.containsKey(record.guid)) {
@@ -879,6 +873,10 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     final boolean isFolder = existingBookmark.isFolder();
     final String parentGUID = existingBookmark.parentID;
     deletionManager.deleteRecord(bookmarkRecord.guid, isFolder, parentGUID);
+    tree.childRemoved(bookmarkRecord.guid);
+    if (isFolder) {
+      deletedFolders.add(bookmarkRecord.guid);
+    }
   }
 
   protected void flushQueues() {
@@ -892,12 +890,25 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
     }
 
     Logger.debug(LOG_TAG, "Applying deletions.");
+    final long unfiled = getIDForGUID("unfiled");
     try {
-      untrackGUIDs(deletionManager.flushAll(getIDForGUID("unfiled"), now));
+      untrackGUIDs(deletionManager.flushAll(unfiled, now));
       Logger.debug(LOG_TAG, "Done applying deletions.");
     } catch (Exception e) {
       Logger.error(LOG_TAG, "Unable to apply deletions.", e);
     }
+
+    // The children of deleted folders have been moved to unfiled.
+    if (!deletedFolders.isEmpty()) {
+      for (String guid : deletedFolders) {
+        final Long id = tree.getFolderID(guid);
+        if (id != null) {
+          tree.invalidateFolder(id);
+        }
+      }
+      tree.invalidateFolder(unfiled);
+      deletedFolders.clear();
+    }
   }
 
   @SuppressWarnings("unchecked")
@@ -927,19 +938,19 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
             }
             Logger.debug(LOG_TAG, "Added " + added + " items locally.");
             Logger.debug(LOG_TAG, "Untracking and bumping " + guid + "(" + folderID + ")");
-            dataAccessor.bumpModified(folderID, now());
             untrackGUID(guid);
           }
 
           // If the arrays are different, or they're the same but not flushed to disk,
-          // write them out now.
+          // queue them to be written out (and the parent bumped, if necessary).
           if (!sameArrays || !clean) {
-            dataAccessor.updatePositions(new ArrayList<String>(onServer));
+            tree.updatePositions(folderID, new ArrayList<String>(onServer), !sameArrays);
           }
         } catch (Exception e) {
           Logger.warn(LOG_TAG, "Error repositioning children for " + guid, e);
         }
       }
+      tree.flushPositions(now());
     } finally {
       super.storeDone();
     }
@@ -959,11 +970,19 @@ public class AndroidBrowserBookmarksRepositorySession extends AndroidBrowserRepo
         // Clear our queued deletions.
         deletionManager.clear();
         insertionManager.clear();
+        deletedFolders.clear();
         super.run();
       } catch (Exception ex) {
         delegate.onWipeFailed(ex);
         return;
       }
+
+      // Forget the wiped records.
+      try {
+        tree.load();
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Unable to reload bookmark tree after wipe.", e);
+      }
     }
   }
 
@@ -6,6 +6,7 @@ package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.json.simple.JSONArray;
@@ -18,7 +19,9 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public class AndroidBrowserHistoryDataAccessor extends
     AndroidBrowserRepositoryDataAccessor {
@@ -88,6 +91,18 @@ public class AndroidBrowserHistoryDataAccessor extends
     super.update(oldGUID, newRecord);
   }
 
+  /**
+   * Visits live in the data extender's database, not behind BrowserProvider,
+   * so they can't join the provider batch; they're written in one transaction
+   * of their own just before it.
+   */
+  @Override
+  public void updateBatch(List<String> oldGUIDs, List<Record> newRecords) throws RemoteException, OperationApplicationException {
+    Logger.debug(LOG_TAG, "Storing visits for " + newRecords.size() + " records.");
+    dataExtender.bulkReplace(oldGUIDs, newRecords);
+    super.updateBatch(oldGUIDs, newRecords);
+  }
+
   @Override
   public int purgeGuid(String guid) {
     Logger.debug(LOG_TAG, "Purging record with " + guid);
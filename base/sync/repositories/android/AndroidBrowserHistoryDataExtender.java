@@ -5,11 +5,13 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import org.json.simple.JSONArray;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.HistoryRecord;
+import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -122,6 +124,29 @@ public class AndroidBrowserHistoryDataExtender extends CachedSQLiteOpenHelper {
     }
   }
 
+  /**
+   * Replace the visit data for each of <code>oldGuids</code> with that of the
+   * corresponding record, in a single database transaction.
+   */
+  public void bulkReplace(List<String> oldGuids, List<Record> records) {
+    SQLiteDatabase db = this.getCachedWritableDatabase();
+    try {
+      db.beginTransaction();
+
+      for (int i = 0; i < records.size(); i++) {
+        final HistoryRecord record = (HistoryRecord) records.get(i);
+        db.delete(TBL_HISTORY_EXT, GUID_IS, new String[] { oldGuids.get(i) });
+        store(db, record.guid, record.visits);
+      }
+
+      db.setTransactionSuccessful();
+    } catch (SQLException e) {
+      Logger.error(LOG_TAG, "Caught exception in bulkReplace history visits.", e);
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   /**
    * Fetch a row.
    *
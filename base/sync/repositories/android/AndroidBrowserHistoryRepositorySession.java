@@ -10,6 +10,7 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoGuidForIdException;
@@ -41,6 +42,14 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     dbHelper = new AndroidBrowserHistoryDataAccessor(context);
   }
 
+  /**
+   * History is the largest collection we sync, and the least urgent.
+   */
+  @Override
+  protected Priority getSchedulingPriority() {
+    return Priority.LOW;
+  }
+
   @Override
   public void begin(RepositorySessionBeginDelegate delegate) throws InvalidSessionTransitionException {
     // HACK: Fennec creates history records without a GUID. Mercilessly drop
@@ -182,7 +191,8 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
    */
   protected void enqueueNewRecord(HistoryRecord record) throws NullCursorException {
     synchronized (recordsBufferMonitor) {
-      if (recordsBuffer.size() >= INSERT_RECORD_THRESHOLD) {
+      // Within a batch, hold everything for a single bulk insert.
+      if (currentBatch == null && recordsBuffer.size() >= INSERT_RECORD_THRESHOLD) {
         flushNewRecords();
       }
       Logger.debug(LOG_TAG, "Enqueuing new record with GUID " + record.guid);
@@ -234,8 +244,39 @@ public class AndroidBrowserHistoryRepositorySession extends AndroidBrowserReposi
     }
   }
 
+  /**
+   * History records never touch each other's rows, so we can reconcile a
+   * whole batch before writing.
+   */
+  @Override
+  protected boolean shouldBatchStores() {
+    return true;
+  }
+
+  /**
+   * Also insert any new records queued by the batch.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  @Override
+  protected void flushStoreBatch() {
+    super.flushStoreBatch();
+    if (currentBatch == null) {
+      return;
+    }
+    synchronized (recordsBufferMonitor) {
+      try {
+        flushNewRecords();
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Error flushing records to database.", e);
+      }
+    }
+  }
+
   @Override
   public void storeDone() {
+    // Queue the last partial batch ahead of the final flush.
+    flushPendingStores();
     storeWorkQueue.execute(new Runnable() {
       @Override
       public void run() {
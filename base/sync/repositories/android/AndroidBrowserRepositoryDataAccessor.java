@@ -4,6 +4,7 @@
 
 package org.mozilla.gecko.sync.repositories.android;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.mozilla.gecko.background.common.log.Logger;
@@ -12,10 +13,14 @@ import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public abstract class AndroidBrowserRepositoryDataAccessor {
 
@@ -107,6 +112,50 @@ public abstract class AndroidBrowserRepositoryDataAccessor {
     }
   }
 
+  /**
+   * Produce an operation equivalent to <code>update(guid, newRecord)</code>,
+   * for use with <code>applyBatch</code>.
+   */
+  public ContentProviderOperation buildUpdateOperation(String guid, Record newRecord) {
+    return ContentProviderOperation.newUpdate(getUri())
+        .withSelection(BrowserContract.SyncColumns.GUID + " = ?", new String[] { guid })
+        .withValues(getContentValues(newRecord))
+        .build();
+  }
+
+  /**
+   * Equivalent to calling <code>update(oldGuids[i], newRecords[i])</code> for
+   * each record, but applied in a single <code>applyBatch</code> transaction.
+   *
+   * @throws RemoteException
+   * @throws OperationApplicationException if any update failed.
+   */
+  public void updateBatch(List<String> oldGuids, List<Record> newRecords) throws RemoteException, OperationApplicationException {
+    final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(newRecords.size());
+    for (int i = 0; i < newRecords.size(); i++) {
+      operations.add(buildUpdateOperation(oldGuids.get(i), newRecords.get(i)));
+    }
+    applyBatch(operations);
+  }
+
+  /**
+   * Apply the provided operations in a single database transaction.
+   *
+   * @param operations the operations to apply.
+   * @return the results of each operation.
+   * @throws RemoteException
+   * @throws OperationApplicationException if any operation failed.
+   */
+  public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws RemoteException, OperationApplicationException {
+    ContentProviderResult[] results = context.getContentResolver().applyBatch(BrowserContract.AUTHORITY, operations);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].count != null && results[i].count != 1) {
+        Logger.warn(LOG_TAG, "Unexpectedly updated " + results[i].count + " rows in operation " + i + ".");
+      }
+    }
+    return results;
+  }
+
   public Uri insert(Record record) {
     ContentValues cv = getContentValues(record);
     return context.getContentResolver().insert(getUri(), cv);
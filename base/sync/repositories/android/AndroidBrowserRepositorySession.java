@@ -5,8 +5,12 @@
 package org.mozilla.gecko.sync.repositories.android;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.InvalidRequestException;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
@@ -381,6 +385,23 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
 
   protected int storeCount = 0;
 
+  /**
+   * The number of records that <code>store</code> accumulates before handing
+   * them to <code>storeBatch</code>, in sessions that batch stores.
+   */
+  public static final int STORE_BATCH_SIZE = 100;
+
+  // Records passed to store() but not yet to storeBatch(). Synchronize on the list.
+  protected final ArrayList<Record> pendingStores = new ArrayList<Record>();
+
+  /**
+   * Store a record.
+   * <p>
+   * If the session batches stores (see <code>shouldBatchStores</code>), the
+   * record is held until <code>STORE_BATCH_SIZE</code> records have
+   * accumulated, or until <code>storeDone</code>, and then stored with the
+   * others through <code>storeBatch</code>.
+   */
   @Override
   public void store(final Record record) throws NoStoreDelegateException {
     if (delegate == null) {
@@ -391,6 +412,20 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
       throw new IllegalArgumentException("Null record passed to AndroidBrowserRepositorySession.store().");
     }
 
+    if (shouldBatchStores()) {
+      final ArrayList<Record> batch;
+      synchronized (pendingStores) {
+        pendingStores.add(record);
+        if (pendingStores.size() < STORE_BATCH_SIZE) {
+          return;
+        }
+        batch = new ArrayList<Record>(pendingStores);
+        pendingStores.clear();
+      }
+      storeBatch(batch);
+      return;
+    }
+
     storeCount += 1;
     Logger.debug(LOG_TAG, "Storing record with GUID " + record.guid + " (stored " + storeCount + " records this session).");
 
@@ -405,141 +440,368 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
           delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
           return;
         }
+        storeRecord(record);
+      }
+    };
+    storeWorkQueue.execute(command);
+  }
 
-        // Check that the record is a valid type.
-        // Fennec only supports bookmarks and folders. All other types of records,
-        // including livemarks and queries, are simply ignored.
-        // See Bug 708149. This might be resolved by Fennec changing its database
-        // schema, or by Sync storing non-applied records in its own private database.
-        if (shouldIgnore(record)) {
-          Logger.debug(LOG_TAG, "Ignoring record " + record.guid);
+  /**
+   * Hand any records held by <code>store</code> to <code>storeBatch</code>.
+   * Subclasses that override <code>storeDone</code> without calling through
+   * must call this first.
+   */
+  protected void flushPendingStores() {
+    final ArrayList<Record> batch;
+    synchronized (pendingStores) {
+      if (pendingStores.isEmpty()) {
+        return;
+      }
+      batch = new ArrayList<Record>(pendingStores);
+      pendingStores.clear();
+    }
 
-          // Don't throw: we don't want to abort the entire sync when we get a livemark!
-          // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
-          return;
-        }
+    try {
+      storeBatch(batch);
+    } catch (NoStoreDelegateException e) {
+      // store() already checked that we have a delegate.
+      Logger.error(LOG_TAG, "Store delegate went away with " + batch.size() + " records pending.", e);
+    }
+  }
 
+  @Override
+  public void storeDone() {
+    flushPendingStores();
+    super.storeDone();
+  }
 
-        // TODO: lift these into the session.
-        // Temporary: this matches prior syncing semantics, in which only
-        // the relationship between the local and remote record is considered.
-        // In the future we'll track these two timestamps and use them to
-        // determine which records have changed, and thus process incoming
-        // records more efficiently.
-        long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
-        long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
-        boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
+  /**
+   * Override this to have <code>store</code> accumulate records for
+   * <code>storeBatch</code>, which prefetches them and defers updates to a
+   * single transaction.
+   * <p>
+   * Only do so if storing one record never modifies the database rows of
+   * another (as, for example, repositioning a folder's children does).
+   */
+  @SuppressWarnings("static-method")
+  protected boolean shouldBatchStores() {
+    return false;
+  }
+
+  /**
+   * Store a list of records.
+   * <p>
+   * This is equivalent to calling <code>store</code> for each record, and the
+   * store delegate is notified for each record in the same way, but (if the
+   * session supports it; see <code>shouldBatchStores</code>) all existing
+   * records are fetched by GUID in as few queries as possible, and all
+   * updates are applied in a single <code>applyBatch</code> transaction once
+   * every record has been reconciled.
+   *
+   * @param records the records to store. Must not contain nulls.
+   * @throws NoStoreDelegateException
+   */
+  public void storeBatch(final List<Record> records) throws NoStoreDelegateException {
+    if (delegate == null) {
+      throw new NoStoreDelegateException();
+    }
+    if (records == null || records.contains(null)) {
+      Logger.error(LOG_TAG, "Records sent to storeBatch were null");
+      throw new IllegalArgumentException("Null record passed to AndroidBrowserRepositorySession.storeBatch().");
+    }
+
+    storeCount += records.size();
+    Logger.debug(LOG_TAG, "Storing batch of " + records.size() + " records (stored " + storeCount + " records this session).");
+
+    Runnable command = new Runnable() {
+      @Override
+      public void run() {
+        if (shouldBatchStores() && isActive()) {
+          try {
+            currentBatch = prefetchStoreBatch(records);
+          } catch (Exception e) {
+            // Not fatal: we'll just look up each record as we go.
+            Logger.warn(LOG_TAG, "Unable to prefetch records for batch; storing individually.", e);
+            currentBatch = null;
+          }
+        }
 
-        Record existingRecord;
         try {
-          // GUID matching only: deleted records don't have a payload with which to search.
-          existingRecord = retrieveByGUIDDuringStore(record.guid);
-          if (record.deleted) {
-            if (existingRecord == null) {
-              // We're done. Don't bother with a callback. That can change later
-              // if we want it to.
-              trace("Incoming record " + record.guid + " is deleted, and no local version. Bye!");
-              return;
+          for (Record record : records) {
+            if (!isActive()) {
+              Logger.warn(LOG_TAG, "AndroidBrowserRepositorySession is inactive. Store failing.");
+              delegate.onRecordStoreFailed(new InactiveSessionException(null), record.guid);
+              continue;
             }
+            storeRecord(record);
+          }
+          flushStoreBatch();
+        } finally {
+          currentBatch = null;
+        }
+      }
+    };
+    storeWorkQueue.execute(command);
+  }
 
-            if (existingRecord.deleted) {
-              trace("Local record already deleted. Bye!");
-              return;
-            }
+  /**
+   * State for the batch currently being processed by <code>storeBatch</code>.
+   * Only accessed on the <code>storeWorkQueue</code> thread.
+   */
+  protected static class StoreBatch {
+    // GUID -> existing record, or null if there is no local record with that GUID.
+    public final HashMap<String, Record> existing = new HashMap<String, Record>();
+    // GUIDs with more than one local record.
+    public final HashSet<String> duplicates = new HashSet<String>();
+
+    // Deferred updates: the new records and the old GUIDs they replace.
+    protected ArrayList<Record> updatedRecords = new ArrayList<Record>();
+    protected ArrayList<String> updatedGuids = new ArrayList<String>();
+    protected final HashSet<String> pendingGuids = new HashSet<String>();
+
+    public void addUpdate(String oldGuid, Record record) {
+      updatedRecords.add(record);
+      updatedGuids.add(oldGuid);
+      pendingGuids.add(oldGuid);
+      pendingGuids.add(record.guid);
+    }
 
-            // Which one wins?
-            if (!remotelyModified) {
-              trace("Ignoring deleted record from the past.");
-              return;
-            }
+    public boolean isPending(String guid) {
+      return pendingGuids.contains(guid);
+    }
+  }
 
-            boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
-            if (!locallyModified) {
-              trace("Remote modified, local not. Deleting.");
-              storeRecordDeletion(record, existingRecord);
-              return;
-            }
+  protected StoreBatch currentBatch;
 
-            trace("Both local and remote records have been modified.");
-            if (record.lastModified > existingRecord.lastModified) {
-              trace("Remote is newer, and deleted. Deleting local.");
-              storeRecordDeletion(record, existingRecord);
-              return;
-            }
+  /**
+   * The number of GUIDs to look up in a single query. Must stay well below
+   * SQLite's limit of 999 parameters.
+   */
+  protected static final int STORE_BATCH_FETCH_SIZE = 500;
+
+  protected StoreBatch prefetchStoreBatch(List<Record> records) throws NoGuidForIdException, NullCursorException, ParentNotFoundException {
+    final StoreBatch batch = new StoreBatch();
+    final ArrayList<String> guids = new ArrayList<String>(records.size());
+    for (Record record : records) {
+      if (record.guid != null && !batch.existing.containsKey(record.guid)) {
+        batch.existing.put(record.guid, null);
+        guids.add(record.guid);
+      }
+    }
 
-            trace("Remote is older, local is not deleted. Ignoring.");
-            if (!locallyModified) {
-              Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
-              // Ensure that this is tracked for upload.
-            }
-            return;
+    final HashSet<String> found = new HashSet<String>();
+    for (int start = 0; start < guids.size(); start += STORE_BATCH_FETCH_SIZE) {
+      final int end = Math.min(guids.size(), start + STORE_BATCH_FETCH_SIZE);
+      final String[] chunk = guids.subList(start, end).toArray(new String[end - start]);
+      final Cursor cursor = dbHelper.fetch(chunk);
+      try {
+        if (!cursor.moveToFirst()) {
+          continue;
+        }
+        while (!cursor.isAfterLast()) {
+          final String guid = RepoUtils.getStringFromCursor(cursor, BrowserContract.SyncColumns.GUID);
+          if (found.add(guid)) {
+            batch.existing.put(guid, retrieveDuringStore(cursor));
+          } else {
+            batch.duplicates.add(guid);
           }
-          // End deletion logic.
+          cursor.moveToNext();
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    Logger.debug(LOG_TAG, "Prefetched " + found.size() + " existing records for batch of " + records.size() + ".");
+    return batch;
+  }
 
-          // Now we're processing a non-deleted incoming record.
-          // Apply any changes we need in order to correctly find existing records.
-          fixupRecord(record);
+  /**
+   * Apply any updates deferred by the current batch, and notify the store
+   * delegate for each.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void flushStoreBatch() {
+    if (currentBatch == null || currentBatch.updatedRecords.isEmpty()) {
+      return;
+    }
 
-          if (existingRecord == null) {
-            trace("Looking up match for record " + record.guid);
-            existingRecord = findExistingRecord(record);
-          }
+    final ArrayList<Record> updatedRecords = currentBatch.updatedRecords;
+    final ArrayList<String> updatedGuids = currentBatch.updatedGuids;
+    currentBatch.updatedRecords = new ArrayList<Record>();
+    currentBatch.updatedGuids = new ArrayList<String>();
+    currentBatch.pendingGuids.clear();
 
-          if (existingRecord == null) {
-            // The record is new.
-            trace("No match. Inserting.");
-            insert(record);
-            return;
-          }
+    Logger.debug(LOG_TAG, "Applying " + updatedRecords.size() + " updates.");
+    try {
+      dbHelper.updateBatch(updatedGuids, updatedRecords);
+    } catch (Exception e) {
+      // BrowserProvider applies the batch on a best-effort basis, so all we
+      // know is that something failed. Updates are idempotent: retry each
+      // individually to find out which.
+      Logger.warn(LOG_TAG, "Error applying batch; retrying " + updatedRecords.size() + " updates individually.", e);
+      for (int i = 0; i < updatedRecords.size(); i++) {
+        final Record record = updatedRecords.get(i);
+        try {
+          dbHelper.update(updatedGuids.get(i), record);
+        } catch (Exception ex) {
+          Logger.error(LOG_TAG, "Store failed for " + record.guid, ex);
+          delegate.onRecordStoreFailed(ex, record.guid);
+          continue;
+        }
+        delegate.onRecordStoreSucceeded(record.guid);
+      }
+      return;
+    }
 
-          // We found a local dupe.
-          trace("Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+    for (Record record : updatedRecords) {
+      delegate.onRecordStoreSucceeded(record.guid);
+    }
+  }
 
-          // Populate more expensive fields prior to reconciling.
-          existingRecord = transformRecord(existingRecord);
-          Record toStore = reconcileRecords(record, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+  /**
+   * Reconcile a single incoming record against local storage, and insert,
+   * replace, or delete as appropriate.
+   * <p>
+   * Must be called on <code>storeWorkQueue</code> thread!
+   */
+  protected void storeRecord(final Record record) {
+    // Check that the record is a valid type.
+    // Fennec only supports bookmarks and folders. All other types of records,
+    // including livemarks and queries, are simply ignored.
+    // See Bug 708149. This might be resolved by Fennec changing its database
+    // schema, or by Sync storing non-applied records in its own private database.
+    if (shouldIgnore(record)) {
+      Logger.debug(LOG_TAG, "Ignoring record " + record.guid);
+
+      // Don't throw: we don't want to abort the entire sync when we get a livemark!
+      // delegate.onRecordStoreFailed(new InvalidBookmarkTypeException(null));
+      return;
+    }
 
-          if (toStore == null) {
-            Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
-            return;
-          }
 
-          // TODO: pass in timestamps?
-
-          // This section of code will only run if the incoming record is not
-          // marked as deleted, so we never want to just drop ours from the database:
-          // we need to upload it later.
-          // Allowing deleted items to propagate through `replace` allows normal
-          // logging and side-effects to occur, and is no more expensive than simply
-          // bumping the modified time.
-          Logger.debug(LOG_TAG, "Replacing existing " + existingRecord.guid +
-                       (toStore.deleted ? " with deleted record " : " with record ") +
-                       toStore.guid);
-          Record replaced = replace(toStore, existingRecord);
-
-          // Note that we don't track records here; deciding that is the job
-          // of reconcileRecords.
-          Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
-                                "(" + replaced.androidID + ")");
-          delegate.onRecordStoreSucceeded(replaced.guid);
+    // TODO: lift these into the session.
+    // Temporary: this matches prior syncing semantics, in which only
+    // the relationship between the local and remote record is considered.
+    // In the future we'll track these two timestamps and use them to
+    // determine which records have changed, and thus process incoming
+    // records more efficiently.
+    long lastLocalRetrieval  = 0;      // lastSyncTimestamp?
+    long lastRemoteRetrieval = 0;      // TODO: adjust for clock skew.
+    boolean remotelyModified = record.lastModified > lastRemoteRetrieval;
+
+    Record existingRecord;
+    try {
+      // GUID matching only: deleted records don't have a payload with which to search.
+      existingRecord = retrieveByGUIDDuringStore(record.guid);
+      if (record.deleted) {
+        if (existingRecord == null) {
+          // We're done. Don't bother with a callback. That can change later
+          // if we want it to.
+          trace("Incoming record " + record.guid + " is deleted, and no local version. Bye!");
           return;
+        }
 
-        } catch (MultipleRecordsForGuidException e) {
-          Logger.error(LOG_TAG, "Multiple records returned for given guid: " + record.guid);
-          delegate.onRecordStoreFailed(e, record.guid);
+        if (existingRecord.deleted) {
+          trace("Local record already deleted. Bye!");
           return;
-        } catch (NoGuidForIdException e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
+        }
+
+        // Which one wins?
+        if (!remotelyModified) {
+          trace("Ignoring deleted record from the past.");
           return;
-        } catch (Exception e) {
-          Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
-          delegate.onRecordStoreFailed(e, record.guid);
+        }
+
+        boolean locallyModified = existingRecord.lastModified > lastLocalRetrieval;
+        if (!locallyModified) {
+          trace("Remote modified, local not. Deleting.");
+          storeRecordDeletion(record, existingRecord);
           return;
         }
+
+        trace("Both local and remote records have been modified.");
+        if (record.lastModified > existingRecord.lastModified) {
+          trace("Remote is newer, and deleted. Deleting local.");
+          storeRecordDeletion(record, existingRecord);
+          return;
+        }
+
+        trace("Remote is older, local is not deleted. Ignoring.");
+        if (!locallyModified) {
+          Logger.warn(LOG_TAG, "Inconsistency: old remote record is deleted, but local record not modified!");
+          // Ensure that this is tracked for upload.
+        }
+        return;
       }
-    };
-    storeWorkQueue.execute(command);
+      // End deletion logic.
+
+      // Now we're processing a non-deleted incoming record.
+      // Apply any changes we need in order to correctly find existing records.
+      fixupRecord(record);
+
+      if (existingRecord == null) {
+        trace("Looking up match for record " + record.guid);
+        existingRecord = findExistingRecord(record);
+      }
+
+      if (existingRecord == null) {
+        // The record is new.
+        trace("No match. Inserting.");
+        insert(record);
+        return;
+      }
+
+      // We found a local dupe.
+      trace("Incoming record " + record.guid + " dupes to local record " + existingRecord.guid);
+
+      // Populate more expensive fields prior to reconciling.
+      existingRecord = transformRecord(existingRecord);
+      Record toStore = reconcileRecords(record, existingRecord, lastRemoteRetrieval, lastLocalRetrieval);
+
+      if (toStore == null) {
+        Logger.debug(LOG_TAG, "Reconciling returned null. Not inserting a record.");
+        return;
+      }
+
+      // TODO: pass in timestamps?
+
+      // This section of code will only run if the incoming record is not
+      // marked as deleted, so we never want to just drop ours from the database:
+      // we need to upload it later.
+      // Allowing deleted items to propagate through `replace` allows normal
+      // logging and side-effects to occur, and is no more expensive than simply
+      // bumping the modified time.
+      Logger.debug(LOG_TAG, "Replacing existing " + existingRecord.guid +
+                   (toStore.deleted ? " with deleted record " : " with record ") +
+                   toStore.guid);
+      Record replaced = replace(toStore, existingRecord);
+
+      if (currentBatch != null && currentBatch.isPending(replaced.guid)) {
+        // The delegate is called once the batch has been applied.
+        return;
+      }
+
+      // Note that we don't track records here; deciding that is the job
+      // of reconcileRecords.
+      Logger.debug(LOG_TAG, "Calling delegate callback with guid " + replaced.guid +
+                            "(" + replaced.androidID + ")");
+      delegate.onRecordStoreSucceeded(replaced.guid);
+      return;
+
+    } catch (MultipleRecordsForGuidException e) {
+      Logger.error(LOG_TAG, "Multiple records returned for given guid: " + record.guid);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (NoGuidForIdException e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    } catch (Exception e) {
+      Logger.error(LOG_TAG, "Store failed for " + record.guid, e);
+      delegate.onRecordStoreFailed(e, record.guid);
+      return;
+    }
   }
 
   /**
@@ -575,7 +837,11 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
     Record toStore = prepareRecord(newRecord);
 
     // newRecord should already have suitable androidID and guid.
-    dbHelper.update(existingRecord.guid, toStore);
+    if (currentBatch != null) {
+      currentBatch.addUpdate(existingRecord.guid, toStore);
+    } else {
+      dbHelper.update(existingRecord.guid, toStore);
+    }
     updateBookkeeping(toStore);
     Logger.debug(LOG_TAG, "replace() returning record " + toStore.guid);
     return toStore;
@@ -595,6 +861,20 @@ public abstract class AndroidBrowserRepositorySession extends StoreTrackingRepos
                                              NullCursorException,
                                              ParentNotFoundException,
                                              MultipleRecordsForGuidException {
+    if (currentBatch != null) {
+      if (currentBatch.isPending(guid)) {
+        // The database is about to change underneath us.
+        flushStoreBatch();
+      } else if (currentBatch.existing.containsKey(guid)) {
+        if (currentBatch.duplicates.contains(guid)) {
+          throw (new MultipleRecordsForGuidException(null));
+        }
+        // Each prefetched record is only good for one lookup: once we've
+        // handed it out, it might be written.
+        return currentBatch.existing.remove(guid); // Not transformed.
+      }
+    }
+
     Cursor cursor = dbHelper.fetch(new String[] { guid });
     try {
       if (!cursor.moveToFirst()) {
@@ -0,0 +1,381 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.sync.repositories.NullCursorException;
+
+import android.database.Cursor;
+
+/**
+ * An in-memory copy of the shape of the bookmark tree: which folders exist,
+ * and which items each folder contains, in order.
+ * <p>
+ * A bookmarks session loads this with a single query when it begins, rather
+ * than querying the database for the children of each folder it processes.
+ * The session keeps the snapshot up to date as it writes. Where a write is
+ * awkward to mirror (such as moving the children of deleted folders), the
+ * session invalidates the affected folders instead, and their children are
+ * re-read from the database the next time they're needed.
+ * <p>
+ * Repositioning is applied to the snapshot immediately, but only written to
+ * the database, in a single transaction, by {@link #flushPositions(long)}.
+ */
+public class BookmarksTreeSnapshot {
+  private static final String LOG_TAG = "BookmarksTreeSnapshot";
+
+  /**
+   * An item in a folder.
+   */
+  public static class Child {
+    public final String guid;
+    public long position;
+
+    public Child(String guid, long position) {
+      this.guid = guid;
+      this.position = position;
+    }
+  }
+
+  // Database order: position, falling back on creation (i.e., append ties).
+  private static final Comparator<Child> POSITION_ORDER = new Comparator<Child>() {
+    @Override
+    public int compare(Child lhs, Child rhs) {
+      if (lhs.position == rhs.position) {
+        return 0;
+      }
+      return lhs.position < rhs.position ? -1 : 1;
+    }
+  };
+
+  private final AndroidBrowserBookmarksDataAccessor dataAccessor;
+
+  private final HashMap<String, Long> folderGuidToID = new HashMap<String, Long>();
+  private final HashMap<Long, String> folderIDToGuid = new HashMap<Long, String>();
+
+  // Non-deleted children of each folder, in database order.
+  private final HashMap<Long, ArrayList<Child>> children = new HashMap<Long, ArrayList<Child>>();
+
+  // The folder containing each non-deleted item.
+  private final HashMap<String, Long> parents = new HashMap<String, Long>();
+
+  // Folders whose children must be re-read before they're next used.
+  private final HashSet<Long> stale = new HashSet<Long>();
+
+  // Repositioning not yet written to the database, by folder ID.
+  private final LinkedHashMap<Long, ArrayList<String>> pendingPositions = new LinkedHashMap<Long, ArrayList<String>>();
+  private final HashSet<Long> pendingBumps = new HashSet<Long>();
+
+  public BookmarksTreeSnapshot(AndroidBrowserBookmarksDataAccessor dataAccessor) {
+    this.dataAccessor = dataAccessor;
+  }
+
+  /**
+   * Discard any existing state and read the whole tree from the database.
+   */
+  public synchronized void load() throws NullCursorException {
+    folderGuidToID.clear();
+    folderIDToGuid.clear();
+    children.clear();
+    parents.clear();
+    stale.clear();
+    pendingPositions.clear();
+    pendingBumps.clear();
+
+    // Fake our root.
+    Logger.debug(LOG_TAG, "Tracking places root as ID 0.");
+    putFolder("places", 0L);
+
+    final Cursor cur = dataAccessor.getTree();
+    try {
+      if (!cur.moveToFirst()) {
+        return;
+      }
+      final int idIndex       = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks._ID);
+      final int guidIndex     = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.GUID);
+      final int parentIndex   = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.PARENT);
+      final int positionIndex = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.POSITION);
+      final int typeIndex     = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.TYPE);
+      final int deletedIndex  = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.IS_DELETED);
+
+      int count = 0;
+      while (!cur.isAfterLast()) {
+        final String guid = cur.getString(guidIndex);
+        final boolean isFolder = cur.getInt(typeIndex) == BrowserContract.Bookmarks.TYPE_FOLDER;
+
+        // Matches getGuidsIDsForFolders: deleted folders are mapped, too.
+        if (isFolder && AndroidBrowserBookmarksDataAccessor.shouldTrackGUID(guid)) {
+          putFolder(guid, cur.getLong(idIndex));
+        }
+
+        // Matches getChildren.
+        if (cur.getInt(deletedIndex) == 0 && !"places".equals(guid)) {
+          final long parent = cur.getLong(parentIndex);
+          getOrCreateChildren(parent).add(new Child(guid, cur.getLong(positionIndex)));
+          parents.put(guid, parent);
+          ++count;
+        }
+        cur.moveToNext();
+      }
+      Logger.debug(LOG_TAG, "Loaded " + folderGuidToID.size() + " folders and " + count + " items.");
+    } finally {
+      cur.close();
+    }
+  }
+
+  private ArrayList<Child> getOrCreateChildren(long folderID) {
+    ArrayList<Child> list = children.get(folderID);
+    if (list == null) {
+      list = new ArrayList<Child>();
+      children.put(folderID, list);
+    }
+    return list;
+  }
+
+  public synchronized void putFolder(String guid, long id) {
+    folderGuidToID.put(guid, id);
+    folderIDToGuid.put(id, guid);
+  }
+
+  public synchronized Long getFolderID(String guid) {
+    return folderGuidToID.get(guid);
+  }
+
+  public synchronized String getFolderGUID(long id) {
+    return folderIDToGuid.get(id);
+  }
+
+  public synchronized boolean containsFolderGUID(String guid) {
+    return folderGuidToID.containsKey(guid);
+  }
+
+  public synchronized boolean containsFolderID(long id) {
+    return folderIDToGuid.containsKey(id);
+  }
+
+  /**
+   * @return a copy of the GUIDs of every known folder.
+   */
+  public synchronized Set<String> getFolderGUIDs() {
+    return new HashSet<String>(folderGuidToID.keySet());
+  }
+
+  /**
+   * Return the non-deleted children of a folder in the order in which
+   * <code>AndroidBrowserBookmarksDataAccessor.getChildren</code> would.
+   *
+   * @return a copy; the caller may keep it.
+   * @throws NullCursorException
+   */
+  public synchronized List<Child> getChildren(long folderID) throws NullCursorException {
+    if (stale.remove(folderID)) {
+      reloadChildren(folderID);
+    }
+    final ArrayList<Child> list = children.get(folderID);
+    if (list == null) {
+      return new ArrayList<Child>();
+    }
+    final ArrayList<Child> out = new ArrayList<Child>(list.size());
+    for (Child child : list) {
+      out.add(new Child(child.guid, child.position));
+    }
+    return out;
+  }
+
+  private void reloadChildren(long folderID) throws NullCursorException {
+    Logger.debug(LOG_TAG, "Re-reading children of " + folderID + ".");
+    final ArrayList<Child> old = children.remove(folderID);
+    if (old != null) {
+      for (Child child : old) {
+        parents.remove(child.guid);
+      }
+    }
+
+    final Cursor cur = dataAccessor.getChildren(folderID);
+    try {
+      if (!cur.moveToFirst()) {
+        return;
+      }
+      final int guidIndex     = cur.getColumnIndexOrThrow(BrowserContract.SyncColumns.GUID);
+      final int positionIndex = cur.getColumnIndexOrThrow(BrowserContract.Bookmarks.POSITION);
+      final ArrayList<Child> list = getOrCreateChildren(folderID);
+      while (!cur.isAfterLast()) {
+        final String guid = cur.getString(guidIndex);
+        final Long previousParent = parents.put(guid, folderID);
+        if (previousParent != null && previousParent != folderID) {
+          // Moved here behind our back.
+          removeFromFolder(previousParent, guid);
+        }
+        list.add(new Child(guid, cur.getLong(positionIndex)));
+        cur.moveToNext();
+      }
+    } finally {
+      cur.close();
+    }
+  }
+
+  private Child removeFromFolder(long folderID, String guid) {
+    final ArrayList<Child> list = children.get(folderID);
+    if (list == null) {
+      return null;
+    }
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i).guid.equals(guid)) {
+        return list.remove(i);
+      }
+    }
+    return null;
+  }
+
+  private static void insertInOrder(ArrayList<Child> list, Child child) {
+    // After any siblings at the same position, as a newly inserted row would be.
+    int i = list.size();
+    while (i > 0 && list.get(i - 1).position > child.position) {
+      --i;
+    }
+    list.add(i, child);
+  }
+
+  /**
+   * Record that an item was written to the database with the provided parent
+   * and position.
+   */
+  public synchronized void childStored(String guid, long parentID, long position) {
+    final Long previousParent = parents.remove(guid);
+    if (previousParent != null) {
+      removeFromFolder(previousParent, guid);
+    }
+    insertInOrder(getOrCreateChildren(parentID), new Child(guid, position));
+    parents.put(guid, parentID);
+  }
+
+  /**
+   * Record that an item was moved to a new parent.
+   *
+   * @param position the new position, or -1 if the position was not changed.
+   */
+  public synchronized void childMoved(String guid, long parentID, long position) {
+    final Long previousParent = parents.remove(guid);
+    final Child old = previousParent == null ? null : removeFromFolder(previousParent, guid);
+    if (old == null && position < 0) {
+      // We don't know where it ended up.
+      stale.add(parentID);
+      return;
+    }
+    insertInOrder(getOrCreateChildren(parentID), new Child(guid, position < 0 ? old.position : position));
+    parents.put(guid, parentID);
+  }
+
+  /**
+   * Record that an item was deleted, or now has a different GUID.
+   */
+  public synchronized void childRemoved(String guid) {
+    final Long previousParent = parents.remove(guid);
+    if (previousParent != null) {
+      removeFromFolder(previousParent, guid);
+    }
+  }
+
+  /**
+   * Forget what we know of a folder's children, re-reading them when next needed.
+   */
+  public synchronized void invalidateFolder(long folderID) {
+    stale.add(folderID);
+  }
+
+  /**
+   * Set the position of each item named in <code>childArray</code> to its index
+   * in that array, as <code>AndroidBrowserBookmarksDataAccessor.updatePositions</code>
+   * would, and queue the change for {@link #flushPositions(long)}.
+   *
+   * @param folderID the folder being repositioned.
+   * @param childArray a sequence of GUID strings.
+   * @param bumpModified true if the folder's modified time should be bumped on flush.
+   */
+  public synchronized void updatePositions(long folderID, List<String> childArray, boolean bumpModified) {
+    final ArrayList<String> guids = new ArrayList<String>(childArray);
+    final HashMap<String, Integer> indices = new HashMap<String, Integer>();
+    final HashSet<Long> touched = new HashSet<Long>();
+    for (int i = 0; i < guids.size(); i++) {
+      final String guid = guids.get(i);
+      indices.put(guid, i);
+      final Long parent = parents.get(guid);
+      if (parent != null) {
+        touched.add(parent);
+      }
+    }
+
+    // The database updates by GUID, so follow items wherever they live.
+    for (Long parent : touched) {
+      final ArrayList<Child> list = children.get(parent);
+      for (Child child : list) {
+        final Integer index = indices.get(child.guid);
+        if (index != null) {
+          child.position = index;
+        }
+      }
+      Collections.sort(list, POSITION_ORDER);
+    }
+
+    // A later repositioning of the same folder supersedes an earlier one.
+    pendingPositions.remove(folderID);
+    pendingPositions.put(folderID, guids);
+    if (bumpModified) {
+      pendingBumps.add(folderID);
+    }
+  }
+
+  /**
+   * Write any queued repositioning to the database in one transaction, and
+   * bump the modified time of folders whose children moved.
+   *
+   * @param now the new modified time for those folders.
+   */
+  public synchronized void flushPositions(long now) {
+    if (pendingPositions.isEmpty() && pendingBumps.isEmpty()) {
+      return;
+    }
+
+    final ArrayList<ArrayList<String>> childArrays = new ArrayList<ArrayList<String>>(pendingPositions.values());
+    final ArrayList<Long> bumps = new ArrayList<Long>(pendingBumps);
+    pendingPositions.clear();
+    pendingBumps.clear();
+
+    Logger.debug(LOG_TAG, "Repositioning children of " + childArrays.size() + " folders and bumping " +
+                          bumps.size() + " folders to " + now + ".");
+    try {
+      dataAccessor.updatePositionsAndBumpModified(childArrays, bumps, now);
+      return;
+    } catch (Exception e) {
+      // The provider applies batches on a best-effort basis, so we don't
+      // know which failed. These are idempotent: apply each individually.
+      Logger.warn(LOG_TAG, "Error repositioning in batch; retrying individually.", e);
+    }
+    for (ArrayList<String> childArray : childArrays) {
+      try {
+        dataAccessor.updatePositions(childArray);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Error repositioning " + childArray.size() + " children.", e);
+      }
+    }
+    for (Long id : bumps) {
+      try {
+        dataAccessor.bumpModified(id, now);
+      } catch (Exception e) {
+        Logger.warn(LOG_TAG, "Error bumping modified time of " + id + ".", e);
+      }
+    }
+  }
+}
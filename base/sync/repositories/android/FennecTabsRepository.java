@@ -10,6 +10,7 @@ import org.mozilla.gecko.background.common.log.Logger;
 import org.mozilla.gecko.background.db.Tab;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.db.BrowserContract.Clients;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
 import org.mozilla.gecko.sync.delegates.ClientsDataDelegate;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
 import org.mozilla.gecko.sync.repositories.NoContentProviderException;
@@ -95,6 +96,14 @@ public class FennecTabsRepository extends Repository {
       clientsDatabase = new ClientsDatabaseAccessor(context);
     }
 
+    /**
+     * Tabs are few, and the user is likely waiting to see them.
+     */
+    @Override
+    protected Priority getSchedulingPriority() {
+      return Priority.HIGH;
+    }
+
     @Override
     public void abort() {
       releaseProviders();
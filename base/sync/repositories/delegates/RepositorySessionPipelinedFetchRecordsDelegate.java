@@ -0,0 +1,29 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.gecko.sync.repositories.delegates;
+
+/**
+ * A fetch delegate that is able to receive records that were transformed (for
+ * example, decrypted) on several worker threads.
+ * <p>
+ * Records are still delivered to <code>onFetchedRecord</code> one at a time,
+ * in fetch order, and <code>onFetchCompleted</code> is invoked only after every
+ * record has been delivered. Calls to <code>onFetchedRecord</code> may block in
+ * order to apply backpressure to the fetch.
+ */
+public interface RepositorySessionPipelinedFetchRecordsDelegate extends RepositorySessionFetchRecordsDelegate {
+  /**
+   * @return the number of worker threads that may transform records in
+   *         parallel. A value less than 2 means records should be transformed
+   *         on the fetching thread.
+   */
+  public int getTransformThreadCount();
+
+  /**
+   * @return the maximum number of records that may be fetched but not yet
+   *         delivered at any one time.
+   */
+  public int getTransformQueueCapacity();
+}
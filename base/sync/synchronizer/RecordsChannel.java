@@ -6,10 +6,14 @@ package org.mozilla.gecko.sync.synchronizer;
 
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.gecko.background.common.log.Logger;
-import org.mozilla.gecko.sync.ThreadPool;
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
 import org.mozilla.gecko.sync.repositories.InvalidSessionTransitionException;
 import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -17,6 +21,7 @@ import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionBe
 import org.mozilla.gecko.sync.repositories.delegates.DeferredRepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionPipelinedFetchRecordsDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
 import org.mozilla.gecko.sync.repositories.domain.Record;
 
@@ -57,20 +62,39 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
  *
  * RecordsChannel exists to enforce this ordering of operations.
  *
+ * Records flow through a pipeline of bounded stages:
+ *
+ *   fetch -> transform (decrypt) on N worker threads -> in-order queue -> store
+ *
+ * Transformation is performed by the source session (e.g., a
+ * <code>Crypto5MiddlewareRepositorySession</code>) if it supports
+ * {@link RepositorySessionPipelinedFetchRecordsDelegate}; it delivers records
+ * to us in fetch order, so the guarantees above are unchanged. Both the
+ * transform stage and our own queue are bounded: when the sink falls behind,
+ * <code>onFetchedRecord</code> blocks, which in turn stalls the fetch.
+ *
  * @author rnewman
  *
  */
 public class RecordsChannel implements
-  RepositorySessionFetchRecordsDelegate,
+  RepositorySessionPipelinedFetchRecordsDelegate,
   RepositorySessionStoreDelegate,
   RecordsConsumerDelegate,
   RepositorySessionBeginDelegate {
 
   private static final String LOG_TAG = "RecordsChannel";
+
+  public static final int DEFAULT_TRANSFORM_THREAD_COUNT = 2;
+  public static final int DEFAULT_QUEUE_CAPACITY = 500;
+
+  // How long to block waiting for queue space before checking that the consumer is still running.
+  private static final long QUEUE_WAIT_MSEC = 1000;
   public RepositorySession source;
   public RepositorySession sink;
   private final RecordsChannelDelegate delegate;
   private long fetchEnd = -1;
+  private final int transformThreadCount;
+  private final int queueCapacity;
 
   protected final AtomicInteger numFetched = new AtomicInteger();
   protected final AtomicInteger numFetchFailed = new AtomicInteger();
@@ -78,9 +102,28 @@ public class RecordsChannel implements
   protected final AtomicInteger numStoreFailed = new AtomicInteger();
 
   public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate) {
+    this(source, sink, delegate, DEFAULT_TRANSFORM_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param transformThreadCount
+   *        the number of threads on which fetched records may be transformed
+   *        (decrypted) in parallel. 1 transforms records on the fetching thread.
+   * @param queueCapacity
+   *        the maximum number of records buffered in each stage before the
+   *        fetch is made to wait.
+   */
+  public RecordsChannel(RepositorySession source, RepositorySession sink, RecordsChannelDelegate delegate,
+      int transformThreadCount, int queueCapacity) {
+    if (transformThreadCount < 1 || queueCapacity < 1) {
+      throw new IllegalArgumentException("Thread count and queue capacity must be positive.");
+    }
     this.source    = source;
     this.sink      = sink;
     this.delegate  = delegate;
+    this.transformThreadCount = transformThreadCount;
+    this.queueCapacity = queueCapacity;
+    this.queueSlots = new Semaphore(queueCapacity);
   }
 
   /*
@@ -93,9 +136,12 @@ public class RecordsChannel implements
    * Then we notify our delegate of completion.
    */
   private RecordConsumer consumer;
-  private boolean waitingForQueueDone = false;
+  private volatile boolean waitingForQueueDone = false;
   private final ConcurrentLinkedQueue<Record> toProcess = new ConcurrentLinkedQueue<Record>();
 
+  // One permit per free slot in toProcess.
+  private final Semaphore queueSlots;
+
   @Override
   public ConcurrentLinkedQueue<Record> getQueue() {
     return toProcess;
@@ -166,9 +212,11 @@ public class RecordsChannel implements
     numFetchFailed.set(0);
     numStored.set(0);
     numStoreFailed.set(0);
-    // Start a consumer thread.
+    queueSlots.drainPermits();
+    queueSlots.release(queueCapacity);
+    // Start a consumer. It runs for the whole flow, so it gets a lane of its own.
     this.consumer = new ConcurrentRecordConsumer(this);
-    ThreadPool.run(this.consumer);
+    SyncScheduler.getInstance().execute(Lane.CONSUMER, Priority.NORMAL, this.consumer);
     waitingForQueueDone = true;
     source.fetchSince(source.getLastSyncTimestamp(), this);
   }
@@ -182,8 +230,20 @@ public class RecordsChannel implements
     source.begin(this);
   }
 
+  @Override
+  public int getTransformThreadCount() {
+    return transformThreadCount;
+  }
+
+  @Override
+  public int getTransformQueueCapacity() {
+    return queueCapacity;
+  }
+
   @Override
   public void store(Record record) {
+    // The consumer has taken this record off the queue.
+    queueSlots.release();
     numStored.incrementAndGet();
     try {
       sink.store(record);
@@ -201,9 +261,27 @@ public class RecordsChannel implements
     delegate.onFlowFetchFailed(this, ex);
   }
 
+  /**
+   * Block until there is space in the queue, or the consumer has finished.
+   */
+  protected void waitForQueueSlot() {
+    try {
+      while (!queueSlots.tryAcquire(QUEUE_WAIT_MSEC, TimeUnit.MILLISECONDS)) {
+        if (!waitingForQueueDone) {
+          // The consumer is gone; nobody will free a slot.
+          return;
+        }
+        Logger.trace(LOG_TAG, "Queue full. Waiting for sink.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @Override
   public void onFetchedRecord(Record record) {
     numFetched.incrementAndGet();
+    waitForQueueSlot();
     this.toProcess.add(record);
     this.consumer.doNotify();
   }
@@ -261,6 +261,11 @@ public class TokenServerClient {
       return delegate.getUserAgent();
     }
 
+    @Override
+    public boolean acceptCompressedResponses() {
+      return true;
+    }
+
     @Override
     public void handleHttpResponse(HttpResponse response) {
       // Skew.
@@ -24,6 +24,8 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Stack;
 
 /* Reads out of a multiple level deep jar file such as
@@ -32,6 +34,31 @@ import java.util.Stack;
 public final class GeckoJarReader {
     private static final String LOGTAG = "GeckoJarReader";
 
+    // Typically the APK and omni.ja, plus a little room for add-ons.
+    private static final int MAX_CACHED_ARCHIVES = 4;
+
+    /**
+     * Open archives, keyed by their (possibly nested) URL, in access order.
+     * The key for an outermost archive also includes the size and modification
+     * time of its file, so that an archive replaced in place, such as an updated
+     * add-on, is opened afresh rather than served from the old mapping. Nested
+     * archives' keys start with their parent's, so they follow suit.
+     *
+     * Opening an archive maps it and reads its central directory, and opening a
+     * nested archive means doing the same for its parent first, so we keep the
+     * most recently used ones around. Cached archives are shared: closing a
+     * stream doesn't release them. Evicted archives aren't released either,
+     * because streams and nested archives may still refer to them; they are
+     * released when they are garbage collected.
+     */
+    private static final Map<String, NativeZip> sArchives =
+        new LinkedHashMap<String, NativeZip>(MAX_CACHED_ARCHIVES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NativeZip> eldest) {
+                return size() > MAX_CACHED_ARCHIVES;
+            }
+        };
+
     private GeckoJarReader() {}
 
     public static Bitmap getBitmap(Context context, Resources resources, String url) {
@@ -41,15 +68,11 @@ public final class GeckoJarReader {
 
     public static BitmapDrawable getBitmapDrawable(Context context, Resources resources,
                                                    String url) {
-        Stack<String> jarUrls = parseUrl(url);
         InputStream inputStream = null;
         BitmapDrawable bitmap = null;
 
-        NativeZip zip = null;
         try {
-            // Load the initial jar file as a zip
-            zip = getZipFile(context, jarUrls.pop());
-            inputStream = getStream(zip, jarUrls, url);
+            inputStream = getEntryStream(context, url);
             if (inputStream != null) {
                 bitmap = new BitmapDrawable(resources, inputStream);
             }
@@ -63,23 +86,16 @@ public final class GeckoJarReader {
                     Log.e(LOGTAG, "Error closing stream", ex);
                 }
             }
-            if (zip != null) {
-                zip.close();
-            }
         }
 
         return bitmap;
     }
 
     public static String getText(Context context, String url) {
-        Stack<String> jarUrls = parseUrl(url);
-
-        NativeZip zip = null;
         BufferedReader reader = null;
         String text = null;
         try {
-            zip = getZipFile(context, jarUrls.pop());
-            InputStream input = getStream(zip, jarUrls, url);
+            InputStream input = getEntryStream(context, url);
             if (input != null) {
                 reader = new BufferedReader(new InputStreamReader(input));
                 text = reader.readLine();
@@ -94,9 +110,6 @@ public final class GeckoJarReader {
                     Log.e(LOGTAG, "Error closing reader", ex);
                 }
             }
-            if (zip != null) {
-                zip.close();
-            }
         }
 
         return text;
@@ -109,6 +122,84 @@ public final class GeckoJarReader {
         return new NativeZip(fileUrl.getPath());
     }
 
+    /**
+     * Return the innermost archive named by <code>jarUrls</code>, opening and
+     * caching it and its parents as necessary, and leaving only the entry name
+     * on the stack. Must be called with <code>sArchives</code> locked.
+     *
+     * @return the archive, or null if a nested archive doesn't exist.
+     */
+    private static NativeZip getArchive(Context context, Stack<String> jarUrls, String origUrl)
+            throws IOException, URISyntaxException {
+        final String fileUrl = jarUrls.pop();
+        final File file = new File(new URI(fileUrl).getPath());
+        String key = fileUrl + "#" + file.length() + "#" + file.lastModified();
+        NativeZip zip = sArchives.get(key);
+        if (zip == null) {
+            zip = getZipFile(context, fileUrl);
+            zip.setShared(true);
+            sArchives.put(key, zip);
+        }
+
+        while (jarUrls.size() > 1) {
+            final String fileName = jarUrls.pop();
+            final String nestedKey = "jar:" + key + "!/" + fileName;
+            NativeZip nested = sArchives.get(nestedKey);
+            if (nested == null) {
+                final InputStream inputStream = zip.getInputStream(fileName);
+                if (inputStream == null) {
+                    Log.d(LOGTAG, "No Entry for " + fileName);
+                    return null;
+                }
+
+                // The nested archive refers to its parent's mapping through
+                // the stream, which keeps the parent alive.
+                try {
+                    nested = new NativeZip(inputStream);
+                } catch (IllegalArgumentException e) {
+                    String description = "!!! BUG 849589 !!! origUrl=" + origUrl;
+                    Log.e(LOGTAG, description, e);
+                    throw new IllegalArgumentException(description);
+                }
+                nested.setShared(true);
+                sArchives.put(nestedKey, nested);
+            }
+            zip = nested;
+            key = nestedKey;
+        }
+        return zip;
+    }
+
+    /**
+     * Return a stream for the innermost entry named by a (possibly nested)
+     * jar: URL, or null if there is no such entry. Entries that are stored
+     * uncompressed are read directly from the mapped archive.
+     */
+    private static InputStream getEntryStream(Context context, String url)
+            throws IOException, URISyntaxException {
+        final Stack<String> jarUrls = parseUrl(url);
+        if (jarUrls.size() < 2) {
+            // Not a jar: URL, so there's no entry to read.
+            return null;
+        }
+
+        // Lookups update the archive's native directory cursor, so
+        // serialize them along with the cache.
+        synchronized (sArchives) {
+            final NativeZip zip = getArchive(context, jarUrls, url);
+            if (zip == null) {
+                return null;
+            }
+
+            final String fileName = jarUrls.pop();
+            final InputStream inputStream = zip.getInputStream(fileName);
+            if (inputStream == null) {
+                Log.d(LOGTAG, "No Entry for " + fileName);
+            }
+            return inputStream;
+        }
+    }
+
     @RobocopTarget
     /**
      * Extract a (possibly nested) file from an archive and write it to a temporary file.
@@ -173,10 +264,8 @@ public final class GeckoJarReader {
 
     @RobocopTarget
     public static InputStream getStream(Context context, String url) {
-        Stack<String> jarUrls = parseUrl(url);
         try {
-            NativeZip zip = getZipFile(context, jarUrls.pop());
-            return getStream(zip, jarUrls, url);
+            return getEntryStream(context, url);
         } catch (Exception ex) {
             // Some JNI code throws IllegalArgumentException on a bad file name;
             // swallow the error and return null.  We could also see legitimate
@@ -186,34 +275,6 @@ public final class GeckoJarReader {
         }
     }
 
-    private static InputStream getStream(NativeZip zip, Stack<String> jarUrls, String origUrl) {
-        InputStream inputStream = null;
-
-        // loop through children jar files until we reach the innermost one
-        while (!jarUrls.empty()) {
-            String fileName = jarUrls.pop();
-
-            if (inputStream != null) {
-                // intermediate NativeZips and InputStreams will be garbage collected.
-                try {
-                    zip = new NativeZip(inputStream);
-                } catch (IllegalArgumentException e) {
-                    String description = "!!! BUG 849589 !!! origUrl=" + origUrl;
-                    Log.e(LOGTAG, description, e);
-                    throw new IllegalArgumentException(description);
-                }
-            }
-
-            inputStream = zip.getInputStream(fileName);
-            if (inputStream == null) {
-                Log.d(LOGTAG, "No Entry for " + fileName);
-                return null;
-            }
-        }
-
-        return inputStream;
-    }
-
     /* Returns a stack of strings breaking the url up into pieces. Each piece
      * is assumed to point to a jar file except for the final one. Callers should
      * pass in the url to parse, and null for the parent parameter (used for recursion)
@@ -4,14 +4,21 @@
 package org.mozilla.gecko.background.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.mozilla.gecko.background.sync.helpers.ExpectFetchDelegate;
 import org.mozilla.gecko.background.sync.helpers.ExpectFinishDelegate;
+import org.mozilla.gecko.background.sync.helpers.ExpectManyStoredDelegate;
 import org.mozilla.gecko.background.sync.helpers.HistoryHelpers;
+import org.mozilla.gecko.background.sync.helpers.SessionTestHelper;
 import org.mozilla.gecko.db.BrowserContract;
 import org.mozilla.gecko.sync.Utils;
 import org.mozilla.gecko.sync.repositories.InactiveSessionException;
+import org.mozilla.gecko.sync.repositories.NoStoreDelegateException;
 import org.mozilla.gecko.sync.repositories.NullCursorException;
 import org.mozilla.gecko.sync.repositories.Repository;
 import org.mozilla.gecko.sync.repositories.RepositorySession;
@@ -29,8 +36,10 @@ import org.mozilla.gecko.sync.repositories.domain.Record;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 
 public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositoryTestCase {
 
@@ -459,6 +468,127 @@ public class TestAndroidBrowserHistoryRepository extends AndroidBrowserRepositor
     session.abort();
   }
 
+  /**
+   * Store a batch containing both a new record and a newer version of an
+   * existing record, and verify that both are applied.
+   */
+  public void testStoreBatch() {
+    final AndroidBrowserHistoryRepositorySession session = (AndroidBrowserHistoryRepositorySession) createAndBeginSession();
+
+    final HistoryRecord local = HistoryHelpers.createHistory1();
+    performWait(storeRunnable(session, local));
+
+    final HistoryRecord remote = HistoryHelpers.createHistory2();
+    remote.guid = local.guid;
+    ExpectFetchDelegate timestampDelegate = preparedExpectFetchDelegate(new Record[] { local });
+    performWait(fetchRunnable(session, new String[] { remote.guid }, timestampDelegate));
+    remote.lastModified = timestampDelegate.records.get(0).lastModified + 1000;
+
+    final HistoryRecord added = HistoryHelpers.createHistory3();
+    final Record[] records = new Record[] { remote, added };
+
+    final ExpectManyStoredDelegate storeDelegate = new ExpectManyStoredDelegate(records);
+    performWait(new Runnable() {
+      @Override
+      public void run() {
+        session.setStoreDelegate(storeDelegate);
+        try {
+          session.storeBatch(Arrays.asList(records));
+        } catch (NoStoreDelegateException e) {
+          fail("NoStoreDelegateException should not occur.");
+        }
+        session.storeDone();
+      }
+    });
+
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(records)));
+    session.abort();
+  }
+
+  /**
+   * Counts the batches of updates written, as a proxy for provider transactions.
+   */
+  private static class CountingHistoryDataAccessor extends AndroidBrowserHistoryDataAccessor {
+    public final AtomicInteger updateBatches = new AtomicInteger();
+    public final AtomicInteger updatedRecords = new AtomicInteger();
+
+    public CountingHistoryDataAccessor(Context context) {
+      super(context);
+    }
+
+    @Override
+    public void updateBatch(List<String> oldGUIDs, List<Record> newRecords) throws RemoteException, OperationApplicationException {
+      updateBatches.incrementAndGet();
+      updatedRecords.addAndGet(newRecords.size());
+      super.updateBatch(oldGUIDs, newRecords);
+    }
+  }
+
+  private static HistoryRecord makeBatchRecord(int i, String title) {
+    final HistoryRecord record = new HistoryRecord();
+    record.title = title;
+    record.histURI = "http://batch.example.com/" + i;
+    final JSONObject visit = new JSONObject();
+    visit.put("date", 1319681306455594000L + i);
+    visit.put("type", 1L);
+    record.visits = new JSONArray();
+    record.visits.add(visit);
+    return record;
+  }
+
+  /**
+   * Store records one at a time, as RecordsChannel does, and verify that
+   * updates to existing records reach the database in batches.
+   */
+  public void testStoreIsBatched() {
+    final int count = 2 * AndroidBrowserRepositorySession.STORE_BATCH_SIZE + 17;
+
+    final HistoryRecord[] local = new HistoryRecord[count];
+    for (int i = 0; i < count; i++) {
+      local[i] = makeBatchRecord(i, "Local " + i);
+    }
+    final RepositorySession insertSession = createAndBeginSession();
+    performWait(storeManyRunnable(insertSession, local));
+    dispose(insertSession);
+
+    final HistoryRecord[] remote = new HistoryRecord[count];
+    final long remoteModified = System.currentTimeMillis() + 60 * 1000;
+    for (int i = 0; i < count; i++) {
+      remote[i] = makeBatchRecord(i, "Remote " + i);
+      remote[i].guid = local[i].guid;
+      remote[i].lastModified = remoteModified;
+    }
+
+    final CountingHistoryDataAccessor accessor = new CountingHistoryDataAccessor(getApplicationContext());
+    final AndroidBrowserHistoryRepository repository = new AndroidBrowserHistoryRepository() {
+      @Override
+      protected void sessionCreator(RepositorySessionCreationDelegate delegate, Context context) {
+        final AndroidBrowserHistoryRepositorySession session = new AndroidBrowserHistoryRepositorySession(this, context) {
+          {
+            ((AndroidBrowserHistoryDataAccessor) dbHelper).closeExtender();
+            dbHelper = accessor;
+          }
+
+          @Override
+          protected synchronized void trackGUID(String guid) {
+            System.out.println("Ignoring trackGUID call: this is a test!");
+          }
+        };
+        delegate.onSessionCreated(session);
+      }
+    };
+
+    final RepositorySession session = SessionTestHelper.createAndBeginSession(getApplicationContext(), repository);
+    performWait(storeManyRunnable(session, remote));
+
+    final int batchSize = AndroidBrowserRepositorySession.STORE_BATCH_SIZE;
+    assertEquals(count, accessor.updatedRecords.get());
+    assertEquals((count + batchSize - 1) / batchSize, accessor.updateBatches.get());
+
+    performWait(fetchAllRunnable(session, preparedExpectFetchDelegate(remote)));
+    dispose(session);
+  }
+
   public void testDataExtenderIsClosedBeforeBegin() {
     // Create a session but don't begin() it.
     final AndroidBrowserRepositorySession session = (AndroidBrowserRepositorySession) createSession();
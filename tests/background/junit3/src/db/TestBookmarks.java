@@ -31,6 +31,7 @@ import org.mozilla.gecko.sync.repositories.RepositorySessionBundle;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserBookmarksDataAccessor;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserBookmarksRepository;
 import org.mozilla.gecko.sync.repositories.android.AndroidBrowserBookmarksRepositorySession;
+import org.mozilla.gecko.sync.repositories.android.BookmarksTreeSnapshot;
 import org.mozilla.gecko.sync.repositories.android.BrowserContractHelpers;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionBeginDelegate;
 import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionCreationDelegate;
@@ -601,6 +602,71 @@ public class TestBookmarks extends AndroidSyncTestCase {
     assertEquals(bmk2.title, fetchGUID(repo, bmk2.guid).title);
   }
 
+  /**
+   * Verify that the tree snapshot used by bookmark sessions agrees with the
+   * database, and that repositioning through it is written back.
+   */
+  public void testTreeSnapshotMatchesDatabase() throws Exception {
+    AndroidBrowserBookmarksRepository repo = new AndroidBrowserBookmarksRepository();
+
+    final long now = System.currentTimeMillis();
+
+    final String folderGUID = "eaaaaaaaafff";
+    BookmarkRecord folder    = new BookmarkRecord(folderGUID,     "bookmarks", now - 5, false);
+    BookmarkRecord bookmarkA = new BookmarkRecord("daaaaaaaaaaa", "bookmarks", now - 1, false);
+    BookmarkRecord bookmarkB = new BookmarkRecord("baaaaaaaabbb", "bookmarks", now - 3, false);
+
+    folder.children   = childrenFromRecords(bookmarkA, bookmarkB);
+    folder.sortIndex  = 150;
+    folder.title      = "Test items";
+    folder.parentID   = "toolbar";
+    folder.parentName = "Bookmarks Toolbar";
+    folder.type       = "folder";
+
+    bookmarkA.parentID    = folderGUID;
+    bookmarkA.bookmarkURI = "http://example.com/A";
+    bookmarkA.title       = "Title A";
+    bookmarkA.type        = "bookmark";
+
+    bookmarkB.parentID    = folderGUID;
+    bookmarkB.bookmarkURI = "http://example.com/B";
+    bookmarkB.title       = "Title B";
+    bookmarkB.type        = "bookmark";
+
+    wipe();
+    setUpFennecMobileRecord();
+    fennecAddBookmark("Bookmark One", "http://example.com/fennec/One");
+    fennecAddBookmark("Bookmark Two", "http://example.com/fennec/Two");
+    storeRecordsInSession(repo, new BookmarkRecord[] { bookmarkB, folder, bookmarkA }, null);
+
+    final BookmarksTreeSnapshot tree = new BookmarksTreeSnapshot(getDataAccessor());
+    tree.load();
+
+    final ContentResolver cr = getApplicationContext().getContentResolver();
+    for (String guid : new String[] { folderGUID, "mobile", "toolbar", "unfiled" }) {
+      final long id = fennecGetFolderId(cr, guid);
+      assertEquals(Long.valueOf(id), tree.getFolderID(guid));
+      assertEquals(guid, tree.getFolderGUID(id));
+
+      final ArrayList<String> fromSnapshot = new ArrayList<String>();
+      for (BookmarksTreeSnapshot.Child child : tree.getChildren(id)) {
+        fromSnapshot.add(child.guid);
+      }
+      assertEquals(fetchChildrenDirect(id), fromSnapshot);
+    }
+
+    // Reverse the Fennec bookmarks, and check that only the flush writes them.
+    final long mobile = fennecGetFolderId(cr, "mobile");
+    final ArrayList<String> reversed = fetchChildrenDirect(mobile);
+    Collections.reverse(reversed);
+    tree.updatePositions(mobile, reversed, false);
+    assertEquals(reversed.get(0), tree.getChildren(mobile).get(0).guid);
+    assertFalse(reversed.equals(fetchChildrenDirect(mobile)));
+
+    tree.flushPositions(System.currentTimeMillis());
+    assertChildrenAreDirect(mobile, reversed.toArray(new String[reversed.size()]));
+  }
+
   /**
    * Create and begin a new session, handing control to the delegate when started.
    * Returns when the delegate has notified.
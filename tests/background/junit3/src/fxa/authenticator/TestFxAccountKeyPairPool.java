@@ -0,0 +1,156 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.fxa.authenticator;
+
+import java.security.NoSuchAlgorithmException;
+
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.browserid.BrowserIDKeyPair;
+import org.mozilla.gecko.fxa.authenticator.FxAccountKeyPairPool;
+import org.mozilla.gecko.sync.Utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+public class TestFxAccountKeyPairPool extends AndroidSyncTestCase {
+  private static final String TEST_ACCOUNT_NAME = "testFxAccountKeyPairPool@example.com";
+  private static final String TEST_PREFS_PATH = "TestFxAccountKeyPairPool";
+
+  /**
+   * Counts key pair generation, and refills only when asked, so that tests
+   * don't race background work.
+   */
+  protected static class TestPool extends FxAccountKeyPairPool {
+    public int generated = 0;
+    public int refillRequests = 0;
+
+    public TestPool(SharedPreferences prefs, FxAccountKeyPairPool fallback) {
+      super(prefs, fallback);
+    }
+
+    public static SharedPreferences prefsFor(Context context, String accountName) {
+      return getPrefs(context, accountName);
+    }
+
+    @Override
+    protected BrowserIDKeyPair generate() throws NoSuchAlgorithmException {
+      generated++;
+      return super.generate();
+    }
+
+    @Override
+    public void refillWhenIdle() {
+      refillRequests++;
+    }
+
+    public void refillNow() {
+      refill();
+    }
+  }
+
+  protected Context context;
+  protected SharedPreferences prefs;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    context = getApplicationContext();
+    prefs = context.getSharedPreferences(TEST_PREFS_PATH, Utils.SHARED_PREFERENCES_MODE);
+    prefs.edit().clear().commit();
+    FxAccountKeyPairPool.wipe(context, TEST_ACCOUNT_NAME);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    prefs.edit().clear().commit();
+    FxAccountKeyPairPool.wipe(context, TEST_ACCOUNT_NAME);
+    super.tearDown();
+  }
+
+  protected static String toJSON(BrowserIDKeyPair keyPair) {
+    return keyPair.toJSONObject().toJSONString();
+  }
+
+  public void testTakeFromPoolAndRefill() throws Exception {
+    final TestPool pool = new TestPool(prefs, null);
+    assertEquals(0, pool.size());
+
+    pool.refillNow();
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE, pool.size());
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE, pool.generated);
+
+    // Taking doesn't generate, but asks for a refill.
+    final BrowserIDKeyPair first = pool.take();
+    assertNotNull(first);
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE, pool.generated);
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE - 1, pool.size());
+    assertEquals(1, pool.refillRequests);
+
+    // A key pair is only handed out once.
+    final BrowserIDKeyPair second = pool.take();
+    assertFalse(toJSON(first).equals(toJSON(second)));
+
+    // An empty pool generates on demand.
+    assertEquals(0, pool.size());
+    assertNotNull(pool.take());
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE + 1, pool.generated);
+
+    // Refilling tops up to the pool size and no further.
+    pool.refillNow();
+    pool.refillNow();
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE, pool.size());
+    assertEquals(2 * FxAccountKeyPairPool.POOL_SIZE + 1, pool.generated);
+  }
+
+  public void testPoolIsPersisted() throws Exception {
+    final TestPool pool = new TestPool(prefs, null);
+    pool.refillNow();
+    final BrowserIDKeyPair taken = pool.take();
+
+    final TestPool reopened = new TestPool(prefs, null);
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE - 1, reopened.size());
+    final BrowserIDKeyPair remaining = reopened.take();
+    assertFalse(toJSON(taken).equals(toJSON(remaining)));
+    assertEquals(0, reopened.generated);
+
+    // What was handed out is gone from disk too.
+    assertEquals(0, new TestPool(prefs, null).size());
+  }
+
+  public void testAccountPoolDrawsOnInMemoryPool() throws Exception {
+    final TestPool unscoped = new TestPool(null, null);
+    unscoped.refillNow();
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE, unscoped.size());
+
+    final TestPool account = new TestPool(prefs, unscoped);
+    assertNotNull(account.take());
+    assertEquals(0, account.generated);
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE - 1, unscoped.size());
+
+    // The in-memory pool never touches disk.
+    assertTrue(prefs.getAll().isEmpty());
+    assertEquals(0, new TestPool(null, null).size());
+  }
+
+  public void testWipe() throws Exception {
+    final SharedPreferences accountPrefs = TestPool.prefsFor(context, TEST_ACCOUNT_NAME);
+    new TestPool(accountPrefs, null).refillNow();
+
+    final FxAccountKeyPairPool pool = FxAccountKeyPairPool.getInstance(context, TEST_ACCOUNT_NAME);
+    assertSame(pool, FxAccountKeyPairPool.getInstance(context, TEST_ACCOUNT_NAME));
+    assertEquals(FxAccountKeyPairPool.POOL_SIZE, pool.size());
+
+    // Pools are scoped to their account.
+    assertNotSame(pool, FxAccountKeyPairPool.getInstance(context, "other" + TEST_ACCOUNT_NAME));
+    assertEquals(0, FxAccountKeyPairPool.getInstance(context, "other" + TEST_ACCOUNT_NAME).size());
+
+    FxAccountKeyPairPool.wipe(context, TEST_ACCOUNT_NAME);
+    assertEquals(0, pool.size());
+    assertTrue(accountPrefs.getAll().isEmpty());
+
+    final FxAccountKeyPairPool fresh = FxAccountKeyPairPool.getInstance(context, TEST_ACCOUNT_NAME);
+    assertNotSame(pool, fresh);
+    assertEquals(0, fresh.size());
+  }
+}
@@ -361,6 +361,83 @@ public class TestHealthReportDatabaseStorage extends FakeProfileTestCase {
     }
   }
 
+  private static int getCounterValue(final SQLiteDatabase db, int env, int day, int field) {
+    final Cursor c = db.query("events_integer", new String[] {"value"}, "date = ? AND env = ? AND field = ?",
+        new String[] {Integer.toString(day), Integer.toString(env), Integer.toString(field)},
+        null, null, null);
+    try {
+      assertEquals(1, c.getCount());
+      assertTrue(c.moveToFirst());
+      return c.getInt(0);
+    } finally {
+      c.close();
+    }
+  }
+
+  public void testWriteBehind() throws Exception {
+    final PrepopulatedMockHealthReportDatabaseStorage storage =
+        new PrepopulatedMockHealthReportDatabaseStorage(context, fakeProfileDirectory);
+    final SQLiteDatabase db = storage.getDB();
+    final int env = storage.env;
+    final int day = storage.getTomorrow();
+    final int counterFieldID = storage.getField(storage.measurementNames[0], storage.measurementVers[0],
+        storage.fieldSpecContainers[0].counter.name).getID();
+    final int discreteFieldID = storage.getField(storage.measurementNames[0], storage.measurementVers[0],
+        storage.fieldSpecContainers[0].discrete.name).getID();
+    final int lastFieldID = storage.getField(storage.measurementNames[0], storage.measurementVers[0],
+        storage.fieldSpecContainers[0].last.name).getID();
+
+    final int initialCount = DBHelpers.getRowCount(db, "events");
+    storage.setWriteBehind(true);
+
+    storage.incrementDailyCount(env, day, counterFieldID, 2);
+    storage.incrementDailyCount(env, day, counterFieldID);
+    storage.incrementDailyCount(env, day, counterFieldID, 4);
+    storage.recordDailyLast(env, day, lastFieldID, "first");
+    storage.recordDailyLast(env, day, lastFieldID, "second");
+    storage.recordDailyDiscrete(env, day, discreteFieldID, "one");
+    storage.recordDailyDiscrete(env, day, discreteFieldID, "two");
+
+    // Nothing has been written yet.
+    assertEquals(initialCount, DBHelpers.getRowCount(db, "events"));
+    assertFalse(isEventInDB(db, "second"));
+
+    // Reading flushes: counters are merged, and only the last value is kept.
+    assertEquals(initialCount + 4, storage.getEventCount());
+    assertEquals(7, getCounterValue(db, env, day, counterFieldID));
+    assertFalse(isEventInDB(db, "first"));
+    assertTrue(isEventInDB(db, "second"));
+    assertTrue(isEventInDB(db, "one"));
+    assertTrue(isEventInDB(db, "two"));
+
+    // Subsequent increments are added to the stored value.
+    storage.incrementDailyCount(env, day, counterFieldID, 3);
+    assertEquals(7, getCounterValue(db, env, day, counterFieldID));
+    storage.flushPendingEvents();
+    assertEquals(10, getCounterValue(db, env, day, counterFieldID));
+
+    // Enough pending events are written without waiting.
+    for (int i = 0; i < HealthReportDatabaseStorage.PENDING_EVENTS_FLUSH_THRESHOLD; i++) {
+      storage.recordDailyDiscrete(env, day, discreteFieldID, "value" + i);
+    }
+    assertTrue(isEventInDB(db, "value0"));
+
+    // An invalid event is dropped without losing the rest of the batch.
+    final int nonExistentEnvID = DBHelpers.getNonExistentID(db, "environments");
+    storage.incrementDailyCount(nonExistentEnvID, day, counterFieldID);
+    storage.recordDailyLast(nonExistentEnvID, day, lastFieldID, "invalid");
+    storage.recordDailyLast(env, day, lastFieldID, "third");
+    storage.flushPendingEvents();
+    assertFalse(isEventInDB(db, "invalid"));
+    assertTrue(isEventInDB(db, "third"));
+
+    // Pending events don't survive deleting everything.
+    storage.recordDailyDiscrete(env, day, discreteFieldID, "discarded");
+    storage.deleteEverything();
+    storage.setWriteBehind(false);
+    assertFalse(isEventInDB(storage.getDB(), "discarded"));
+  }
+
   // Largely taken from testDeleteEnvAndEventsBefore and testDeleteOrphanedAddons.
   public void testDeleteDataBefore() throws Exception {
     final PrepopulatedMockHealthReportDatabaseStorage storage =
@@ -3,21 +3,32 @@
 
 package org.mozilla.gecko.background.healthreport;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.zip.Inflater;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.mozilla.gecko.background.bagheera.DeflateHelper;
 import org.mozilla.gecko.background.common.DateUtils;
+import org.mozilla.gecko.background.common.GlobalConstants;
 import org.mozilla.gecko.background.healthreport.HealthReportStorage.Field;
 import org.mozilla.gecko.background.healthreport.HealthReportStorage.MeasurementFields;
+import org.mozilla.gecko.background.healthreport.MockHealthReportDatabaseStorage.PrepopulatedMockHealthReportDatabaseStorage;
 import org.mozilla.gecko.background.helpers.FakeProfileTestCase;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.SparseArray;
+import ch.boye.httpclientandroidlib.entity.ContentProducer;
 
 public class TestHealthReportGenerator extends FakeProfileTestCase {
   @SuppressWarnings("static-method")
@@ -418,6 +429,70 @@ public class TestHealthReportGenerator extends FakeProfileTestCase {
     assertEquals("bar", discreteJSON.getJSONObject(2).getString("foo"));
   }
 
+  public void testWriteDocumentMatchesGenerateDocument() throws Exception {
+    final PrepopulatedMockHealthReportDatabaseStorage storage =
+        new PrepopulatedMockHealthReportDatabaseStorage(context, fakeProfileDirectory, 2);
+    final HealthReportGenerator gen = new HealthReportGenerator(storage);
+
+    final MockDatabaseEnvironment current = storage.getEnvironment();
+    current.mockInit("v123");
+
+    final long since = storage.now - GlobalConstants.MILLISECONDS_PER_SIX_MONTHS;
+    final JSONObject expected = gen.generateDocument(since, HealthReportConstants.EARLIEST_LAST_PING, current);
+    assertTrue(expected.getJSONObject("data").getJSONObject("days").length() > 1);
+    assertTrue(expected.getJSONObject("environments").length() > 1);
+
+    final StringWriter out = new StringWriter();
+    assertTrue(gen.writeDocument(since, HealthReportConstants.EARLIEST_LAST_PING, current, out));
+    assertEquals(expected.toString(), new JSONObject(out.toString()).toString());
+
+    // And again, this time deflated on the way out, as it would be uploaded.
+    final ContentProducer producer = new ContentProducer() {
+      @Override
+      public void writeTo(OutputStream stream) throws IOException {
+        final Writer writer = new OutputStreamWriter(stream, "UTF-8");
+        try {
+          gen.writeDocument(since, HealthReportConstants.EARLIEST_LAST_PING, current, writer);
+        } catch (JSONException e) {
+          throw new IOException(e.getMessage());
+        }
+        writer.flush();
+      }
+    };
+    final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    DeflateHelper.deflateStream(producer).writeTo(deflated);
+
+    final Inflater inflater = new Inflater();
+    inflater.setInput(deflated.toByteArray());
+    final ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    while (!inflater.finished()) {
+      inflated.write(buffer, 0, inflater.inflate(buffer));
+    }
+    inflater.end();
+    assertEquals(expected.toString(), new JSONObject(inflated.toString("UTF-8")).toString());
+  }
+
+  public void testWriteDocumentWithoutHash() throws Exception {
+    final MockHealthReportDatabaseStorage storage = new MockHealthReportDatabaseStorage(context, fakeProfileDirectory);
+    final HealthReportGenerator gen = new HealthReportGenerator(storage);
+    final Environment current = new Environment() {
+      @Override
+      public int register() {
+        return 0;
+      }
+
+      @Override
+      public String getHash() {
+        return null;
+      }
+    };
+
+    final StringWriter out = new StringWriter();
+    assertFalse(gen.writeDocument(0, 0, current, out));
+    assertEquals(0, out.getBuffer().length());
+  }
+
   @Override
   protected String getCacheSuffix() {
     return File.separator + "health-" + System.currentTimeMillis() + ".profile";
@@ -3,6 +3,9 @@
 
 package org.mozilla.gecko.background.healthreport.upload;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.Collection;
 
 import org.mozilla.gecko.background.bagheera.BagheeraRequestDelegate;
@@ -22,8 +25,9 @@ import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import ch.boye.httpclientandroidlib.entity.ContentProducer;
+
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class TestAndroidSubmissionClient extends FakeProfileTestCase {
   public static class MockAndroidSubmissionClient extends AndroidSubmissionClient {
@@ -50,8 +54,19 @@ public class TestAndroidSubmissionClient extends FakeProfileTestCase {
     }
 
     @Override
-    protected void uploadPayload(String id, String payload, Collection<String> oldIds,
+    protected void uploadPayload(String id, ContentProducer payload, Collection<String> oldIds,
         BagheeraRequestDelegate delegate) {
+      try {
+        payload.writeTo(new OutputStream() {
+          @Override
+          public void write(int b) {
+          }
+        });
+      } catch (IOException e) {
+        delegate.handleError(e);
+        return;
+      }
+
       switch (submissionState) {
       case SUCCESS:
         delegate.handleSuccess(0, null, id, null);
@@ -96,16 +111,26 @@ public class TestAndroidSubmissionClient extends FakeProfileTestCase {
 
       public class MockTrackingGenerator extends TrackingGenerator {
         @Override
-        public JSONObject generateDocument(final long localTime, final long last,
-            final String profilePath, ConfigurationProvider config) throws JSONException {
+        public Environment getEnvironmentForProfile(final String profilePath,
+            final ConfigurationProvider config) {
           switch (documentStatus) {
           case VALID:
-            return new JSONObject(); // Beyond == null, we don't check for valid FHR documents.
+            return new Environment() {
+              @Override
+              public int register() {
+                return 0;
+              }
+
+              @Override
+              public String getHash() {
+                return "hash";
+              }
+            };
 
           case NULL:
-            // The overridden method should return null since we return a null has for the current
-            // Environment.
-            return super.generateDocument(localTime, last, profilePath, config);
+            // The overridden method should return an Environment with a null hash, and so no
+            // document, since we return a null hash for the current Environment.
+            return super.getEnvironmentForProfile(profilePath, config);
 
           case EXCEPTION:
             throw new IllegalStateException("Intended Exception");
@@ -115,7 +140,14 @@ public class TestAndroidSubmissionClient extends FakeProfileTestCase {
           }
         }
 
-        // Used in super.generateDocument, where a null document is returned if getHash returns null
+        @Override
+        public boolean writeDocument(final long since, final long lastPingTime,
+            final Environment currentEnvironment, final Writer out) throws JSONException, IOException {
+          out.write("{}"); // We don't check for valid FHR documents.
+          return true;
+        }
+
+        // Used in super.getEnvironmentForProfile; no document is generated if getHash returns null
         @Override
         public Environment getCurrentEnvironment() {
           return new Environment() {
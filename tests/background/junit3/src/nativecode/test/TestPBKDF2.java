@@ -0,0 +1,214 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.nativecode.test;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+
+import junit.framework.TestCase;
+
+import org.mozilla.gecko.background.nativecode.NativeCrypto;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.crypto.PBKDF2;
+import org.mozilla.gecko.sync.crypto.PBKDF2SHA256Engine;
+
+/*
+ * Tests the pure-Java PBKDF2SHA256 implementations against the same vectors as
+ * TestNativeCrypto, checks them against each other and the native
+ * implementation, and times them against each other and the native
+ * implementation.
+ */
+public class TestPBKDF2 extends TestCase {
+  protected interface Implementation {
+    public String getName();
+    public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) throws GeneralSecurityException;
+  }
+
+  protected static final Implementation JCE = new Implementation() {
+    @Override
+    public String getName() {
+      return "JCE";
+    }
+
+    @Override
+    public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) throws GeneralSecurityException {
+      return PBKDF2.pbkdf2SHA256JCE(password, salt, c, dkLen);
+    }
+  };
+
+  protected static final Implementation ENGINE = new Implementation() {
+    @Override
+    public String getName() {
+      return "engine";
+    }
+
+    @Override
+    public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) throws GeneralSecurityException {
+      return PBKDF2SHA256Engine.pbkdf2SHA256(password, salt, c, dkLen);
+    }
+  };
+
+  protected static final Implementation NATIVE = new Implementation() {
+    @Override
+    public String getName() {
+      return "native";
+    }
+
+    @Override
+    public byte[] pbkdf2SHA256(byte[] password, byte[] salt, int c, int dkLen) throws GeneralSecurityException {
+      return NativeCrypto.pbkdf2SHA256(password, salt, c, dkLen);
+    }
+  };
+
+  protected static final Implementation[] JAVA_IMPLEMENTATIONS = new Implementation[] { JCE, ENGINE };
+
+  public final void testPBKDF2SHA256A() throws UnsupportedEncodingException, GeneralSecurityException {
+    String  p = "password";
+    String  s = "salt";
+    int dkLen = 32;
+
+    checkPBKDF2SHA256(p, s, 1, dkLen, "120fb6cffcf8b32c43e7225256c4f837a86548c92ccc35480805987cb70be17b");
+    checkPBKDF2SHA256(p, s, 4096, dkLen, "c5e478d59288c841aa530db6845c4c8d962893a001ce4e11a4963873aa98134a");
+  }
+
+  public final void testPBKDF2SHA256B() throws UnsupportedEncodingException, GeneralSecurityException {
+    String  p = "passwordPASSWORDpassword";
+    String  s = "saltSALTsaltSALTsaltSALTsaltSALTsalt";
+    int dkLen = 40;
+
+    checkPBKDF2SHA256(p, s, 4096, dkLen, "348c89dbcbd32b2f32d814b8116e84cf2b17347ebc1800181c4e2a1fb8dd53e1c635518c7dac47e9");
+  }
+
+  public final void testPBKDF2SHA256scryptA() throws UnsupportedEncodingException, GeneralSecurityException {
+    String  p = "passwd";
+    String  s = "salt";
+    int dkLen = 64;
+
+    checkPBKDF2SHA256(p, s, 1, dkLen, "55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783");
+  }
+
+  public final void testPBKDF2SHA256scryptB() throws UnsupportedEncodingException, GeneralSecurityException {
+    String  p = "Password";
+    String  s = "NaCl";
+    int dkLen = 64;
+
+    checkPBKDF2SHA256(p, s, 80000, dkLen, "4ddcd8f60b98be21830cee5ef22701f9641a4418d04c0414aeff08876b34ab56a1d425a1225833549adb841b51c9b3176a272bdebba1d078478f62b397f33c8d");
+  }
+
+  public final void testPBKDF2SHA256C() throws UnsupportedEncodingException, GeneralSecurityException {
+    String  p = "pass\0word";
+    String  s = "sa\0lt";
+    int dkLen = 16;
+
+    checkPBKDF2SHA256(p, s, 4096, dkLen, "89b69d0516f829893c696226650a8687");
+  }
+
+  public final void testLongPasswordAndSalt() throws UnsupportedEncodingException, GeneralSecurityException {
+    // Passwords longer than the SHA-256 block size are hashed before use, and
+    // long salts span more than one block.
+    final byte[] p = new byte[100];
+    final byte[] s = new byte[70];
+    for (int i = 0; i < p.length; i++) {
+      p[i] = (byte) i;
+    }
+    for (int i = 0; i < s.length; i++) {
+      s[i] = (byte) (255 - i);
+    }
+
+    final byte[] expected = PBKDF2.pbkdf2SHA256JCE(p, s, 10, 100);
+    assertEquals(Utils.byte2Hex(expected), Utils.byte2Hex(PBKDF2SHA256Engine.pbkdf2SHA256(p, s, 10, 100)));
+  }
+
+  public final void testPBKDF2SHA256InvalidArgs() throws GeneralSecurityException {
+    try {
+      PBKDF2SHA256Engine.pbkdf2SHA256(new byte[1], new byte[1], 1, -1);
+      fail("Expected engine to throw with negative dkLen argument.");
+    } catch (IllegalArgumentException e) { } // Expected.
+
+    try {
+      PBKDF2SHA256Engine.pbkdf2SHA256(new byte[1], new byte[1], 0, 32);
+      fail("Expected engine to throw with zero c argument.");
+    } catch (IllegalArgumentException e) { } // Expected.
+  }
+
+  /**
+   * The engine computes output blocks in parallel, so check every
+   * implementation agrees for one block, several, and a partial last block.
+   */
+  public final void testImplementationsAgreeAcrossBlockCounts() throws UnsupportedEncodingException, GeneralSecurityException {
+    final byte[] p = "password".getBytes("US-ASCII");
+    final byte[] s = "salt".getBytes("US-ASCII");
+    final int c = 1000;
+
+    boolean nativeAvailable = true;
+    try {
+      NATIVE.pbkdf2SHA256(p, s, 1, 32);
+    } catch (LinkageError e) {
+      nativeAvailable = false;
+    }
+
+    final int[] dkLens = new int[] { 32, 64, 100, 128 };
+    for (int dkLen : dkLens) {
+      final String expected = Utils.byte2Hex(JCE.pbkdf2SHA256(p, s, c, dkLen));
+      assertEquals(ENGINE.getName(), expected, Utils.byte2Hex(ENGINE.pbkdf2SHA256(p, s, c, dkLen)));
+      if (nativeAvailable) {
+        assertEquals(NATIVE.getName(), expected, Utils.byte2Hex(NATIVE.pbkdf2SHA256(p, s, c, dkLen)));
+      }
+    }
+  }
+
+  /**
+   * Not a correctness test: prints timings for each implementation, for both a
+   * single output block (the FxA quick stretch) and several (where the engine
+   * computes blocks in parallel).
+   */
+  public final void testBenchmark() throws UnsupportedEncodingException, GeneralSecurityException {
+    final byte[] p = "password".getBytes("US-ASCII");
+    final byte[] s = "salt".getBytes("US-ASCII");
+    final int c = 20000;
+    final int runs = 3;
+
+    boolean nativeAvailable = true;
+    try {
+      NATIVE.pbkdf2SHA256(p, s, 1, 32);
+    } catch (LinkageError e) {
+      System.err.println("Native PBKDF2SHA256 unavailable; not timing it.");
+      nativeAvailable = false;
+    }
+
+    final int[] dkLens = new int[] { 32, 64, 128 };
+    for (int dkLen : dkLens) {
+      for (Implementation implementation : JAVA_IMPLEMENTATIONS) {
+        // Warm up.
+        implementation.pbkdf2SHA256(p, s, 1, dkLen);
+        time(implementation, p, s, c, dkLen, runs);
+      }
+      if (nativeAvailable) {
+        time(NATIVE, p, s, c, dkLen, runs);
+      }
+    }
+  }
+
+  protected static void time(Implementation implementation, byte[] p, byte[] s, int c, int dkLen, int runs)
+      throws GeneralSecurityException {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < runs; i++) {
+      final long start = System.currentTimeMillis();
+      implementation.pbkdf2SHA256(p, s, c, dkLen);
+      best = Math.min(best, System.currentTimeMillis() - start);
+    }
+    System.err.println("PBKDF2SHA256 " + implementation.getName() + " c=" + c + " dkLen=" + dkLen + " took " + best + "ms");
+  }
+
+  private void checkPBKDF2SHA256(String p, String s, int c, int dkLen,
+                                 final String expectedStr)
+                                     throws GeneralSecurityException, UnsupportedEncodingException {
+    assertEquals(dkLen, Utils.hex2Byte(expectedStr).length);
+    for (Implementation implementation : JAVA_IMPLEMENTATIONS) {
+      byte[] key = implementation.pbkdf2SHA256(p.getBytes("US-ASCII"), s.getBytes("US-ASCII"), c, dkLen);
+      assertNotNull(key);
+      assertEquals(implementation.getName(), expectedStr, Utils.byte2Hex(key));
+    }
+  }
+}
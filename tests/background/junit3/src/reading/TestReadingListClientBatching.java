@@ -0,0 +1,312 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.reading;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.reading.ClientReadingListRecord;
+import org.mozilla.gecko.reading.ReadingListClient;
+import org.mozilla.gecko.reading.ReadingListDeleteDelegate;
+import org.mozilla.gecko.reading.ReadingListRecord;
+import org.mozilla.gecko.reading.ReadingListRecordResponse;
+import org.mozilla.gecko.reading.ReadingListRecordUploadDelegate;
+import org.mozilla.gecko.reading.ReadingListResponse;
+import org.mozilla.gecko.reading.ServerReadingListRecord;
+import org.mozilla.gecko.sync.net.BasicAuthHeaderProvider;
+import org.mozilla.gecko.sync.net.MozResponse;
+
+/**
+ * Runs batch operations against a local stand-in for the reading list
+ * service that answers each request after a fixed delay, checks that
+ * requests overlap without exceeding the client's window, and logs how long
+ * a batch takes for different numbers of requests in flight.
+ */
+public class TestReadingListClientBatching extends AndroidSyncTestCase {
+  private static final String LOG_TAG = "TestRLBatching";
+
+  private static final int RESPONSE_DELAY_MSEC = 100;
+  private static final int RECORD_COUNT = 16;
+
+  /**
+   * A tiny HTTP server: every request gets a record in response, after
+   * RESPONSE_DELAY_MSEC. Tracks the largest number of concurrent requests.
+   */
+  private static class SlowServer implements Runnable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger nextID = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    public final AtomicInteger maxConcurrent = new AtomicInteger();
+    public final AtomicInteger requests = new AtomicInteger();
+
+    public SlowServer() throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      new Thread(this).start();
+    }
+
+    public URI getURI() {
+      return URI.create("http://127.0.0.1:" + serverSocket.getLocalPort() + "/v1/");
+    }
+
+    public void stop() throws IOException {
+      serverSocket.close();
+      connectionExecutor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              handleConnection(socket);
+            }
+          });
+        }
+      } catch (IOException e) {
+        // Closed.
+      }
+    }
+
+    private void handleConnection(final Socket socket) {
+      try {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        final OutputStream out = socket.getOutputStream();
+
+        // Keep-alive: serve requests until the client goes away.
+        String requestLine;
+        while ((requestLine = reader.readLine()) != null) {
+          int contentLength = 0;
+          String header;
+          while ((header = reader.readLine()) != null && header.length() > 0) {
+            if (header.toLowerCase(Locale.US).startsWith("content-length:")) {
+              contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+            }
+          }
+          for (int i = 0; i < contentLength; i++) {
+            reader.read();    // Bodies are ASCII JSON.
+          }
+
+          final int now = concurrent.incrementAndGet();
+          int max;
+          while (now > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now)) {
+            // Retry.
+          }
+          requests.incrementAndGet();
+          try {
+            Thread.sleep(RESPONSE_DELAY_MSEC);
+          } finally {
+            concurrent.decrementAndGet();
+          }
+
+          final boolean isPost = requestLine.startsWith("POST");
+          final String body = "{\"id\": \"guid" + nextID.getAndIncrement() + "\", " +
+                              "\"last_modified\": 1234, " +
+                              "\"url\": \"http://example.com/\", " +
+                              "\"title\": \"Example\", " +
+                              "\"added_by\": \"test\"}";
+          final byte[] bytes = body.getBytes("UTF-8");
+          out.write(((isPost ? "HTTP/1.1 201 Created" : "HTTP/1.1 200 OK") + "\r\n" +
+                     "Content-Type: application/json\r\n" +
+                     "Content-Length: " + bytes.length + "\r\n" +
+                     "\r\n").getBytes("UTF-8"));
+          out.write(bytes);
+          out.flush();
+        }
+      } catch (Exception e) {
+        Logger.debug(LOG_TAG, "Connection closed.", e);
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Nothing to do.
+        }
+      }
+    }
+  }
+
+  private static class RecordingUploadDelegate implements ReadingListRecordUploadDelegate {
+    public final CountDownLatch done = new CountDownLatch(1);
+    public final List<String> uploaded = Collections.synchronizedList(new ArrayList<String>());
+    public final AtomicInteger failures = new AtomicInteger();
+    public volatile int uploadedAtBatchDone = -1;
+
+    @Override
+    public void onBatchDone() {
+      uploadedAtBatchDone = uploaded.size() + failures.get();
+      done.countDown();
+    }
+
+    @Override
+    public void onSuccess(ClientReadingListRecord up, ReadingListRecordResponse response, ServerReadingListRecord down) {
+      uploaded.add(down.getGUID());
+    }
+
+    @Override
+    public void onConflict(ClientReadingListRecord up, ReadingListResponse response) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void onInvalidUpload(ClientReadingListRecord up, ReadingListResponse response) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void onBadRequest(ClientReadingListRecord up, MozResponse response) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void onFailure(ClientReadingListRecord up, Exception ex) {
+      failures.incrementAndGet();
+    }
+
+    @Override
+    public void onFailure(ClientReadingListRecord up, MozResponse response) {
+      failures.incrementAndGet();
+    }
+  }
+
+  private static Queue<ClientReadingListRecord> makeRecords(int count) {
+    final Queue<ClientReadingListRecord> queue = new ConcurrentLinkedQueue<ClientReadingListRecord>();
+    for (int i = 0; i < count; i++) {
+      queue.add(new ClientReadingListRecord("http://example.com/" + i, "Example " + i, "test"));
+    }
+    return queue;
+  }
+
+  private void add(final int window, final SlowServer server) throws Exception {
+    final ReadingListClient client =
+        new ReadingListClient(server.getURI(), new BasicAuthHeaderProvider("user", "pass"), window);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final RecordingUploadDelegate delegate = new RecordingUploadDelegate();
+
+    client.add(makeRecords(RECORD_COUNT), executor, delegate);
+    assertTrue(delegate.done.await(30, TimeUnit.SECONDS));
+    executor.shutdown();
+
+    // Every record gets exactly one callback, all before onBatchDone.
+    assertEquals(0, delegate.failures.get());
+    assertEquals(RECORD_COUNT, delegate.uploaded.size());
+    assertEquals(RECORD_COUNT, delegate.uploadedAtBatchDone);
+  }
+
+  public void testAddWithWindow() throws Exception {
+    final SlowServer server = new SlowServer();
+    try {
+      add(1, server);
+      assertEquals(1, server.maxConcurrent.get());
+
+      // Each response is delayed, so a window of four keeps several
+      // requests in flight at once, but never more than four.
+      server.maxConcurrent.set(0);
+      add(4, server);
+      assertTrue(server.maxConcurrent.get() > 1);
+      assertTrue(server.maxConcurrent.get() <= 4);
+      assertEquals(2 * RECORD_COUNT, server.requests.get());
+    } finally {
+      server.stop();
+    }
+  }
+
+  private long timeAdd(final int window, final SlowServer server) throws Exception {
+    final long start = System.nanoTime();
+    add(window, server);
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  /**
+   * Not a strict test: log how long a batch of uploads takes one at a time
+   * and four at a time.
+   */
+  public void testAddTiming() throws Exception {
+    final SlowServer server = new SlowServer();
+    try {
+      final long serial = timeAdd(1, server);
+      final long windowed = timeAdd(4, server);
+
+      Logger.info(LOG_TAG, RECORD_COUNT + " uploads with " + RESPONSE_DELAY_MSEC + "ms latency: " +
+                           serial + "ms one at a time, " + windowed + "ms four at a time.");
+    } finally {
+      server.stop();
+    }
+  }
+
+  public void testDeleteWithWindow() throws Exception {
+    final SlowServer server = new SlowServer();
+    try {
+      final ReadingListClient client =
+          new ReadingListClient(server.getURI(), new BasicAuthHeaderProvider("user", "pass"), 3);
+      final ExecutorService executor = Executors.newSingleThreadExecutor();
+      final Queue<String> guids = new ConcurrentLinkedQueue<String>();
+      for (int i = 0; i < RECORD_COUNT; i++) {
+        guids.add("guid" + i);
+      }
+
+      final CountDownLatch done = new CountDownLatch(1);
+      final AtomicInteger deleted = new AtomicInteger();
+      final AtomicInteger deletedAtBatchDone = new AtomicInteger(-1);
+      client.delete(guids, executor, new ReadingListDeleteDelegate() {
+        @Override
+        public void onSuccess(ReadingListRecordResponse response, ReadingListRecord record) {
+          deleted.incrementAndGet();
+        }
+
+        @Override
+        public void onPreconditionFailed(String guid, MozResponse response) {
+        }
+
+        @Override
+        public void onRecordMissingOrDeleted(String guid, MozResponse response) {
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+        }
+
+        @Override
+        public void onFailure(MozResponse response) {
+        }
+
+        @Override
+        public void onBatchDone() {
+          deletedAtBatchDone.set(deleted.get());
+          done.countDown();
+        }
+      });
+
+      assertTrue(done.await(30, TimeUnit.SECONDS));
+      executor.shutdown();
+      assertEquals(RECORD_COUNT, deletedAtBatchDone.get());
+      assertTrue(guids.isEmpty());
+      assertTrue(server.maxConcurrent.get() > 1);
+      assertTrue(server.maxConcurrent.get() <= 3);
+    } finally {
+      server.stop();
+    }
+  }
+}
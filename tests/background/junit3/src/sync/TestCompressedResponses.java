@@ -0,0 +1,274 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.background.common.log.Logger;
+
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.net.BaseResource;
+import org.mozilla.gecko.sync.net.BaseResourceDelegate;
+import org.mozilla.gecko.sync.net.Resource;
+
+import ch.boye.httpclientandroidlib.HttpResponse;
+import ch.boye.httpclientandroidlib.client.ClientProtocolException;
+import ch.boye.httpclientandroidlib.util.EntityUtils;
+
+/**
+ * Delegates that opt in to compressed responses must advertise gzip and
+ * deflate, and must see the decoded body; other delegates' requests must be
+ * unchanged.
+ */
+public class TestCompressedResponses extends AndroidSyncTestCase {
+  private static final String LOG_TAG = "TestCompressedResponses";
+  private static final String BODY = "{\"id\":\"record\",\"payload\":\"compressible compressible compressible\"}\n";
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /**
+   * Answers a single request on the loopback interface, recording the
+   * request's header lines.
+   */
+  protected static class OneShotServer extends Thread {
+    public final List<String> requestLines = new ArrayList<String>();
+    public volatile Exception exception;
+
+    protected final ServerSocket serverSocket;
+    protected final byte[] body;
+    protected final String contentEncoding;
+
+    public OneShotServer(byte[] body, String contentEncoding) throws IOException {
+      this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      this.body = body;
+      this.contentEncoding = contentEncoding;
+    }
+
+    public URI getURI() {
+      return URI.create("http://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+    }
+
+    @Override
+    public void run() {
+      try {
+        final Socket socket = serverSocket.accept();
+        try {
+          final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+          String line;
+          while ((line = in.readLine()) != null && line.length() > 0) {
+            synchronized (requestLines) {
+              requestLines.add(line);
+            }
+          }
+
+          final StringBuilder headers = new StringBuilder();
+          headers.append("HTTP/1.1 200 OK\r\n");
+          headers.append("Content-Type: text/plain\r\n");
+          headers.append("Content-Length: " + body.length + "\r\n");
+          if (contentEncoding != null) {
+            headers.append("Content-Encoding: " + contentEncoding + "\r\n");
+          }
+          headers.append("Connection: close\r\n");
+          headers.append("\r\n");
+
+          final OutputStream out = socket.getOutputStream();
+          out.write(headers.toString().getBytes("ISO-8859-1"));
+          out.write(body);
+          out.flush();
+        } finally {
+          socket.close();
+        }
+      } catch (Exception e) {
+        exception = e;
+      } finally {
+        try {
+          serverSocket.close();
+        } catch (IOException e) {
+          // Nothing to do.
+        }
+      }
+    }
+
+    /**
+     * @return the value of the named request header, or null if it wasn't sent.
+     */
+    public String getRequestHeader(String name) {
+      final String prefix = name.toLowerCase() + ":";
+      synchronized (requestLines) {
+        for (String line : requestLines) {
+          if (line.toLowerCase().startsWith(prefix)) {
+            return line.substring(prefix.length()).trim();
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  protected static class RecordingDelegate extends BaseResourceDelegate {
+    public final boolean acceptCompressed;
+    public String body;
+    public String contentEncoding;
+    public Exception exception;
+
+    public RecordingDelegate(Resource resource, boolean acceptCompressed) {
+      super(resource);
+      this.acceptCompressed = acceptCompressed;
+    }
+
+    @Override
+    public boolean acceptCompressedResponses() {
+      return acceptCompressed;
+    }
+
+    @Override
+    public String getUserAgent() {
+      return null;
+    }
+
+    @Override
+    public void handleHttpResponse(HttpResponse response) {
+      try {
+        contentEncoding = response.containsHeader("Content-Encoding") ?
+            response.getFirstHeader("Content-Encoding").getValue() : null;
+        body = EntityUtils.toString(response.getEntity(), "UTF-8");
+      } catch (Exception e) {
+        exception = e;
+      }
+    }
+
+    @Override
+    public void handleHttpProtocolException(ClientProtocolException e) {
+      exception = e;
+    }
+
+    @Override
+    public void handleHttpIOException(IOException e) {
+      exception = e;
+    }
+
+    @Override
+    public void handleTransportException(GeneralSecurityException e) {
+      exception = e;
+    }
+  }
+
+  protected static byte[] gzip(String string) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(string.getBytes("UTF-8"));
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Issue a GET to <code>server</code>, which answers it on its own thread.
+   */
+  protected static RecordingDelegate get(OneShotServer server, boolean acceptCompressed) throws Exception {
+    server.start();
+
+    final BaseResource resource = new BaseResource(server.getURI(), false);
+    final RecordingDelegate delegate = new RecordingDelegate(resource, acceptCompressed);
+    resource.delegate = delegate;
+    resource.get();
+
+    server.join(TIMEOUT_MILLIS);
+    assertFalse(server.isAlive());
+    assertNull(server.exception);
+    assertNull(delegate.exception);
+    return delegate;
+  }
+
+  public void testOptedInRequestAcceptsCompression() throws Exception {
+    final OneShotServer server = new OneShotServer(BODY.getBytes("UTF-8"), null);
+    final RecordingDelegate delegate = get(server, true);
+
+    assertEquals("gzip,deflate", server.getRequestHeader("Accept-Encoding"));
+    assertEquals(BODY, delegate.body);
+  }
+
+  public void testGzipResponseIsDecoded() throws Exception {
+    final OneShotServer server = new OneShotServer(gzip(BODY), "gzip");
+    final RecordingDelegate delegate = get(server, true);
+
+    assertEquals(BODY, delegate.body);
+    assertNull(delegate.contentEncoding);
+  }
+
+  public void testDefaultRequestIsUnchanged() throws Exception {
+    final OneShotServer server = new OneShotServer(BODY.getBytes("UTF-8"), null);
+    final RecordingDelegate delegate = get(server, false);
+
+    assertNull(server.getRequestHeader("Accept-Encoding"));
+    assertEquals(BODY, delegate.body);
+  }
+
+  /**
+   * A collection fetch shaped like a real one: newline-delimited records
+   * whose payloads are encrypted, so only the base64 encoding and the JSON
+   * envelope are redundant.
+   */
+  protected static String makeCollection(int count) {
+    final Random random = new Random(42);
+    final StringBuilder collection = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      final byte[] ciphertext = new byte[200 + random.nextInt(400)];
+      final byte[] iv = new byte[16];
+      final byte[] hmac = new byte[32];
+      final byte[] guid = new byte[9];
+      random.nextBytes(ciphertext);
+      random.nextBytes(iv);
+      random.nextBytes(hmac);
+      random.nextBytes(guid);
+
+      final String payload = "{\\\"ciphertext\\\":\\\"" + Base64.encodeBase64String(ciphertext) + "\\\"," +
+                             "\\\"IV\\\":\\\"" + Base64.encodeBase64String(iv) + "\\\"," +
+                             "\\\"hmac\\\":\\\"" + Utils.byte2Hex(hmac) + "\\\"}";
+      collection.append("{\"id\":\"" + Base64.encodeBase64URLSafeString(guid) + "\"," +
+                        "\"modified\":" + (1400000000 + i) + ".12," +
+                        "\"sortindex\":100," +
+                        "\"payload\":\"" + payload + "\"}\n");
+    }
+    return collection.toString();
+  }
+
+  /**
+   * Not a strict test: log the bytes on the wire and the time taken to fetch a
+   * representative collection with and without compression. On the loopback
+   * interface the time is dominated by decoding, not by the transfer, so the
+   * saving on a real network is the byte count.
+   */
+  public void testCollectionFetchSizeAndTime() throws Exception {
+    final String collection = makeCollection(1000);
+    final byte[] plain = collection.getBytes("UTF-8");
+    final byte[] compressed = gzip(collection);
+
+    long start = System.nanoTime();
+    final RecordingDelegate plainDelegate = get(new OneShotServer(plain, null), false);
+    final long plainMillis = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    final RecordingDelegate compressedDelegate = get(new OneShotServer(compressed, "gzip"), true);
+    final long compressedMillis = (System.nanoTime() - start) / 1000000;
+
+    assertEquals(collection, plainDelegate.body);
+    assertEquals(collection, compressedDelegate.body);
+    Logger.info(LOG_TAG, "Fetching 1000 records: uncompressed " + plain.length + " bytes in " + plainMillis + "ms, " +
+                         "gzip " + compressed.length + " bytes in " + compressedMillis + "ms.");
+  }
+}
@@ -0,0 +1,184 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.crypto.CryptoContext;
+import org.mozilla.gecko.sync.crypto.CryptoInfo;
+import org.mozilla.gecko.sync.crypto.HKDF;
+import org.mozilla.gecko.sync.crypto.HMACVerificationException;
+import org.mozilla.gecko.sync.crypto.KeyBundle;
+
+public class TestCryptoContext extends AndroidSyncTestCase {
+  private static final String LOG_TAG = "TestCryptoContext";
+
+  protected static CryptoRecord makeEncryptedRecord(KeyBundle keys, int i) throws Exception {
+    final ExtendedJSONObject cleartext = new ExtendedJSONObject();
+    cleartext.put("id", "guid" + i);
+    cleartext.put("histUri", "http://example.com/" + i);
+    cleartext.put("title", "Example page number " + i);
+
+    final CryptoRecord record = new CryptoRecord(cleartext);
+    record.guid = "guid" + i;
+    record.keyBundle = keys;
+    return record.encrypt();
+  }
+
+  public void testContextIsReusedPerKeyBundle() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final KeyBundle sameKeys = new KeyBundle(keys.getEncryptionKey(), keys.getHMACKey());
+    assertSame(CryptoContext.forKeyBundle(keys), CryptoContext.forKeyBundle(sameKeys));
+    assertNotSame(CryptoContext.forKeyBundle(keys), CryptoContext.forKeyBundle(KeyBundle.withRandomKeys()));
+  }
+
+  public void testRoundTrip() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final byte[] cleartext = "Hello, world.".getBytes("UTF-8");
+
+    final CryptoInfo encrypted = CryptoInfo.encrypt(cleartext, keys);
+    final CryptoInfo decrypted = CryptoInfo.decrypt(encrypted.getMessage(), encrypted.getIV(), encrypted.getHMAC(), keys);
+    assertEquals("Hello, world.", new String(decrypted.getMessage(), "UTF-8"));
+
+    final CryptoRecord record = makeEncryptedRecord(keys, 1);
+    record.decrypt();
+    assertEquals("http://example.com/1", record.payload.getString("histUri"));
+  }
+
+  public void testBadHMACIsRejected() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final CryptoRecord record = makeEncryptedRecord(keys, 1);
+    record.keyBundle = new KeyBundle(keys.getEncryptionKey(), KeyBundle.withRandomKeys().getHMACKey());
+    try {
+      record.decrypt();
+      fail("Expected HMACVerificationException.");
+    } catch (HMACVerificationException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * The per-record lookups that CryptoInfo used to perform.
+   */
+  protected static byte[] decryptWithoutContext(ExtendedJSONObject payload, KeyBundle keys) throws Exception {
+    final byte[] ciphertext = Base64.decodeBase64(payload.getString("ciphertext").getBytes("UTF-8"));
+    final byte[] iv = Base64.decodeBase64(payload.getString("IV").getBytes("UTF-8"));
+    final Mac mac = HKDF.makeHMACHasher(keys.getHMACKey());
+    mac.doFinal(Base64.encodeBase64(ciphertext));
+    final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.getEncryptionKey(), "AES"), new IvParameterSpec(iv));
+    return cipher.doFinal(ciphertext);
+  }
+
+  /**
+   * Reusing a context, and its scratch buffer, across records of different
+   * sizes must give the same results as fresh crypto state for each.
+   */
+  public void testReusedContextMatchesFreshState() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    for (int i = 0; i < 50; i++) {
+      final ExtendedJSONObject cleartext = new ExtendedJSONObject();
+      final StringBuilder title = new StringBuilder();
+      for (int j = 0; j < (i * 7) % 40; j++) {
+        title.append("Title ").append(j);
+      }
+      cleartext.put("id", "guid" + i);
+      cleartext.put("title", title.toString());
+
+      final CryptoRecord record = new CryptoRecord(cleartext);
+      record.guid = "guid" + i;
+      record.keyBundle = keys;
+      final ExtendedJSONObject payload = record.encrypt().payload;
+
+      final ExtendedJSONObject expected = ExtendedJSONObject.parseUTF8AsJSONObject(decryptWithoutContext(payload, keys));
+      final CryptoRecord decrypted = new CryptoRecord(payload);
+      decrypted.keyBundle = keys;
+      decrypted.decrypt();
+      assertEquals(expected, decrypted.payload);
+      assertEquals(title.toString(), decrypted.payload.getString("title"));
+    }
+  }
+
+  /**
+   * The scratch buffer must have room for whatever the cipher wants to write,
+   * which can exceed the ciphertext length until padding is stripped.
+   */
+  public void testDecryptToBufferHasRoom() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    for (int length = 0; length < 100; length += 7) {
+      final byte[] cleartext = new byte[length];
+      for (int i = 0; i < length; i++) {
+        cleartext[i] = (byte) i;
+      }
+      final CryptoInfo encrypted = CryptoInfo.encrypt(cleartext, keys);
+      final CryptoContext context = CryptoContext.forKeyBundle(keys);
+      final int decrypted = context.decryptToBuffer(encrypted.getMessage(), encrypted.getIV());
+      assertEquals(length, decrypted);
+      for (int i = 0; i < length; i++) {
+        assertEquals(cleartext[i], context.getBuffer()[i]);
+      }
+
+      context.wipeBuffer(decrypted);
+      for (int i = 0; i < decrypted; i++) {
+        assertEquals(0, context.getBuffer()[i]);
+      }
+    }
+  }
+
+  public void testClearedContextsAreNotReused() throws Exception {
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final CryptoContext before = CryptoContext.forKeyBundle(keys);
+
+    CryptoContext.clearAllContexts();
+    final CryptoContext after = CryptoContext.forKeyBundle(keys);
+    assertNotSame(before, after);
+    assertSame(after, CryptoContext.forKeyBundle(keys));
+
+    // The new context still works.
+    final CryptoRecord record = makeEncryptedRecord(keys, 2);
+    record.decrypt();
+    assertEquals("guid2", record.payload.getString("id"));
+
+    CryptoContext.clearThreadContexts();
+    assertNotSame(after, CryptoContext.forKeyBundle(keys));
+  }
+
+  /**
+   * Not a strict test: log records/sec with and without context reuse.
+   */
+  public void testDecryptSpeed() throws Exception {
+    final int count = 2000;
+    final KeyBundle keys = KeyBundle.withRandomKeys();
+    final ExtendedJSONObject[] payloads = new ExtendedJSONObject[count];
+    for (int i = 0; i < count; i++) {
+      payloads[i] = makeEncryptedRecord(keys, i).payload;
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      ExtendedJSONObject.parseUTF8AsJSONObject(decryptWithoutContext(payloads[i], keys));
+    }
+    final long withoutNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      final CryptoRecord record = new CryptoRecord(payloads[i]);
+      record.keyBundle = keys;
+      record.decrypt();
+    }
+    final long withNanos = System.nanoTime() - start;
+
+    Logger.info(LOG_TAG, "Decrypted " + count + " records: " +
+        (count * 1000000000L / Math.max(1, withoutNanos)) + " records/sec without CryptoContext, " +
+        (count * 1000000000L / Math.max(1, withNanos)) + " records/sec with CryptoContext.");
+  }
+}
@@ -0,0 +1,127 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+import org.mozilla.apache.commons.codec.binary.Base64;
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.background.sync.TestServer11RepositorySession.TestRepository;
+import org.mozilla.gecko.background.sync.TestServer11RepositorySession.TestSession;
+import org.mozilla.gecko.sync.net.DigestableEntity;
+import org.mozilla.gecko.sync.net.HawkAuthHeaderProvider;
+
+import ch.boye.httpclientandroidlib.HttpEntity;
+import ch.boye.httpclientandroidlib.entity.ByteArrayEntity;
+import ch.boye.httpclientandroidlib.entity.HttpEntityWrapper;
+import ch.boye.httpclientandroidlib.entity.StringEntity;
+
+/**
+ * Hashing a {@link DigestableEntity} in place must give exactly the payload
+ * hash that reading the entity back as a stream gives.
+ */
+public class TestHawkPayloadHash extends AndroidSyncTestCase {
+  // From the Hawk README.
+  private static final String HAWK_PAYLOAD = "Thank you for flying Hawk";
+  private static final String HAWK_PAYLOAD_HASH = "Yi9LfIIFRtBEPt74PVmbTF/xVAwPn7ub15ePICfgnuY=";
+
+  protected static class TestHawkAuthHeaderProvider extends HawkAuthHeaderProvider {
+    public TestHawkAuthHeaderProvider() {
+      super("id", new byte[32], true, 0);
+    }
+
+    public static String payloadHash(HttpEntity entity) throws Exception {
+      return Base64.encodeBase64String(getPayloadHash(entity));
+    }
+  }
+
+  protected static class DigestableStringEntity extends StringEntity implements DigestableEntity {
+    public DigestableStringEntity(String string) throws Exception {
+      super(string, "UTF-8");
+    }
+
+    @Override
+    public void updateDigest(MessageDigest digest) {
+      digest.update(content);
+    }
+  }
+
+  protected static class DigestableByteArrayEntity extends ByteArrayEntity implements DigestableEntity {
+    public DigestableByteArrayEntity(byte[] bytes, String contentType) {
+      super(bytes);
+      setContentType(contentType);
+    }
+
+    @Override
+    public void updateDigest(MessageDigest digest) {
+      digest.update(content);
+    }
+  }
+
+  /**
+   * @return the payload hash computed by reading <code>entity</code> as a
+   *         stream, as for any entity that isn't digestable.
+   */
+  protected static String streamedPayloadHash(HttpEntity entity) throws Exception {
+    final HttpEntity wrapped = new HttpEntityWrapper(entity);
+    assertFalse(wrapped instanceof DigestableEntity);
+    return TestHawkAuthHeaderProvider.payloadHash(wrapped);
+  }
+
+  public void testStringEntity() throws Exception {
+    final HttpEntity entity = new DigestableStringEntity(HAWK_PAYLOAD);
+    assertEquals(HAWK_PAYLOAD_HASH, TestHawkAuthHeaderProvider.payloadHash(entity));
+    assertEquals(HAWK_PAYLOAD_HASH, streamedPayloadHash(entity));
+  }
+
+  public void testByteArrayEntity() throws Exception {
+    final HttpEntity entity = new DigestableByteArrayEntity(HAWK_PAYLOAD.getBytes("UTF-8"), "text/plain");
+    assertEquals(HAWK_PAYLOAD_HASH, TestHawkAuthHeaderProvider.payloadHash(entity));
+    assertEquals(HAWK_PAYLOAD_HASH, streamedPayloadHash(entity));
+  }
+
+  /**
+   * The record upload body is written from many buffers; hashing them in
+   * place must match hashing the single buffer that would be sent.
+   */
+  public void testMultipleBufferEntity() throws Exception {
+    final ArrayList<byte[]> records = new ArrayList<byte[]>();
+    final ArrayList<String> guids = new ArrayList<String>();
+    long bytes = 0;
+    for (int i = 0; i < 5; i++) {
+      final byte[] record = ("{\"id\":\"guid" + i + "\",\"payload\":\"" + HAWK_PAYLOAD + "\"}").getBytes("UTF-8");
+      records.add(record);
+      guids.add("guid" + i);
+      bytes += record.length;
+    }
+
+    final TestSession session = new TestSession(new TestRepository(1), null, 0);
+    final HttpEntity entity = session.new FakeUpload(null, records, guids, bytes).getBodyEntity();
+    assertTrue(entity instanceof DigestableEntity);
+
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    entity.writeTo(written);
+    final HttpEntity single = new DigestableByteArrayEntity(written.toByteArray(), "application/json");
+
+    final String expected = TestHawkAuthHeaderProvider.payloadHash(single);
+    assertEquals(expected, TestHawkAuthHeaderProvider.payloadHash(entity));
+    assertEquals(expected, streamedPayloadHash(entity));
+  }
+
+  public void testSingleRecordEntity() throws Exception {
+    final ArrayList<byte[]> records = new ArrayList<byte[]>();
+    records.add(HAWK_PAYLOAD.getBytes("UTF-8"));
+    final ArrayList<String> guids = new ArrayList<String>();
+    guids.add("guid");
+
+    final TestSession session = new TestSession(new TestRepository(1), null, 0);
+    final HttpEntity entity = session.new FakeUpload(null, records, guids, HAWK_PAYLOAD.length()).getBodyEntity();
+
+    final HttpEntity single = new DigestableByteArrayEntity(("[\n" + HAWK_PAYLOAD + "\n]\n").getBytes("UTF-8"), "application/json");
+    assertEquals(TestHawkAuthHeaderProvider.payloadHash(single), TestHawkAuthHeaderProvider.payloadHash(entity));
+    assertEquals(streamedPayloadHash(entity), TestHawkAuthHeaderProvider.payloadHash(entity));
+  }
+}
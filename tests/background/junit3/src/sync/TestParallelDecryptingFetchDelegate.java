@@ -0,0 +1,271 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.background.testhelpers.MockRecord;
+import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepository;
+import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepositorySession;
+import org.mozilla.gecko.sync.middleware.Crypto5MiddlewareRepositorySession.ParallelDecryptingTransformingFetchDelegate;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionFetchRecordsDelegate;
+import org.mozilla.gecko.sync.repositories.domain.Record;
+
+public class TestParallelDecryptingFetchDelegate extends AndroidSyncTestCase {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  protected Crypto5MiddlewareRepositorySession session;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    // Transforms are overridden below, so no keys or inner session are needed.
+    session = new Crypto5MiddlewareRepositorySession(null, new Crypto5MiddlewareRepository(null, null), null);
+  }
+
+  protected static Record makeRecord(int i) {
+    return new MockRecord("guid" + i, "mock", 1000 + i, false);
+  }
+
+  /**
+   * Records what reaches the end of the pipeline, optionally blocking each
+   * delivery until <code>gate</code> is opened.
+   */
+  protected static class RecordingDelegate implements RepositorySessionFetchRecordsDelegate {
+    public final List<String> events = new ArrayList<String>();
+    public final CountDownLatch firstDelivery = new CountDownLatch(1);
+    public final CountDownLatch completed = new CountDownLatch(1);
+    public final AtomicInteger completions = new AtomicInteger(0);
+    public final AtomicInteger concurrentDeliveries = new AtomicInteger(0);
+    public final AtomicInteger maxConcurrentDeliveries = new AtomicInteger(0);
+    public volatile long fetchEnd = -1;
+
+    protected final CountDownLatch gate;
+
+    public RecordingDelegate(CountDownLatch gate) {
+      this.gate = gate;
+    }
+
+    protected void enter() {
+      final int current = concurrentDeliveries.incrementAndGet();
+      if (current > maxConcurrentDeliveries.get()) {
+        maxConcurrentDeliveries.set(current);
+      }
+      firstDelivery.countDown();
+      if (gate != null) {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void onFetchedRecord(Record record) {
+      enter();
+      synchronized (events) {
+        events.add("record:" + record.guid);
+      }
+      concurrentDeliveries.decrementAndGet();
+    }
+
+    @Override
+    public void onFetchFailed(Exception ex, Record record) {
+      synchronized (events) {
+        events.add("failed:" + (record == null ? null : record.guid));
+      }
+    }
+
+    @Override
+    public void onFetchCompleted(long fetchEnd) {
+      this.fetchEnd = fetchEnd;
+      completions.incrementAndGet();
+      completed.countDown();
+    }
+
+    @Override
+    public RepositorySessionFetchRecordsDelegate deferredFetchDelegate(ExecutorService executor) {
+      return this;
+    }
+
+    public List<String> getEvents() {
+      synchronized (events) {
+        return new ArrayList<String>(events);
+      }
+    }
+  }
+
+  /**
+   * Feeds records to the delegate from its own thread, as a fetch would.
+   */
+  protected static class Fetcher extends Thread {
+    public final AtomicInteger submitted = new AtomicInteger(0);
+    protected final RepositorySessionFetchRecordsDelegate delegate;
+    protected final int count;
+
+    public Fetcher(RepositorySessionFetchRecordsDelegate delegate, int count) {
+      this.delegate = delegate;
+      this.count = count;
+    }
+
+    @Override
+    public void run() {
+      for (int i = 0; i < count; i++) {
+        submitted.incrementAndGet();
+        delegate.onFetchedRecord(makeRecord(i));
+      }
+    }
+  }
+
+  protected void waitForFetcherToBlock(Fetcher fetcher, int expectedSubmitted) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      if (fetcher.submitted.get() == expectedSubmitted && fetcher.getState() == Thread.State.WAITING) {
+        return;
+      }
+      Thread.sleep(5);
+    }
+    fail("Fetcher should be waiting for a slot after " + expectedSubmitted + " records, " +
+        "but submitted " + fetcher.submitted.get() + " and is " + fetcher.getState() + ".");
+  }
+
+  protected static List<String> expectedRecords(int count) {
+    final List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      expected.add("record:guid" + i);
+    }
+    return expected;
+  }
+
+  public void testDeliveryIsInFetchOrder() throws Exception {
+    final int count = 200;
+    final RecordingDelegate next = new RecordingDelegate(null);
+    final ParallelDecryptingTransformingFetchDelegate delegate = session.new ParallelDecryptingTransformingFetchDelegate(next, null, null, 4, 16) {
+      @Override
+      protected Record transform(Record record) {
+        // Make earlier records finish later than their successors.
+        final int i = Integer.parseInt(record.guid.substring(4));
+        try {
+          Thread.sleep((count - i) % 4);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return record;
+      }
+    };
+
+    for (int i = 0; i < count; i++) {
+      delegate.onFetchedRecord(makeRecord(i));
+    }
+    delegate.onFetchCompleted(12345);
+
+    assertTrue(next.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(expectedRecords(count), next.getEvents());
+    assertEquals(12345, next.fetchEnd);
+    assertEquals(1, next.completions.get());
+    assertEquals(1, next.maxConcurrentDeliveries.get());
+  }
+
+  public void testTransformFailureIsDeliveredInOrder() throws Exception {
+    final RecordingDelegate next = new RecordingDelegate(null);
+    final ParallelDecryptingTransformingFetchDelegate delegate = session.new ParallelDecryptingTransformingFetchDelegate(next, null, null, 2, 4) {
+      @Override
+      protected Record transform(Record record) throws Exception {
+        if (record.guid.equals("guid3")) {
+          throw new Exception("Bad record.");
+        }
+        return record;
+      }
+    };
+
+    for (int i = 0; i < 6; i++) {
+      delegate.onFetchedRecord(makeRecord(i));
+    }
+    delegate.onFetchCompleted(1);
+
+    assertTrue(next.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    final List<String> expected = expectedRecords(6);
+    expected.set(3, "failed:guid3");
+    assertEquals(expected, next.getEvents());
+  }
+
+  /**
+   * While the next delegate is blocked delivering the first record, the fetch
+   * thread must be able to hand over up to <code>capacity</code> records, and
+   * no more.
+   */
+  public void testBackpressure() throws Exception {
+    final int capacity = 4;
+    final int count = 20;
+    final CountDownLatch gate = new CountDownLatch(1);
+    final RecordingDelegate next = new RecordingDelegate(gate);
+    final ParallelDecryptingTransformingFetchDelegate delegate = session.new ParallelDecryptingTransformingFetchDelegate(next, null, null, 2, capacity) {
+      @Override
+      protected Record transform(Record record) {
+        return record;
+      }
+    };
+
+    final Fetcher fetcher = new Fetcher(delegate, count);
+    fetcher.start();
+
+    assertTrue(next.firstDelivery.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    // The record that doesn't fit is counted before the fetcher blocks.
+    waitForFetcherToBlock(fetcher, capacity + 1);
+
+    gate.countDown();
+    fetcher.join(TIMEOUT_MILLIS);
+    assertFalse(fetcher.isAlive());
+    delegate.onFetchCompleted(1);
+
+    assertTrue(next.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(expectedRecords(count), next.getEvents());
+    assertEquals(1, next.maxConcurrentDeliveries.get());
+  }
+
+  /**
+   * A failed fetch must release a fetch thread that's waiting for a slot, and
+   * completion must still be passed on.
+   */
+  public void testFailureReleasesFetcher() throws Exception {
+    final int capacity = 2;
+    final CountDownLatch gate = new CountDownLatch(1);
+    final RecordingDelegate next = new RecordingDelegate(gate);
+    final ParallelDecryptingTransformingFetchDelegate delegate = session.new ParallelDecryptingTransformingFetchDelegate(next, null, null, 2, capacity) {
+      @Override
+      protected Record transform(Record record) {
+        return record;
+      }
+    };
+
+    final Fetcher fetcher = new Fetcher(delegate, 10);
+    fetcher.start();
+
+    assertTrue(next.firstDelivery.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    waitForFetcherToBlock(fetcher, capacity + 1);
+
+    delegate.onFetchFailed(new Exception("Fetch failed."), null);
+    fetcher.join(TIMEOUT_MILLIS);
+    assertFalse(fetcher.isAlive());
+
+    // Let the delivery in progress finish; nothing else should follow it.
+    gate.countDown();
+    delegate.onFetchCompleted(99);
+
+    assertTrue(next.completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(99, next.fetchEnd);
+    assertEquals(1, next.completions.get());
+
+    final List<String> events = next.getEvents();
+    assertTrue(events.contains("failed:null"));
+    assertTrue(events.size() <= 2);
+  }
+}
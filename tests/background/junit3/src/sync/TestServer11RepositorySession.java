@@ -0,0 +1,360 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.background.testhelpers.MockRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.InfoCollections;
+import org.mozilla.gecko.sync.Utils;
+import org.mozilla.gecko.sync.net.SyncStorageResponse;
+import org.mozilla.gecko.sync.repositories.Server11Repository;
+import org.mozilla.gecko.sync.repositories.Server11RepositorySession;
+import org.mozilla.gecko.sync.repositories.delegates.RepositorySessionStoreDelegate;
+
+import ch.boye.httpclientandroidlib.HttpVersion;
+import ch.boye.httpclientandroidlib.entity.StringEntity;
+import ch.boye.httpclientandroidlib.message.BasicHttpResponse;
+import ch.boye.httpclientandroidlib.message.BasicStatusLine;
+
+/**
+ * Exercises record uploads against a fake server: concurrent uploads, the
+ * order in which their timestamps count, splitting on 413, adapting batch
+ * sizes, and aborting with uploads queued.
+ */
+public class TestServer11RepositorySession extends AndroidSyncTestCase {
+  private static final long TIMEOUT_MILLIS = 10000;
+
+  /**
+   * Answers the POST of a batch of records.
+   */
+  protected interface FakeServer {
+    public SyncStorageResponse respond(List<String> guids) throws InterruptedException;
+  }
+
+  protected static SyncStorageResponse makeResponse(int status, String body, long timestamp) throws Exception {
+    final BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, status, null));
+    response.setEntity(new StringEntity(body, "UTF-8"));
+    response.addHeader("X-Weave-Timestamp", Utils.millisecondsToDecimalSecondsString(timestamp));
+    return new SyncStorageResponse(response);
+  }
+
+  @SuppressWarnings("unchecked")
+  protected static SyncStorageResponse success(List<String> guids, long timestamp) throws Exception {
+    final JSONArray success = new JSONArray();
+    success.addAll(guids);
+    final ExtendedJSONObject body = new ExtendedJSONObject();
+    body.put("modified", Utils.millisecondsToDecimalSecondsString(timestamp));
+    body.put("success", success);
+    body.put("failed", new ExtendedJSONObject());
+    return makeResponse(200, body.toJSONString(), timestamp);
+  }
+
+  protected static SyncStorageResponse failure(int status) throws Exception {
+    return makeResponse(status, "0", 0);
+  }
+
+  protected static class TestRepository extends Server11Repository {
+    private final int maxConcurrentUploads;
+
+    public TestRepository(int maxConcurrentUploads) throws URISyntaxException {
+      super("test", "http://localhost/storage", null, new InfoCollections());
+      this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    @Override
+    protected int getMaxConcurrentUploads() {
+      return maxConcurrentUploads;
+    }
+  }
+
+  protected static class TestSession extends Server11RepositorySession {
+    protected final FakeServer server;
+    public final List<Integer> batchSizes = new ArrayList<Integer>();
+
+    // Counted down as each upload, by queue order, is accounted for.
+    public final CountDownLatch[] uploadsFinished;
+
+    public TestSession(TestRepository repository, FakeServer server, int expectedUploads) {
+      super(repository);
+      this.server = server;
+      this.uploadsFinished = new CountDownLatch[expectedUploads];
+      for (int i = 0; i < expectedUploads; i++) {
+        uploadsFinished[i] = new CountDownLatch(1);
+      }
+    }
+
+    public class FakeUpload extends RecordUploadRunnable {
+      protected final ArrayList<String> guids;
+
+      public FakeUpload(RepositorySessionStoreDelegate storeDelegate, ArrayList<byte[]> outgoing, ArrayList<String> outgoingGuids, long byteCount) {
+        super(storeDelegate, outgoing, outgoingGuids, byteCount);
+        this.guids = new ArrayList<String>(outgoingGuids);
+      }
+
+      @Override
+      protected void post(ByteArraysEntity body) {
+        synchronized (batchSizes) {
+          batchSizes.add(guids.size());
+        }
+        final SyncStorageResponse response;
+        try {
+          response = server.respond(guids);
+        } catch (InterruptedException e) {
+          handleRequestError(e);
+          return;
+        }
+        if (response.wasSuccessful()) {
+          handleRequestSuccess(response);
+        } else {
+          handleRequestFailure(response);
+        }
+      }
+    }
+
+    @Override
+    protected RecordUploadRunnable makeRecordUploadRunnable(RepositorySessionStoreDelegate storeDelegate, ArrayList<byte[]> outgoing,
+        ArrayList<String> outgoingGuids, long byteCount) {
+      return new FakeUpload(storeDelegate, outgoing, outgoingGuids, byteCount);
+    }
+
+    @Override
+    protected void uploadFinished(long sequence, long timestamp) {
+      super.uploadFinished(sequence, timestamp);
+      if (sequence < uploadsFinished.length) {
+        uploadsFinished[(int) sequence].countDown();
+      }
+    }
+
+    public int getItemThreshold() {
+      synchronized (recordsBufferMonitor) {
+        return uploadItemThreshold;
+      }
+    }
+
+    public void reportTooLarge(int itemCount, long bytes) {
+      uploadTooLarge(itemCount, bytes);
+    }
+
+    public void reportCompleted(int itemCount, long elapsedMillis) {
+      uploadCompleted(itemCount, elapsedMillis);
+    }
+
+    public List<Integer> getBatchSizes() {
+      synchronized (batchSizes) {
+        return new ArrayList<Integer>(batchSizes);
+      }
+    }
+  }
+
+  protected static class RecordingStoreDelegate implements RepositorySessionStoreDelegate {
+    public final List<String> succeeded = new ArrayList<String>();
+    public final List<String> failed = new ArrayList<String>();
+    public final CountDownLatch completed = new CountDownLatch(1);
+    public volatile long storeEnd = -1;
+
+    @Override
+    public synchronized void onRecordStoreFailed(Exception ex, String recordGuid) {
+      failed.add(recordGuid);
+    }
+
+    @Override
+    public synchronized void onRecordStoreSucceeded(String guid) {
+      succeeded.add(guid);
+    }
+
+    @Override
+    public void onStoreCompleted(long storeEnd) {
+      this.storeEnd = storeEnd;
+      completed.countDown();
+    }
+
+    @Override
+    public RepositorySessionStoreDelegate deferredStoreDelegate(ExecutorService executor) {
+      return this;
+    }
+
+    public synchronized int succeededCount() {
+      return succeeded.size();
+    }
+
+    public synchronized int failedCount() {
+      return failed.size();
+    }
+  }
+
+  protected static void storeRecords(Server11RepositorySession session, int start, int count) throws Exception {
+    for (int i = start; i < start + count; i++) {
+      session.store(new MockRecord("guid" + i, "test", 1000 + i, false));
+    }
+  }
+
+  protected void awaitLatch(CountDownLatch latch) throws InterruptedException {
+    assertTrue(latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Store 60 records: a full batch of 50, which the server holds on to, and
+   * a batch of 10, which it answers straight away.
+   */
+  protected RecordingStoreDelegate storeTwoBatches(final long firstTimestamp, final int firstStatus, final long secondTimestamp) throws Exception {
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final FakeServer server = new FakeServer() {
+      @Override
+      public SyncStorageResponse respond(List<String> guids) throws InterruptedException {
+        try {
+          if (guids.contains("guid0")) {
+            releaseFirst.await();
+            return firstStatus == 200 ? success(guids, firstTimestamp) : failure(firstStatus);
+          }
+          return success(guids, secondTimestamp);
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+
+    final TestSession session = new TestSession(new TestRepository(2), server, 2);
+    final RecordingStoreDelegate delegate = new RecordingStoreDelegate();
+    session.setStoreDelegate(delegate);
+
+    storeRecords(session, 0, 60);
+    session.storeDone();
+
+    // The second batch finishes first, but mustn't complete the store.
+    awaitLatch(session.uploadsFinished[1]);
+    assertEquals(10, delegate.succeededCount());
+    assertEquals(1, delegate.completed.getCount());
+
+    releaseFirst.countDown();
+    awaitLatch(delegate.completed);
+    assertEquals(2, session.getBatchSizes().size());
+    return delegate;
+  }
+
+  public void testOutOfOrderUploadsRetireInOrder() throws Exception {
+    final RecordingStoreDelegate delegate = storeTwoBatches(100000, 200, 200000);
+    assertEquals(60, delegate.succeededCount());
+    assertEquals(200000, delegate.storeEnd);
+  }
+
+  public void testLaterUploadDoesNotAdvancePastFailedEarlierOne() throws Exception {
+    final RecordingStoreDelegate delegate = storeTwoBatches(100000, 500, 200000);
+    assertEquals(10, delegate.succeededCount());
+    assertEquals(50, delegate.failedCount());
+
+    // Had uploads been serial, the second would never have been made, so its
+    // timestamp doesn't count.
+    assertEquals(0, delegate.storeEnd);
+  }
+
+  public void testTooLargeBatchIsSplit() throws Exception {
+    final FakeServer server = new FakeServer() {
+      @Override
+      public SyncStorageResponse respond(List<String> guids) {
+        try {
+          return guids.size() > 10 ? failure(413) : success(guids, 300000);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    final TestSession session = new TestSession(new TestRepository(2), server, 1);
+    final RecordingStoreDelegate delegate = new RecordingStoreDelegate();
+    session.setStoreDelegate(delegate);
+
+    storeRecords(session, 0, 40);
+    session.storeDone();
+    awaitLatch(delegate.completed);
+
+    assertEquals(40, delegate.succeededCount());
+    assertEquals(0, delegate.failedCount());
+    assertEquals(300000, delegate.storeEnd);
+
+    // 40 is split into 20s, and each of those into 10s.
+    final List<Integer> expected = new ArrayList<Integer>();
+    expected.add(40);
+    expected.add(20);
+    expected.add(10);
+    expected.add(10);
+    expected.add(20);
+    expected.add(10);
+    expected.add(10);
+    assertEquals(expected, session.getBatchSizes());
+
+    // Fast uploads after the split grow the threshold again, but never back
+    // to a size that was rejected.
+    assertTrue(session.getItemThreshold() >= 10);
+    assertTrue(session.getItemThreshold() < 20);
+  }
+
+  public void testThresholdsAdapt() throws Exception {
+    final TestSession session = new TestSession(new TestRepository(1), null, 0);
+    assertEquals(50, session.getItemThreshold());
+
+    // A quick, full batch grows the threshold; a partial one doesn't.
+    session.reportCompleted(50, 100);
+    assertEquals(60, session.getItemThreshold());
+    session.reportCompleted(10, 100);
+    assertEquals(60, session.getItemThreshold());
+
+    // A slow batch halves it.
+    session.reportCompleted(60, 20 * 1000);
+    assertEquals(30, session.getItemThreshold());
+
+    // Growth stops at the server's limit.
+    for (int i = 0; i < 20; i++) {
+      session.reportCompleted(session.getItemThreshold(), 100);
+    }
+    assertEquals(100, session.getItemThreshold());
+
+    // A rejected batch halves it, but not below the minimum.
+    session.reportTooLarge(100, 1024 * 1024);
+    assertEquals(50, session.getItemThreshold());
+    session.reportTooLarge(2, 1024);
+    assertEquals(5, session.getItemThreshold());
+  }
+
+  /**
+   * Aborting with one upload running and two queued must fail every record
+   * and still complete the store.
+   */
+  public void testAbortAccountsForQueuedUploads() throws Exception {
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch neverReleased = new CountDownLatch(1);
+    final FakeServer server = new FakeServer() {
+      @Override
+      public SyncStorageResponse respond(List<String> guids) throws InterruptedException {
+        firstStarted.countDown();
+        neverReleased.await();
+        throw new IllegalStateException("Should have been interrupted.");
+      }
+    };
+    final TestSession session = new TestSession(new TestRepository(1), server, 3);
+    final RecordingStoreDelegate delegate = new RecordingStoreDelegate();
+    session.setStoreDelegate(delegate);
+
+    storeRecords(session, 0, 110);
+    session.storeDone();
+    awaitLatch(firstStarted);
+
+    session.abort();
+
+    awaitLatch(delegate.completed);
+    assertEquals(0, delegate.storeEnd);
+    assertEquals(0, delegate.succeededCount());
+    assertEquals(110, delegate.failedCount());
+    assertEquals(1, session.getBatchSizes().size());
+  }
+}
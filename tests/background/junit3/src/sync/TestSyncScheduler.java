@@ -0,0 +1,195 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.mozilla.gecko.sync.SyncScheduler;
+import org.mozilla.gecko.sync.SyncScheduler.Lane;
+import org.mozilla.gecko.sync.SyncScheduler.LaneStats;
+import org.mozilla.gecko.sync.SyncScheduler.Priority;
+
+public class TestSyncScheduler extends TestCase {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  protected SyncScheduler scheduler;
+
+  @Override
+  public void setUp() {
+    // A private instance, so that other tests' work doesn't interfere.
+    scheduler = new SyncScheduler() {};
+  }
+
+  protected static Runnable await(final CountDownLatch latch) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          // Fall through.
+        }
+      }
+    };
+  }
+
+  public void testSerialExecutorRunsInOrder() throws Exception {
+    final ExecutorService executor = scheduler.newSerialExecutor(Lane.GENERAL, Priority.NORMAL);
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+
+    for (int i = 0; i < 50; i++) {
+      final int index = i;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          final int now = running.incrementAndGet();
+          if (now > maxRunning.get()) {
+            maxRunning.set(now);
+          }
+          order.add(index);
+          running.decrementAndGet();
+        }
+      });
+    }
+
+    // Queued work still runs after shutdown, but new work is refused.
+    executor.shutdown();
+    try {
+      executor.execute(await(new CountDownLatch(0)));
+      fail("Should have been rejected.");
+    } catch (RejectedExecutionException e) {
+      // Expected.
+    }
+    assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+    assertEquals(1, maxRunning.get());
+    assertEquals(50, order.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, order.get(i).intValue());
+    }
+  }
+
+  public void testLaneIsBounded() throws Exception {
+    final ExecutorService executor = scheduler.newExecutor(Lane.DB, Priority.NORMAL, 100);
+    final CountDownLatch started = new CountDownLatch(Lane.DB.threadCount);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(10);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+
+    for (int i = 0; i < 10; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          final int now = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), now));
+          }
+          started.countDown();
+          await(release).run();
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+
+    // Every task was queued before execute returned, and the lane's threads
+    // stay blocked until released, so the stats can't change under us.
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    final LaneStats stats = scheduler.getStats(Lane.DB);
+    assertEquals(Lane.DB.threadCount, stats.getThreadCount());
+    assertEquals(10 - Lane.DB.threadCount, stats.getQueueDepth());
+
+    release.countDown();
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Lane.DB.threadCount, maxRunning.get());
+  }
+
+  /**
+   * Consumers wait for work on other lanes; filling their lane mustn't hold
+   * up that work.
+   */
+  public void testLanesAreIndependent() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+
+    for (int i = 0; i < Lane.CONSUMER.threadCount; i++) {
+      scheduler.execute(Lane.CONSUMER, Priority.NORMAL, await(release));
+    }
+    scheduler.execute(Lane.GENERAL, Priority.NORMAL, new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+
+    try {
+      assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  public void testHigherPriorityRunsFirst() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(2);
+    final List<Priority> order = Collections.synchronizedList(new ArrayList<Priority>());
+
+    // Occupy every thread in the lane.
+    for (int i = 0; i < Lane.DB.threadCount; i++) {
+      scheduler.execute(Lane.DB, Priority.NORMAL, await(release));
+    }
+
+    for (final Priority priority : new Priority[] { Priority.LOW, Priority.HIGH }) {
+      scheduler.execute(Lane.DB, priority, new Runnable() {
+        @Override
+        public void run() {
+          order.add(priority);
+          done.countDown();
+        }
+      });
+    }
+
+    release.countDown();
+    assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(Priority.HIGH, order.get(0));
+    assertEquals(Priority.LOW, order.get(1));
+  }
+
+  public void testShutdownNowDropsPendingWork() throws Exception {
+    final ExecutorService executor = scheduler.newSerialExecutor(Lane.GENERAL, Priority.NORMAL);
+    final CountDownLatch started = new CountDownLatch(1);
+    final AtomicInteger interrupted = new AtomicInteger();
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+          interrupted.incrementAndGet();
+        }
+      }
+    });
+    executor.execute(await(new CountDownLatch(0)));
+    executor.execute(await(new CountDownLatch(0)));
+
+    assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(2, executor.shutdownNow().size());
+    assertTrue(executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(1, interrupted.get());
+  }
+}
@@ -0,0 +1,176 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.gecko.background.sync;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+
+import org.json.simple.JSONValue;
+import org.mozilla.gecko.background.common.log.Logger;
+import org.mozilla.gecko.background.helpers.AndroidSyncTestCase;
+import org.mozilla.gecko.sync.CryptoRecord;
+import org.mozilla.gecko.sync.ExtendedJSONObject;
+import org.mozilla.gecko.sync.net.WBOStreamDecoder;
+import org.mozilla.gecko.sync.repositories.domain.RecordParseException;
+
+public class TestWBOStreamDecoder extends AndroidSyncTestCase {
+  private static final String LOG_TAG = "TestWBOStreamDecoder";
+
+  protected static String makeWBO(int i) {
+    final ExtendedJSONObject payload = new ExtendedJSONObject();
+    payload.put("ciphertext", "aGVsbG8gd29ybGQsIHRoaXMgaXMgcmVjb3JkIG51bWJlciA=" + i);
+    payload.put("IV", "GX8L37AAb2FZJMzIoXlX8w==");
+    payload.put("hmac", "b1e6c18ac30deb70236bc0d65a46f7a4dce3b8b0e02cf92182b914e3afa5eebc");
+
+    // Written by hand so that the timestamp looks like the server's.
+    return "{\"id\":\"guid" + i + "\",\"modified\":1388635807.5,\"sortindex\":" + (100 + i) +
+        ",\"payload\":" + JSONValue.toJSONString(payload.toJSONString()) + "}";
+  }
+
+  protected static byte[] makeBody(int count) throws Exception {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(makeWBO(i)).append('\n');
+    }
+    return sb.toString().getBytes("UTF-8");
+  }
+
+  protected static void assertSameRecord(CryptoRecord expected, CryptoRecord actual) {
+    assertEquals(expected.guid, actual.guid);
+    assertEquals(expected.collection, actual.collection);
+    assertEquals(expected.lastModified, actual.lastModified);
+    assertEquals(expected.sortIndex, actual.sortIndex);
+    assertEquals(expected.ttl, actual.ttl);
+    assertEquals(expected.payload, actual.payload);
+  }
+
+  public void testMatchesGeneralParser() throws Exception {
+    final byte[] body = makeBody(10);
+    final WBOStreamDecoder decoder = new WBOStreamDecoder(new ByteArrayInputStream(body));
+    for (int i = 0; i < 10; i++) {
+      final CryptoRecord decoded = decoder.next();
+      assertNotNull(decoded);
+      assertSameRecord(CryptoRecord.fromJSONRecord(makeWBO(i)), decoded);
+    }
+    assertNull(decoder.next());
+  }
+
+  public void testEscapesAndUnknownFields() throws Exception {
+    final String line = "{\"id\":\"a\\u0062c\",\"extra\":{\"x\":[1,\"}\"]},\"modified\":12.5," +
+        "\"payload\":\"{\\\"ciphertext\\\":\\\"c\\\\/t\\\",\\\"IV\\\":\\\"iv\\\",\\\"hmac\\\":\\\"00\\\"}\"}\n";
+    final WBOStreamDecoder decoder = new WBOStreamDecoder(new ByteArrayInputStream(line.getBytes("UTF-8")));
+    final CryptoRecord record = decoder.next();
+    assertEquals("abc", record.guid);
+    assertEquals(12500, record.lastModified);
+    assertEquals("c/t", record.payload.getString("ciphertext"));
+    assertEquals("iv", record.payload.getString("IV"));
+    assertEquals("00", record.payload.getString("hmac"));
+    assertNull(decoder.next());
+  }
+
+  public void testCleartextPayloadFallsBack() throws Exception {
+    final String line = "{\"id\":\"x\",\"payload\":\"{\\\"foo\\\":[1,2],\\\"bar\\\":true}\"}";
+    final WBOStreamDecoder decoder = new WBOStreamDecoder(new ByteArrayInputStream(line.getBytes("UTF-8")));
+    final CryptoRecord record = decoder.next();
+    assertEquals(Boolean.TRUE, record.payload.get("bar"));
+    assertNull(decoder.next());
+  }
+
+  public void testMalformedRecordIsSkipped() throws Exception {
+    final String body = "{\"id\":\"bad\",\"payload\":}\n" + makeWBO(1) + "\n";
+    final WBOStreamDecoder decoder = new WBOStreamDecoder(new ByteArrayInputStream(body.getBytes("UTF-8")));
+    try {
+      decoder.next();
+      fail("Expected RecordParseException.");
+    } catch (RecordParseException e) {
+      // Expected.
+    }
+    assertEquals("guid1", decoder.next().guid);
+    assertNull(decoder.next());
+  }
+
+  protected static void assertParseFails(WBOStreamDecoder decoder) throws Exception {
+    try {
+      decoder.next();
+      fail("Expected RecordParseException.");
+    } catch (RecordParseException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * A record cut off mid-line mustn't take the following record with it,
+   * wherever it is cut.
+   */
+  public void testTruncatedRecordIsSkipped() throws Exception {
+    final String good = makeWBO(1);
+    final String[] truncated = new String[] {
+        "{\"id\":\"bad\",",                            // Between fields.
+        "{\"id\":\"bad\",\"payload\":\"{\\\"cipher",     // Inside the payload string.
+        "{\"id\":\"bad\",\"extra\":[1,{\"x\":",          // Inside a skipped value.
+        "{\"id\":\"bad\",\"modified\":",                // Before a number.
+        "{\"id\":\"bad\",\"modified\":12",              // Inside a number.
+    };
+    for (String bad : truncated) {
+      final String body = bad + "\n" + good + "\n";
+      final WBOStreamDecoder decoder = new WBOStreamDecoder(new ByteArrayInputStream(body.getBytes("UTF-8")));
+      assertParseFails(decoder);
+      final CryptoRecord record = decoder.next();
+      assertNotNull(bad, record);
+      assertSameRecord(CryptoRecord.fromJSONRecord(good), record);
+      assertNull(decoder.next());
+    }
+  }
+
+  /**
+   * A small buffer forces refills in the middle of records and of the
+   * strings within them.
+   */
+  public void testSmallBufferMatchesLineByLine() throws Exception {
+    final int count = 200;
+    final byte[] body = makeBody(count);
+
+    final BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+    final WBOStreamDecoder decoder = new WBOStreamDecoder(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"), 37);
+    String line;
+    int decoded = 0;
+    while (null != (line = br.readLine())) {
+      assertSameRecord(CryptoRecord.fromJSONRecord(line), decoder.next());
+      decoded++;
+    }
+    assertEquals(count, decoded);
+    assertNull(decoder.next());
+  }
+
+  /**
+   * Not a strict test: compare the line-by-line path with the streaming
+   * decoder on a large recorded-style body, and log the results.
+   */
+  public void testDecodeSpeed() throws Exception {
+    final int count = 5000;
+    final byte[] body = makeBody(count);
+
+    long start = System.nanoTime();
+    final BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"), WBOStreamDecoder.DEFAULT_BUFFER_SIZE);
+    String line;
+    int lineCount = 0;
+    while (null != (line = br.readLine())) {
+      CryptoRecord.fromJSONRecord(line);
+      lineCount++;
+    }
+    final long lineNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    final WBOStreamDecoder decoder = new WBOStreamDecoder(new ByteArrayInputStream(body));
+    int streamCount = 0;
+    while (null != decoder.next()) {
+      streamCount++;
+    }
+    final long streamNanos = System.nanoTime() - start;
+
+    Logger.info(LOG_TAG, "Decoded " + lineCount + " records line-by-line in " + (lineNanos / 1000000) +
+        "ms, " + streamCount + " streaming in " + (streamNanos / 1000000) + "ms.");
+  }
+}
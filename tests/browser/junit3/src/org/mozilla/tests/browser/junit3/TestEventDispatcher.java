@@ -0,0 +1,112 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.tests.browser.junit3;
+
+import android.test.InstrumentationTestCase;
+import org.json.JSONObject;
+import org.mozilla.gecko.EventDispatcher;
+import org.mozilla.gecko.util.EventCallback;
+import org.mozilla.gecko.util.GeckoEventListener;
+import org.mozilla.gecko.util.NativeEventListener;
+import org.mozilla.gecko.util.NativeJSObject;
+
+public class TestEventDispatcher extends InstrumentationTestCase {
+    private static final String EVENT = "TestEventDispatcher:Event";
+
+    private static class CountingListener implements GeckoEventListener {
+        public int count;
+
+        @Override
+        public void handleMessage(String event, JSONObject message) {
+            count++;
+        }
+    }
+
+    private static class RecordingCallback implements EventCallback {
+        public Object error;
+
+        @Override
+        public void sendSuccess(Object response) {
+            fail("Unexpected success");
+        }
+
+        @Override
+        public void sendError(Object response) {
+            error = response;
+        }
+    }
+
+    private static JSONObject makeMessage() throws Exception {
+        final JSONObject message = new JSONObject();
+        message.put("type", EVENT);
+        return message;
+    }
+
+    public void testRegistrationAndDispatch() throws Exception {
+        final EventDispatcher dispatcher = EventDispatcher.getInstance();
+        final CountingListener first = new CountingListener();
+        final CountingListener second = new CountingListener();
+
+        dispatcher.registerGeckoThreadListener(first, EVENT);
+        dispatcher.registerGeckoThreadListener(second, EVENT);
+        try {
+            dispatcher.dispatchEvent(makeMessage(), null);
+            assertEquals(1, first.count);
+            assertEquals(1, second.count);
+
+            // An event can't be registered under both listener types.
+            try {
+                dispatcher.registerGeckoThreadListener(new NativeEventListener() {
+                    @Override
+                    public void handleMessage(String event, NativeJSObject message, EventCallback callback) {
+                    }
+                }, EVENT);
+                fail("Should not register a native listener for a JSON event");
+            } catch (IllegalStateException e) {
+            }
+
+            dispatcher.unregisterGeckoThreadListener(first, EVENT);
+            dispatcher.dispatchEvent(makeMessage(), null);
+            assertEquals(1, first.count);
+            assertEquals(2, second.count);
+        } finally {
+            dispatcher.unregisterGeckoThreadListener(second, EVENT);
+        }
+
+        final RecordingCallback callback = new RecordingCallback();
+        dispatcher.dispatchEvent(makeMessage(), callback);
+        assertEquals(2, second.count);
+        assertNotNull(callback.error);
+    }
+
+    public void testDispatchStats() throws Exception {
+        final EventDispatcher dispatcher = EventDispatcher.getInstance();
+        final CountingListener listener = new CountingListener();
+
+        dispatcher.setDispatchStatsEnabled(true);
+        dispatcher.resetDispatchStats();
+        dispatcher.registerGeckoThreadListener(listener, EVENT);
+        try {
+            for (int i = 0; i < 10; i++) {
+                dispatcher.dispatchEvent(makeMessage(), null);
+            }
+        } finally {
+            dispatcher.unregisterGeckoThreadListener(listener, EVENT);
+        }
+
+        final EventDispatcher.DispatchStats stats = dispatcher.getDispatchStats().get(EVENT);
+        assertNotNull(stats);
+        assertEquals(10, stats.getCount());
+
+        long bucketed = 0;
+        for (int i = 0; i < EventDispatcher.DispatchStats.BUCKET_COUNT; i++) {
+            bucketed += stats.getBucketCount(i);
+        }
+        assertEquals(10, bucketed);
+        assertTrue(stats.getPercentileMicros(50) <= stats.getPercentileMicros(99));
+
+        dispatcher.resetDispatchStats();
+        assertNull(dispatcher.getDispatchStats().get(EVENT));
+    }
+}
@@ -0,0 +1,239 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.tests.browser.junit3;
+
+import android.graphics.Bitmap;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import org.mozilla.gecko.favicons.cache.FaviconCache;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TestFaviconCache extends InstrumentationTestCase {
+    private static final String LOGTAG = "TestFaviconCache";
+
+    private static final int ICON_SIZE = 16;
+
+    // An ARGB_8888 icon of ICON_SIZE x ICON_SIZE.
+    private static final int ICON_BYTES = ICON_SIZE * ICON_SIZE * 4;
+
+    private static Bitmap makeIcon(int size) {
+        return Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    private static String urlFor(int i) {
+        return "http://example.com/" + i + "/favicon.ico";
+    }
+
+    public void testExactHitAndScaling() {
+        final FaviconCache cache = new FaviconCache(100 * ICON_BYTES, 64);
+        final Bitmap icon = makeIcon(64);
+        cache.putSingleFavicon(urlFor(0), icon);
+
+        assertSame(icon, cache.getFaviconForDimensions(urlFor(0), 64));
+        assertSame(icon, cache.getFaviconForDimensions(urlFor(0), -1));
+        assertNull(cache.getFaviconForDimensions(urlFor(1), 64));
+
+        // A smaller size is scaled once, and then served from the cache.
+        final Bitmap scaled = cache.getFaviconForDimensions(urlFor(0), 32);
+        assertEquals(32, scaled.getWidth());
+        assertSame(scaled, cache.getFaviconForDimensions(urlFor(0), 32));
+    }
+
+    public void testFailedFavicon() {
+        final FaviconCache cache = new FaviconCache(100 * ICON_BYTES, 64);
+        assertFalse(cache.isFailedFavicon(urlFor(0)));
+        cache.putFailed(urlFor(0));
+        assertTrue(cache.isFailedFavicon(urlFor(0)));
+        assertNull(cache.getFaviconForDimensions(urlFor(0), ICON_SIZE));
+    }
+
+    public void testCullsLeastRecentlyUsed() {
+        final FaviconCache cache = new FaviconCache(4 * ICON_BYTES, 64);
+        for (int i = 0; i < 4; i++) {
+            cache.putSingleFavicon(urlFor(i), makeIcon(ICON_SIZE));
+        }
+
+        // Use the oldest icon, so that it survives the next cull.
+        assertNotNull(cache.getFaviconForDimensions(urlFor(0), ICON_SIZE));
+
+        cache.putSingleFavicon(urlFor(4), makeIcon(ICON_SIZE));
+        assertNotNull(cache.getFaviconForDimensions(urlFor(0), ICON_SIZE));
+        assertNull(cache.getFaviconForDimensions(urlFor(1), ICON_SIZE));
+        assertNotNull(cache.getFaviconForDimensions(urlFor(2), ICON_SIZE));
+        assertNotNull(cache.getFaviconForDimensions(urlFor(4), ICON_SIZE));
+
+        // Filling the cache with new icons eventually evicts everything else.
+        for (int i = 5; i < 13; i++) {
+            cache.putSingleFavicon(urlFor(i), makeIcon(ICON_SIZE));
+        }
+        for (int i = 0; i < 9; i++) {
+            assertNull(cache.getFaviconForDimensions(urlFor(i), ICON_SIZE));
+        }
+        for (int i = 9; i < 13; i++) {
+            assertNotNull(cache.getFaviconForDimensions(urlFor(i), ICON_SIZE));
+        }
+
+        cache.evictAll();
+        assertNull(cache.getFaviconForDimensions(urlFor(12), ICON_SIZE));
+    }
+
+    public void testPermanentFaviconsAreNeverCulled() {
+        final FaviconCache cache = new FaviconCache(2 * ICON_BYTES, 64);
+        cache.putFavicons(urlFor(0), Arrays.asList(makeIcon(ICON_SIZE)).iterator(), true);
+        for (int i = 1; i < 5; i++) {
+            cache.putSingleFavicon(urlFor(i), makeIcon(ICON_SIZE));
+        }
+        assertNotNull(cache.getFaviconForDimensions(urlFor(0), ICON_SIZE));
+    }
+
+    /**
+     * Hits take no lock, so check that readers racing with a writer that
+     * forces culls only ever see the icon stored for their URL, or nothing.
+     */
+    public void testConcurrentHitsDuringCulls() throws Exception {
+        final int threadCount = 4;
+        final int iterations = 20000;
+        final int urlCount = 200;
+
+        final FaviconCache cache = new FaviconCache(2 * urlCount * ICON_BYTES, 64);
+        final Bitmap[] icons = new Bitmap[urlCount];
+        for (int i = 0; i < urlCount; i++) {
+            icons[i] = makeIcon(ICON_SIZE);
+            cache.putSingleFavicon(urlFor(i), icons[i]);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount + 1);
+
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            final int index = (i * 31 + seed) % urlCount;
+                            final Bitmap icon = cache.getFaviconForDimensions(urlFor(index), ICON_SIZE);
+                            if (icon != null) {
+                                assertSame(icons[index], icon);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        // A writer, adding icons and forcing culls while the readers run.
+        final int writes = 10 * urlCount;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 0; i < writes; i++) {
+                        cache.putSingleFavicon(urlFor(urlCount + i), makeIcon(ICON_SIZE));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+
+        start.countDown();
+        done.await();
+        assertNull(failure.get());
+
+        // The most recent insertion survives, and the cache still culls.
+        assertNotNull(cache.getFaviconForDimensions(urlFor(urlCount + writes - 1), ICON_SIZE));
+        assertNull(cache.getFaviconForDimensions(urlFor(urlCount), ICON_SIZE));
+    }
+
+    /**
+     * Not a strict test: hammer the cache with hits from several threads,
+     * as scrolling the top sites or history panels does, while another thread
+     * inserts new icons, and log the latency percentiles of the hits.
+     */
+    public void testConcurrentHitLatency() throws Exception {
+        final int threadCount = 4;
+        final int iterations = 20000;
+        final int urlCount = 200;
+
+        final FaviconCache cache = new FaviconCache(2 * urlCount * ICON_BYTES, 64);
+        for (int i = 0; i < urlCount; i++) {
+            cache.putSingleFavicon(urlFor(i), makeIcon(ICON_SIZE));
+        }
+
+        final long[][] latencies = new long[threadCount][iterations];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount + 1);
+
+        for (int t = 0; t < threadCount; t++) {
+            final long[] results = latencies[t];
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < iterations; i++) {
+                            final String url = urlFor((i * 31 + seed) % urlCount);
+                            final long before = System.nanoTime();
+                            cache.getFaviconForDimensions(url, ICON_SIZE);
+                            results[i] = System.nanoTime() - before;
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        // A writer, replacing icons and forcing culls while the readers run.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 0; i < 10 * urlCount; i++) {
+                        cache.putSingleFavicon(urlFor(urlCount + i), makeIcon(ICON_SIZE));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }).start();
+
+        start.countDown();
+        done.await();
+        assertNull(failure.get());
+
+        final long[] all = new long[threadCount * iterations];
+        for (int t = 0; t < threadCount; t++) {
+            System.arraycopy(latencies[t], 0, all, t * iterations, iterations);
+        }
+        Arrays.sort(all);
+
+        Log.i(LOGTAG, "Favicon cache lookups from " + threadCount + " threads, in ns: " +
+                      "p50 " + all[all.length / 2] +
+                      ", p90 " + all[all.length * 9 / 10] +
+                      ", p99 " + all[all.length * 99 / 100] +
+                      ", max " + all[all.length - 1]);
+    }
+}
@@ -0,0 +1,161 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.tests.browser.junit3;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+import org.mozilla.gecko.favicons.cache.FaviconDiskCache;
+
+import java.io.File;
+
+public class TestFaviconDiskCache extends InstrumentationTestCase {
+    private static final int[] DIMENSIONS = { 16, 32 };
+    private static final int[] SLOT_COUNTS = { 2, 1 };
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getInstrumentation().getTargetContext().getCacheDir(), "TestFaviconDiskCache.cache");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static String urlFor(int i) {
+        return "http://example.com/" + i + "/favicon.ico";
+    }
+
+    private static Bitmap makeIcon(int size, int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    private static void assertIcon(Bitmap bitmap, int size, int color) {
+        assertNotNull(bitmap);
+        assertEquals(size, bitmap.getWidth());
+        assertEquals(size, bitmap.getHeight());
+        assertEquals(color, bitmap.getPixel(0, 0));
+        assertEquals(color, bitmap.getPixel(size - 1, size - 1));
+    }
+
+    private FaviconDiskCache open() {
+        return new FaviconDiskCache(file, DIMENSIONS, SLOT_COUNTS);
+    }
+
+    public void testRoundTripSurvivesReopening() {
+        FaviconDiskCache cache = open();
+        assertNull(cache.get(urlFor(0), 16));
+
+        cache.put(urlFor(0), 16, makeIcon(16, Color.RED));
+        cache.put(urlFor(0), 32, makeIcon(32, Color.BLUE));
+        assertIcon(cache.get(urlFor(0), 16), 16, Color.RED);
+        assertIcon(cache.get(urlFor(0), 32), 32, Color.BLUE);
+        assertNull(cache.get(urlFor(1), 16));
+        cache.close();
+
+        cache = open();
+        assertIcon(cache.get(urlFor(0), 16), 16, Color.RED);
+        assertIcon(cache.get(urlFor(0), 32), 32, Color.BLUE);
+
+        // Replacing an entry doesn't leave the old one behind.
+        cache.put(urlFor(0), 16, makeIcon(16, Color.GREEN));
+        assertIcon(cache.get(urlFor(0), 16), 16, Color.GREEN);
+
+        cache.clear();
+        assertNull(cache.get(urlFor(0), 16));
+        assertNull(cache.get(urlFor(0), 32));
+        cache.close();
+    }
+
+    public void testClosedCacheReopensOnUse() {
+        final FaviconDiskCache cache = open();
+        cache.put(urlFor(0), 16, makeIcon(16, Color.RED));
+        cache.close();
+
+        assertIcon(cache.get(urlFor(0), 16), 16, Color.RED);
+        cache.put(urlFor(1), 16, makeIcon(16, Color.GREEN));
+        assertIcon(cache.get(urlFor(1), 16), 16, Color.GREEN);
+        cache.close();
+    }
+
+    public void testRemoveDropsEverySize() {
+        FaviconDiskCache cache = open();
+        cache.put(urlFor(0), 16, makeIcon(16, Color.RED));
+        cache.put(urlFor(0), 32, makeIcon(32, Color.BLUE));
+        cache.put(urlFor(1), 16, makeIcon(16, Color.GREEN));
+
+        cache.remove(urlFor(0));
+        assertNull(cache.get(urlFor(0), 16));
+        assertNull(cache.get(urlFor(0), 32));
+        assertIcon(cache.get(urlFor(1), 16), 16, Color.GREEN);
+        cache.close();
+
+        // The removal is persisted.
+        cache = open();
+        assertNull(cache.get(urlFor(0), 16));
+        assertIcon(cache.get(urlFor(1), 16), 16, Color.GREEN);
+        cache.close();
+    }
+
+    public void testUnopenableFileMisses() {
+        assertTrue(file.mkdir());
+        try {
+            final FaviconDiskCache cache = open();
+            cache.put(urlFor(0), 16, makeIcon(16, Color.RED));
+            assertNull(cache.get(urlFor(0), 16));
+            cache.remove(urlFor(0));
+            cache.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testEvictsLeastRecentlyUsedInBucket() {
+        final FaviconDiskCache cache = open();
+        cache.put(urlFor(0), 16, makeIcon(16, Color.RED));
+        cache.put(urlFor(1), 16, makeIcon(16, Color.GREEN));
+
+        // Use the older entry, so that the newer one is evicted.
+        assertNotNull(cache.get(urlFor(0), 16));
+        cache.put(urlFor(2), 16, makeIcon(16, Color.BLUE));
+
+        assertIcon(cache.get(urlFor(0), 16), 16, Color.RED);
+        assertNull(cache.get(urlFor(1), 16));
+        assertIcon(cache.get(urlFor(2), 16), 16, Color.BLUE);
+        cache.close();
+    }
+
+    public void testSmallIconsUseSmallestBucketAndLargeIconsAreIgnored() {
+        final FaviconDiskCache cache = open();
+
+        // An 8x8 icon requested at size 8 fits in the 16x16 bucket.
+        cache.put(urlFor(0), 8, makeIcon(8, Color.RED));
+        assertIcon(cache.get(urlFor(0), 8), 8, Color.RED);
+
+        // Too large for every bucket.
+        cache.put(urlFor(1), 64, makeIcon(64, Color.RED));
+        assertNull(cache.get(urlFor(1), 64));
+        cache.close();
+    }
+
+    public void testIncompatibleFileIsReset() {
+        FaviconDiskCache cache = open();
+        cache.put(urlFor(0), 16, makeIcon(16, Color.RED));
+        cache.close();
+
+        cache = new FaviconDiskCache(file, new int[] { 16 }, new int[] { 4 });
+        assertNull(cache.get(urlFor(0), 16));
+        cache.put(urlFor(0), 16, makeIcon(16, Color.GREEN));
+        assertIcon(cache.get(urlFor(0), 16), 16, Color.GREEN);
+        cache.close();
+    }
+}
@@ -0,0 +1,215 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.tests.browser.junit3;
+
+import android.test.InstrumentationTestCase;
+import org.mozilla.gecko.home.ImageDiskCache;
+import org.mozilla.gecko.home.ImageDiskCache.Entry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestImageDiskCache extends InstrumentationTestCase {
+    private static final long NOW = 1400000000000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "TestImageDiskCache");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static String urlFor(int i) {
+        return "http://example.com/images/" + i + ".png";
+    }
+
+    private static byte[] makeBody(int length, int seed) {
+        final byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + seed);
+        }
+        return body;
+    }
+
+    public void testRoundTrip() {
+        final ImageDiskCache cache = new ImageDiskCache(directory);
+        assertNull(cache.get(urlFor(0)));
+
+        final byte[] body = makeBody(1000, 0);
+        cache.put(urlFor(0), new Entry(body, NOW + HOUR, "\"abc\"", "Tue, 13 May 2014 16:53:20 GMT"));
+
+        final Entry entry = cache.get(urlFor(0));
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(body, entry.body));
+        assertEquals(NOW + HOUR, entry.expires);
+        assertEquals("\"abc\"", entry.etag);
+        assertEquals("Tue, 13 May 2014 16:53:20 GMT", entry.lastModified);
+        assertTrue(entry.isFresh(NOW));
+        assertFalse(entry.isFresh(NOW + HOUR));
+        assertTrue(entry.hasValidators());
+
+        assertNull(cache.get(urlFor(1)));
+    }
+
+    public void testEntriesSurviveReopening() {
+        final byte[] body = makeBody(1000, 1);
+        new ImageDiskCache(directory).put(urlFor(0), new Entry(body, NOW, null, null));
+
+        final ImageDiskCache cache = new ImageDiskCache(directory);
+        final Entry entry = cache.get(urlFor(0));
+        assertNotNull(entry);
+        assertTrue(Arrays.equals(body, entry.body));
+        assertNull(entry.etag);
+        assertNull(entry.lastModified);
+        assertFalse(entry.hasValidators());
+        assertTrue(cache.getSize() > body.length);
+    }
+
+    public void testReplaceAndRemove() {
+        final ImageDiskCache cache = new ImageDiskCache(directory);
+        cache.put(urlFor(0), new Entry(makeBody(1000, 0), NOW, null, null));
+        final long size = cache.getSize();
+
+        final byte[] replacement = makeBody(1000, 2);
+        cache.put(urlFor(0), new Entry(replacement, NOW + HOUR, null, null));
+        assertEquals(size, cache.getSize());
+        assertTrue(Arrays.equals(replacement, cache.get(urlFor(0)).body));
+
+        cache.remove(urlFor(0));
+        assertNull(cache.get(urlFor(0)));
+        assertEquals(0, cache.getSize());
+    }
+
+    public void testOversizedEntriesAreNotStored() {
+        final ImageDiskCache cache = new ImageDiskCache(directory);
+        cache.put(urlFor(0), new Entry(makeBody(ImageDiskCache.MAX_ENTRY_SIZE + 1, 0), NOW, null, null));
+        assertNull(cache.get(urlFor(0)));
+    }
+
+    public void testSizeIsBounded() {
+        final long maxSize = 50 * 1024;
+        final ImageDiskCache cache = new ImageDiskCache(directory, maxSize);
+
+        final int count = 20;
+        for (int i = 0; i < count; i++) {
+            cache.put(urlFor(i), new Entry(makeBody(10 * 1024, i), NOW, null, null));
+            assertTrue(cache.getSize() <= maxSize);
+        }
+
+        // Trimming takes the cache comfortably below the bound, but not all the way down.
+        int present = 0;
+        for (int i = 0; i < count; i++) {
+            if (cache.get(urlFor(i)) != null) {
+                present++;
+            }
+        }
+        assertTrue(present > 0 && present < 5);
+    }
+
+    /**
+     * Readers and writers don't share a lock for their file I/O, so check that concurrent use
+     * neither loses entries nor corrupts the accounting of their size.
+     */
+    public void testConcurrentAccess() throws Exception {
+        final long maxSize = 100 * 1024;
+        final ImageDiskCache cache = new ImageDiskCache(directory, maxSize);
+        final int threadCount = 4;
+        final int urlCount = 16;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            final int url = (i * 7 + seed) % urlCount;
+                            if (i % 3 == 0) {
+                                cache.put(urlFor(url), new Entry(makeBody(4 * 1024, url), NOW, null, null));
+                            } else {
+                                final Entry entry = cache.get(urlFor(url));
+                                // Every writer stores the same body for a URL.
+                                if (entry != null) {
+                                    assertTrue(Arrays.equals(makeBody(4 * 1024, url), entry.body));
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(failures.isEmpty());
+
+        // The index matches what's on disk.
+        long onDisk = 0;
+        for (File file : directory.listFiles()) {
+            onDisk += file.length();
+        }
+        assertEquals(onDisk, cache.getSize());
+        assertEquals(onDisk, new ImageDiskCache(directory, maxSize).getSize());
+    }
+
+    public void testCounters() {
+        final ImageDiskCache cache = new ImageDiskCache(directory);
+        final Entry entry = new Entry(makeBody(1234, 0), NOW, null, null);
+
+        cache.recordMiss();
+        cache.recordHit(entry);
+        cache.recordHit(entry);
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2 * 1234, cache.getBytesSaved());
+    }
+
+    public void testExpiry() {
+        // Cache-Control wins over everything else.
+        assertEquals(ImageDiskCache.NO_STORE, ImageDiskCache.getExpiry("private, no-store", NOW, NOW + HOUR, 0, NOW));
+        assertEquals(NOW, ImageDiskCache.getExpiry("no-cache", NOW, NOW + HOUR, 0, NOW));
+        assertEquals(NOW + 600 * 1000, ImageDiskCache.getExpiry("public, Max-Age=600", NOW, NOW + HOUR, 0, NOW));
+
+        // Expires is measured against the server's Date, not our clock.
+        assertEquals(NOW + HOUR, ImageDiskCache.getExpiry(null, NOW - 5 * HOUR, NOW - 4 * HOUR, 0, NOW));
+        assertEquals(NOW + HOUR, ImageDiskCache.getExpiry("public", 0, NOW + HOUR, 0, NOW));
+        assertEquals(NOW, ImageDiskCache.getExpiry(null, NOW, NOW - HOUR, 0, NOW));
+
+        // Heuristic lifetime from Last-Modified, capped at a day.
+        assertEquals(NOW + HOUR, ImageDiskCache.getExpiry(null, NOW, 0, NOW - 10 * HOUR, NOW));
+        assertEquals(NOW + 24 * HOUR, ImageDiskCache.getExpiry(null, NOW, 0, NOW - 1000 * HOUR, NOW));
+
+        // Nothing to go on: revalidate every time.
+        assertEquals(NOW, ImageDiskCache.getExpiry(null, NOW, 0, 0, NOW));
+    }
+}
@@ -3,13 +3,22 @@
 
 package org.mozilla.tests.browser.junit3;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Stack;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import android.graphics.Bitmap;
 import android.test.InstrumentationTestCase;
+import android.util.Log;
 import org.mozilla.gecko.AppConstants;
+import org.mozilla.gecko.mozglue.GeckoLoader;
+import org.mozilla.gecko.mozglue.NativeZip;
 import org.mozilla.gecko.util.FileUtils;
 import org.mozilla.gecko.util.GeckoJarReader;
 
@@ -20,6 +29,8 @@ import android.content.Context;
  * loading some invalid jar urls.
  */
 public class TestJarReader extends InstrumentationTestCase {
+    private static final String LOGTAG = "TestJarReader";
+
     public void testJarReader() {
         final Context context = getInstrumentation().getTargetContext().getApplicationContext();
         String appPath = getInstrumentation().getTargetContext().getPackageResourcePath();
@@ -121,4 +132,160 @@ public class TestJarReader extends InstrumentationTestCase {
             file.delete();
         }
     }
+
+    public void testClosingStreamDoesNotCloseCachedArchive() throws IOException {
+        final Context context = getInstrumentation().getTargetContext().getApplicationContext();
+        final String url = GeckoJarReader.getJarURL(context, "chrome/chrome/content/branding/favicon32.png");
+
+        for (int i = 0; i < 3; i++) {
+            final InputStream stream = GeckoJarReader.getStream(context, url);
+            assertNotNull(stream);
+            assertTrue(stream.read() >= 0);
+            stream.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Open the APK and the omnijar afresh and read an entry, as GeckoJarReader
+     * did before it cached archives.
+     */
+    private static byte[] readUncached(Context context, String entry) throws IOException {
+        GeckoLoader.loadMozGlue(context);
+        final NativeZip apk = new NativeZip(context.getPackageResourcePath());
+        try {
+            final NativeZip omnijar = new NativeZip(apk.getInputStream(AppConstants.OMNIJAR_NAME));
+            try {
+                return readFully(omnijar.getInputStream(entry));
+            } finally {
+                omnijar.close();
+            }
+        } finally {
+            apk.close();
+        }
+    }
+
+    /**
+     * Repeated lookups through the cached archives must read exactly what a
+     * fresh open of the APK and omnijar reads, whatever else is read between.
+     */
+    public void testCachedLookupsMatchUncachedReads() throws IOException {
+        final Context context = getInstrumentation().getTargetContext().getApplicationContext();
+        final String bitmapEntry = "chrome/chrome/content/branding/favicon32.png";
+        final String textEntry = "chrome.manifest";
+        final String bitmapUrl = GeckoJarReader.getJarURL(context, bitmapEntry);
+        final String textUrl = GeckoJarReader.getJarURL(context, textEntry);
+
+        final byte[] bitmapBytes = readUncached(context, bitmapEntry);
+        final byte[] textBytes = readUncached(context, textEntry);
+        assertTrue(bitmapBytes.length > 0);
+        assertTrue(textBytes.length > 0);
+
+        for (int i = 0; i < 5; i++) {
+            final InputStream bitmapStream = GeckoJarReader.getStream(context, bitmapUrl);
+            assertNotNull(bitmapStream);
+            try {
+                assertTrue(Arrays.equals(bitmapBytes, readFully(bitmapStream)));
+            } finally {
+                bitmapStream.close();
+            }
+
+            final InputStream textStream = GeckoJarReader.getStream(context, textUrl);
+            assertNotNull(textStream);
+            try {
+                assertTrue(Arrays.equals(textBytes, readFully(textStream)));
+            } finally {
+                textStream.close();
+            }
+
+            // getText only returns the first line.
+            assertTrue(new String(textBytes, "UTF-8").startsWith(GeckoJarReader.getText(context, textUrl)));
+            assertNotNull(GeckoJarReader.getBitmap(context, context.getResources(), bitmapUrl));
+        }
+    }
+
+    /**
+     * Not a strict test: log how long repeated lookups in the omnijar take,
+     * opening the archives afresh each time, and through GeckoJarReader's cache.
+     */
+    public void testRepeatedLookupTiming() throws IOException {
+        final Context context = getInstrumentation().getTargetContext().getApplicationContext();
+        final String bitmapEntry = "chrome/chrome/content/branding/favicon32.png";
+        final String textEntry = "chrome.manifest";
+        final String bitmapUrl = GeckoJarReader.getJarURL(context, bitmapEntry);
+        final String textUrl = GeckoJarReader.getJarURL(context, textEntry);
+        final int iterations = 50;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            readUncached(context, bitmapEntry);
+            readUncached(context, textEntry);
+        }
+        final long uncachedMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final InputStream bitmapStream = GeckoJarReader.getStream(context, bitmapUrl);
+            if (bitmapStream != null) {
+                bitmapStream.close();
+            }
+            final InputStream textStream = GeckoJarReader.getStream(context, textUrl);
+            if (textStream != null) {
+                textStream.close();
+            }
+        }
+        final long cachedMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            GeckoJarReader.getBitmap(context, context.getResources(), bitmapUrl);
+            GeckoJarReader.getText(context, textUrl);
+        }
+        final long decodeMicros = (System.nanoTime() - start) / 1000 / iterations;
+
+        Log.i(LOGTAG, "Omnijar lookups of two entries, in us per iteration: " +
+                      "uncached open and read " + uncachedMicros +
+                      ", cached lookup " + cachedMicros +
+                      ", cached getBitmap + getText " + decodeMicros);
+    }
+
+    private static void writeArchive(File file, String entry, String contents) throws IOException {
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            out.putNextEntry(new ZipEntry(entry));
+            out.write(contents.getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * An archive replaced in place, like an updated add-on, must not be read
+     * through the cached mapping of the old file.
+     */
+    public void testReplacedArchiveIsReopened() throws IOException {
+        final Context context = getInstrumentation().getTargetContext().getApplicationContext();
+        final File file = new File(getInstrumentation().getContext().getCacheDir(), "TestJarReader.xpi");
+        final String url = "jar:file://" + file.getAbsolutePath() + "!/install.rdf";
+
+        try {
+            writeArchive(file, "install.rdf", "first");
+            assertEquals("first", GeckoJarReader.getText(context, url));
+
+            writeArchive(file, "install.rdf", "second version");
+            assertEquals("second version", GeckoJarReader.getText(context, url));
+        } finally {
+            file.delete();
+        }
+    }
 }
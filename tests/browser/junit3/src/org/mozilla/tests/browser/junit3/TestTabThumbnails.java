@@ -0,0 +1,89 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.tests.browser.junit3;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.test.InstrumentationTestCase;
+import org.mozilla.gecko.GeckoAppShell;
+import org.mozilla.gecko.Tab;
+import org.mozilla.gecko.Tabs;
+import org.mozilla.gecko.ThumbnailHelper;
+
+/**
+ * Thumbnail bitmaps are wrapped in drawables that the tabs tray and tab strip
+ * keep drawing after the tab lets go of them, so they must never be recycled
+ * or handed to another tab's capture.
+ */
+public class TestTabThumbnails extends InstrumentationTestCase {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 91;
+
+    private Context context;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        context = getInstrumentation().getTargetContext();
+
+        // There's no activity to ask for the display's pixel format.
+        GeckoAppShell.setScreenDepthOverride(16);
+    }
+
+    private Tab makeTab(int id) {
+        return new Tab(context, id, "about:blank", false, Tabs.INVALID_TAB_ID, "Tab " + id);
+    }
+
+    public void testClosedTabBitmapSurvivesWhileDrawn() {
+        final Tab closed = makeTab(1001);
+        final Bitmap bitmap = closed.getThumbnailBitmap(WIDTH, HEIGHT);
+
+        // Stands in for the tabs tray still showing the closed tab's thumbnail.
+        final BitmapDrawable drawable = new BitmapDrawable(context.getResources(), bitmap);
+
+        final ThumbnailHelper helper = ThumbnailHelper.getInstance();
+        helper.onTabClosed(closed);
+
+        // Memory pressure empties the pool.
+        helper.getPool().clear();
+
+        // The next capture, for another tab, gets a bitmap of its own.
+        final Tab next = makeTab(1002);
+        final Bitmap nextBitmap = next.getThumbnailBitmap(WIDTH, HEIGHT);
+        assertNotSame(bitmap, nextBitmap);
+
+        assertFalse(bitmap.isRecycled());
+        assertSame(bitmap, drawable.getBitmap());
+
+        // Drawing a recycled bitmap throws.
+        final Bitmap target = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.RGB_565);
+        drawable.setBounds(0, 0, WIDTH, HEIGHT);
+        drawable.draw(new Canvas(target));
+    }
+
+    public void testResizedThumbnailLeavesOldBitmapIntact() {
+        final Tab tab = makeTab(1003);
+        final Bitmap bitmap = tab.getThumbnailBitmap(WIDTH, HEIGHT);
+        final BitmapDrawable drawable = new BitmapDrawable(context.getResources(), bitmap);
+
+        final Bitmap resized = tab.getThumbnailBitmap(WIDTH * 2, HEIGHT * 2);
+        assertNotSame(bitmap, resized);
+        assertFalse(bitmap.isRecycled());
+        assertSame(bitmap, drawable.getBitmap());
+    }
+
+    public void testSameTabReusesItsBitmap() {
+        // Bug 787318 - Honeycomb can't reuse thumbnail bitmaps.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB &&
+            Build.VERSION.SDK_INT <= Build.VERSION_CODES.HONEYCOMB_MR2) {
+            return;
+        }
+
+        final Tab tab = makeTab(1004);
+        assertSame(tab.getThumbnailBitmap(WIDTH, HEIGHT), tab.getThumbnailBitmap(WIDTH, HEIGHT));
+    }
+}
@@ -0,0 +1,201 @@
+/* Any copyright is dedicated to the Public Domain.
+   http://creativecommons.org/publicdomain/zero/1.0/ */
+
+package org.mozilla.tests.browser.junit3;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.InstrumentationTestCase;
+import org.mozilla.gecko.db.ThumbnailStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TestThumbnailStore extends InstrumentationTestCase {
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 3;
+
+    // Older than the store's garbage collection grace period.
+    private static final long LONG_AGO = 1400000000000L;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "TestThumbnailStore");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static byte[] makeData(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    // Every color here is exactly representable in RGB565.
+    private static Bitmap makeBitmap(Bitmap.Config config) {
+        final int[] colors = { Color.RED, Color.GREEN, Color.BLUE, Color.WHITE, Color.BLACK };
+        final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, config);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                bitmap.setPixel(x, y, colors[(x + y) % colors.length]);
+            }
+        }
+        return bitmap;
+    }
+
+    private static void assertSamePixels(Bitmap expected, Bitmap actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getPixel(x, y), actual.getPixel(x, y));
+            }
+        }
+    }
+
+    private void writeFile(File file, byte[] data) throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testPutAndGet() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+        final byte[] data = makeData(1000, 0);
+
+        final String key = store.put(data);
+        assertNotNull(key);
+        assertTrue(Arrays.equals(data, store.get(key)));
+        assertTrue(store.getFile(key).isFile());
+
+        assertNull(store.get(null));
+        assertNull(store.get("0000000000000000000000000000000000000000"));
+    }
+
+    public void testIdenticalThumbnailsShareAFile() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+
+        final String first = store.put(makeData(1000, 0));
+        final String second = store.put(makeData(1000, 0));
+        assertEquals(first, second);
+        assertEquals(1, directory.listFiles().length);
+
+        final String other = store.put(makeData(1000, 1));
+        assertFalse(first.equals(other));
+        assertEquals(2, directory.listFiles().length);
+    }
+
+    public void testPutRefreshesExistingFile() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+        final String key = store.put(makeData(1000, 0));
+        assertTrue(store.getFile(key).setLastModified(LONG_AGO));
+
+        // Storing it again must protect it from a concurrent collection.
+        store.put(makeData(1000, 0));
+        assertEquals(0, store.collectGarbage(new HashSet<String>()));
+        assertTrue(store.getFile(key).isFile());
+    }
+
+    public void testCollectGarbage() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+        final String live = store.put(makeData(1000, 0));
+        final String dead = store.put(makeData(1000, 1));
+        final String recent = store.put(makeData(1000, 2));
+        assertTrue(store.getFile(live).setLastModified(LONG_AGO));
+        assertTrue(store.getFile(dead).setLastModified(LONG_AGO));
+
+        final Set<String> liveKeys = new HashSet<String>();
+        liveKeys.add(live);
+
+        // Unreferenced files are only collected once they're old enough that
+        // their row can't still be waiting to be committed.
+        assertEquals(1, store.collectGarbage(liveKeys));
+        assertTrue(store.getFile(live).isFile());
+        assertFalse(store.getFile(dead).exists());
+        assertTrue(store.getFile(recent).isFile());
+
+        assertEquals(0, store.collectGarbage(liveKeys));
+    }
+
+    public void testCollectGarbageWithoutDirectory() {
+        assertEquals(0, new ThumbnailStore(directory).collectGarbage(new HashSet<String>()));
+    }
+
+    public void testEncodeAndDecode() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+        final Bitmap bitmap = makeBitmap(Bitmap.Config.RGB_565);
+
+        final String key = store.put(ThumbnailStore.encode(bitmap));
+        final Bitmap decoded = ThumbnailStore.decodeFile(store.getFile(key).getAbsolutePath());
+        assertNotNull(decoded);
+        assertEquals(Bitmap.Config.RGB_565, decoded.getConfig());
+        assertSamePixels(bitmap, decoded);
+    }
+
+    public void testEncodeConvertsToRGB565() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+        final Bitmap bitmap = makeBitmap(Bitmap.Config.ARGB_8888);
+
+        final byte[] data = ThumbnailStore.encode(bitmap);
+        assertNotNull(data);
+        assertFalse(bitmap.isRecycled());
+
+        final String key = store.put(data);
+        final Bitmap decoded = ThumbnailStore.decodeFile(store.getFile(key).getAbsolutePath());
+        assertNotNull(decoded);
+        assertSamePixels(bitmap, decoded);
+    }
+
+    public void testDecodePNG() throws Exception {
+        final ThumbnailStore store = new ThumbnailStore(directory);
+        final Bitmap bitmap = makeBitmap(Bitmap.Config.ARGB_8888);
+
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        assertTrue(bitmap.compress(Bitmap.CompressFormat.PNG, 100, png));
+
+        final String key = store.put(png.toByteArray());
+        final Bitmap decoded = ThumbnailStore.decodeFile(store.getFile(key).getAbsolutePath());
+        assertNotNull(decoded);
+        assertSamePixels(bitmap, decoded);
+    }
+
+    public void testDecodeTruncatedFile() throws Exception {
+        final byte[] data = ThumbnailStore.encode(makeBitmap(Bitmap.Config.RGB_565));
+        assertTrue(directory.mkdirs());
+        final File file = new File(directory, "truncated");
+        writeFile(file, Arrays.copyOf(data, data.length - 1));
+
+        assertNull(ThumbnailStore.decodeFile(file.getAbsolutePath()));
+    }
+
+    public void testDecodeMissingFile() {
+        assertNull(ThumbnailStore.decodeFile(new File(directory, "missing").getAbsolutePath()));
+    }
+}
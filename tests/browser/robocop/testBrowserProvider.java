@@ -5,10 +5,14 @@
 package org.mozilla.gecko.tests;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.Random;
 
+import org.mozilla.gecko.GeckoProfile;
 import org.mozilla.gecko.background.db.CursorDumper;
 import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.db.BrowserDB;
+import org.mozilla.gecko.db.LocalBrowserDB;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -18,6 +22,7 @@ import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 /*
@@ -255,6 +260,13 @@ public class testBrowserProvider extends ContentProviderTest {
         mTests.add(new TestCombinedViewDisplay());
         mTests.add(new TestCombinedViewWithDeletedBookmark());
         mTests.add(new TestExpireHistory());
+        mTests.add(new TestFrecency());
+        mTests.add(new TestCombinedSearch());
+        mTests.add(new TestCombinedSearchSpeed());
+        mTests.add(new TestFilterMatchesTokenPrefixes());
+        mTests.add(new TestTopSites());
+        mTests.add(new TestTopSitesDeferredUpdates());
+        mTests.add(new TestTopSitesSpeed());
 
         mTests.add(new TestBrowserProviderNotifications());
     }
@@ -1604,6 +1616,398 @@ public class testBrowserProvider extends ContentProviderTest {
         }
     }
 
+    private Cursor searchCombined(String match) throws Exception {
+        return mProvider.query(appendUriParam(BrowserContract.Combined.SEARCH_URI, BrowserContract.PARAM_SEARCH_MATCH, match),
+                               null, "", null, BrowserContract.Combined.URL);
+    }
+
+    private class TestCombinedSearch extends TestCase {
+        @Override
+        public void test() throws Exception {
+            final String URL_1 = "http://www.mozilla.org/firefox";
+            final String URL_2 = "http://zoo.example.com/";
+            final String URL_3 = "http://example3.com/";
+
+            long historyId = ContentUris.parseId(mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("Mozilla Firefox", URL_1, 10, System.currentTimeMillis())));
+            mProvider.insert(BrowserContract.Bookmarks.CONTENT_URI,
+                    createBookmark("Zebra Stripes", URL_2, mMobileFolderId,
+                                   BrowserContract.Bookmarks.TYPE_BOOKMARK, 0, "tags", "description", "keyword"));
+            mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("Visited Page", URL_3, 10, System.currentTimeMillis()));
+            mProvider.insert(BrowserContract.Bookmarks.CONTENT_URI,
+                    createBookmark("Custom Bookmark Title", URL_3, mMobileFolderId,
+                                   BrowserContract.Bookmarks.TYPE_BOOKMARK, 0, "tags", "description", "keyword"));
+
+            Cursor c = searchCombined("fire*");
+            mAsserter.is(c.getCount(), 1, "Found history entry by title prefix");
+            mAsserter.is(c.moveToFirst(), true, "Moved to history entry");
+            mAsserter.is(c.getString(c.getColumnIndex(BrowserContract.Combined.URL)), URL_1,
+                         "History entry has correct url");
+            c.close();
+
+            c = searchCombined("zeb*");
+            mAsserter.is(c.getCount(), 1, "Found bookmark by title prefix");
+            mAsserter.is(c.moveToFirst(), true, "Moved to bookmark");
+            mAsserter.is(c.getLong(c.getColumnIndex(BrowserContract.Combined.HISTORY_ID)), -1L,
+                         "Bookmark entry has no history id");
+            c.close();
+
+            c = searchCombined("custom*");
+            mAsserter.is(c.getCount(), 1, "Found visited bookmark by bookmark title");
+            c.close();
+
+            assertCountIsAndClose(searchCombined("example*"), 2, "Found entries by URL token prefix");
+            assertCountIsAndClose(searchCombined("mozilla* fire*"), 1, "Found entry matching every term");
+            assertCountIsAndClose(searchCombined("mozilla* zeb*"), 0, "Found no entry matching only some terms");
+
+            // The index follows updates...
+            ContentValues values = new ContentValues();
+            values.put(BrowserContract.History.TITLE, "Nightly");
+            mProvider.update(BrowserContract.History.CONTENT_URI, values,
+                             BrowserContract.History._ID + " = ?",
+                             new String[] { String.valueOf(historyId) });
+            assertCountIsAndClose(searchCombined("nightly*"), 1, "Found entry by updated title");
+            assertCountIsAndClose(searchCombined("mozilla* firefox*"), 1, "Found entry by unchanged url");
+            assertCountIsAndClose(searchCombined("mozilla* fire* nightly*"), 1, "Found entry matching url and updated title");
+
+            // ... and deletions.
+            mProvider.delete(appendUriParam(BrowserContract.History.CONTENT_URI, BrowserContract.PARAM_IS_SYNC, "1"),
+                             BrowserContract.History._ID + " = ?",
+                             new String[] { String.valueOf(historyId) });
+            assertCountIsAndClose(searchCombined("nightly*"), 0, "Deleted entry is not found");
+        }
+    }
+
+    /**
+     * Not a strict test: fill a large synthetic history, then time the
+     * queries issued for each keystroke of a search, with and without the
+     * search index.
+     */
+    private class TestCombinedSearchSpeed extends TestCase {
+        static final int HISTORY_COUNT = 20000;
+        static final String TYPED = "exampl";
+
+        private long timeQuery(Uri uri, String word) throws Exception {
+            final long start = SystemClock.uptimeMillis();
+            final Cursor c = mProvider.query(uri, null,
+                                             "(" + BrowserContract.Combined.URL + " LIKE ? OR " +
+                                                   BrowserContract.Combined.TITLE + " LIKE ?)",
+                                             new String[] { "%" + word + "%", "%" + word + "%" },
+                                             BrowserContract.getFrecencySortOrder(true, false));
+            try {
+                c.getCount();
+            } finally {
+                c.close();
+            }
+            return SystemClock.uptimeMillis() - start;
+        }
+
+        @Override
+        public void test() throws Exception {
+            final Random random = new Random(42);
+            final String[] words = new String[] { "news", "mail", "video", "shop", "wiki", "blog", "search", "maps" };
+            final long now = System.currentTimeMillis();
+
+            final ContentValues[] allVals = new ContentValues[HISTORY_COUNT];
+            for (int i = 0; i < HISTORY_COUNT; i++) {
+                final String word = words[random.nextInt(words.length)];
+                allVals[i] = new ContentValues();
+                // A small fraction of entries match the typed text.
+                final String host = (i % 100 == 0) ? "example" + i : word + i;
+                allVals[i].put(BrowserContract.History.TITLE, "Some " + word + " page " + i);
+                allVals[i].put(BrowserContract.History.URL, "http://" + host + ".com/" + word + "/" + i);
+                allVals[i].put(BrowserContract.History.VISITS, random.nextInt(20) + 1);
+                allVals[i].put(BrowserContract.History.DATE_LAST_VISITED, now - random.nextInt(90) * 86400000L);
+            }
+            mProvider.bulkInsert(BrowserContract.History.CONTENT_URI, allVals);
+
+            for (int i = 1; i <= TYPED.length(); i++) {
+                final String word = TYPED.substring(0, i);
+                final Uri scanUri = appendUriParam(BrowserContract.Combined.CONTENT_URI, BrowserContract.PARAM_LIMIT, "100");
+                final Uri searchUri = appendUriParam(appendUriParam(BrowserContract.Combined.SEARCH_URI,
+                                                                    BrowserContract.PARAM_LIMIT, "100"),
+                                                     BrowserContract.PARAM_SEARCH_MATCH, word + "*");
+
+                final long scanMillis = timeQuery(scanUri, word);
+                final long searchMillis = timeQuery(searchUri, word);
+                mAsserter.dumpLog("TestCombinedSearchSpeed: '" + word + "' over " + HISTORY_COUNT +
+                                  " entries: scan " + scanMillis + "ms, search index " + searchMillis + "ms.");
+            }
+
+            assertCountIsAndClose(searchCombined(TYPED + "*"), HISTORY_COUNT / 100, "Found every matching entry");
+        }
+    }
+
+    /**
+     * Filtering matches each word at the start of a URL or title token, and
+     * never falls back to scanning for words in the middle of one.
+     */
+    private class TestFilterMatchesTokenPrefixes extends TestCase {
+        private Cursor filter(String constraint, int limit) {
+            return new LocalBrowserDB(GeckoProfile.DEFAULT_PROFILE).filter(mResolver, constraint, limit,
+                                                                           EnumSet.noneOf(BrowserDB.FilterFlags.class));
+        }
+
+        @Override
+        public void test() throws Exception {
+            final String URL_1 = "http://www.mozilla.org/";
+            final String URL_2 = "http://zilla.example.com/";
+
+            mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("Mozilla", URL_1, 10, System.currentTimeMillis()));
+            mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("Example", URL_2, 1, System.currentTimeMillis()));
+
+            assertCountIsAndClose(filter("moz", 10), 1, "Found entry by token prefix");
+            assertCountIsAndClose(filter("MOZILLA.ORG", 10), 1, "Found entry by several token prefixes");
+
+            // A word in the middle of a token doesn't match, however short the list.
+            final Cursor c = filter("zilla", 10);
+            try {
+                mAsserter.is(c.getCount(), 1, "Found one entry");
+                mAsserter.is(c.moveToFirst(), true, "Moved to entry");
+                mAsserter.is(c.getString(c.getColumnIndex(BrowserContract.Combined.URL)), URL_2,
+                             "Only the token prefix match is found");
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    private Cursor getTopSites(int limit) throws Exception {
+        return mProvider.query(appendUriParam(BrowserContract.TopSites.CONTENT_URI,
+                                              BrowserContract.PARAM_LIMIT, String.valueOf(limit)),
+                               null, null, null, null);
+    }
+
+    // The query the top sites table replaces.
+    private Cursor getTopSitesFromCombined(int limit) throws Exception {
+        return mProvider.query(appendUriParam(BrowserContract.Combined.CONTENT_URI,
+                                              BrowserContract.PARAM_LIMIT, String.valueOf(limit)),
+                               new String[] { BrowserContract.Combined.URL },
+                               BrowserContract.Combined.HISTORY_ID + " <> -1 AND " +
+                               BrowserContract.Combined.URL + " NOT LIKE 'about:%' AND " +
+                               BrowserContract.Combined.URL + " NOT IN (SELECT " +
+                                   BrowserContract.Bookmarks.URL + " FROM bookmarks WHERE " +
+                                   "bookmarks." + BrowserContract.Bookmarks.PARENT + " < ? AND " +
+                                   "bookmarks." + BrowserContract.Bookmarks.IS_DELETED + " == 0)",
+                               new String[] { String.valueOf(BrowserContract.Bookmarks.FIXED_ROOT_ID) },
+                               BrowserContract.getFrecencySortOrder(true, false));
+    }
+
+    private ArrayList<String> getUrls(Cursor c) {
+        final ArrayList<String> urls = new ArrayList<String>();
+        try {
+            final int urlIndex = c.getColumnIndexOrThrow(BrowserContract.TopSites.URL);
+            while (c.moveToNext()) {
+                urls.add(c.getString(urlIndex));
+            }
+        } finally {
+            c.close();
+        }
+        return urls;
+    }
+
+    private class TestTopSites extends TestCase {
+        private void assertTopSites(String[] expected, String message) throws Exception {
+            final ArrayList<String> urls = getUrls(getTopSites(10));
+            mAsserter.is(urls.size(), expected.length, message + ": top sites count");
+            for (int i = 0; i < expected.length && i < urls.size(); i++) {
+                mAsserter.is(urls.get(i), expected[i], message + ": top site " + i);
+            }
+        }
+
+        @Override
+        public void test() throws Exception {
+            final long now = System.currentTimeMillis();
+            final String a = "http://a.org/";
+            final String b = "http://b.org/";
+            final String c = "http://c.org/";
+
+            // Scores are 300, 250 (half of the recency bonus), and 100.
+            mProvider.insert(BrowserContract.History.CONTENT_URI, createHistoryEntry("A", a, 3, now));
+            mProvider.insert(BrowserContract.History.CONTENT_URI, createHistoryEntry("B", b, 5, now - 15 * 86400000L));
+            long cId = ContentUris.parseId(mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("C", c, 1, now)));
+            mProvider.insert(BrowserContract.History.CONTENT_URI, createHistoryEntry("About", "about:home", 10, now));
+            assertTopSites(new String[] { a, b, c }, "Inserted history, without about: pages");
+
+            // Visits move entries up.
+            Uri incrementUri = appendUriParam(BrowserContract.History.CONTENT_URI, BrowserContract.PARAM_INCREMENT_VISITS, "true");
+            ContentValues u = new ContentValues();
+            u.put(BrowserContract.History.VISITS, 3);
+            mProvider.update(incrementUri, u, BrowserContract.History._ID + " = ?",
+                             new String[] { String.valueOf(cId) });
+            assertTopSites(new String[] { c, a, b }, "Visited history");
+
+            // Bookmarks get a bonus, and their titles are preferred.
+            long bookmarkId = ContentUris.parseId(mProvider.insert(BrowserContract.Bookmarks.CONTENT_URI,
+                    createBookmark("Bookmarked B", b, mMobileFolderId, BrowserContract.Bookmarks.TYPE_BOOKMARK, 0, "", "", "")));
+            assertTopSites(new String[] { c, b, a }, "Bookmarked history");
+
+            Cursor cursor = getTopSites(2);
+            try {
+                mAsserter.is(cursor.moveToPosition(1), true, "Found top site");
+                mAsserter.is(cursor.getString(cursor.getColumnIndex(BrowserContract.TopSites.TITLE)), "Bookmarked B",
+                             "Top site has bookmark title");
+                mAsserter.is(cursor.getLong(cursor.getColumnIndex(BrowserContract.TopSites.BOOKMARK_ID)), bookmarkId,
+                             "Top site has bookmark ID");
+            } finally {
+                cursor.close();
+            }
+
+            mProvider.delete(ContentUris.withAppendedId(BrowserContract.Bookmarks.CONTENT_URI, bookmarkId), null, null);
+            assertTopSites(new String[] { c, a, b }, "Unbookmarked history");
+
+            // Pinned sites are shown separately.
+            mProvider.insert(BrowserContract.Bookmarks.CONTENT_URI,
+                    createBookmark("Pinned A", a, BrowserContract.Bookmarks.FIXED_PINNED_LIST_ID,
+                                   BrowserContract.Bookmarks.TYPE_BOOKMARK, 0, "", "", ""));
+            assertTopSites(new String[] { c, b }, "Pinned history");
+
+            // Deleted history goes away.
+            mProvider.delete(ContentUris.withAppendedId(BrowserContract.History.CONTENT_URI, cId), null, null);
+            assertTopSites(new String[] { b }, "Deleted history");
+
+            // The table agrees with the query it replaces. Visit counts are
+            // chosen so that no two entries tie.
+            for (int i = 0; i < 100; i++) {
+                mProvider.insert(BrowserContract.History.CONTENT_URI,
+                        createHistoryEntry("Test " + i, "http://test.org/" + i, 2 * i + 1, now));
+            }
+            mProvider.delete(BrowserContract.History.CONTENT_URI, BrowserContract.History.URL + " = ?",
+                             new String[] { "http://test.org/99" });
+            mProvider.insert(BrowserContract.Bookmarks.CONTENT_URI,
+                    createBookmark("Test", "http://test.org/2", mMobileFolderId, BrowserContract.Bookmarks.TYPE_BOOKMARK, 0, "", "", ""));
+
+            mAsserter.is(getUrls(getTopSites(30)), getUrls(getTopSitesFromCombined(30)),
+                         "Top sites table matches the combined query");
+        }
+    }
+
+    /**
+     * Not a strict test: fill a large synthetic history, then time reading
+     * top sites from the materialized table and from the combined view, and
+     * time the visits that keep the table up to date.
+     */
+    private class TestTopSitesSpeed extends TestCase {
+        static final int HISTORY_COUNT = 100000;
+        static final int LIMIT = 30;
+        static final int RUNS = 5;
+
+        private long timeQuery(boolean materialized) throws Exception {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                final long start = SystemClock.uptimeMillis();
+                final Cursor c = materialized ? getTopSites(LIMIT) : getTopSitesFromCombined(LIMIT);
+                try {
+                    c.getCount();
+                } finally {
+                    c.close();
+                }
+                best = Math.min(best, SystemClock.uptimeMillis() - start);
+            }
+            return best;
+        }
+
+        @Override
+        public void test() throws Exception {
+            final Random random = new Random(42);
+            final long now = System.currentTimeMillis();
+
+            final ContentValues[] allVals = new ContentValues[HISTORY_COUNT];
+            for (int i = 0; i < HISTORY_COUNT; i++) {
+                allVals[i] = createHistoryEntry("Page " + i, "http://site" + (i % 5000) + ".com/" + i,
+                                                random.nextInt(20) + 1, now - random.nextInt(90) * 86400000L);
+            }
+
+            long start = SystemClock.uptimeMillis();
+            mProvider.bulkInsert(BrowserContract.History.CONTENT_URI, allVals);
+            mAsserter.dumpLog("TestTopSitesSpeed: inserted " + HISTORY_COUNT + " entries in " +
+                              (SystemClock.uptimeMillis() - start) + "ms.");
+
+            // The bulk insert left the table to be rebuilt by the first read.
+            start = SystemClock.uptimeMillis();
+            assertCountIsAndClose(getTopSites(LIMIT), LIMIT, "Found top sites");
+            mAsserter.dumpLog("TestTopSitesSpeed: first read, rebuilding the table, took " +
+                              (SystemClock.uptimeMillis() - start) + "ms.");
+
+            final long combinedMillis = timeQuery(false);
+            final long materializedMillis = timeQuery(true);
+            mAsserter.dumpLog("TestTopSitesSpeed: top " + LIMIT + " of " + HISTORY_COUNT + " entries: combined view " +
+                              combinedMillis + "ms, top sites table " + materializedMillis + "ms.");
+
+            // The write side cost: a visit to an existing entry.
+            Uri incrementUri = appendUriParam(BrowserContract.History.CONTENT_URI, BrowserContract.PARAM_INCREMENT_VISITS, "true");
+            start = SystemClock.uptimeMillis();
+            for (int i = 0; i < 100; i++) {
+                ContentValues u = new ContentValues();
+                u.put(BrowserContract.History.DATE_LAST_VISITED, now);
+                mProvider.update(incrementUri, u, BrowserContract.History.URL + " = ?",
+                                 new String[] { "http://site" + i + ".com/" + i });
+            }
+            mAsserter.dumpLog("TestTopSitesSpeed: 100 visits took " + (SystemClock.uptimeMillis() - start) + "ms.");
+        }
+    }
+
+    /**
+     * Sync, bulk, and batch writes leave the top sites table to be rebuilt
+     * when it's next read. It must still agree with the query it replaces.
+     */
+    private class TestTopSitesDeferredUpdates extends TestCase {
+        private void assertTopSite(String expected, String message) throws Exception {
+            final ArrayList<String> urls = getUrls(getTopSites(1));
+            mAsserter.is(urls.size(), 1, message + ": top sites count");
+            if (!urls.isEmpty()) {
+                mAsserter.is(urls.get(0), expected, message + ": top site");
+            }
+            mAsserter.is(getUrls(getTopSites(30)), getUrls(getTopSitesFromCombined(30)),
+                         message + ": top sites table matches the combined query");
+        }
+
+        @Override
+        public void test() throws Exception {
+            final long now = System.currentTimeMillis();
+
+            // Visit counts are chosen so that no two entries tie.
+            final ContentValues[] allVals = new ContentValues[100];
+            for (int i = 0; i < allVals.length; i++) {
+                allVals[i] = createHistoryEntry("Page " + i, "http://bulk.org/" + i, 2 * i + 1, now);
+            }
+            mProvider.bulkInsert(BrowserContract.History.CONTENT_URI, allVals);
+            assertTopSite("http://bulk.org/99", "Bulk inserted history");
+
+            // Sync raises the lowest entry to the top.
+            final Uri syncUri = appendUriParam(BrowserContract.History.CONTENT_URI, BrowserContract.PARAM_IS_SYNC, "true");
+            ContentValues u = new ContentValues();
+            u.put(BrowserContract.History.VISITS, 1000);
+            mProvider.update(syncUri, u, BrowserContract.History.URL + " = ?", new String[] { "http://bulk.org/0" });
+            assertTopSite("http://bulk.org/0", "Synced visits");
+
+            // Sync deletes it again.
+            mProvider.delete(syncUri, BrowserContract.History.URL + " = ?", new String[] { "http://bulk.org/0" });
+            assertTopSite("http://bulk.org/99", "Synced deletion");
+
+            // A batch raises another entry to the top.
+            final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+            operations.add(ContentProviderOperation.newUpdate(BrowserContract.History.CONTENT_URI)
+                                                   .withSelection(BrowserContract.History.URL + " = ?",
+                                                                  new String[] { "http://bulk.org/1" })
+                                                   .withValue(BrowserContract.History.VISITS, 2000)
+                                                   .build());
+            mProvider.applyBatch(operations);
+            assertTopSite("http://bulk.org/1", "Batched visits");
+
+            // An ordinary visit is applied directly, after the rebuild.
+            Uri incrementUri = appendUriParam(BrowserContract.History.CONTENT_URI, BrowserContract.PARAM_INCREMENT_VISITS, "true");
+            u = new ContentValues();
+            u.put(BrowserContract.History.VISITS, 3000);
+            mProvider.update(incrementUri, u, BrowserContract.History.URL + " = ?", new String[] { "http://bulk.org/2" });
+            assertTopSite("http://bulk.org/2", "Visited history");
+        }
+    }
+
     private class TestExpireHistory extends TestCase {
         private void createFakeHistory(long timeShift, int count) {
             // Insert a bunch of very new entries
@@ -1719,6 +2123,77 @@ public class testBrowserProvider extends ContentProviderTest {
         }
     }
 
+    private class TestFrecency extends TestCase {
+        private long getFrecency(long id) throws Exception {
+            Cursor c = getHistoryEntryById(id);
+            try {
+                mAsserter.is(c.moveToFirst(), true, "History entry found");
+                return c.getLong(c.getColumnIndex(BrowserContract.History.FRECENCY));
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        public void test() throws Exception {
+            final long now = System.currentTimeMillis();
+            final long oneDay = 1000L * 60L * 60L * 24L;
+
+            long recentId = ContentUris.parseId(mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("Recent", "http://recent.org/", 3, now)));
+            long oldId = ContentUris.parseId(mProvider.insert(BrowserContract.History.CONTENT_URI,
+                    createHistoryEntry("Old", "http://old.org/", 5, now - 400 * oneDay)));
+
+            // A recent visit is worth 100 points; an old one, a single point.
+            mAsserter.is(getFrecency(recentId), 300L, "Frecency of recent entry is computed on insert");
+            mAsserter.is(getFrecency(oldId), 5L, "Frecency of old entry is computed on insert");
+
+            // Updating the visits or the date recomputes the score.
+            ContentValues u = new ContentValues();
+            u.put(BrowserContract.History.VISITS, 4);
+            mProvider.update(ContentUris.withAppendedId(BrowserContract.History.CONTENT_URI, recentId), u, null, null);
+            mAsserter.is(getFrecency(recentId), 400L, "Frecency is updated with visits");
+
+            u = new ContentValues();
+            u.put(BrowserContract.History.DATE_LAST_VISITED, now);
+            mProvider.update(ContentUris.withAppendedId(BrowserContract.History.CONTENT_URI, oldId), u, null, null);
+            mAsserter.is(getFrecency(oldId), 500L, "Frecency is updated with last visited date");
+
+            // Incrementing visits through updateOrInsert also recomputes the score.
+            Uri incrementUri = appendUriParam(BrowserContract.History.CONTENT_URI, BrowserContract.PARAM_INCREMENT_VISITS, "true");
+            u = new ContentValues();
+            u.put(BrowserContract.History.DATE_LAST_VISITED, now);
+            mProvider.update(incrementUri, u, BrowserContract.History._ID + " = ?",
+                             new String[] { String.valueOf(recentId) });
+            mAsserter.is(getFrecency(recentId), 500L, "Frecency is updated when incrementing visits");
+
+            // Expiration brings stale scores up to date.
+            u = new ContentValues();
+            u.put(BrowserContract.History.FRECENCY, 1000);
+            mProvider.update(ContentUris.withAppendedId(BrowserContract.History.CONTENT_URI, recentId), u, null, null);
+            mAsserter.is(getFrecency(recentId), 1000L, "Frecency can be written directly");
+
+            Uri url = appendUriParam(BrowserContract.History.CONTENT_OLD_URI, BrowserContract.PARAM_EXPIRE_PRIORITY, "NORMAL");
+            mProvider.delete(url, null, null);
+            mAsserter.is(getFrecency(recentId), 500L, "Stale frecency is recomputed on expiration");
+            mAsserter.is(getFrecency(oldId), 500L, "Current frecency is unchanged on expiration");
+
+            // The combined view exposes the stored score, and sorts on it.
+            Cursor c = mProvider.query(BrowserContract.Combined.CONTENT_URI, null, null, null,
+                                       BrowserContract.getFrecencySortOrder(true, false));
+            try {
+                mAsserter.is(c.getCount(), 2, "Combined view has two entries");
+                mAsserter.is(c.moveToFirst(), true, "Found first combined entry");
+                mAsserter.is(c.getString(c.getColumnIndex(BrowserContract.Combined.URL)), "http://recent.org/",
+                             "Most frecent entry sorts first");
+                mAsserter.is(c.getLong(c.getColumnIndex(BrowserContract.Combined.FRECENCY)), 500L,
+                             "Combined view has correct frecency");
+            } finally {
+                c.close();
+            }
+        }
+    }
+
     /*
      * Verify that insert, update, delete, and bulkInsert operations
      * notify the ambient content resolver.  Each operation calls the
@@ -12,6 +12,7 @@ import org.mozilla.gecko.GeckoProfile;
 import org.mozilla.gecko.PrivateTab;
 import org.mozilla.gecko.Tab;
 import org.mozilla.gecko.db.BrowserContract;
+import org.mozilla.gecko.db.LocalTabsAccessor;
 import org.mozilla.gecko.db.TabsProvider;
 
 import android.content.ContentProvider;
@@ -66,6 +67,7 @@ public class testFilterOpenTab extends ContentProviderTest {
     public void setUp() throws Exception {
         super.setUp(sTabProviderCallable, BrowserContract.TABS_AUTHORITY, "tabs.db");
         mTests.add(new TestInsertLocalTabs());
+        mTests.add(new TestPersistLocalTabChanges());
     }
 
     public void testFilterOpenTab() throws Exception {
@@ -117,6 +119,74 @@ public class testFilterOpenTab extends ContentProviderTest {
         }
     }
 
+    private class TestPersistLocalTabChanges extends TestCase {
+        private void assertLocalTitles(String... titles) throws Exception {
+            final Cursor c = mProvider.query(BrowserContract.Tabs.CONTENT_URI,
+                                             new String[] { BrowserContract.Tabs.TITLE },
+                                             LOCAL_TABS_SELECTION,
+                                             null,
+                                             BrowserContract.Tabs.POSITION);
+            try {
+                mAsserter.is(c.getCount(), titles.length, "Local tab count is correct");
+                for (String title : titles) {
+                    mAsserter.ok(c.moveToNext(), "Moved to next local tab", null);
+                    mAsserter.is(c.getString(0), title, "Local tab title is correct");
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        public void test() throws Exception {
+            final LocalTabsAccessor accessor = new LocalTabsAccessor(GeckoProfile.DEFAULT_PROFILE);
+
+            final List<Tab> tabs = new ArrayList<Tab>();
+            for (int i = 0; i < 5; i++) {
+                tabs.add(createTab(10 + i, "http://example.com/" + i, false, 0, "Tab " + i));
+            }
+
+            // Nothing is known about the database yet, so everything is written.
+            accessor.persistLocalTabs(mResolver, tabs);
+            mAsserter.is(accessor.getLastPersistRowsWritten(), 5, "Initial persist writes every tab");
+            assertLocalTitles("Tab 0", "Tab 1", "Tab 2", "Tab 3", "Tab 4");
+
+            // Persisting the same tabs writes nothing.
+            accessor.persistLocalTabs(mResolver, tabs);
+            mAsserter.is(accessor.getLastPersistRowsWritten(), 0, "Unchanged tabs are not rewritten");
+
+            // A changed title only rewrites that tab.
+            tabs.set(2, createTab(12, "http://example.com/2", false, 0, "Tab 2 renamed"));
+            accessor.persistLocalTabs(mResolver, tabs);
+            mAsserter.is(accessor.getLastPersistRowsWritten(), 1, "Only the changed tab is written");
+            assertLocalTitles("Tab 0", "Tab 1", "Tab 2 renamed", "Tab 3", "Tab 4");
+
+            // Closing the last tabs only deletes them.
+            tabs.remove(4);
+            tabs.remove(3);
+            accessor.persistLocalTabs(mResolver, tabs);
+            mAsserter.is(accessor.getLastPersistRowsWritten(), 2, "Only the closed tabs are written");
+            assertLocalTitles("Tab 0", "Tab 1", "Tab 2 renamed");
+
+            // Moving a tab rewrites the tabs between its old and new positions.
+            tabs.add(0, tabs.remove(1));
+            tabs.add(createTab(15, "http://example.com/5", false, 0, "Tab 5"));
+            accessor.persistLocalTabs(mResolver, tabs);
+            mAsserter.is(accessor.getLastPersistRowsWritten(), 3, "Moved and added tabs are written");
+            assertLocalTitles("Tab 1", "Tab 0", "Tab 2 renamed", "Tab 5");
+
+            // If the database changes underneath the accessor, everything is rewritten.
+            mProvider.delete(BrowserContract.Tabs.CONTENT_URI, LOCAL_TABS_SELECTION, null);
+            tabs.set(3, createTab(15, "http://example.com/5", false, 0, "Tab 5 renamed"));
+            accessor.persistLocalTabs(mResolver, tabs);
+            mAsserter.is(accessor.getLastPersistRowsWritten(), 4, "Mismatched database is rewritten");
+            assertLocalTitles("Tab 1", "Tab 0", "Tab 2 renamed", "Tab 5 renamed");
+
+            mAsserter.is(accessor.getPersistCount(), 6, "Every persist is counted");
+            mAsserter.is(accessor.getTotalPersistRowsWritten(), 15L, "Rows written are totalled");
+        }
+    }
+
     /**
      * Assert that the provided cursor has the expected number of rows,
      * closing the cursor afterwards.
@@ -3,6 +3,7 @@ package org.mozilla.gecko.tests;
 import org.mozilla.gecko.db.BrowserDB;
 
 import android.content.ContentResolver;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 
 import com.jayway.android.robotium.solo.Condition;
@@ -57,13 +58,13 @@ public class testThumbnails extends BaseTest {
         final BrowserDB db = helper.getProfileDB();
 
         // check that the thumbnail is non-null
-        byte[] thumbnailData = db.getThumbnailForUrl(resolver, site1Url);
-        mAsserter.ok(thumbnailData != null && thumbnailData.length > 0, "Checking for thumbnail data", "No thumbnail data found");
+        Bitmap thumbnail = db.getThumbnailForUrl(resolver, site1Url);
+        mAsserter.ok(thumbnail != null, "Checking for thumbnail data", "No thumbnail data found");
         // drop thumbnails
         db.removeThumbnails(resolver);
         // check that the thumbnail is now null
-        thumbnailData = db.getThumbnailForUrl(resolver, site1Url);
-        mAsserter.ok(thumbnailData == null || thumbnailData.length == 0, "Checking for thumbnail data", "Thumbnail data found");
+        thumbnail = db.getThumbnailForUrl(resolver, site1Url);
+        mAsserter.ok(thumbnail == null, "Checking for thumbnail data", "Thumbnail data found");
     }
 
     private class ThumbnailTest implements Condition {